@@ -89,6 +89,17 @@ public interface ClientHelper {
 			Transaction txn, GroupId g, BdfDictionary query) throws DbException,
 			FormatException;
 
+	/**
+	 * Returns the metadata for up to the given number of the newest
+	 * delivered messages in the given group with timestamps earlier than the
+	 * given timestamp and metadata that matches the given query. If several
+	 * messages share the timestamp of the oldest message returned, they are
+	 * all returned.
+	 */
+	Map<MessageId, BdfDictionary> getMessageMetadataAsDictionary(
+			Transaction txn, GroupId g, BdfDictionary query, long before,
+			int limit) throws DbException, FormatException;
+
 	void mergeGroupMetadata(GroupId g, BdfDictionary metadata)
 			throws DbException, FormatException;
 
@@ -22,6 +22,7 @@ import org.briarproject.bramble.api.sync.MessageId;
 import org.briarproject.bramble.api.sync.MessageStatus;
 import org.briarproject.bramble.api.sync.Offer;
 import org.briarproject.bramble.api.sync.Request;
+import org.briarproject.bramble.api.sync.SendPriority;
 import org.briarproject.bramble.api.sync.validation.MessageState;
 import org.briarproject.bramble.api.transport.KeySetId;
 import org.briarproject.bramble.api.transport.TransportKeySet;
@@ -156,6 +157,13 @@ public interface DatabaseComponent extends TransactionManager {
 	 */
 	boolean containsIdentity(Transaction txn, AuthorId a) throws DbException;
 
+	/**
+	 * Returns true if the database contains the given message.
+	 * <p/>
+	 * Read-only.
+	 */
+	boolean containsMessage(Transaction txn, MessageId m) throws DbException;
+
 	/**
 	 * Returns true if there are any messages to send to the given contact
 	 * over a transport with the given maximum latency.
@@ -396,6 +404,18 @@ public interface DatabaseComponent extends TransactionManager {
 	Collection<MessageId> getPendingMessages(Transaction txn)
 			throws DbException;
 
+	/**
+	 * Returns the IDs and states of all dependencies of any messages that are
+	 * pending delivery, indexed by the IDs of the pending messages. Pending
+	 * messages without dependencies are not included. For missing
+	 * dependencies and dependencies in other groups, the state
+	 * {@link MessageState UNKNOWN} is returned.
+	 * <p/>
+	 * Read-only.
+	 */
+	Map<MessageId, Map<MessageId, MessageState>> getPendingMessageDependencies(
+			Transaction txn) throws DbException;
+
 	/**
 	 * Returns the IDs of any messages that have shared dependents but have
 	 * not yet been shared themselves.
@@ -432,6 +452,19 @@ public interface DatabaseComponent extends TransactionManager {
 	Map<MessageId, Metadata> getMessageMetadata(Transaction txn, GroupId g,
 			Metadata query) throws DbException;
 
+	/**
+	 * Returns the metadata for the newest delivered messages in the given
+	 * group with timestamps earlier than the given timestamp and metadata
+	 * that matches all entries in the given query. If the query is empty,
+	 * all delivered messages match. Up to the given number of messages are
+	 * returned, except that if several messages share the timestamp of the
+	 * oldest message returned, they are all returned.
+	 * <p/>
+	 * Read-only.
+	 */
+	Map<MessageId, Metadata> getMessageMetadata(Transaction txn, GroupId g,
+			Metadata query, long before, int limit) throws DbException;
+
 	/**
 	 * Returns the metadata for the given delivered message.
 	 * <p/>
@@ -495,6 +528,19 @@ public interface DatabaseComponent extends TransactionManager {
 	MessageStatus getMessageStatus(Transaction txn, ContactId c, MessageId m)
 			throws DbException;
 
+	/**
+	 * Returns the status of each of the given messages with respect to the
+	 * given contact. Messages that are not delivered, or whose groups are
+	 * invisible to the contact, have the default status.
+	 * <p/>
+	 * Read-only.
+	 *
+	 * @throws NoSuchMessageException if any of the messages is not in the
+	 * database
+	 */
+	Map<MessageId, MessageStatus> getMessageStatus(Transaction txn,
+			ContactId c, Collection<MessageId> m) throws DbException;
+
 	/**
 	 * Returns the message with the given ID for transmission to the given
 	 * contact over a transport with the given maximum latency. Returns null
@@ -541,6 +587,26 @@ public interface DatabaseComponent extends TransactionManager {
 	long getUnackedMessageBytesToSend(Transaction txn, ContactId c)
 			throws DbException;
 
+	/**
+	 * Returns the number of messages in each group that are eligible to be
+	 * sent to the given contact and have not been seen by the contact. Groups
+	 * without any such messages are not included.
+	 * <p/>
+	 * Read-only.
+	 */
+	Map<GroupId, Integer> getUnseenMessageCounts(Transaction txn, ContactId c)
+			throws DbException;
+
+	/**
+	 * Returns the IDs of all messages in the given group that are eligible to
+	 * be sent to the given contact, including messages that have been seen
+	 * by the contact.
+	 * <p/>
+	 * Read-only.
+	 */
+	Collection<MessageId> getSharedMessageIds(Transaction txn, ContactId c,
+			GroupId g) throws DbException;
+
 	/**
 	 * Returns the next time (in milliseconds since the Unix epoch) when a
 	 * message is due to be deleted, or {@link #NO_CLEANUP_DEADLINE}
@@ -579,6 +645,14 @@ public interface DatabaseComponent extends TransactionManager {
 	Collection<PendingContact> getPendingContacts(Transaction txn)
 			throws DbException;
 
+	/**
+	 * Returns the send priority of the given client's messages.
+	 * <p/>
+	 * Read-only.
+	 */
+	SendPriority getSendPriority(Transaction txn, ClientId c, int majorVersion)
+			throws DbException;
+
 	/**
 	 * Returns all settings in the given namespace.
 	 * <p/>
@@ -611,12 +685,6 @@ public interface DatabaseComponent extends TransactionManager {
 	Map<ContactId, Collection<TransportId>> getTransportsWithKeys(
 			Transaction txn) throws DbException;
 
-	/**
-	 * Increments the outgoing stream counter for the given transport keys.
-	 */
-	void incrementStreamCounter(Transaction txn, TransportId t, KeySetId k)
-			throws DbException;
-
 	/**
 	 * Merges the given metadata with the existing metadata for the given
 	 * group.
@@ -645,8 +713,11 @@ public interface DatabaseComponent extends TransactionManager {
 
 	/**
 	 * Processes a message from the given contact.
+	 *
+	 * @return True if the message was added to the database, or false if
+	 * the message was a duplicate or its group isn't visible to the contact.
 	 */
-	void receiveMessage(Transaction txn, ContactId c, Message m)
+	boolean receiveMessage(Transaction txn, ContactId c, Message m)
 			throws DbException;
 
 	/**
@@ -782,6 +853,20 @@ public interface DatabaseComponent extends TransactionManager {
 	void setReorderingWindow(Transaction txn, KeySetId k, TransportId t,
 			long timePeriod, long base, byte[] bitmap) throws DbException;
 
+	/**
+	 * Sets the send priority of the given client's messages, including
+	 * messages in groups that are added later. Clients that don't set a
+	 * priority have {@link SendPriority#NORMAL normal} priority.
+	 */
+	void setSendPriority(Transaction txn, ClientId c, int majorVersion,
+			SendPriority p) throws DbException;
+
+	/**
+	 * Sets the outgoing stream counter for the given transport keys.
+	 */
+	void setStreamCounter(Transaction txn, TransportId t, KeySetId k,
+			long streamCounter) throws DbException;
+
 	/**
 	 * Sets the versions of the sync protocol supported by the given contact.
 	 */
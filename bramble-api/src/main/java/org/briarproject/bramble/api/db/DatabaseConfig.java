@@ -26,4 +26,10 @@ public interface DatabaseConfig {
 	 */
 	@Nullable
 	KeyStrengthener getKeyStrengthener();
+
+	/**
+	 * Returns true if read-only transactions should be allowed to run
+	 * concurrently with a writer, if the database supports it.
+	 */
+	boolean isConcurrentReadsEnabled();
 }
@@ -19,6 +19,11 @@ import static java.lang.annotation.RetentionPolicy.RUNTIME;
  * block. Tasks must not run indefinitely. Tasks submitted during shutdown are
  * discarded.
  * <p>
+ * Tasks submitted to the {@link DatabasePriorityExecutor} may run before
+ * tasks that are waiting to run on this executor. Read-only tasks that
+ * don't depend on the ordering guarantee can be submitted to the
+ * {@link DatabaseReadExecutor} instead.
+ * <p>
  * It is not mandatory to use this executor for database tasks. The database
  * can be accessed from any thread, but this executor's guarantee that tasks
  * are run in the order they're submitted may be useful in some cases.
@@ -0,0 +1,29 @@
+package org.briarproject.bramble.api.db;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+import javax.inject.Qualifier;
+
+import static java.lang.annotation.ElementType.FIELD;
+import static java.lang.annotation.ElementType.METHOD;
+import static java.lang.annotation.ElementType.PARAMETER;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+/**
+ * Annotation for injecting the executor for interactive database tasks, such
+ * as tasks that are triggered by the user. Also used for annotating methods
+ * that should run on the priority database executor.
+ * <p>
+ * This executor shares a thread with the {@link DatabaseExecutor}. Tasks
+ * submitted to this executor are run in the order they're submitted, before
+ * any tasks that are waiting to run on the {@link DatabaseExecutor}. Tasks
+ * are not run concurrently with each other or with tasks on the
+ * {@link DatabaseExecutor}, and submitting a task will never block. Tasks
+ * must not run indefinitely. Tasks submitted during shutdown are discarded.
+ */
+@Qualifier
+@Target({FIELD, METHOD, PARAMETER})
+@Retention(RUNTIME)
+public @interface DatabasePriorityExecutor {
+}
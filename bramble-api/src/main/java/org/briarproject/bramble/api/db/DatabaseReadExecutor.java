@@ -0,0 +1,28 @@
+package org.briarproject.bramble.api.db;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+import javax.inject.Qualifier;
+
+import static java.lang.annotation.ElementType.FIELD;
+import static java.lang.annotation.ElementType.METHOD;
+import static java.lang.annotation.ElementType.PARAMETER;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+/**
+ * Annotation for injecting the executor for read-only database tasks. Also
+ * used for annotating methods that should run on the read-only database
+ * executor.
+ * <p>
+ * The contract of this executor is that tasks may run concurrently with each
+ * other and with tasks on the {@link DatabaseExecutor}, and may not run in
+ * the order they're submitted. Submitting a task will never block. Tasks
+ * must only use read-only transactions and must not run indefinitely. Tasks
+ * submitted during shutdown are discarded.
+ */
+@Qualifier
+@Target({FIELD, METHOD, PARAMETER})
+@Retention(RUNTIME)
+public @interface DatabaseReadExecutor {
+}
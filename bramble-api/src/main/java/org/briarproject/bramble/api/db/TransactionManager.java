@@ -36,7 +36,9 @@ public interface TransactionManager {
 	 *
 	 * @param readOnly True if the transaction will only be used for reading,
 	 * in which case the database lock can be shared with other read-only
-	 * transactions.
+	 * transactions. If the database supports concurrent reads, read-only
+	 * transactions don't acquire the lock and can run concurrently with a
+	 * write transaction.
 	 */
 	Transaction startTransaction(boolean readOnly) throws DbException;
 
@@ -0,0 +1,43 @@
+package org.briarproject.bramble.api.sync;
+
+/**
+ * The priority with which a client's messages are offered and sent to
+ * contacts. Messages with a more urgent priority are offered and sent before
+ * messages with a less urgent priority. Messages with the same priority are
+ * offered and sent in the usual order.
+ */
+public enum SendPriority {
+
+	/**
+	 * Interactive messages that the user is waiting for, such as private
+	 * messages.
+	 */
+	URGENT(0),
+
+	/**
+	 * The default priority, used for protocol messages and any clients that
+	 * haven't set a priority.
+	 */
+	NORMAL(1),
+
+	/**
+	 * Messages that may build up into a large backlog, such as forum and
+	 * blog posts.
+	 */
+	BULK(2);
+
+	private final int value;
+
+	SendPriority(int value) {
+		this.value = value;
+	}
+
+	public int getValue() {
+		return value;
+	}
+
+	public static SendPriority fromValue(int value) {
+		for (SendPriority p : values()) if (p.value == value) return p;
+		throw new IllegalArgumentException();
+	}
+}
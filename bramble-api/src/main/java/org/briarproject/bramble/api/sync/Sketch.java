@@ -0,0 +1,36 @@
+package org.briarproject.bramble.api.sync;
+
+import org.briarproject.nullsafety.NotNullByDefault;
+
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * A record containing a compact summary of the IDs of the messages in a
+ * group that the sender shares with the recipient. The recipient can compare
+ * the summary with its own messages to find out which messages only one of
+ * the peers has, without the peers exchanging the IDs of the messages they
+ * both have.
+ */
+@Immutable
+@NotNullByDefault
+public class Sketch {
+
+	private final GroupId groupId;
+	private final byte[] cells;
+
+	public Sketch(GroupId groupId, byte[] cells) {
+		this.groupId = groupId;
+		this.cells = cells;
+	}
+
+	public GroupId getGroupId() {
+		return groupId;
+	}
+
+	/**
+	 * Returns the encoded cells of the summary.
+	 */
+	public byte[] getCells() {
+		return cells;
+	}
+}
@@ -4,7 +4,8 @@ import org.briarproject.bramble.api.UniqueId;
 
 import java.util.List;
 
-import static java.util.Collections.singletonList;
+import static java.util.Arrays.asList;
+import static java.util.Collections.unmodifiableList;
 import static java.util.concurrent.TimeUnit.DAYS;
 import static org.briarproject.bramble.api.record.Record.MAX_RECORD_PAYLOAD_BYTES;
 
@@ -15,10 +16,20 @@ public interface SyncConstants {
 	 */
 	byte PROTOCOL_VERSION = 0;
 
+	/**
+	 * The version of the sync protocol that adds {@link RecordTypes#SKETCH
+	 * sketch} records. Sketch records are only sent to contacts that include
+	 * this version in their {@link Versions} records. Like other records they
+	 * carry the current protocol version, so they're ignored by peers that
+	 * don't support them.
+	 */
+	byte SKETCH_VERSION = 1;
+
 	/**
 	 * The versions of the sync protocol this peer supports.
 	 */
-	List<Byte> SUPPORTED_VERSIONS = singletonList(PROTOCOL_VERSION);
+	List<Byte> SUPPORTED_VERSIONS =
+			unmodifiableList(asList(PROTOCOL_VERSION, SKETCH_VERSION));
 
 	/**
 	 * The maximum length of a group descriptor in bytes.
@@ -0,0 +1,27 @@
+package org.briarproject.bramble.api.sync;
+
+import org.briarproject.bramble.api.contact.ContactId;
+import org.briarproject.bramble.api.plugin.TransportId;
+import org.briarproject.nullsafety.NotNullByDefault;
+
+import java.util.Collection;
+
+/**
+ * Keeps throughput and latency metrics for sync sessions, per contact and
+ * transport, since startup.
+ */
+@NotNullByDefault
+public interface SyncMetrics {
+
+	/**
+	 * Returns the metrics for sync sessions with the given contact over the
+	 * given transport.
+	 */
+	SyncStats getStats(ContactId c, TransportId t);
+
+	/**
+	 * Returns the metrics for every contact and transport with at least one
+	 * sync session since startup.
+	 */
+	Collection<SyncStats> getStats();
+}
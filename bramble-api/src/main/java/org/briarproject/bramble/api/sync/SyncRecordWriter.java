@@ -19,6 +19,8 @@ public interface SyncRecordWriter {
 
 	void writePriority(Priority p) throws IOException;
 
+	void writeSketch(Sketch s) throws IOException;
+
 	void flush() throws IOException;
 
 	long getBytesWritten();
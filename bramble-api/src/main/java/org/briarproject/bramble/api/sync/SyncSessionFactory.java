@@ -13,10 +13,11 @@ import javax.annotation.Nullable;
 public interface SyncSessionFactory {
 
 	/**
-	 * Creates a session for receiving data from a contact.
+	 * Creates a session for receiving data from a contact over the given
+	 * transport.
 	 */
-	SyncSession createIncomingSession(ContactId c, InputStream in,
-			PriorityHandler handler);
+	SyncSession createIncomingSession(ContactId c, TransportId t,
+			InputStream in, PriorityHandler handler);
 
 	/**
 	 * Creates a session for sending data to a contact over a simplex transport.
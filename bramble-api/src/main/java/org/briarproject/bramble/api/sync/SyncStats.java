@@ -0,0 +1,136 @@
+package org.briarproject.bramble.api.sync;
+
+import org.briarproject.bramble.api.contact.ContactId;
+import org.briarproject.bramble.api.plugin.TransportId;
+import org.briarproject.nullsafety.NotNullByDefault;
+
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * A snapshot of the metrics recorded for sync sessions with a contact over a
+ * transport. Record counts and byte counts are indexed by the record types
+ * in {@link RecordTypes}. Times are in milliseconds.
+ */
+@Immutable
+@NotNullByDefault
+public class SyncStats {
+
+	private final ContactId contactId;
+	private final TransportId transportId;
+	private final long[] recordsSent, bytesSent;
+	private final long[] recordsReceived, bytesReceived;
+	private final long batchesGenerated, batchGenerationTime, dbWaitTime;
+	private final long timeToFirstByteSent, timeToFirstByteReceived;
+	private final long acksTimed, ackRoundTripTime;
+
+	public SyncStats(ContactId contactId, TransportId transportId,
+			long[] recordsSent, long[] bytesSent, long[] recordsReceived,
+			long[] bytesReceived, long batchesGenerated,
+			long batchGenerationTime, long dbWaitTime,
+			long timeToFirstByteSent, long timeToFirstByteReceived,
+			long acksTimed, long ackRoundTripTime) {
+		this.contactId = contactId;
+		this.transportId = transportId;
+		this.recordsSent = recordsSent.clone();
+		this.bytesSent = bytesSent.clone();
+		this.recordsReceived = recordsReceived.clone();
+		this.bytesReceived = bytesReceived.clone();
+		this.batchesGenerated = batchesGenerated;
+		this.batchGenerationTime = batchGenerationTime;
+		this.dbWaitTime = dbWaitTime;
+		this.timeToFirstByteSent = timeToFirstByteSent;
+		this.timeToFirstByteReceived = timeToFirstByteReceived;
+		this.acksTimed = acksTimed;
+		this.ackRoundTripTime = ackRoundTripTime;
+	}
+
+	public ContactId getContactId() {
+		return contactId;
+	}
+
+	public TransportId getTransportId() {
+		return transportId;
+	}
+
+	public long getRecordsSent(byte recordType) {
+		return get(recordsSent, recordType);
+	}
+
+	/**
+	 * Returns the number of bytes sent in records of the given type,
+	 * including record headers.
+	 */
+	public long getBytesSent(byte recordType) {
+		return get(bytesSent, recordType);
+	}
+
+	public long getRecordsReceived(byte recordType) {
+		return get(recordsReceived, recordType);
+	}
+
+	/**
+	 * Returns the number of bytes received in records of the given type,
+	 * including record headers.
+	 */
+	public long getBytesReceived(byte recordType) {
+		return get(bytesReceived, recordType);
+	}
+
+	private static long get(long[] counts, byte recordType) {
+		if (recordType < 0 || recordType >= counts.length) return 0;
+		return counts[recordType];
+	}
+
+	public long getBatchesGenerated() {
+		return batchesGenerated;
+	}
+
+	/**
+	 * Returns the total time spent generating batches of messages.
+	 */
+	public long getBatchGenerationTime() {
+		return batchGenerationTime;
+	}
+
+	/**
+	 * Returns the total time sessions spent waiting for the database,
+	 * including time spent waiting for the database executor.
+	 */
+	public long getDbWaitTime() {
+		return dbWaitTime;
+	}
+
+	/**
+	 * Returns the time between the most recent outgoing session being
+	 * created and the first record that needed the database being written,
+	 * or -1 if no such record has been written.
+	 */
+	public long getTimeToFirstByteSent() {
+		return timeToFirstByteSent;
+	}
+
+	/**
+	 * Returns the time between the most recent incoming session being
+	 * created and the first record being read, or -1 if no record has been
+	 * read.
+	 */
+	public long getTimeToFirstByteReceived() {
+		return timeToFirstByteReceived;
+	}
+
+	/**
+	 * Returns the number of acked messages for which the round-trip time
+	 * was measured.
+	 */
+	public long getAcksTimed() {
+		return acksTimed;
+	}
+
+	/**
+	 * Returns the total time between messages being sent over the transport
+	 * and being acked by the contact over any transport.
+	 */
+	public long getAckRoundTripTime() {
+		return ackRoundTripTime;
+	}
+}
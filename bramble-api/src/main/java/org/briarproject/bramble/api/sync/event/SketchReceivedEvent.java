@@ -0,0 +1,41 @@
+package org.briarproject.bramble.api.sync.event;
+
+import org.briarproject.bramble.api.contact.ContactId;
+import org.briarproject.bramble.api.event.Event;
+import org.briarproject.bramble.api.plugin.TransportId;
+import org.briarproject.bramble.api.sync.GroupId;
+import org.briarproject.nullsafety.NotNullByDefault;
+
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * An event that is broadcast when a sketch of the messages in a group is
+ * received from a contact over a given transport.
+ */
+@Immutable
+@NotNullByDefault
+public class SketchReceivedEvent extends Event {
+
+	private final ContactId contactId;
+	private final TransportId transportId;
+	private final GroupId groupId;
+
+	public SketchReceivedEvent(ContactId contactId, TransportId transportId,
+			GroupId groupId) {
+		this.contactId = contactId;
+		this.transportId = transportId;
+		this.groupId = groupId;
+	}
+
+	public ContactId getContactId() {
+		return contactId;
+	}
+
+	public TransportId getTransportId() {
+		return transportId;
+	}
+
+	public GroupId getGroupId() {
+		return groupId;
+	}
+}
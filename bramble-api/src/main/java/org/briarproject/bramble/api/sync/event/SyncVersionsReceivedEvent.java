@@ -0,0 +1,42 @@
+package org.briarproject.bramble.api.sync.event;
+
+import org.briarproject.bramble.api.contact.ContactId;
+import org.briarproject.bramble.api.event.Event;
+import org.briarproject.bramble.api.plugin.TransportId;
+import org.briarproject.nullsafety.NotNullByDefault;
+
+import java.util.List;
+
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * An event that is broadcast when a sync session receives the versions of
+ * the sync protocol supported by a contact over a given transport.
+ */
+@Immutable
+@NotNullByDefault
+public class SyncVersionsReceivedEvent extends Event {
+
+	private final ContactId contactId;
+	private final TransportId transportId;
+	private final List<Byte> supported;
+
+	public SyncVersionsReceivedEvent(ContactId contactId,
+			TransportId transportId, List<Byte> supported) {
+		this.contactId = contactId;
+		this.transportId = transportId;
+		this.supported = supported;
+	}
+
+	public ContactId getContactId() {
+		return contactId;
+	}
+
+	public TransportId getTransportId() {
+		return transportId;
+	}
+
+	public List<Byte> getSupportedVersions() {
+		return supported;
+	}
+}
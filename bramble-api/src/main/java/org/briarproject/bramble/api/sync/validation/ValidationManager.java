@@ -1,8 +1,13 @@
 package org.briarproject.bramble.api.sync.validation;
 
+import org.briarproject.bramble.api.Consumer;
+import org.briarproject.bramble.api.contact.ContactId;
 import org.briarproject.bramble.api.crypto.SecretKey;
+import org.briarproject.bramble.api.db.DbException;
+import org.briarproject.bramble.api.db.DbRunnable;
 import org.briarproject.bramble.api.lifecycle.LifecycleManager;
 import org.briarproject.bramble.api.sync.ClientId;
+import org.briarproject.bramble.api.sync.Message;
 import org.briarproject.nullsafety.NotNullByDefault;
 
 /**
@@ -28,4 +33,17 @@ public interface ValidationManager {
 	 */
 	void registerIncomingMessageHook(ClientId c, int majorVersion,
 			IncomingMessageHook hook);
+
+	/**
+	 * Validates a message received from the given contact before the message
+	 * is stored, so that messages arriving in the same sync session can be
+	 * validated in parallel.
+	 * <p/>
+	 * When validation is complete, the given consumer is called with a task
+	 * that stores the message and the outcome of validation. The caller
+	 * should run the task in a read-write transaction, which may be shared
+	 * with other tasks. The consumer may be called on any thread.
+	 */
+	void prevalidateMessage(ContactId c, Message m,
+			Consumer<DbRunnable<DbException>> storer);
 }
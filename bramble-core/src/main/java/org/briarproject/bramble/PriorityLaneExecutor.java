@@ -0,0 +1,126 @@
+package org.briarproject.bramble;
+
+import org.briarproject.nullsafety.NotNullByDefault;
+
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import static java.util.logging.Level.FINE;
+import static org.briarproject.bramble.util.LogUtils.now;
+
+/**
+ * An {@link Executor} that delegates its tasks to another {@link Executor}
+ * one at a time, so tasks submitted to this executor will not run
+ * concurrently. Tasks are delegated in the order they are submitted, except
+ * that tasks submitted to the {@link #getPriorityLane() priority lane} are
+ * delegated before any tasks that are waiting in the normal lane.
+ * <p>
+ * If the delegate rejects a task by throwing a
+ * {@link RejectedExecutionException}, the task is discarded and the next
+ * waiting task is delegated instead. The delegate must not discard tasks
+ * without throwing, as the next task would then never be delegated.
+ */
+@ThreadSafe
+@NotNullByDefault
+public class PriorityLaneExecutor implements Executor {
+
+	private final Object lock = new Object();
+	@GuardedBy("lock")
+	private final Queue<Runnable> queue = new LinkedList<>();
+	@GuardedBy("lock")
+	private final Queue<Runnable> priorityQueue = new LinkedList<>();
+	private final Executor delegate;
+	private final Executor priorityLane;
+	private final Logger log;
+
+	@GuardedBy("lock")
+	private boolean delegated = false;
+
+	/**
+	 * @param tag the tag to be used for logging
+	 * @param delegate the executor to which tasks will be delegated
+	 */
+	public PriorityLaneExecutor(String tag, Executor delegate) {
+		this.delegate = delegate;
+		log = Logger.getLogger(tag);
+		priorityLane = r -> submit(r, true);
+	}
+
+	@Override
+	public void execute(Runnable r) {
+		submit(r, false);
+	}
+
+	/**
+	 * Returns an {@link Executor} for submitting tasks to the priority lane.
+	 */
+	public Executor getPriorityLane() {
+		return priorityLane;
+	}
+
+	private void submit(Runnable r, boolean priority) {
+		long submitted = now();
+		Runnable wrapped = () -> {
+			if (log.isLoggable(FINE)) {
+				long queued = now() - submitted;
+				log.fine("Queue time " + queued + " ms, priority " + priority);
+			}
+			try {
+				r.run();
+			} finally {
+				scheduleNext();
+			}
+		};
+		synchronized (lock) {
+			if (!delegated) {
+				delegate(wrapped);
+			} else if (priority) {
+				priorityQueue.add(wrapped);
+			} else {
+				queue.add(wrapped);
+			}
+		}
+	}
+
+	private void scheduleNext() {
+		synchronized (lock) {
+			delegate(pollNext());
+		}
+	}
+
+	@GuardedBy("lock")
+	@Nullable
+	private Runnable pollNext() {
+		Runnable next = priorityQueue.poll();
+		return next == null ? queue.poll() : next;
+	}
+
+	/**
+	 * Delegates the given task, or if the delegate rejects it, the next
+	 * waiting task that the delegate accepts. Clears the {@link #delegated}
+	 * flag if no task is delegated.
+	 */
+	@GuardedBy("lock")
+	private void delegate(@Nullable Runnable r) {
+		while (r != null) {
+			// Set the flag first in case the delegate runs the task directly
+			delegated = true;
+			try {
+				delegate.execute(r);
+				return;
+			} catch (RejectedExecutionException e) {
+				// The delegate is probably shutting down
+				log.warning("Task rejected by delegate, discarding");
+				r = pollNext();
+			}
+		}
+		delegated = false;
+	}
+}
@@ -0,0 +1,222 @@
+package org.briarproject.bramble.crypto;
+
+import org.briarproject.nullsafety.NotNullByDefault;
+
+import javax.annotation.concurrent.NotThreadSafe;
+
+import static java.lang.System.arraycopy;
+
+/**
+ * The Poly1305 one-time authenticator. The accumulator is held in five
+ * 26-bit limbs that are multiplied using 64-bit arithmetic, and the state
+ * is reused, so computing a MAC doesn't allocate any objects.
+ * <p/>
+ * References:
+ * <ul>
+ * <li>http://cr.yp.to/mac/poly1305-20050329.pdf</li>
+ * <li>https://github.com/floodyberry/poly1305-donna</li>
+ * </ul>
+ */
+@NotThreadSafe
+@NotNullByDefault
+class Poly1305Mac {
+
+	static final int KEY_LENGTH = 32, MAC_LENGTH = 16;
+
+	private static final int BLOCK_LENGTH = 16;
+	private static final int MASK_26 = 0x3ffffff;
+	private static final int HIGH_BIT = 1 << 24;
+
+	private final byte[] buf = new byte[BLOCK_LENGTH];
+
+	// The clamped key r, and r * 5 for the reduction
+	private int r0, r1, r2, r3, r4, s1, s2, s3, s4;
+	// The key s, which is added to the accumulator at the end
+	private int pad0, pad1, pad2, pad3;
+	// The accumulator
+	private int h0, h1, h2, h3, h4;
+	private int bufLength = 0;
+	private boolean initialised = false;
+
+	/**
+	 * Initialises the MAC with the one-time key starting at the given offset
+	 * of the given buffer. The key is clamped as part of initialisation.
+	 */
+	void init(byte[] key, int keyOff) {
+		if (keyOff < 0 || keyOff + KEY_LENGTH > key.length)
+			throw new IllegalArgumentException();
+		int t0 = readInt(key, keyOff), t1 = readInt(key, keyOff + 4);
+		int t2 = readInt(key, keyOff + 8), t3 = readInt(key, keyOff + 12);
+		r0 = t0 & 0x3ffffff;
+		r1 = ((t0 >>> 26) | (t1 << 6)) & 0x3ffff03;
+		r2 = ((t1 >>> 20) | (t2 << 12)) & 0x3ffc0ff;
+		r3 = ((t2 >>> 14) | (t3 << 18)) & 0x3f03fff;
+		r4 = (t3 >>> 8) & 0x00fffff;
+		s1 = r1 * 5;
+		s2 = r2 * 5;
+		s3 = r3 * 5;
+		s4 = r4 * 5;
+		pad0 = readInt(key, keyOff + 16);
+		pad1 = readInt(key, keyOff + 20);
+		pad2 = readInt(key, keyOff + 24);
+		pad3 = readInt(key, keyOff + 28);
+		reset();
+		initialised = true;
+	}
+
+	void update(byte[] input, int inputOff, int len) {
+		if (!initialised) throw new IllegalStateException();
+		// Fill any partial block left over from the last update
+		if (bufLength > 0) {
+			int n = Math.min(len, BLOCK_LENGTH - bufLength);
+			arraycopy(input, inputOff, buf, bufLength, n);
+			bufLength += n;
+			inputOff += n;
+			len -= n;
+			if (bufLength < BLOCK_LENGTH) return;
+			processBlock(buf, 0, HIGH_BIT);
+			bufLength = 0;
+		}
+		while (len >= BLOCK_LENGTH) {
+			processBlock(input, inputOff, HIGH_BIT);
+			inputOff += BLOCK_LENGTH;
+			len -= BLOCK_LENGTH;
+		}
+		if (len > 0) {
+			arraycopy(input, inputOff, buf, 0, len);
+			bufLength = len;
+		}
+	}
+
+	/**
+	 * Writes the MAC to the given buffer. The MAC must be initialised with a
+	 * new key before it's used again.
+	 */
+	void doFinal(byte[] output, int outputOff) {
+		if (!initialised) throw new IllegalStateException();
+		// Pad and process any partial block
+		if (bufLength > 0) {
+			buf[bufLength] = 1;
+			for (int i = bufLength + 1; i < BLOCK_LENGTH; i++) buf[i] = 0;
+			processBlock(buf, 0, 0);
+		}
+		// Fully carry the accumulator
+		int c;
+		c = h1 >>> 26;
+		h1 &= MASK_26;
+		h2 += c;
+		c = h2 >>> 26;
+		h2 &= MASK_26;
+		h3 += c;
+		c = h3 >>> 26;
+		h3 &= MASK_26;
+		h4 += c;
+		c = h4 >>> 26;
+		h4 &= MASK_26;
+		h0 += c * 5;
+		c = h0 >>> 26;
+		h0 &= MASK_26;
+		h1 += c;
+		// Compute h - p, where p = 2^130 - 5
+		int g0 = h0 + 5;
+		c = g0 >>> 26;
+		g0 &= MASK_26;
+		int g1 = h1 + c;
+		c = g1 >>> 26;
+		g1 &= MASK_26;
+		int g2 = h2 + c;
+		c = g2 >>> 26;
+		g2 &= MASK_26;
+		int g3 = h3 + c;
+		c = g3 >>> 26;
+		g3 &= MASK_26;
+		int g4 = h4 + c - (1 << 26);
+		// In constant time, select h if h < p, or h - p if h >= p
+		int mask = (g4 >>> 31) - 1;
+		g0 &= mask;
+		g1 &= mask;
+		g2 &= mask;
+		g3 &= mask;
+		g4 &= mask;
+		mask = ~mask;
+		h0 = (h0 & mask) | g0;
+		h1 = (h1 & mask) | g1;
+		h2 = (h2 & mask) | g2;
+		h3 = (h3 & mask) | g3;
+		h4 = (h4 & mask) | g4;
+		// Reduce h modulo 2^128 and add the pad
+		long f0 = ((h0 | (h1 << 26)) & 0xffffffffL) + (pad0 & 0xffffffffL);
+		long f1 = (((h1 >>> 6) | (h2 << 20)) & 0xffffffffL)
+				+ (pad1 & 0xffffffffL);
+		long f2 = (((h2 >>> 12) | (h3 << 14)) & 0xffffffffL)
+				+ (pad2 & 0xffffffffL);
+		long f3 = (((h3 >>> 18) | (h4 << 8)) & 0xffffffffL)
+				+ (pad3 & 0xffffffffL);
+		writeInt((int) f0, output, outputOff);
+		f1 += f0 >>> 32;
+		writeInt((int) f1, output, outputOff + 4);
+		f2 += f1 >>> 32;
+		writeInt((int) f2, output, outputOff + 8);
+		f3 += f2 >>> 32;
+		writeInt((int) f3, output, outputOff + 12);
+		reset();
+		initialised = false;
+	}
+
+	private void reset() {
+		h0 = h1 = h2 = h3 = h4 = 0;
+		bufLength = 0;
+	}
+
+	/**
+	 * Adds a 16-byte block to the accumulator and multiplies the result by
+	 * r, modulo 2^130 - 5. The high bit is set for all blocks except a
+	 * padded final block.
+	 */
+	private void processBlock(byte[] input, int off, int highBit) {
+		int t0 = readInt(input, off), t1 = readInt(input, off + 4);
+		int t2 = readInt(input, off + 8), t3 = readInt(input, off + 12);
+		h0 += t0 & MASK_26;
+		h1 += ((t0 >>> 26) | (t1 << 6)) & MASK_26;
+		h2 += ((t1 >>> 20) | (t2 << 12)) & MASK_26;
+		h3 += ((t2 >>> 14) | (t3 << 18)) & MASK_26;
+		h4 += (t3 >>> 8) | highBit;
+
+		long d0 = (long) h0 * r0 + (long) h1 * s4 + (long) h2 * s3
+				+ (long) h3 * s2 + (long) h4 * s1;
+		long d1 = (long) h0 * r1 + (long) h1 * r0 + (long) h2 * s4
+				+ (long) h3 * s3 + (long) h4 * s2;
+		long d2 = (long) h0 * r2 + (long) h1 * r1 + (long) h2 * r0
+				+ (long) h3 * s4 + (long) h4 * s3;
+		long d3 = (long) h0 * r3 + (long) h1 * r2 + (long) h2 * r1
+				+ (long) h3 * r0 + (long) h4 * s4;
+		long d4 = (long) h0 * r4 + (long) h1 * r3 + (long) h2 * r2
+				+ (long) h3 * r1 + (long) h4 * r0;
+
+		// Partially carry the result
+		d1 += d0 >>> 26;
+		h0 = (int) d0 & MASK_26;
+		d2 += d1 >>> 26;
+		h1 = (int) d1 & MASK_26;
+		d3 += d2 >>> 26;
+		h2 = (int) d2 & MASK_26;
+		d4 += d3 >>> 26;
+		h3 = (int) d3 & MASK_26;
+		long c = (d4 >>> 26) * 5 + h0;
+		h4 = (int) d4 & MASK_26;
+		h0 = (int) c & MASK_26;
+		h1 += (int) (c >>> 26);
+	}
+
+	private static int readInt(byte[] src, int off) {
+		return (src[off] & 0xFF) | ((src[off + 1] & 0xFF) << 8)
+				| ((src[off + 2] & 0xFF) << 16) | (src[off + 3] << 24);
+	}
+
+	private static void writeInt(int src, byte[] dest, int off) {
+		dest[off] = (byte) src;
+		dest[off + 1] = (byte) (src >>> 8);
+		dest[off + 2] = (byte) (src >>> 16);
+		dest[off + 3] = (byte) (src >>> 24);
+	}
+}
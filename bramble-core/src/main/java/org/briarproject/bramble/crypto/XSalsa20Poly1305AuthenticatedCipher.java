@@ -1,11 +1,5 @@
 package org.briarproject.bramble.crypto;
 
-import org.bouncycastle.crypto.DataLengthException;
-import org.bouncycastle.crypto.engines.XSalsa20Engine;
-import org.bouncycastle.crypto.generators.Poly1305KeyGenerator;
-import org.bouncycastle.crypto.macs.Poly1305;
-import org.bouncycastle.crypto.params.KeyParameter;
-import org.bouncycastle.crypto.params.ParametersWithIV;
 import org.briarproject.bramble.api.crypto.SecretKey;
 import org.briarproject.nullsafety.NotNullByDefault;
 
@@ -31,29 +25,26 @@ import static org.briarproject.bramble.api.transport.TransportConstants.MAC_LENG
 @NotNullByDefault
 class XSalsa20Poly1305AuthenticatedCipher implements AuthenticatedCipher {
 
-	/**
-	 * Length of the padding to be used to generate the Poly1305 key
-	 */
-	private static final int SUBKEY_LENGTH = 32;
-
-	private final XSalsa20Engine xSalsa20Engine;
-	private final Poly1305 poly1305;
+	private final XSalsa20Stream xSalsa20;
+	private final Poly1305Mac poly1305;
+	// Reused for each message
+	private final byte[] subKey, mac;
 
 	private boolean encrypting;
 
 	XSalsa20Poly1305AuthenticatedCipher() {
-		xSalsa20Engine = new XSalsa20Engine();
-		poly1305 = new Poly1305();
+		xSalsa20 = new XSalsa20Stream();
+		poly1305 = new Poly1305Mac();
+		subKey = new byte[Poly1305Mac.KEY_LENGTH];
+		mac = new byte[MAC_LENGTH];
 	}
 
 	@Override
 	public void init(boolean encrypt, SecretKey key, byte[] iv)
 			throws GeneralSecurityException {
 		encrypting = encrypt;
-		KeyParameter k = new KeyParameter(key.getBytes());
-		ParametersWithIV params = new ParametersWithIV(k, iv);
 		try {
-			xSalsa20Engine.init(encrypt, params);
+			xSalsa20.init(key.getBytes(), iv);
 		} catch (IllegalArgumentException e) {
 			throw new GeneralSecurityException(e.getMessage());
 		}
@@ -64,48 +55,42 @@ class XSalsa20Poly1305AuthenticatedCipher implements AuthenticatedCipher {
 			int outputOff) throws GeneralSecurityException {
 		if (!encrypting && len < MAC_LENGTH)
 			throw new GeneralSecurityException("Invalid MAC");
-		try {
-			// Generate the Poly1305 subkey from an empty array
-			byte[] zero = new byte[SUBKEY_LENGTH];
-			byte[] subKey = new byte[SUBKEY_LENGTH];
-			xSalsa20Engine.processBytes(zero, 0, SUBKEY_LENGTH, subKey, 0);
-
-			// Clamp the subkey
-			Poly1305KeyGenerator.clamp(subKey);
-
-			// Initialize Poly1305 with the subkey
-			KeyParameter k = new KeyParameter(subKey);
-			poly1305.init(k);
-
-			// If we are decrypting, verify the MAC
-			if (!encrypting) {
-				byte[] mac = new byte[MAC_LENGTH];
-				poly1305.update(input, inputOff + MAC_LENGTH, len - MAC_LENGTH);
-				poly1305.doFinal(mac, 0);
-				// Constant-time comparison
-				int cmp = 0;
-				for (int i = 0; i < MAC_LENGTH; i++)
-					cmp |= mac[i] ^ input[inputOff + i];
-				if (cmp != 0)
-					throw new GeneralSecurityException("Invalid MAC");
-			}
-
-			// Apply or invert the stream encryption
-			int processed = xSalsa20Engine.processBytes(
-					input, encrypting ? inputOff : inputOff + MAC_LENGTH,
-					encrypting ? len : len - MAC_LENGTH,
-					output, encrypting ? outputOff + MAC_LENGTH : outputOff);
-
-			// If we are encrypting, generate the MAC
-			if (encrypting) {
-				poly1305.update(output, outputOff + MAC_LENGTH, len);
-				poly1305.doFinal(output, outputOff);
-			}
-
-			return encrypting ? processed + MAC_LENGTH : processed;
-		} catch (DataLengthException e) {
-			throw new GeneralSecurityException(e.getMessage());
+		int outputLen = encrypting ? len + MAC_LENGTH : len - MAC_LENGTH;
+		if (inputOff < 0 || outputOff < 0 || inputOff + len > input.length
+				|| outputOff + outputLen > output.length) {
+			throw new GeneralSecurityException("Invalid buffer length");
+		}
+
+		// Generate the Poly1305 subkey from the first 32 bytes of the key
+		// stream, and initialise Poly1305 with the subkey
+		xSalsa20.getKeyStream(subKey, 0, subKey.length);
+		poly1305.init(subKey, 0);
+
+		// If we are decrypting, verify the MAC
+		if (!encrypting) {
+			poly1305.update(input, inputOff + MAC_LENGTH, len - MAC_LENGTH);
+			poly1305.doFinal(mac, 0);
+			// Constant-time comparison
+			int cmp = 0;
+			for (int i = 0; i < MAC_LENGTH; i++)
+				cmp |= mac[i] ^ input[inputOff + i];
+			if (cmp != 0)
+				throw new GeneralSecurityException("Invalid MAC");
 		}
+
+		// Apply or invert the stream encryption
+		xSalsa20.processBytes(
+				input, encrypting ? inputOff : inputOff + MAC_LENGTH,
+				encrypting ? len : len - MAC_LENGTH,
+				output, encrypting ? outputOff + MAC_LENGTH : outputOff);
+
+		// If we are encrypting, generate the MAC
+		if (encrypting) {
+			poly1305.update(output, outputOff + MAC_LENGTH, len);
+			poly1305.doFinal(output, outputOff);
+		}
+
+		return outputLen;
 	}
 
 	@Override
@@ -0,0 +1,202 @@
+package org.briarproject.bramble.crypto;
+
+import org.briarproject.nullsafety.NotNullByDefault;
+
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * The XSalsa20 stream cipher. The state is reused, so initialising the
+ * cipher and generating the key stream don't allocate any objects.
+ * <p/>
+ * References:
+ * <ul>
+ * <li>http://cr.yp.to/snuffle/spec.pdf</li>
+ * <li>http://cr.yp.to/snuffle/xsalsa-20110204.pdf</li>
+ * </ul>
+ */
+@NotThreadSafe
+@NotNullByDefault
+class XSalsa20Stream {
+
+	static final int KEY_LENGTH = 32, NONCE_LENGTH = 24;
+
+	private static final int BLOCK_LENGTH = 64;
+
+	// "expand 32-byte k" as little-endian words
+	private static final int SIGMA_0 = 0x61707865, SIGMA_1 = 0x3320646e;
+	private static final int SIGMA_2 = 0x79622d32, SIGMA_3 = 0x6b206574;
+
+	private final int[] state = new int[16], x = new int[16];
+	private final byte[] keyStream = new byte[BLOCK_LENGTH];
+
+	private int keyStreamOffset = BLOCK_LENGTH; // No key stream is buffered
+	private boolean initialised = false;
+
+	void init(byte[] key, byte[] nonce) {
+		if (key.length != KEY_LENGTH) throw new IllegalArgumentException();
+		if (nonce.length != NONCE_LENGTH) throw new IllegalArgumentException();
+		// Use HSalsa20 to derive a subkey from the key and the first 16
+		// bytes of the nonce
+		state[0] = SIGMA_0;
+		for (int i = 0; i < 4; i++) {
+			state[1 + i] = readInt(key, i * 4);
+			state[11 + i] = readInt(key, 16 + i * 4);
+			state[6 + i] = readInt(nonce, i * 4);
+		}
+		state[5] = SIGMA_1;
+		state[10] = SIGMA_2;
+		state[15] = SIGMA_3;
+		rounds(state, x);
+		state[1] = x[0];
+		state[2] = x[5];
+		state[3] = x[10];
+		state[4] = x[15];
+		state[11] = x[6];
+		state[12] = x[7];
+		state[13] = x[8];
+		state[14] = x[9];
+		// Use Salsa20 with the subkey and the rest of the nonce
+		state[6] = readInt(nonce, 16);
+		state[7] = readInt(nonce, 20);
+		state[8] = 0;
+		state[9] = 0;
+		keyStreamOffset = BLOCK_LENGTH;
+		initialised = true;
+	}
+
+	/**
+	 * Writes the next bytes of the key stream to the given buffer.
+	 */
+	void getKeyStream(byte[] output, int outputOff, int len) {
+		if (!initialised) throw new IllegalStateException();
+		for (int i = 0; i < len; i++) {
+			if (keyStreamOffset == BLOCK_LENGTH) nextBlock();
+			output[outputOff + i] = keyStream[keyStreamOffset++];
+		}
+	}
+
+	/**
+	 * XORs the given input with the next bytes of the key stream, writing
+	 * the result to the given output. The input and output may be the same
+	 * buffer if the offsets are equal.
+	 */
+	void processBytes(byte[] input, int inputOff, int len, byte[] output,
+			int outputOff) {
+		if (!initialised) throw new IllegalStateException();
+		int i = 0;
+		// Use any buffered key stream
+		for (; i < len && keyStreamOffset < BLOCK_LENGTH; i++) {
+			output[outputOff + i] = (byte) (input[inputOff + i]
+					^ keyStream[keyStreamOffset++]);
+		}
+		// Process whole blocks a word at a time, without buffering
+		for (; len - i >= BLOCK_LENGTH; i += BLOCK_LENGTH) {
+			rounds(state, x);
+			for (int j = 0; j < 16; j++) {
+				int in = readInt(input, inputOff + i + j * 4);
+				writeInt(in ^ (x[j] + state[j]), output,
+						outputOff + i + j * 4);
+			}
+			incrementCounter();
+		}
+		// Buffer the key stream for any partial block
+		for (; i < len; i++) {
+			if (keyStreamOffset == BLOCK_LENGTH) nextBlock();
+			output[outputOff + i] = (byte) (input[inputOff + i]
+					^ keyStream[keyStreamOffset++]);
+		}
+	}
+
+	private void nextBlock() {
+		rounds(state, x);
+		for (int i = 0; i < 16; i++)
+			writeInt(x[i] + state[i], keyStream, i * 4);
+		keyStreamOffset = 0;
+		incrementCounter();
+	}
+
+	private void incrementCounter() {
+		// The 64-bit block counter must not wrap
+		if (++state[8] == 0 && ++state[9] == 0)
+			throw new IllegalStateException();
+	}
+
+	/**
+	 * Applies the 20 rounds of the Salsa20 core to the given input, writing
+	 * the result to the given output without adding the input.
+	 */
+	private static void rounds(int[] in, int[] out) {
+		int x0 = in[0], x1 = in[1], x2 = in[2], x3 = in[3];
+		int x4 = in[4], x5 = in[5], x6 = in[6], x7 = in[7];
+		int x8 = in[8], x9 = in[9], x10 = in[10], x11 = in[11];
+		int x12 = in[12], x13 = in[13], x14 = in[14], x15 = in[15];
+		for (int i = 0; i < 10; i++) {
+			// Column round
+			x4 ^= rotl(x0 + x12, 7);
+			x8 ^= rotl(x4 + x0, 9);
+			x12 ^= rotl(x8 + x4, 13);
+			x0 ^= rotl(x12 + x8, 18);
+			x9 ^= rotl(x5 + x1, 7);
+			x13 ^= rotl(x9 + x5, 9);
+			x1 ^= rotl(x13 + x9, 13);
+			x5 ^= rotl(x1 + x13, 18);
+			x14 ^= rotl(x10 + x6, 7);
+			x2 ^= rotl(x14 + x10, 9);
+			x6 ^= rotl(x2 + x14, 13);
+			x10 ^= rotl(x6 + x2, 18);
+			x3 ^= rotl(x15 + x11, 7);
+			x7 ^= rotl(x3 + x15, 9);
+			x11 ^= rotl(x7 + x3, 13);
+			x15 ^= rotl(x11 + x7, 18);
+			// Row round
+			x1 ^= rotl(x0 + x3, 7);
+			x2 ^= rotl(x1 + x0, 9);
+			x3 ^= rotl(x2 + x1, 13);
+			x0 ^= rotl(x3 + x2, 18);
+			x6 ^= rotl(x5 + x4, 7);
+			x7 ^= rotl(x6 + x5, 9);
+			x4 ^= rotl(x7 + x6, 13);
+			x5 ^= rotl(x4 + x7, 18);
+			x11 ^= rotl(x10 + x9, 7);
+			x8 ^= rotl(x11 + x10, 9);
+			x9 ^= rotl(x8 + x11, 13);
+			x10 ^= rotl(x9 + x8, 18);
+			x12 ^= rotl(x15 + x14, 7);
+			x13 ^= rotl(x12 + x15, 9);
+			x14 ^= rotl(x13 + x12, 13);
+			x15 ^= rotl(x14 + x13, 18);
+		}
+		out[0] = x0;
+		out[1] = x1;
+		out[2] = x2;
+		out[3] = x3;
+		out[4] = x4;
+		out[5] = x5;
+		out[6] = x6;
+		out[7] = x7;
+		out[8] = x8;
+		out[9] = x9;
+		out[10] = x10;
+		out[11] = x11;
+		out[12] = x12;
+		out[13] = x13;
+		out[14] = x14;
+		out[15] = x15;
+	}
+
+	private static int rotl(int x, int n) {
+		return (x << n) | (x >>> (32 - n));
+	}
+
+	private static int readInt(byte[] src, int off) {
+		return (src[off] & 0xFF) | ((src[off + 1] & 0xFF) << 8)
+				| ((src[off + 2] & 0xFF) << 16) | (src[off + 3] << 24);
+	}
+
+	private static void writeInt(int src, byte[] dest, int off) {
+		dest[off] = (byte) src;
+		dest[off + 1] = (byte) (src >>> 8);
+		dest[off + 2] = (byte) (src >>> 16);
+		dest[off + 3] = (byte) (src >>> 24);
+	}
+}
@@ -26,6 +26,7 @@ import org.briarproject.bramble.api.sync.GroupId;
 import org.briarproject.bramble.api.sync.Message;
 import org.briarproject.bramble.api.sync.MessageId;
 import org.briarproject.bramble.api.sync.MessageStatus;
+import org.briarproject.bramble.api.sync.SendPriority;
 import org.briarproject.bramble.api.sync.validation.MessageState;
 import org.briarproject.bramble.api.transport.KeySetId;
 import org.briarproject.bramble.api.transport.TransportKeySet;
@@ -75,6 +76,13 @@ interface Database<T> {
 	 */
 	boolean wasDirtyOnInitialisation();
 
+	/**
+	 * Returns true if read-only transactions can safely run concurrently
+	 * with a write transaction, each on its own connection, without seeing
+	 * uncommitted changes made by the writer.
+	 */
+	boolean supportsConcurrentReads();
+
 	/**
 	 * Starts a new transaction and returns an object representing it.
 	 */
@@ -137,6 +145,12 @@ interface Database<T> {
 	 */
 	void addOfferedMessage(T txn, ContactId c, MessageId m) throws DbException;
 
+	/**
+	 * Records that the given messages have been offered by the given contact.
+	 */
+	void addOfferedMessages(T txn, ContactId c, Collection<MessageId> m)
+			throws DbException;
+
 	/**
 	 * Stores a pending contact.
 	 */
@@ -254,6 +268,16 @@ interface Database<T> {
 	boolean containsVisibleMessage(T txn, ContactId c, MessageId m)
 			throws DbException;
 
+	/**
+	 * Returns the IDs of the given messages that the database contains, that
+	 * are shared, and whose groups are {@link Visibility VISIBLE} or
+	 * {@link Visibility SHARED} to the given contact.
+	 * <p/>
+	 * Read-only.
+	 */
+	Collection<MessageId> getVisibleMessages(T txn, ContactId c,
+			Collection<MessageId> m) throws DbException;
+
 	/**
 	 * Returns the number of messages offered by the given contact.
 	 * <p/>
@@ -386,6 +410,16 @@ interface Database<T> {
 	 */
 	Message getMessage(T txn, MessageId m) throws DbException;
 
+	/**
+	 * Returns the messages with the given IDs, in the same order as the IDs.
+	 * <p/>
+	 * Read-only.
+	 *
+	 * @throws MessageDeletedException if any of the messages has been deleted
+	 */
+	List<Message> getMessages(T txn, Collection<MessageId> m)
+			throws DbException;
+
 	/**
 	 * Returns the IDs and states of all dependencies of the given message.
 	 * For missing dependencies and dependencies in other groups, the state
@@ -447,6 +481,19 @@ interface Database<T> {
 	Map<MessageId, Metadata> getMessageMetadata(T txn, GroupId g,
 			Metadata query) throws DbException;
 
+	/**
+	 * Returns the metadata for the newest delivered messages in the given
+	 * group with timestamps earlier than the given timestamp and metadata
+	 * that matches all entries in the given query. If the query is empty,
+	 * all delivered messages match. Up to the given number of messages are
+	 * returned, except that if several messages share the timestamp of the
+	 * oldest message returned, they are all returned.
+	 * <p/>
+	 * Read-only.
+	 */
+	Map<MessageId, Metadata> getMessageMetadata(T txn, GroupId g,
+			Metadata query, long before, int limit) throws DbException;
+
 	/**
 	 * Returns the metadata for the given delivered or pending message.
 	 * This is only meant to be used by the ValidationManager.
@@ -490,6 +537,17 @@ interface Database<T> {
 	MessageStatus getMessageStatus(T txn, ContactId c, MessageId m)
 			throws DbException;
 
+	/**
+	 * Returns the status of each of the given messages with respect to the
+	 * given contact. Messages that are not delivered, or whose groups are
+	 * invisible to the contact, have the default status. Messages that are
+	 * not in the database are not included in the returned map.
+	 * <p/>
+	 * Read-only.
+	 */
+	Map<MessageId, MessageStatus> getMessageStatus(T txn, ContactId c,
+			Collection<MessageId> m) throws DbException;
+
 	/**
 	 * Returns the IDs of some messages received from the given contact that
 	 * need to be acknowledged, up to the given number of messages.
@@ -553,6 +611,26 @@ interface Database<T> {
 	 */
 	long getUnackedMessageBytesToSend(T txn, ContactId c) throws DbException;
 
+	/**
+	 * Returns the number of messages in each group that are eligible to be
+	 * sent to the given contact and have not been seen by the contact. Groups
+	 * without any such messages are not included.
+	 * <p/>
+	 * Read-only.
+	 */
+	Map<GroupId, Integer> getUnseenMessageCounts(T txn, ContactId c)
+			throws DbException;
+
+	/**
+	 * Returns the IDs of all messages in the given group that are eligible to
+	 * be sent to the given contact, including messages that have been seen
+	 * by the contact.
+	 * <p/>
+	 * Read-only.
+	 */
+	Collection<MessageId> getSharedMessageIds(T txn, ContactId c, GroupId g)
+			throws DbException;
+
 	/**
 	 * Returns the IDs of any messages that need to be validated.
 	 * <p/>
@@ -568,6 +646,18 @@ interface Database<T> {
 	 */
 	Collection<MessageId> getPendingMessages(T txn) throws DbException;
 
+	/**
+	 * Returns the IDs and states of all dependencies of any messages that are
+	 * pending delivery, indexed by the IDs of the pending messages. Pending
+	 * messages without dependencies are not included. For missing
+	 * dependencies and dependencies in other groups, the state
+	 * {@link MessageState UNKNOWN} is returned.
+	 * <p/>
+	 * Read-only.
+	 */
+	Map<MessageId, Map<MessageId, MessageState>> getPendingMessageDependencies(
+			T txn) throws DbException;
+
 	/**
 	 * Returns the IDs of any messages that have a shared dependent but have
 	 * not yet been shared themselves.
@@ -634,6 +724,14 @@ interface Database<T> {
 	Collection<MessageId> getRequestedMessagesToSend(T txn, ContactId c,
 			long capacity, long maxLatency) throws DbException;
 
+	/**
+	 * Returns the send priority of the given client's messages.
+	 * <p/>
+	 * Read-only.
+	 */
+	SendPriority getSendPriority(T txn, ClientId c, int majorVersion)
+			throws DbException;
+
 	/**
 	 * Returns all settings in the given namespace.
 	 * <p/>
@@ -666,12 +764,6 @@ interface Database<T> {
 	Map<ContactId, Collection<TransportId>> getTransportsWithKeys(T txn)
 			throws DbException;
 
-	/**
-	 * Increments the outgoing stream counter for the given transport keys.
-	 */
-	void incrementStreamCounter(T txn, TransportId t, KeySetId k)
-			throws DbException;
-
 	/**
 	 * Marks the given messages as not needing to be acknowledged to the
 	 * given contact.
@@ -711,11 +803,24 @@ interface Database<T> {
 	 */
 	void raiseAckFlag(T txn, ContactId c, MessageId m) throws DbException;
 
+	/**
+	 * Marks the given messages as needing to be acknowledged to the given
+	 * contact.
+	 */
+	void raiseAckFlag(T txn, ContactId c, Collection<MessageId> m)
+			throws DbException;
+
 	/**
 	 * Marks a message as having been requested by the given contact.
 	 */
 	void raiseRequestedFlag(T txn, ContactId c, MessageId m) throws DbException;
 
+	/**
+	 * Marks the given messages as having been requested by the given contact.
+	 */
+	void raiseRequestedFlag(T txn, ContactId c, Collection<MessageId> m)
+			throws DbException;
+
 	/**
 	 * Marks a message as having been seen by the given contact.
 	 *
@@ -723,6 +828,14 @@ interface Database<T> {
 	 */
 	boolean raiseSeenFlag(T txn, ContactId c, MessageId m) throws DbException;
 
+	/**
+	 * Marks the given messages as having been seen by the given contact.
+	 *
+	 * @return The IDs of the messages that were not already marked as seen
+	 */
+	Collection<MessageId> raiseSeenFlag(T txn, ContactId c,
+			Collection<MessageId> m) throws DbException;
+
 	/**
 	 * Removes a contact from the database.
 	 */
@@ -785,6 +898,13 @@ interface Database<T> {
 	 */
 	void resetExpiryTime(T txn, ContactId c, MessageId m) throws DbException;
 
+	/**
+	 * Resets the transmission counts and expiry times of the given messages
+	 * with respect to the given contact.
+	 */
+	void resetExpiryTime(T txn, ContactId c, Collection<MessageId> m)
+			throws DbException;
+
 	/**
 	 * Resets the transmission count, expiry time and max latency of all
 	 * messages that are eligible to be sent to the given contact. This includes
@@ -848,6 +968,19 @@ interface Database<T> {
 	void setReorderingWindow(T txn, KeySetId k, TransportId t,
 			long timePeriod, long base, byte[] bitmap) throws DbException;
 
+	/**
+	 * Sets the send priority of the given client's messages, including
+	 * messages in groups that are added later.
+	 */
+	void setSendPriority(T txn, ClientId c, int majorVersion, SendPriority p)
+			throws DbException;
+
+	/**
+	 * Sets the outgoing stream counter for the given transport keys.
+	 */
+	void setStreamCounter(T txn, TransportId t, KeySetId k,
+			long streamCounter) throws DbException;
+
 	/**
 	 * Sets the versions of the sync protocol supported by the given contact.
 	 */
@@ -870,6 +1003,15 @@ interface Database<T> {
 	 */
 	long startCleanupTimer(T txn, MessageId m) throws DbException;
 
+	/**
+	 * Starts the cleanup timers for any of the given messages that have a
+	 * timer duration and haven't already had their timers started.
+	 *
+	 * @return The cleanup deadlines of the messages whose timers were started
+	 */
+	Map<MessageId, Long> startCleanupTimer(T txn, Collection<MessageId> m)
+			throws DbException;
+
 	/**
 	 * Stops the cleanup timer for the given message, if the timer has been
 	 * started.
@@ -886,6 +1028,16 @@ interface Database<T> {
 	void updateRetransmissionData(T txn, ContactId c, MessageId m,
 			long maxLatency) throws DbException;
 
+	/**
+	 * Updates the transmission counts, expiry times and max latencies of the
+	 * given messages with respect to the given contact.
+	 *
+	 * @param maxLatency latency of the transport over which the messages were
+	 * sent.
+	 */
+	void updateRetransmissionData(T txn, ContactId c, Collection<MessageId> m,
+			long maxLatency) throws DbException;
+
 	/**
 	 * Stores the given transport keys, deleting any keys they have replaced.
 	 */
@@ -55,6 +55,7 @@ import org.briarproject.bramble.api.sync.MessageId;
 import org.briarproject.bramble.api.sync.MessageStatus;
 import org.briarproject.bramble.api.sync.Offer;
 import org.briarproject.bramble.api.sync.Request;
+import org.briarproject.bramble.api.sync.SendPriority;
 import org.briarproject.bramble.api.sync.event.GroupAddedEvent;
 import org.briarproject.bramble.api.sync.event.GroupRemovedEvent;
 import org.briarproject.bramble.api.sync.event.GroupVisibilityUpdatedEvent;
@@ -75,8 +76,10 @@ import org.briarproject.nullsafety.NotNullByDefault;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -115,6 +118,21 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
 			new ReentrantReadWriteLock(true);
 	private final Visitor visitor = new CommitActionVisitor();
 
+	/**
+	 * True if read-only transactions run concurrently with writers, in which
+	 * case they don't acquire the read lock. Write transactions are still
+	 * serialised by the write lock.
+	 */
+	private final boolean concurrentReads;
+
+	/**
+	 * Records whether the current thread has a read-only transaction that
+	 * doesn't hold the read lock, so that reentrant transactions can still
+	 * be detected.
+	 */
+	private final ThreadLocal<Boolean> concurrentReader =
+			new ThreadLocal<>();
+
 	@Inject
 	DatabaseComponentImpl(Database<T> db, Class<T> txnClass, EventBus eventBus,
 			@EventExecutor Executor eventExecutor,
@@ -124,6 +142,7 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
 		this.eventBus = eventBus;
 		this.eventExecutor = eventExecutor;
 		this.shutdownManager = shutdownManager;
+		concurrentReads = db.supportsConcurrentReads();
 	}
 
 	@Override
@@ -151,10 +170,15 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
 		// Don't allow reentrant locking
 		if (lock.getReadHoldCount() > 0) throw new IllegalStateException();
 		if (lock.getWriteHoldCount() > 0) throw new IllegalStateException();
+		if (concurrentReader.get() != null) throw new IllegalStateException();
 		long start = now();
 		if (readOnly) {
-			lock.readLock().lock();
-			logDuration(LOG, "Waiting for read lock", start);
+			if (concurrentReads) {
+				concurrentReader.set(true);
+			} else {
+				lock.readLock().lock();
+				logDuration(LOG, "Waiting for read lock", start);
+			}
 		} else {
 			lock.writeLock().lock();
 			logDuration(LOG, "Waiting for write lock", start);
@@ -162,12 +186,17 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
 		try {
 			return new Transaction(db.startTransaction(), readOnly);
 		} catch (DbException | RuntimeException e) {
-			if (readOnly) lock.readLock().unlock();
-			else lock.writeLock().unlock();
+			unlock(readOnly);
 			throw e;
 		}
 	}
 
+	private void unlock(boolean readOnly) {
+		if (!readOnly) lock.writeLock().unlock();
+		else if (concurrentReads) concurrentReader.remove();
+		else lock.readLock().unlock();
+	}
+
 	@Override
 	public void commitTransaction(Transaction transaction) throws DbException {
 		T txn = txnClass.cast(transaction.unbox());
@@ -187,8 +216,7 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
 				db.abortTransaction(txn);
 			}
 		} finally {
-			if (transaction.isReadOnly()) lock.readLock().unlock();
-			else lock.writeLock().unlock();
+			unlock(transaction.isReadOnly());
 		}
 	}
 
@@ -378,6 +406,13 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
 		return db.containsIdentity(txn, a);
 	}
 
+	@Override
+	public boolean containsMessage(Transaction transaction, MessageId m)
+			throws DbException {
+		T txn = unbox(transaction);
+		return db.containsMessage(txn, m);
+	}
+
 	@Override
 	public boolean containsMessagesToSend(Transaction transaction, ContactId c,
 			long maxLatency, boolean eager) throws DbException {
@@ -446,14 +481,10 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
 		Collection<MessageId> ids =
 				db.getMessagesToSend(txn, c, capacity, maxLatency);
 		if (ids.isEmpty()) return null;
+		List<Message> messages = db.getMessages(txn, ids);
 		long totalLength = 0;
-		List<Message> messages = new ArrayList<>(ids.size());
-		for (MessageId m : ids) {
-			Message message = db.getMessage(txn, m);
-			totalLength += message.getRawLength();
-			messages.add(message);
-			db.updateRetransmissionData(txn, c, m, maxLatency);
-		}
+		for (Message m : messages) totalLength += m.getRawLength();
+		db.updateRetransmissionData(txn, c, ids, maxLatency);
 		db.lowerRequestedFlag(txn, c, ids);
 		transaction.attach(new MessagesSentEvent(c, ids, totalLength));
 		return messages;
@@ -470,8 +501,7 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
 		Collection<MessageId> ids =
 				db.getMessagesToOffer(txn, c, maxMessages, maxLatency);
 		if (ids.isEmpty()) return null;
-		for (MessageId m : ids)
-			db.updateRetransmissionData(txn, c, m, maxLatency);
+		db.updateRetransmissionData(txn, c, ids, maxLatency);
 		return new Offer(ids);
 	}
 
@@ -501,14 +531,10 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
 		Collection<MessageId> ids =
 				db.getRequestedMessagesToSend(txn, c, capacity, maxLatency);
 		if (ids.isEmpty()) return null;
+		List<Message> messages = db.getMessages(txn, ids);
 		long totalLength = 0;
-		List<Message> messages = new ArrayList<>(ids.size());
-		for (MessageId m : ids) {
-			Message message = db.getMessage(txn, m);
-			totalLength += message.getRawLength();
-			messages.add(message);
-			db.updateRetransmissionData(txn, c, m, maxLatency);
-		}
+		for (Message m : messages) totalLength += m.getRawLength();
+		db.updateRetransmissionData(txn, c, ids, maxLatency);
 		db.lowerRequestedFlag(txn, c, ids);
 		transaction.attach(new MessagesSentEvent(c, ids, totalLength));
 		return messages;
@@ -664,6 +690,14 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
 		return db.getPendingMessages(txn);
 	}
 
+	@Override
+	public Map<MessageId, Map<MessageId, MessageState>>
+			getPendingMessageDependencies(Transaction transaction)
+			throws DbException {
+		T txn = unbox(transaction);
+		return db.getPendingMessageDependencies(txn);
+	}
+
 	@Override
 	public Collection<MessageId> getMessagesToShare(Transaction transaction)
 			throws DbException {
@@ -696,6 +730,16 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
 		return db.getMessageMetadata(txn, g, query);
 	}
 
+	@Override
+	public Map<MessageId, Metadata> getMessageMetadata(Transaction transaction,
+			GroupId g, Metadata query, long before, int limit)
+			throws DbException {
+		T txn = unbox(transaction);
+		if (!db.containsGroup(txn, g))
+			throw new NoSuchGroupException();
+		return db.getMessageMetadata(txn, g, query, before, limit);
+	}
+
 	@Override
 	public Metadata getMessageMetadata(Transaction transaction, MessageId m)
 			throws DbException {
@@ -755,6 +799,20 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
 		return status;
 	}
 
+	@Override
+	public Map<MessageId, MessageStatus> getMessageStatus(
+			Transaction transaction, ContactId c, Collection<MessageId> m)
+			throws DbException {
+		T txn = unbox(transaction);
+		if (!db.containsContact(txn, c))
+			throw new NoSuchContactException();
+		Map<MessageId, MessageStatus> statuses = db.getMessageStatus(txn, c, m);
+		for (MessageId id : m) {
+			if (!statuses.containsKey(id)) throw new NoSuchMessageException();
+		}
+		return statuses;
+	}
+
 	@Nullable
 	@Override
 	public Message getMessageToSend(Transaction transaction, ContactId c,
@@ -804,6 +862,26 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
 		return db.getUnackedMessageBytesToSend(txn, c);
 	}
 
+	@Override
+	public Map<GroupId, Integer> getUnseenMessageCounts(
+			Transaction transaction, ContactId c) throws DbException {
+		T txn = unbox(transaction);
+		if (!db.containsContact(txn, c))
+			throw new NoSuchContactException();
+		return db.getUnseenMessageCounts(txn, c);
+	}
+
+	@Override
+	public Collection<MessageId> getSharedMessageIds(Transaction transaction,
+			ContactId c, GroupId g) throws DbException {
+		T txn = unbox(transaction);
+		if (!db.containsContact(txn, c))
+			throw new NoSuchContactException();
+		if (!db.containsGroup(txn, g))
+			throw new NoSuchGroupException();
+		return db.getSharedMessageIds(txn, c, g);
+	}
+
 	@Override
 	public Map<MessageId, MessageState> getMessageDependencies(
 			Transaction transaction, MessageId m) throws DbException {
@@ -852,6 +930,13 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
 		return db.getPendingContacts(txn);
 	}
 
+	@Override
+	public SendPriority getSendPriority(Transaction transaction, ClientId c,
+			int majorVersion) throws DbException {
+		T txn = unbox(transaction);
+		return db.getSendPriority(txn, c, majorVersion);
+	}
+
 	@Override
 	public Settings getSettings(Transaction transaction, String namespace)
 			throws DbException {
@@ -884,16 +969,6 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
 		return db.getTransportsWithKeys(txn);
 	}
 
-	@Override
-	public void incrementStreamCounter(Transaction transaction, TransportId t,
-			KeySetId k) throws DbException {
-		if (transaction.isReadOnly()) throw new IllegalArgumentException();
-		T txn = unbox(transaction);
-		if (!db.containsTransport(txn, t))
-			throw new NoSuchTransportException();
-		db.incrementStreamCounter(txn, t, k);
-	}
-
 	@Override
 	public void mergeGroupMetadata(Transaction transaction, GroupId g,
 			Metadata meta) throws DbException {
@@ -936,34 +1011,34 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
 		T txn = unbox(transaction);
 		if (!db.containsContact(txn, c))
 			throw new NoSuchContactException();
-		Collection<MessageId> acked = new ArrayList<>();
-		for (MessageId m : a.getMessageIds()) {
-			if (db.containsVisibleMessage(txn, c, m)) {
-				if (db.raiseSeenFlag(txn, c, m)) {
-					// This is the first time the message has been acked by
-					// this contact. Start the cleanup timer (a no-op unless
-					// a cleanup deadline has been set for this message)
-					long deadline = db.startCleanupTimer(txn, m);
-					if (deadline != TIMER_NOT_STARTED) {
-						transaction.attach(new CleanupTimerStartedEvent(m,
-								deadline));
-					}
-					acked.add(m);
+		Collection<MessageId> visible =
+				db.getVisibleMessages(txn, c, a.getMessageIds());
+		if (visible.isEmpty()) return;
+		// Only the messages acked for the first time by this contact count
+		Collection<MessageId> acked = db.raiseSeenFlag(txn, c, visible);
+		if (!acked.isEmpty()) {
+			// Start the cleanup timers (a no-op unless a cleanup timer
+			// duration has been set for the message)
+			Map<MessageId, Long> deadlines = db.startCleanupTimer(txn, acked);
+			for (MessageId m : acked) {
+				Long deadline = deadlines.get(m);
+				if (deadline != null) {
+					transaction.attach(new CleanupTimerStartedEvent(m,
+							deadline));
 				}
 			}
-		}
-		if (acked.size() > 0) {
 			transaction.attach(new MessagesAckedEvent(c, acked));
 		}
 	}
 
 	@Override
-	public void receiveMessage(Transaction transaction, ContactId c, Message m)
-			throws DbException {
+	public boolean receiveMessage(Transaction transaction, ContactId c,
+			Message m) throws DbException {
 		if (transaction.isReadOnly()) throw new IllegalArgumentException();
 		T txn = unbox(transaction);
 		if (!db.containsContact(txn, c))
 			throw new NoSuchContactException();
+		boolean added = false;
 		if (db.getGroupVisibility(txn, c, m.getGroupId()) != INVISIBLE) {
 			if (db.containsMessage(txn, m.getId())) {
 				db.raiseSeenFlag(txn, c, m.getId());
@@ -971,9 +1046,11 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
 			} else {
 				db.addMessage(txn, m, UNKNOWN, false, false, c);
 				transaction.attach(new MessageAddedEvent(m, c));
+				added = true;
 			}
 			transaction.attach(new MessageToAckEvent(c));
 		}
+		return added;
 	}
 
 	@Override
@@ -983,19 +1060,24 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
 		T txn = unbox(transaction);
 		if (!db.containsContact(txn, c))
 			throw new NoSuchContactException();
-		boolean ack = false, request = false;
-		int count = db.countOfferedMessages(txn, c);
-		for (MessageId m : o.getMessageIds()) {
-			if (db.containsVisibleMessage(txn, c, m)) {
-				db.raiseSeenFlag(txn, c, m);
-				db.raiseAckFlag(txn, c, m);
-				ack = true;
-			} else if (count < MAX_OFFERED_MESSAGES) {
-				db.addOfferedMessage(txn, c, m);
-				request = true;
-				count++;
-			}
+		Collection<MessageId> offered = o.getMessageIds();
+		Collection<MessageId> visible =
+				db.getVisibleMessages(txn, c, offered);
+		boolean ack = !visible.isEmpty();
+		if (ack) {
+			db.raiseSeenFlag(txn, c, visible);
+			db.raiseAckFlag(txn, c, visible);
 		}
+		// Remember as many of the other messages as there's room for
+		int room = MAX_OFFERED_MESSAGES - db.countOfferedMessages(txn, c);
+		Set<MessageId> visibleSet = new HashSet<>(visible);
+		List<MessageId> toRequest = new ArrayList<>();
+		for (MessageId m : offered) {
+			if (toRequest.size() >= room) break;
+			if (!visibleSet.contains(m)) toRequest.add(m);
+		}
+		boolean request = !toRequest.isEmpty();
+		if (request) db.addOfferedMessages(txn, c, toRequest);
 		if (ack) transaction.attach(new MessageToAckEvent(c));
 		if (request) transaction.attach(new MessageToRequestEvent(c));
 	}
@@ -1007,15 +1089,13 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
 		T txn = unbox(transaction);
 		if (!db.containsContact(txn, c))
 			throw new NoSuchContactException();
-		boolean requested = false;
-		for (MessageId m : r.getMessageIds()) {
-			if (db.containsVisibleMessage(txn, c, m)) {
-				db.raiseRequestedFlag(txn, c, m);
-				db.resetExpiryTime(txn, c, m);
-				requested = true;
-			}
+		Collection<MessageId> requested =
+				db.getVisibleMessages(txn, c, r.getMessageIds());
+		if (!requested.isEmpty()) {
+			db.raiseRequestedFlag(txn, c, requested);
+			db.resetExpiryTime(txn, c, requested);
+			transaction.attach(new MessageRequestedEvent(c));
 		}
-		if (requested) transaction.attach(new MessageRequestedEvent(c));
 	}
 
 	@Override
@@ -1225,9 +1305,9 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
 			if (db.containsVisibleMessage(txn, c, m)) {
 				visible.add(m);
 				totalLength += db.getMessageLength(txn, m);
-				db.updateRetransmissionData(txn, c, m, maxLatency);
 			}
 		}
+		db.updateRetransmissionData(txn, c, visible, maxLatency);
 		db.lowerRequestedFlag(txn, c, visible);
 		if (!visible.isEmpty()) {
 			transaction.attach(new MessagesSentEvent(c, visible, totalLength));
@@ -1270,6 +1350,24 @@ class DatabaseComponentImpl<T> implements DatabaseComponent {
 		db.setReorderingWindow(txn, k, t, timePeriod, base, bitmap);
 	}
 
+	@Override
+	public void setSendPriority(Transaction transaction, ClientId c,
+			int majorVersion, SendPriority p) throws DbException {
+		if (transaction.isReadOnly()) throw new IllegalArgumentException();
+		T txn = unbox(transaction);
+		db.setSendPriority(txn, c, majorVersion, p);
+	}
+
+	@Override
+	public void setStreamCounter(Transaction transaction, TransportId t,
+			KeySetId k, long streamCounter) throws DbException {
+		if (transaction.isReadOnly()) throw new IllegalArgumentException();
+		T txn = unbox(transaction);
+		if (!db.containsTransport(txn, t))
+			throw new NoSuchTransportException();
+		db.setStreamCounter(txn, t, k, streamCounter);
+	}
+
 	@Override
 	public void setSyncVersions(Transaction transaction, ContactId c,
 			List<Byte> supported) throws DbException {
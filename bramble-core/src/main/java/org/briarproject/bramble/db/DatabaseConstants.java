@@ -28,4 +28,10 @@ interface DatabaseConstants {
 	 * whether the database is marked as dirty.
 	 */
 	String DIRTY_KEY = "dirty";
+
+	/**
+	 * The {@link Settings} key under which the size in bytes of the database
+	 * files after the last full compaction is stored.
+	 */
+	String COMPACTED_SIZE_KEY = "compactedSize";
 }
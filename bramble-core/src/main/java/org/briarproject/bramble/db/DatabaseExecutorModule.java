@@ -1,7 +1,10 @@
 package org.briarproject.bramble.db;
 
+import org.briarproject.bramble.PriorityLaneExecutor;
 import org.briarproject.bramble.TimeLoggingExecutor;
 import org.briarproject.bramble.api.db.DatabaseExecutor;
+import org.briarproject.bramble.api.db.DatabasePriorityExecutor;
+import org.briarproject.bramble.api.db.DatabaseReadExecutor;
 import org.briarproject.bramble.api.lifecycle.LifecycleManager;
 
 import java.util.concurrent.BlockingQueue;
@@ -27,8 +30,20 @@ public class DatabaseExecutorModule {
 		@Inject
 		@DatabaseExecutor
 		ExecutorService executorService;
+		@Inject
+		@DatabaseReadExecutor
+		ExecutorService readExecutorService;
 	}
 
+	/**
+	 * The maximum number of threads for read-only database tasks.
+	 * <p>
+	 * The number of available processors can change during the lifetime of the
+	 * JVM, so this is just a reasonable guess.
+	 */
+	private static final int MAX_READ_THREADS =
+			Math.max(2, Runtime.getRuntime().availableProcessors());
+
 	@Provides
 	@Singleton
 	@DatabaseExecutor
@@ -36,9 +51,11 @@ public class DatabaseExecutorModule {
 			LifecycleManager lifecycleManager, ThreadFactory threadFactory) {
 		// Use an unbounded queue
 		BlockingQueue<Runnable> queue = new LinkedBlockingQueue<>();
-		// Discard tasks that are submitted during shutdown
+		// Reject tasks that are submitted during shutdown. The lanes are fed
+		// by a PriorityLaneExecutor, which needs to know that a task was
+		// rejected, and discards it
 		RejectedExecutionHandler policy =
-				new ThreadPoolExecutor.DiscardPolicy();
+				new ThreadPoolExecutor.AbortPolicy();
 		// Use a single thread and keep it in the pool for 60 secs
 		ExecutorService databaseExecutor = new TimeLoggingExecutor(
 				"DatabaseExecutor", 0, 1, 60, SECONDS, queue, threadFactory,
@@ -49,9 +66,51 @@ public class DatabaseExecutorModule {
 
 	@Provides
 	@Singleton
-	@DatabaseExecutor
-	Executor provideDatabaseExecutor(
+	PriorityLaneExecutor providePriorityLaneExecutor(
 			@DatabaseExecutor ExecutorService dbExecutor) {
+		return new PriorityLaneExecutor("DatabaseExecutor", dbExecutor);
+	}
+
+	@Provides
+	@Singleton
+	@DatabaseExecutor
+	Executor provideDatabaseExecutor(PriorityLaneExecutor dbExecutor) {
 		return dbExecutor;
 	}
+
+	@Provides
+	@Singleton
+	@DatabasePriorityExecutor
+	Executor provideDatabasePriorityExecutor(PriorityLaneExecutor dbExecutor) {
+		return dbExecutor.getPriorityLane();
+	}
+
+	@Provides
+	@Singleton
+	@DatabaseReadExecutor
+	ExecutorService provideDatabaseReadExecutorService(
+			LifecycleManager lifecycleManager, ThreadFactory threadFactory) {
+		// Use an unbounded queue
+		BlockingQueue<Runnable> queue = new LinkedBlockingQueue<>();
+		// Discard tasks that are submitted during shutdown
+		RejectedExecutionHandler policy =
+				new ThreadPoolExecutor.DiscardPolicy();
+		// Create a limited # of threads and keep them in the pool for 60 secs.
+		// The core threads are allowed to time out, so an unbounded queue can
+		// be used without limiting the pool to a single thread
+		TimeLoggingExecutor readExecutor = new TimeLoggingExecutor(
+				"DatabaseReadExecutor", MAX_READ_THREADS, MAX_READ_THREADS,
+				60, SECONDS, queue, threadFactory, policy);
+		readExecutor.allowCoreThreadTimeOut(true);
+		lifecycleManager.registerForShutdown(readExecutor);
+		return readExecutor;
+	}
+
+	@Provides
+	@Singleton
+	@DatabaseReadExecutor
+	Executor provideDatabaseReadExecutor(
+			@DatabaseReadExecutor ExecutorService readExecutor) {
+		return readExecutor;
+	}
 }
@@ -5,6 +5,7 @@ import org.briarproject.bramble.api.db.DatabaseConfig;
 import org.briarproject.bramble.api.db.DbClosedException;
 import org.briarproject.bramble.api.db.DbException;
 import org.briarproject.bramble.api.db.MigrationListener;
+import org.briarproject.bramble.api.settings.Settings;
 import org.briarproject.bramble.api.sync.MessageFactory;
 import org.briarproject.bramble.api.system.Clock;
 import org.briarproject.bramble.util.StringUtils;
@@ -21,9 +22,12 @@ import java.util.logging.Logger;
 import javax.annotation.Nullable;
 import javax.inject.Inject;
 
+import static java.lang.Math.max;
 import static java.util.logging.Level.INFO;
 import static java.util.logging.Level.WARNING;
 import static java.util.logging.Logger.getLogger;
+import static org.briarproject.bramble.db.DatabaseConstants.COMPACTED_SIZE_KEY;
+import static org.briarproject.bramble.db.DatabaseConstants.DB_SETTINGS_NAMESPACE;
 import static org.briarproject.bramble.db.JdbcUtils.tryToClose;
 import static org.briarproject.bramble.util.IoUtils.isNonEmptyDirectory;
 import static org.briarproject.bramble.util.LogUtils.logFileOrDir;
@@ -36,6 +40,14 @@ class H2Database extends JdbcDatabase {
 
 	private static final Logger LOG = getLogger(H2Database.class.getName());
 
+	/**
+	 * The database is fully compacted when it's closed if the fraction of
+	 * the database files added since the last full compaction is higher
+	 * than this. Otherwise H2 only compacts for a limited time when the
+	 * database is closed, and in the background while the database is open.
+	 */
+	static final double MAX_GROWTH = 0.25;
+
 	private static final String HASH_TYPE = "BINARY(32)";
 	private static final String SECRET_TYPE = "BINARY(32)";
 	private static final String BINARY_TYPE = "BINARY";
@@ -46,6 +58,7 @@ class H2Database extends JdbcDatabase {
 
 	private final DatabaseConfig config;
 	private final String url;
+	private final boolean concurrentReads;
 
 	@Nullable
 	private volatile SecretKey key = null;
@@ -55,6 +68,10 @@ class H2Database extends JdbcDatabase {
 			Clock clock) {
 		super(dbTypes, messageFactory, clock);
 		this.config = config;
+		// The MVStore gives each connection its own view of the committed
+		// data, so readers never see uncommitted changes, but a read-only
+		// transaction may see changes that are committed while it's running
+		concurrentReads = config.isConcurrentReadsEnabled();
 		File dir = config.getDatabaseDirectory();
 		String path = new File(dir, "db").getAbsolutePath();
 		url = "jdbc:h2:split:" + path + ";CIPHER=AES;MULTI_THREADED=1"
@@ -81,6 +98,11 @@ class H2Database extends JdbcDatabase {
 		return reopen;
 	}
 
+	@Override
+	public boolean supportsConcurrentReads() {
+		return concurrentReads;
+	}
+
 	@Override
 	public void close() throws DbException {
 		// H2 will close the database when the last connection closes
@@ -89,15 +111,29 @@ class H2Database extends JdbcDatabase {
 		try {
 			c = createConnection();
 			closeAllConnections();
-			LOG.info("Compacting DB");
+			long size = getDatabaseSize();
+			Settings settings = getSettings(c, DB_SETTINGS_NAMESPACE);
+			long compactedSize = settings.getLong(COMPACTED_SIZE_KEY, 0L);
+			double growth = getGrowth(compactedSize, size);
+			boolean compact = growth > MAX_GROWTH;
+			if (LOG.isLoggable(INFO)) {
+				LOG.info("Growth since last full compaction "
+						+ (int) (growth * 100) + "% of " + size
+						+ " bytes, compacting: " + compact);
+			}
 			s = c.createStatement();
-			s.execute("SHUTDOWN COMPACT");
-			LOG.info("Finished compacting DB");
+			s.execute(compact ? "SHUTDOWN COMPACT" : "SHUTDOWN");
 			s.close();
 			c.close();
-			// Reopen the DB to mark it as clean after compacting
+			long newSize = getDatabaseSize();
+			if (LOG.isLoggable(INFO)) {
+				LOG.info("Closed DB, reclaimed " + (size - newSize)
+						+ " bytes");
+			}
+			// Reopen the DB to mark it as clean after shutting down
 			c = createConnection();
 			setDirty(c, false);
+			if (compact) setCompactedSize(c, newSize);
 			LOG.info("Marked DB as clean");
 			c.close();
 		} catch (SQLException e) {
@@ -135,10 +171,49 @@ class H2Database extends JdbcDatabase {
 			LOG.info("Finished compacting DB");
 			s.close();
 			c.close();
+			long newSize = getDatabaseSize();
+			// Reopen the DB to record the size after compacting
+			c = createConnection();
+			setCompactedSize(c, newSize);
+			c.close();
 		} catch (SQLException e) {
 			tryToClose(s, LOG, WARNING);
 			tryToClose(c, LOG, WARNING);
 			throw new DbException(e);
 		}
 	}
+
+	private void setCompactedSize(Connection c, long size) throws DbException {
+		Settings s = new Settings();
+		s.putLong(COMPACTED_SIZE_KEY, size);
+		mergeSettings(c, s, DB_SETTINGS_NAMESPACE);
+	}
+
+	/**
+	 * Returns the total size in bytes of the database files.
+	 */
+	private long getDatabaseSize() {
+		File[] files = config.getDatabaseDirectory().listFiles();
+		if (files == null) return 0;
+		long size = 0;
+		for (File f : files) size += f.length();
+		return size;
+	}
+
+	/**
+	 * Returns the fraction of the database files' current size that has been
+	 * added since the last full compaction. This measures growth, not free
+	 * space: a database that only grows with live data will still pass the
+	 * threshold. Compacting whenever this passes a threshold means the cost
+	 * of compaction grows with the amount of data written, rather than the
+	 * number of times the database is closed.
+	 *
+	 * @param compactedSize the size after the last full compaction, or zero
+	 * if the database has never been fully compacted
+	 */
+	static double getGrowth(long compactedSize, long size) {
+		if (size <= 0) return 0;
+		if (compactedSize <= 0) return 1;
+		return max(0, (double) (size - compactedSize) / size);
+	}
 }
@@ -46,6 +46,7 @@ class HyperSqlDatabase extends JdbcDatabase {
 
 	private final DatabaseConfig config;
 	private final String url;
+	private final boolean concurrentReads;
 
 	@Nullable
 	private volatile SecretKey key = null;
@@ -55,11 +56,14 @@ class HyperSqlDatabase extends JdbcDatabase {
 			Clock clock) {
 		super(dbTypes, messageFactory, clock);
 		this.config = config;
+		// If concurrent reads are enabled, use MVCC rather than table locks
+		concurrentReads = config.isConcurrentReadsEnabled();
 		File dir = config.getDatabaseDirectory();
 		String path = new File(dir, "db").getAbsolutePath();
+		String tx = concurrentReads ? ";hsqldb.tx=mvcc" : "";
 		url = "jdbc:hsqldb:file:" + path
 				+ ";sql.enforce_size=false;allow_empty_batch=true"
-				+ ";encrypt_lobs=true;crypt_type=AES";
+				+ ";encrypt_lobs=true;crypt_type=AES" + tx;
 	}
 
 	@Override
@@ -74,6 +78,11 @@ class HyperSqlDatabase extends JdbcDatabase {
 		return reopen;
 	}
 
+	@Override
+	public boolean supportsConcurrentReads() {
+		return concurrentReads;
+	}
+
 	@Override
 	public void close() throws DbException {
 		Connection c = null;
@@ -32,6 +32,7 @@ import org.briarproject.bramble.api.sync.Message;
 import org.briarproject.bramble.api.sync.MessageFactory;
 import org.briarproject.bramble.api.sync.MessageId;
 import org.briarproject.bramble.api.sync.MessageStatus;
+import org.briarproject.bramble.api.sync.SendPriority;
 import org.briarproject.bramble.api.sync.validation.MessageState;
 import org.briarproject.bramble.api.system.Clock;
 import org.briarproject.bramble.api.transport.IncomingKeys;
@@ -51,11 +52,13 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -80,6 +83,7 @@ import static org.briarproject.bramble.api.record.Record.RECORD_HEADER_BYTES;
 import static org.briarproject.bramble.api.sync.Group.Visibility.INVISIBLE;
 import static org.briarproject.bramble.api.sync.Group.Visibility.SHARED;
 import static org.briarproject.bramble.api.sync.Group.Visibility.VISIBLE;
+import static org.briarproject.bramble.api.sync.SendPriority.NORMAL;
 import static org.briarproject.bramble.api.sync.SyncConstants.MESSAGE_HEADER_LENGTH;
 import static org.briarproject.bramble.api.sync.validation.MessageState.DELIVERED;
 import static org.briarproject.bramble.api.sync.validation.MessageState.PENDING;
@@ -101,13 +105,43 @@ import static org.briarproject.bramble.util.LogUtils.now;
 abstract class JdbcDatabase implements Database<Connection> {
 
 	// Package access for testing
-	static final int CODE_SCHEMA_VERSION = 50;
+	static final int CODE_SCHEMA_VERSION = 52;
 
 	/**
 	 * The maximum number of idle connections to keep open.
 	 */
 	private static final int MAX_CONNECTION_POOL_SIZE = 1;
 
+	/**
+	 * The maximum number of idle connections to keep open if read-only
+	 * transactions can run concurrently with each other and with a writer.
+	 */
+	private static final int MAX_CONCURRENT_CONNECTION_POOL_SIZE = 4;
+
+	/**
+	 * The maximum number of prepared statements to cache for each connection.
+	 */
+	static final int MAX_CACHED_STATEMENTS = 64;
+
+	/**
+	 * The number of parameters in an IN clause. Longer lists are split
+	 * between several queries, and shorter lists are padded, so each query
+	 * only needs one prepared statement.
+	 */
+	private static final int MAX_IN_CLAUSE = 100;
+
+	/**
+	 * A comma-separated list of {@link #MAX_IN_CLAUSE} placeholders.
+	 */
+	private static final String IN_CLAUSE_PLACEHOLDERS =
+			getPlaceholders(MAX_IN_CLAUSE);
+
+	/**
+	 * The minimum capacity of the filter of known message IDs. The filter is
+	 * rebuilt with twice the number of stored messages when it's full.
+	 */
+	private static final int MIN_MESSAGE_ID_FILTER_CAPACITY = 1024;
+
 	// Time period offsets for incoming transport keys
 	private static final int OFFSET_PREV = -1;
 	private static final int OFFSET_CURR = 0;
@@ -257,6 +291,7 @@ abstract class JdbcDatabase implements Database<Connection> {
 					+ " expiry BIGINT NOT NULL,"
 					+ " txCount INT NOT NULL,"
 					+ " maxLatency BIGINT," // Null if latency was reset
+					+ " sendPriority INT NOT NULL," // Denormalised
 					+ " PRIMARY KEY (messageId, contactId),"
 					+ " FOREIGN KEY (messageId)"
 					+ " REFERENCES messages (messageId)"
@@ -268,6 +303,13 @@ abstract class JdbcDatabase implements Database<Connection> {
 					+ " REFERENCES groups (groupId)"
 					+ " ON DELETE CASCADE)";
 
+	private static final String CREATE_SEND_PRIORITIES =
+			"CREATE TABLE sendPriorities"
+					+ " (clientId _STRING NOT NULL,"
+					+ " majorVersion INT NOT NULL,"
+					+ " sendPriority INT NOT NULL,"
+					+ " PRIMARY KEY (clientId, majorVersion))";
+
 	private static final String CREATE_TRANSPORTS =
 			"CREATE TABLE transports"
 					+ " (transportId _STRING NOT NULL,"
@@ -333,9 +375,10 @@ abstract class JdbcDatabase implements Database<Connection> {
 			"CREATE INDEX IF NOT EXISTS groupsByClientIdMajorVersion"
 					+ " ON groups (clientId, majorVersion)";
 
-	private static final String INDEX_MESSAGE_METADATA_BY_GROUP_ID_STATE =
-			"CREATE INDEX IF NOT EXISTS messageMetadataByGroupIdState"
-					+ " ON messageMetadata (groupId, state)";
+	private static final String
+			INDEX_MESSAGE_METADATA_BY_GROUP_ID_STATE_KEY_VALUE =
+			"CREATE INDEX IF NOT EXISTS messageMetadataByGroupIdStateKeyValue"
+					+ " ON messageMetadata (groupId, state, metaKey, value)";
 
 	private static final String INDEX_MESSAGE_DEPENDENCIES_BY_DEPENDENCY_ID =
 			"CREATE INDEX IF NOT EXISTS messageDependenciesByDependencyId"
@@ -345,19 +388,26 @@ abstract class JdbcDatabase implements Database<Connection> {
 			"CREATE INDEX IF NOT EXISTS statusesByContactIdGroupId"
 					+ " ON statuses (contactId, groupId)";
 
-	private static final String INDEX_STATUSES_BY_CONTACT_ID_TIMESTAMP =
-			"CREATE INDEX IF NOT EXISTS statusesByContactIdTimestamp"
-					+ " ON statuses (contactId, timestamp)";
+	private static final String
+			INDEX_STATUSES_BY_CONTACT_ID_PRIORITY_TIMESTAMP =
+			"CREATE INDEX IF NOT EXISTS statusesByContactIdPriorityTimestamp"
+					+ " ON statuses (contactId, sendPriority, timestamp)";
 
 	private static final String
-			INDEX_STATUSES_BY_CONTACT_ID_TX_COUNT_TIMESTAMP =
-			"CREATE INDEX IF NOT EXISTS statusesByContactIdTxCountTimestamp"
-					+ " ON statuses (contactId, txCount, timestamp)";
+			INDEX_STATUSES_BY_CONTACT_ID_PRIORITY_TX_COUNT_TIMESTAMP =
+			"CREATE INDEX IF NOT EXISTS"
+					+ " statusesByContactIdPriorityTxCountTimestamp"
+					+ " ON statuses (contactId, sendPriority, txCount,"
+					+ " timestamp)";
 
 	private static final String INDEX_MESSAGES_BY_CLEANUP_DEADLINE =
 			"CREATE INDEX IF NOT EXISTS messagesByCleanupDeadline"
 					+ " ON messages (cleanupDeadline)";
 
+	private static final String INDEX_MESSAGES_BY_GROUP_ID_STATE_TIMESTAMP =
+			"CREATE INDEX IF NOT EXISTS messagesByGroupIdStateTimestamp"
+					+ " ON messages (groupId, state, timestamp)";
+
 	private static final Logger LOG =
 			getLogger(JdbcDatabase.class.getName());
 
@@ -376,6 +426,32 @@ abstract class JdbcDatabase implements Database<Connection> {
 	@GuardedBy("connectionsLock")
 	private boolean closed = false;
 
+	private final AtomicLong statementCacheHits = new AtomicLong();
+	private final AtomicLong statementCacheMisses = new AtomicLong();
+
+	private final Object filterLock = new Object();
+	private final AtomicLong messageIdFilterLookups = new AtomicLong();
+	private final AtomicLong messageIdFilterSkips = new AtomicLong();
+
+	/**
+	 * A filter of the IDs of stored messages, or null if the filter needs
+	 * to be rebuilt. Messages are added to the filter when they're added to
+	 * the database, but not removed when they're removed, so the filter may
+	 * contain messages that have been removed or whose transactions were
+	 * aborted, but never lacks a stored message.
+	 */
+	@Nullable
+	private volatile MessageIdFilter messageIdFilter = null;
+
+	/**
+	 * The transaction that last rebuilt the filter, if it hasn't yet been
+	 * committed. If the transaction is aborted the filter may lack messages
+	 * that were removed and then restored by the rollback, so it's discarded.
+	 */
+	@GuardedBy("filterLock")
+	@Nullable
+	private Connection filterRebuiltBy = null;
+
 	private volatile boolean wasDirtyOnInitialisation = false;
 
 	protected abstract Connection createConnection()
@@ -421,6 +497,7 @@ abstract class JdbcDatabase implements Database<Connection> {
 			}
 			createIndexes(txn);
 			setDirty(txn, true);
+			rebuildMessageIdFilter(txn);
 			commitTransaction(txn);
 		} catch (DbException e) {
 			abortTransaction(txn);
@@ -499,7 +576,9 @@ abstract class JdbcDatabase implements Database<Connection> {
 				new Migration46_47(dbTypes),
 				new Migration47_48(),
 				new Migration48_49(),
-				new Migration49_50()
+				new Migration49_50(),
+				new Migration50_51(),
+				new Migration51_52(dbTypes)
 		);
 	}
 
@@ -541,6 +620,7 @@ abstract class JdbcDatabase implements Database<Connection> {
 			s.executeUpdate(dbTypes.replaceTypes(CREATE_MESSAGE_DEPENDENCIES));
 			s.executeUpdate(dbTypes.replaceTypes(CREATE_OFFERS));
 			s.executeUpdate(dbTypes.replaceTypes(CREATE_STATUSES));
+			s.executeUpdate(dbTypes.replaceTypes(CREATE_SEND_PRIORITIES));
 			s.executeUpdate(dbTypes.replaceTypes(CREATE_TRANSPORTS));
 			s.executeUpdate(dbTypes.replaceTypes(CREATE_PENDING_CONTACTS));
 			s.executeUpdate(dbTypes.replaceTypes(CREATE_OUTGOING_KEYS));
@@ -558,12 +638,14 @@ abstract class JdbcDatabase implements Database<Connection> {
 			s = txn.createStatement();
 			s.executeUpdate(INDEX_CONTACTS_BY_AUTHOR_ID);
 			s.executeUpdate(INDEX_GROUPS_BY_CLIENT_ID_MAJOR_VERSION);
-			s.executeUpdate(INDEX_MESSAGE_METADATA_BY_GROUP_ID_STATE);
+			s.executeUpdate(INDEX_MESSAGE_METADATA_BY_GROUP_ID_STATE_KEY_VALUE);
 			s.executeUpdate(INDEX_MESSAGE_DEPENDENCIES_BY_DEPENDENCY_ID);
 			s.executeUpdate(INDEX_STATUSES_BY_CONTACT_ID_GROUP_ID);
-			s.executeUpdate(INDEX_STATUSES_BY_CONTACT_ID_TIMESTAMP);
-			s.executeUpdate(INDEX_STATUSES_BY_CONTACT_ID_TX_COUNT_TIMESTAMP);
+			s.executeUpdate(INDEX_STATUSES_BY_CONTACT_ID_PRIORITY_TIMESTAMP);
+			s.executeUpdate(
+					INDEX_STATUSES_BY_CONTACT_ID_PRIORITY_TX_COUNT_TIMESTAMP);
 			s.executeUpdate(INDEX_MESSAGES_BY_CLEANUP_DEADLINE);
+			s.executeUpdate(INDEX_MESSAGES_BY_GROUP_ID_STATE_TIMESTAMP);
 			s.close();
 		} catch (SQLException e) {
 			tryToClose(s, LOG, WARNING);
@@ -585,7 +667,10 @@ abstract class JdbcDatabase implements Database<Connection> {
 		try {
 			if (txn == null) {
 				// Open a new connection
-				txn = createConnection();
+				StatementCache cache = new StatementCache(createConnection(),
+						MAX_CACHED_STATEMENTS, statementCacheHits,
+						statementCacheMisses);
+				txn = cache.getConnection();
 				txn.setAutoCommit(false);
 				connectionsLock.lock();
 				try {
@@ -617,6 +702,12 @@ abstract class JdbcDatabase implements Database<Connection> {
 
 	@Override
 	public void abortTransaction(Connection txn) {
+		synchronized (filterLock) {
+			if (filterRebuiltBy == txn) {
+				messageIdFilter = null;
+				filterRebuiltBy = null;
+			}
+		}
 		// The transaction may have been aborted due to an earlier exception,
 		// so close the connection rather than returning it to the pool
 		try {
@@ -645,6 +736,9 @@ abstract class JdbcDatabase implements Database<Connection> {
 		// to the pool, otherwise close it
 		try {
 			txn.commit();
+			synchronized (filterLock) {
+				if (filterRebuiltBy == txn) filterRebuiltBy = null;
+			}
 			returnConnectionToPool(txn);
 		} catch (SQLException e) {
 			logException(LOG, WARNING, e);
@@ -657,7 +751,10 @@ abstract class JdbcDatabase implements Database<Connection> {
 		boolean shouldClose;
 		connectionsLock.lock();
 		try {
-			shouldClose = connectionPool.size() >= MAX_CONNECTION_POOL_SIZE;
+			int maxPoolSize = supportsConcurrentReads() ?
+					MAX_CONCURRENT_CONNECTION_POOL_SIZE :
+					MAX_CONNECTION_POOL_SIZE;
+			shouldClose = connectionPool.size() >= maxPoolSize;
 			if (shouldClose) openConnections--;
 			else connectionPool.add(txn);
 			logConnectionCounts();
@@ -668,6 +765,182 @@ abstract class JdbcDatabase implements Database<Connection> {
 		if (shouldClose) tryToClose(txn, LOG, WARNING);
 	}
 
+	/**
+	 * Returns a comma-separated list of the given number of placeholders for
+	 * use in an IN clause.
+	 */
+	private static String getPlaceholders(int count) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < count; i++) {
+			if (i > 0) sb.append(", ");
+			sb.append('?');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Executes the given SQL for each chunk of {@link #MAX_IN_CLAUSE} of the
+	 * given message IDs, passing each row of the results to the given
+	 * handler. The SQL must end with an unclosed IN clause, which is
+	 * completed with the IDs. If a contact is given, the contact ID is bound
+	 * to the first parameter of the SQL. The last chunk is padded by
+	 * repeating its last ID, so every chunk uses the same prepared statement.
+	 * <p>
+	 * If the handler is null, the SQL is executed as an update.
+	 */
+	private void executeInChunks(Connection txn, String sql,
+			@Nullable ContactId c, List<MessageId> ids,
+			@Nullable RowHandler handler) throws DbException {
+		if (ids.isEmpty()) return;
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+		try {
+			ps = txn.prepareStatement(sql + IN_CLAUSE_PLACEHOLDERS + ")");
+			int first = 1;
+			if (c != null) ps.setInt(first++, c.getInt());
+			for (int start = 0; start < ids.size(); start += MAX_IN_CLAUSE) {
+				int end = Math.min(start + MAX_IN_CLAUSE, ids.size());
+				for (int i = 0; i < MAX_IN_CLAUSE; i++) {
+					MessageId id = ids.get(Math.min(start + i, end - 1));
+					ps.setBytes(first + i, id.getBytes());
+				}
+				if (handler == null) {
+					int affected = ps.executeUpdate();
+					if (affected < 0 || affected > end - start)
+						throw new DbStateException();
+				} else {
+					rs = ps.executeQuery();
+					while (rs.next()) handler.handleRow(rs);
+					rs.close();
+				}
+			}
+			ps.close();
+		} catch (SQLException e) {
+			tryToClose(rs, LOG, WARNING);
+			tryToClose(ps, LOG, WARNING);
+			throw new DbException(e);
+		}
+	}
+
+	/**
+	 * Returns the number of times a prepared statement has been reused from
+	 * a connection's statement cache.
+	 */
+	long getStatementCacheHits() {
+		return statementCacheHits.get();
+	}
+
+	/**
+	 * Returns the number of times a statement has had to be prepared because
+	 * it was not in a connection's statement cache.
+	 */
+	long getStatementCacheMisses() {
+		return statementCacheMisses.get();
+	}
+
+	/**
+	 * Returns the expected false positive rate of the filter of known message
+	 * IDs, or 1 if there's currently no filter.
+	 */
+	double getMessageIdFilterFalsePositiveRate() {
+		MessageIdFilter filter = messageIdFilter;
+		return filter == null ? 1 : filter.getFalsePositiveRate();
+	}
+
+	/**
+	 * Returns the approximate number of bytes of memory used by the filter of
+	 * known message IDs.
+	 */
+	long getMessageIdFilterMemoryUsage() {
+		MessageIdFilter filter = messageIdFilter;
+		return filter == null ? 0 : filter.getMemoryUsage();
+	}
+
+	/**
+	 * Returns the number of message lookups that have been checked against
+	 * the filter of known message IDs.
+	 */
+	long getMessageIdFilterLookups() {
+		return messageIdFilterLookups.get();
+	}
+
+	/**
+	 * Returns the number of message lookups that were skipped because the
+	 * filter of known message IDs showed the message wasn't stored.
+	 */
+	long getMessageIdFilterSkips() {
+		return messageIdFilterSkips.get();
+	}
+
+	/**
+	 * Returns false if the given message is definitely not stored, or true if
+	 * it may be stored.
+	 */
+	private boolean mightContainMessage(MessageId m) {
+		MessageIdFilter filter = messageIdFilter;
+		if (filter == null) return true;
+		messageIdFilterLookups.incrementAndGet();
+		if (filter.mightContain(m)) return true;
+		messageIdFilterSkips.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * Adds the given message to the filter of known message IDs, rebuilding
+	 * the filter if it's full or has been discarded.
+	 */
+	private void addToMessageIdFilter(Connection txn, MessageId m)
+			throws DbException {
+		synchronized (filterLock) {
+			MessageIdFilter filter = messageIdFilter;
+			if (filter == null || filter.isFull()) {
+				// The rebuilt filter will include the new message
+				rebuildMessageIdFilter(txn);
+			} else {
+				filter.add(m);
+			}
+		}
+	}
+
+	/**
+	 * Builds a new filter of known message IDs from the messages visible to
+	 * the given transaction.
+	 * <p>
+	 * This assumes no other transaction has uncommitted changes to the
+	 * messages table, which is guaranteed by the database component's
+	 * exclusive lock for write transactions.
+	 */
+	private void rebuildMessageIdFilter(Connection txn) throws DbException {
+		long start = now();
+		Statement s = null;
+		ResultSet rs = null;
+		try {
+			List<MessageId> ids = new ArrayList<>();
+			s = txn.createStatement();
+			rs = s.executeQuery("SELECT messageId FROM messages");
+			while (rs.next()) ids.add(new MessageId(rs.getBytes(1)));
+			rs.close();
+			s.close();
+			int capacity = Math.max(MIN_MESSAGE_ID_FILTER_CAPACITY,
+					ids.size() * 2);
+			MessageIdFilter filter = new MessageIdFilter(capacity);
+			for (MessageId m : ids) filter.add(m);
+			synchronized (filterLock) {
+				messageIdFilter = filter;
+				filterRebuiltBy = txn;
+			}
+			if (LOG.isLoggable(INFO)) {
+				LOG.info("Message ID filter: " + ids.size() + " messages, "
+						+ filter.getMemoryUsage() + " bytes");
+			}
+			logDuration(LOG, "Rebuilding message ID filter", start);
+		} catch (SQLException e) {
+			tryToClose(rs, LOG, WARNING);
+			tryToClose(s, LOG, WARNING);
+			throw new DbException(e);
+		}
+	}
+
 	void closeAllConnections() {
 		boolean interrupted = false;
 		connectionsLock.lock();
@@ -692,6 +965,14 @@ abstract class JdbcDatabase implements Database<Connection> {
 				connectionPool.clear();
 			}
 			LOG.info("All connections closed");
+			if (LOG.isLoggable(INFO)) {
+				LOG.info("Statement cache: " + statementCacheHits.get()
+						+ " hits, " + statementCacheMisses.get() + " misses");
+				LOG.info("Message ID filter: " + messageIdFilterSkips.get()
+						+ " of " + messageIdFilterLookups.get()
+						+ " lookups skipped, false positive rate "
+						+ getMessageIdFilterFalsePositiveRate());
+			}
 		} finally {
 			connectionsLock.unlock();
 		}
@@ -797,7 +1078,9 @@ abstract class JdbcDatabase implements Database<Connection> {
 			ps = txn.prepareStatement(sql);
 			ps.setBytes(1, g.getBytes());
 			rs = ps.executeQuery();
+			SendPriority priority = null;
 			while (rs.next()) {
+				if (priority == null) priority = getSendPriority(txn, g);
 				MessageId id = new MessageId(rs.getBytes(1));
 				long timestamp = rs.getLong(2);
 				MessageState state = MessageState.fromValue(rs.getInt(3));
@@ -806,7 +1089,7 @@ abstract class JdbcDatabase implements Database<Connection> {
 				boolean deleted = rs.getBoolean(6);
 				boolean seen = removeOfferedMessage(txn, c, id);
 				addStatus(txn, id, c, g, timestamp, length, state, groupShared,
-						messageShared, deleted, seen);
+						messageShared, deleted, seen, priority);
 			}
 			rs.close();
 			ps.close();
@@ -871,13 +1154,18 @@ abstract class JdbcDatabase implements Database<Connection> {
 			// Create a status row for each contact that can see the group
 			Map<ContactId, Boolean> visibility =
 					getGroupVisibility(txn, m.getGroupId());
-			for (Entry<ContactId, Boolean> e : visibility.entrySet()) {
-				ContactId c = e.getKey();
-				boolean offered = removeOfferedMessage(txn, c, m.getId());
-				boolean seen = offered || c.equals(sender);
-				addStatus(txn, m.getId(), c, m.getGroupId(), m.getTimestamp(),
-						raw.length, state, e.getValue(), shared, false, seen);
+			if (!visibility.isEmpty()) {
+				SendPriority priority = getSendPriority(txn, m.getGroupId());
+				for (Entry<ContactId, Boolean> e : visibility.entrySet()) {
+					ContactId c = e.getKey();
+					boolean offered = removeOfferedMessage(txn, c, m.getId());
+					boolean seen = offered || c.equals(sender);
+					addStatus(txn, m.getId(), c, m.getGroupId(),
+							m.getTimestamp(), raw.length, state, e.getValue(),
+							shared, false, seen, priority);
+				}
 			}
+			addToMessageIdFilter(txn, m.getId());
 			// Update denormalised column in messageDependencies if dependency
 			// is in same group as dependent
 			sql = "UPDATE messageDependencies SET dependencyState = ?"
@@ -926,18 +1214,53 @@ abstract class JdbcDatabase implements Database<Connection> {
 		}
 	}
 
+	@Override
+	public void addOfferedMessages(Connection txn, ContactId c,
+			Collection<MessageId> m) throws DbException {
+		if (m.isEmpty()) return;
+		// Find out which of the messages have already been offered
+		Set<MessageId> offered = new LinkedHashSet<>(m);
+		String sql = "SELECT messageId FROM offers"
+				+ " WHERE contactId = ? AND messageId IN (";
+		executeInChunks(txn, sql, c, new ArrayList<>(offered),
+				rs -> offered.remove(new MessageId(rs.getBytes(1))));
+		if (offered.isEmpty()) return;
+		PreparedStatement ps = null;
+		try {
+			// Insert the rest in a single batch
+			sql = "INSERT INTO offers (messageId, contactId)"
+					+ " VALUES (?, ?)";
+			ps = txn.prepareStatement(sql);
+			ps.setInt(2, c.getInt());
+			for (MessageId id : offered) {
+				ps.setBytes(1, id.getBytes());
+				ps.addBatch();
+			}
+			int[] batchAffected = ps.executeBatch();
+			if (batchAffected.length != offered.size())
+				throw new DbStateException();
+			for (int rows : batchAffected) {
+				if (rows != 1) throw new DbStateException();
+			}
+			ps.close();
+		} catch (SQLException e) {
+			tryToClose(ps, LOG, WARNING);
+			throw new DbException(e);
+		}
+	}
+
 	private void addStatus(Connection txn, MessageId m, ContactId c, GroupId g,
 			long timestamp, int length, MessageState state, boolean groupShared,
-			boolean messageShared, boolean deleted, boolean seen)
-			throws DbException {
+			boolean messageShared, boolean deleted, boolean seen,
+			SendPriority priority) throws DbException {
 		PreparedStatement ps = null;
 		try {
 			String sql = "INSERT INTO statuses (messageId, contactId, groupId,"
 					+ " timestamp, length, state, groupShared, messageShared,"
 					+ " deleted, ack, seen, requested, expiry, txCount,"
-					+ " maxLatency)"
+					+ " maxLatency, sendPriority)"
 					+ " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, FALSE, 0, 0,"
-					+ " NULL)";
+					+ " NULL, ?)";
 			ps = txn.prepareStatement(sql);
 			ps.setBytes(1, m.getBytes());
 			ps.setInt(2, c.getInt());
@@ -950,6 +1273,7 @@ abstract class JdbcDatabase implements Database<Connection> {
 			ps.setBoolean(9, deleted);
 			ps.setBoolean(10, seen);
 			ps.setBoolean(11, seen);
+			ps.setInt(12, priority.getValue());
 			int affected = ps.executeUpdate();
 			if (affected != 1) throw new DbStateException();
 			ps.close();
@@ -1261,6 +1585,7 @@ abstract class JdbcDatabase implements Database<Connection> {
 	@Override
 	public boolean containsMessage(Connection txn, MessageId m)
 			throws DbException {
+		if (!mightContainMessage(m)) return false;
 		PreparedStatement ps = null;
 		ResultSet rs = null;
 		try {
@@ -1391,6 +1716,7 @@ abstract class JdbcDatabase implements Database<Connection> {
 	@Override
 	public boolean containsVisibleMessage(Connection txn, ContactId c,
 			MessageId m) throws DbException {
+		if (!mightContainMessage(m)) return false;
 		PreparedStatement ps = null;
 		ResultSet rs = null;
 		try {
@@ -1890,6 +2216,45 @@ abstract class JdbcDatabase implements Database<Connection> {
 		}
 	}
 
+	@Override
+	public List<Message> getMessages(Connection txn, Collection<MessageId> m)
+			throws DbException {
+		if (m.isEmpty()) return Collections.emptyList();
+		Map<MessageId, Message> messages = new HashMap<>(m.size());
+		Set<MessageId> deleted = new HashSet<>();
+		String sql = "SELECT messageId, groupId, timestamp, raw"
+				+ " FROM messages WHERE messageId IN (";
+		executeInChunks(txn, sql, null, new ArrayList<>(m), rs -> {
+			MessageId messageId = new MessageId(rs.getBytes(1));
+			GroupId g = new GroupId(rs.getBytes(2));
+			long timestamp = rs.getLong(3);
+			byte[] raw = rs.getBytes(4);
+			if (raw == null) {
+				deleted.add(messageId);
+				return;
+			}
+			if (raw.length <= MESSAGE_HEADER_LENGTH)
+				throw new AssertionError();
+			byte[] body = new byte[raw.length - MESSAGE_HEADER_LENGTH];
+			System.arraycopy(raw, MESSAGE_HEADER_LENGTH, body, 0,
+					body.length);
+			messages.put(messageId,
+					new Message(messageId, g, timestamp, body));
+		});
+		if (!deleted.isEmpty()) throw new MessageDeletedException();
+		try {
+			List<Message> ordered = new ArrayList<>(m.size());
+			for (MessageId id : m) {
+				Message message = messages.get(id);
+				if (message == null) throw new DbStateException();
+				ordered.add(message);
+			}
+			return ordered;
+		} catch (SQLException e) {
+			throw new DbException(e);
+		}
+	}
+
 	@Override
 	public Collection<MessageId> getMessageIds(Connection txn, GroupId g)
 			throws DbException {
@@ -1922,28 +2287,14 @@ abstract class JdbcDatabase implements Database<Connection> {
 		PreparedStatement ps = null;
 		ResultSet rs = null;
 		try {
-			// Retrieve the message IDs for each query term and intersect
-			Set<MessageId> intersection = null;
-			String sql = "SELECT messageId FROM messageMetadata"
-					+ " WHERE groupId = ? AND state = ?"
-					+ " AND metaKey = ? AND value = ?";
-			for (Entry<String, byte[]> e : query.entrySet()) {
-				ps = txn.prepareStatement(sql);
-				ps.setBytes(1, g.getBytes());
-				ps.setInt(2, DELIVERED.getValue());
-				ps.setString(3, e.getKey());
-				ps.setBytes(4, e.getValue());
-				rs = ps.executeQuery();
-				Set<MessageId> ids = new HashSet<>();
-				while (rs.next()) ids.add(new MessageId(rs.getBytes(1)));
-				rs.close();
-				ps.close();
-				if (intersection == null) intersection = ids;
-				else intersection.retainAll(ids);
-				// Return early if there are no matches
-				if (intersection.isEmpty()) return Collections.emptySet();
-			}
-			return intersection;
+			ps = txn.prepareStatement(getMetadataQuerySql(query.size()));
+			setMetadataQueryParameters(ps, 1, g, query);
+			rs = ps.executeQuery();
+			List<MessageId> ids = new ArrayList<>();
+			while (rs.next()) ids.add(new MessageId(rs.getBytes(1)));
+			rs.close();
+			ps.close();
+			return ids;
 		} catch (SQLException e) {
 			tryToClose(rs, LOG, WARNING);
 			tryToClose(ps, LOG, WARNING);
@@ -2012,13 +2363,148 @@ abstract class JdbcDatabase implements Database<Connection> {
 	@Override
 	public Map<MessageId, Metadata> getMessageMetadata(Connection txn,
 			GroupId g, Metadata query) throws DbException {
-		// Retrieve the matching message IDs
-		Collection<MessageId> matches = getMessageIds(txn, g, query);
-		if (matches.isEmpty()) return Collections.emptyMap();
-		// Retrieve the metadata for each match
-		Map<MessageId, Metadata> all = new HashMap<>(matches.size());
-		for (MessageId m : matches) all.put(m, getMessageMetadata(txn, m));
-		return all;
+		// If there are no query terms, return all delivered messages
+		if (query.isEmpty()) return getMessageMetadata(txn, g);
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+		try {
+			// Retrieve all the metadata of the matching messages
+			String sql = "SELECT messageId, metaKey, value"
+					+ " FROM messageMetadata"
+					+ " WHERE groupId = ? AND state = ?"
+					+ " AND messageId IN ("
+					+ getMetadataQuerySql(query.size()) + ")";
+			ps = txn.prepareStatement(sql);
+			ps.setBytes(1, g.getBytes());
+			ps.setInt(2, DELIVERED.getValue());
+			setMetadataQueryParameters(ps, 3, g, query);
+			rs = ps.executeQuery();
+			Map<MessageId, Metadata> all = new HashMap<>();
+			while (rs.next()) {
+				MessageId messageId = new MessageId(rs.getBytes(1));
+				Metadata metadata = all.get(messageId);
+				if (metadata == null) {
+					metadata = new Metadata();
+					all.put(messageId, metadata);
+				}
+				metadata.put(rs.getString(2), rs.getBytes(3));
+			}
+			rs.close();
+			ps.close();
+			return all;
+		} catch (SQLException e) {
+			tryToClose(rs, LOG, WARNING);
+			tryToClose(ps, LOG, WARNING);
+			throw new DbException(e);
+		}
+	}
+
+	@Override
+	public Map<MessageId, Metadata> getMessageMetadata(Connection txn,
+			GroupId g, Metadata query, long before, int limit)
+			throws DbException {
+		if (limit < 1) throw new IllegalArgumentException();
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+		try {
+			// If there are any query terms, only include matching messages
+			String matching = query.isEmpty() ? "" : " AND m.messageId IN ("
+					+ getMetadataQuerySql(query.size()) + ")";
+			// Find the timestamp of the oldest message on the page
+			String sql = "SELECT timestamp FROM messages AS m"
+					+ " WHERE groupId = ? AND state = ? AND timestamp < ?"
+					+ matching
+					+ " ORDER BY timestamp DESC LIMIT ?";
+			ps = txn.prepareStatement(sql);
+			ps.setBytes(1, g.getBytes());
+			ps.setInt(2, DELIVERED.getValue());
+			ps.setLong(3, before);
+			int index = 4;
+			if (!query.isEmpty()) {
+				setMetadataQueryParameters(ps, index, g, query);
+				index += 2 * query.size() + 3;
+			}
+			ps.setInt(index, limit);
+			rs = ps.executeQuery();
+			// If there are fewer messages than the limit, they all belong
+			// on the page
+			long oldest = Long.MIN_VALUE;
+			int count = 0;
+			while (rs.next()) {
+				long timestamp = rs.getLong(1);
+				if (++count == limit) oldest = timestamp;
+			}
+			rs.close();
+			ps.close();
+			// Retrieve all the metadata of the messages on the page,
+			// including any messages that share the oldest timestamp
+			sql = "SELECT md.messageId, metaKey, value"
+					+ " FROM messageMetadata AS md"
+					+ " JOIN messages AS m"
+					+ " ON md.messageId = m.messageId"
+					+ " WHERE m.groupId = ? AND m.state = ?"
+					+ " AND timestamp >= ? AND timestamp < ?"
+					+ matching;
+			ps = txn.prepareStatement(sql);
+			ps.setBytes(1, g.getBytes());
+			ps.setInt(2, DELIVERED.getValue());
+			ps.setLong(3, oldest);
+			ps.setLong(4, before);
+			if (!query.isEmpty()) setMetadataQueryParameters(ps, 5, g, query);
+			rs = ps.executeQuery();
+			Map<MessageId, Metadata> all = new HashMap<>();
+			while (rs.next()) {
+				MessageId messageId = new MessageId(rs.getBytes(1));
+				Metadata metadata = all.get(messageId);
+				if (metadata == null) {
+					metadata = new Metadata();
+					all.put(messageId, metadata);
+				}
+				metadata.put(rs.getString(2), rs.getBytes(3));
+			}
+			rs.close();
+			ps.close();
+			return all;
+		} catch (SQLException e) {
+			tryToClose(rs, LOG, WARNING);
+			tryToClose(ps, LOG, WARNING);
+			throw new DbException(e);
+		}
+	}
+
+	/**
+	 * Returns a query that selects the IDs of delivered messages in a group
+	 * whose metadata matches all of the given number of query terms. Each
+	 * message has at most one value per key, so a message matches if the
+	 * number of rows matching any of the terms equals the number of terms.
+	 * The query can be answered from the
+	 * messageMetadataByGroupIdStateKeyValue index.
+	 */
+	private String getMetadataQuerySql(int terms) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("SELECT messageId FROM messageMetadata")
+				.append(" WHERE groupId = ? AND state = ? AND (");
+		for (int i = 0; i < terms; i++) {
+			if (i > 0) sb.append(" OR ");
+			sb.append("(metaKey = ? AND value = ?)");
+		}
+		sb.append(") GROUP BY messageId HAVING COUNT(*) = ?");
+		return sb.toString();
+	}
+
+	/**
+	 * Sets the parameters of a query returned by
+	 * {@link #getMetadataQuerySql(int)}, starting at the given index.
+	 */
+	private void setMetadataQueryParameters(PreparedStatement ps, int index,
+			GroupId g, Metadata query) throws SQLException {
+		ps.setBytes(index++, g.getBytes());
+		ps.setInt(index++, DELIVERED.getValue());
+		for (Entry<String, byte[]> e : query.entrySet()) {
+			ps.setString(index++, e.getKey());
+			ps.setBytes(index++, e.getValue());
+		}
+		ps.setInt(index, query.size());
 	}
 
 	@Override
@@ -2155,6 +2641,29 @@ abstract class JdbcDatabase implements Database<Connection> {
 		}
 	}
 
+	@Override
+	public Map<MessageId, MessageStatus> getMessageStatus(Connection txn,
+			ContactId c, Collection<MessageId> m) throws DbException {
+		if (m.isEmpty()) return Collections.emptyMap();
+		Map<MessageId, MessageStatus> statuses = new HashMap<>(m.size());
+		// Messages without a status row have the default status
+		String sql = "SELECT m.messageId, s.txCount > 0, s.seen"
+				+ " FROM messages AS m"
+				+ " LEFT OUTER JOIN statuses AS s"
+				+ " ON m.messageId = s.messageId"
+				+ " AND s.contactId = ? AND s.state = " + DELIVERED.getValue()
+				+ " WHERE m.messageId IN (";
+		executeInChunks(txn, sql, c, new ArrayList<>(m), rs -> {
+			MessageId messageId = new MessageId(rs.getBytes(1));
+			// Null values are returned as false
+			boolean sent = rs.getBoolean(2);
+			boolean seen = rs.getBoolean(3);
+			statuses.put(messageId,
+					new MessageStatus(messageId, c, sent, seen));
+		});
+		return statuses;
+	}
+
 	@Override
 	public Map<MessageId, MessageState> getMessageDependencies(Connection txn,
 			MessageId m) throws DbException {
@@ -2278,7 +2787,7 @@ abstract class JdbcDatabase implements Database<Connection> {
 					+ " AND seen = FALSE AND requested = FALSE"
 					+ " AND (expiry <= ? OR maxLatency IS NULL"
 					+ " OR ? < maxLatency)"
-					+ " ORDER BY timestamp LIMIT ?";
+					+ " ORDER BY sendPriority, timestamp LIMIT ?";
 			ps = txn.prepareStatement(sql);
 			ps.setInt(1, c.getInt());
 			ps.setInt(2, DELIVERED.getValue());
@@ -2326,31 +2835,34 @@ abstract class JdbcDatabase implements Database<Connection> {
 	@Override
 	public Collection<MessageId> getMessagesToSend(Connection txn,
 			ContactId c, long capacity, long maxLatency) throws DbException {
-		long now = clock.currentTimeMillis();
+		String sql = "SELECT length, messageId FROM statuses"
+				+ " WHERE contactId = ? AND state = ?"
+				+ " AND groupShared = TRUE AND messageShared = TRUE"
+				+ " AND deleted = FALSE"
+				+ " AND seen = FALSE"
+				+ " AND (expiry <= ? OR maxLatency IS NULL"
+				+ " OR ? < maxLatency)"
+				+ " ORDER BY sendPriority, timestamp LIMIT ?";
+		return getMessagesToSend(txn, sql, c, capacity, maxLatency);
+	}
+
+	@Override
+	public Collection<MessageId> getUnackedMessagesToSend(Connection txn,
+			ContactId c) throws DbException {
 		PreparedStatement ps = null;
 		ResultSet rs = null;
 		try {
-			String sql = "SELECT length, messageId FROM statuses"
+			String sql = "SELECT messageId FROM statuses"
 					+ " WHERE contactId = ? AND state = ?"
 					+ " AND groupShared = TRUE AND messageShared = TRUE"
-					+ " AND deleted = FALSE"
-					+ " AND seen = FALSE"
-					+ " AND (expiry <= ? OR maxLatency IS NULL"
-					+ " OR ? < maxLatency)"
-					+ " ORDER BY timestamp";
+					+ " AND deleted = FALSE AND seen = FALSE"
+					+ " ORDER BY sendPriority, txCount, timestamp";
 			ps = txn.prepareStatement(sql);
 			ps.setInt(1, c.getInt());
 			ps.setInt(2, DELIVERED.getValue());
-			ps.setLong(3, now);
-			ps.setLong(4, maxLatency);
 			rs = ps.executeQuery();
 			List<MessageId> ids = new ArrayList<>();
-			while (rs.next()) {
-				int length = rs.getInt(1);
-				if (capacity < RECORD_HEADER_BYTES + length) break;
-				ids.add(new MessageId(rs.getBytes(2)));
-				capacity -= RECORD_HEADER_BYTES + length;
-			}
+			while (rs.next()) ids.add(new MessageId(rs.getBytes(1)));
 			rs.close();
 			ps.close();
 			return ids;
@@ -2362,25 +2874,24 @@ abstract class JdbcDatabase implements Database<Connection> {
 	}
 
 	@Override
-	public Collection<MessageId> getUnackedMessagesToSend(Connection txn,
-			ContactId c) throws DbException {
+	public long getUnackedMessageBytesToSend(Connection txn, ContactId c)
+			throws DbException {
 		PreparedStatement ps = null;
 		ResultSet rs = null;
 		try {
-			String sql = "SELECT messageId FROM statuses"
+			String sql = "SELECT SUM(length) FROM statuses"
 					+ " WHERE contactId = ? AND state = ?"
 					+ " AND groupShared = TRUE AND messageShared = TRUE"
-					+ " AND deleted = FALSE AND seen = FALSE"
-					+ " ORDER BY txCount, timestamp";
+					+ " AND deleted = FALSE AND seen = FALSE";
 			ps = txn.prepareStatement(sql);
 			ps.setInt(1, c.getInt());
 			ps.setInt(2, DELIVERED.getValue());
 			rs = ps.executeQuery();
-			List<MessageId> ids = new ArrayList<>();
-			while (rs.next()) ids.add(new MessageId(rs.getBytes(1)));
+			rs.next();
+			long total = rs.getLong(1);
 			rs.close();
 			ps.close();
-			return ids;
+			return total;
 		} catch (SQLException e) {
 			tryToClose(rs, LOG, WARNING);
 			tryToClose(ps, LOG, WARNING);
@@ -2389,24 +2900,53 @@ abstract class JdbcDatabase implements Database<Connection> {
 	}
 
 	@Override
-	public long getUnackedMessageBytesToSend(Connection txn, ContactId c)
-			throws DbException {
+	public Map<GroupId, Integer> getUnseenMessageCounts(Connection txn,
+			ContactId c) throws DbException {
 		PreparedStatement ps = null;
 		ResultSet rs = null;
 		try {
-			String sql = "SELECT SUM(length) FROM statuses"
+			String sql = "SELECT groupId, COUNT (messageId) FROM statuses"
 					+ " WHERE contactId = ? AND state = ?"
 					+ " AND groupShared = TRUE AND messageShared = TRUE"
-					+ " AND deleted = FALSE AND seen = FALSE";
+					+ " AND deleted = FALSE AND seen = FALSE"
+					+ " GROUP BY groupId";
 			ps = txn.prepareStatement(sql);
 			ps.setInt(1, c.getInt());
 			ps.setInt(2, DELIVERED.getValue());
 			rs = ps.executeQuery();
-			rs.next();
-			long total = rs.getLong(1);
+			Map<GroupId, Integer> counts = new HashMap<>();
+			while (rs.next())
+				counts.put(new GroupId(rs.getBytes(1)), rs.getInt(2));
 			rs.close();
 			ps.close();
-			return total;
+			return counts;
+		} catch (SQLException e) {
+			tryToClose(rs, LOG, WARNING);
+			tryToClose(ps, LOG, WARNING);
+			throw new DbException(e);
+		}
+	}
+
+	@Override
+	public Collection<MessageId> getSharedMessageIds(Connection txn,
+			ContactId c, GroupId g) throws DbException {
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+		try {
+			String sql = "SELECT messageId FROM statuses"
+					+ " WHERE contactId = ? AND groupId = ? AND state = ?"
+					+ " AND groupShared = TRUE AND messageShared = TRUE"
+					+ " AND deleted = FALSE";
+			ps = txn.prepareStatement(sql);
+			ps.setInt(1, c.getInt());
+			ps.setBytes(2, g.getBytes());
+			ps.setInt(3, DELIVERED.getValue());
+			rs = ps.executeQuery();
+			List<MessageId> ids = new ArrayList<>();
+			while (rs.next()) ids.add(new MessageId(rs.getBytes(1)));
+			rs.close();
+			ps.close();
+			return ids;
 		} catch (SQLException e) {
 			tryToClose(rs, LOG, WARNING);
 			tryToClose(ps, LOG, WARNING);
@@ -2426,6 +2966,44 @@ abstract class JdbcDatabase implements Database<Connection> {
 		return getMessagesInState(txn, PENDING);
 	}
 
+	@Override
+	public Map<MessageId, Map<MessageId, MessageState>>
+			getPendingMessageDependencies(Connection txn)
+			throws DbException {
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+		try {
+			String sql = "SELECT messageId, dependencyId, dependencyState"
+					+ " FROM messageDependencies"
+					+ " WHERE messageState = ?";
+			ps = txn.prepareStatement(sql);
+			ps.setInt(1, PENDING.getValue());
+			rs = ps.executeQuery();
+			Map<MessageId, Map<MessageId, MessageState>> pending =
+					new HashMap<>();
+			while (rs.next()) {
+				MessageId m = new MessageId(rs.getBytes(1));
+				MessageId dependency = new MessageId(rs.getBytes(2));
+				MessageState state = MessageState.fromValue(rs.getInt(3));
+				if (rs.wasNull())
+					state = UNKNOWN; // Missing or in a different group
+				Map<MessageId, MessageState> dependencies = pending.get(m);
+				if (dependencies == null) {
+					dependencies = new HashMap<>();
+					pending.put(m, dependencies);
+				}
+				dependencies.put(dependency, state);
+			}
+			rs.close();
+			ps.close();
+			return pending;
+		} catch (SQLException e) {
+			tryToClose(rs, LOG, WARNING);
+			tryToClose(ps, LOG, WARNING);
+			throw new DbException(e);
+		}
+	}
+
 	private Collection<MessageId> getMessagesInState(Connection txn,
 			MessageState state) throws DbException {
 		PreparedStatement ps = null;
@@ -2637,23 +3215,40 @@ abstract class JdbcDatabase implements Database<Connection> {
 	@Override
 	public Collection<MessageId> getRequestedMessagesToSend(Connection txn,
 			ContactId c, long capacity, long maxLatency) throws DbException {
+		String sql = "SELECT length, messageId FROM statuses"
+				+ " WHERE contactId = ? AND state = ?"
+				+ " AND groupShared = TRUE AND messageShared = TRUE"
+				+ " AND deleted = FALSE"
+				+ " AND seen = FALSE AND requested = TRUE"
+				+ " AND (expiry <= ? OR maxLatency IS NULL"
+				+ " OR ? < maxLatency)"
+				+ " ORDER BY sendPriority, timestamp LIMIT ?";
+		return getMessagesToSend(txn, sql, c, capacity, maxLatency);
+	}
+
+	/**
+	 * Runs a query that selects the lengths and IDs of messages to send to
+	 * the given contact, and returns as many of the IDs as will fit in the
+	 * given capacity. The query is limited to the number of messages that
+	 * could fit if they were all as short as possible, so the database
+	 * doesn't return rows that can't be used.
+	 */
+	private Collection<MessageId> getMessagesToSend(Connection txn,
+			String sql, ContactId c, long capacity, long maxLatency)
+			throws DbException {
 		long now = clock.currentTimeMillis();
+		long maxMessages =
+				capacity / (RECORD_HEADER_BYTES + MESSAGE_HEADER_LENGTH);
+		if (maxMessages == 0) return Collections.emptyList();
 		PreparedStatement ps = null;
 		ResultSet rs = null;
 		try {
-			String sql = "SELECT length, messageId FROM statuses"
-					+ " WHERE contactId = ? AND state = ?"
-					+ " AND groupShared = TRUE AND messageShared = TRUE"
-					+ " AND deleted = FALSE"
-					+ " AND seen = FALSE AND requested = TRUE"
-					+ " AND (expiry <= ? OR maxLatency IS NULL"
-					+ " OR ? < maxLatency)"
-					+ " ORDER BY timestamp";
 			ps = txn.prepareStatement(sql);
 			ps.setInt(1, c.getInt());
 			ps.setInt(2, DELIVERED.getValue());
 			ps.setLong(3, now);
 			ps.setLong(4, maxLatency);
+			ps.setInt(5, (int) Math.min(maxMessages, Integer.MAX_VALUE));
 			rs = ps.executeQuery();
 			List<MessageId> ids = new ArrayList<>();
 			while (rs.next()) {
@@ -2672,6 +3267,57 @@ abstract class JdbcDatabase implements Database<Connection> {
 		}
 	}
 
+	@Override
+	public SendPriority getSendPriority(Connection txn, ClientId c,
+			int majorVersion) throws DbException {
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+		try {
+			String sql = "SELECT sendPriority FROM sendPriorities"
+					+ " WHERE clientId = ? AND majorVersion = ?";
+			ps = txn.prepareStatement(sql);
+			ps.setString(1, c.getString());
+			ps.setInt(2, majorVersion);
+			rs = ps.executeQuery();
+			SendPriority p = NORMAL;
+			if (rs.next()) p = SendPriority.fromValue(rs.getInt(1));
+			if (rs.next()) throw new DbStateException();
+			rs.close();
+			ps.close();
+			return p;
+		} catch (SQLException e) {
+			tryToClose(rs, LOG, WARNING);
+			tryToClose(ps, LOG, WARNING);
+			throw new DbException(e);
+		}
+	}
+
+	private SendPriority getSendPriority(Connection txn, GroupId g)
+			throws DbException {
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+		try {
+			String sql = "SELECT sendPriority FROM sendPriorities AS sp"
+					+ " JOIN groups AS g"
+					+ " ON sp.clientId = g.clientId"
+					+ " AND sp.majorVersion = g.majorVersion"
+					+ " WHERE groupId = ?";
+			ps = txn.prepareStatement(sql);
+			ps.setBytes(1, g.getBytes());
+			rs = ps.executeQuery();
+			SendPriority p = NORMAL;
+			if (rs.next()) p = SendPriority.fromValue(rs.getInt(1));
+			if (rs.next()) throw new DbStateException();
+			rs.close();
+			ps.close();
+			return p;
+		} catch (SQLException e) {
+			tryToClose(rs, LOG, WARNING);
+			tryToClose(ps, LOG, WARNING);
+			throw new DbException(e);
+		}
+	}
+
 	@Override
 	public Settings getSettings(Connection txn, String namespace)
 			throws DbException {
@@ -2833,22 +3479,23 @@ abstract class JdbcDatabase implements Database<Connection> {
 	}
 
 	@Override
-	public void incrementStreamCounter(Connection txn, TransportId t,
-			KeySetId k) throws DbException {
-		PreparedStatement ps = null;
-		try {
-			String sql = "UPDATE outgoingKeys SET stream = stream + 1"
-					+ " WHERE transportId = ? AND keySetId = ?";
-			ps = txn.prepareStatement(sql);
-			ps.setString(1, t.getString());
-			ps.setInt(2, k.getInt());
-			int affected = ps.executeUpdate();
-			if (affected != 1) throw new DbStateException();
-			ps.close();
-		} catch (SQLException e) {
-			tryToClose(ps, LOG, WARNING);
-			throw new DbException(e);
+	public Collection<MessageId> getVisibleMessages(Connection txn,
+			ContactId c, Collection<MessageId> m) throws DbException {
+		if (m.isEmpty()) return Collections.emptyList();
+		Set<MessageId> visible = new HashSet<>();
+		List<MessageId> ids = new ArrayList<>(m.size());
+		for (MessageId id : new LinkedHashSet<>(m)) {
+			if (mightContainMessage(id)) ids.add(id);
 		}
+		String sql = "SELECT messageId FROM statuses"
+				+ " WHERE contactId = ? AND messageShared = TRUE"
+				+ " AND messageId IN (";
+		executeInChunks(txn, sql, c, ids,
+				rs -> visible.add(new MessageId(rs.getBytes(1))));
+		// Return the visible messages in the order they were given
+		List<MessageId> result = new ArrayList<>(visible.size());
+		for (MessageId id : ids) if (visible.contains(id)) result.add(id);
+		return result;
 	}
 
 	@Override
@@ -3113,6 +3760,12 @@ abstract class JdbcDatabase implements Database<Connection> {
 		}
 	}
 
+	@Override
+	public void raiseAckFlag(Connection txn, ContactId c,
+			Collection<MessageId> m) throws DbException {
+		updateStatuses(txn, c, m, "ack = TRUE");
+	}
+
 	@Override
 	public void raiseRequestedFlag(Connection txn, ContactId c, MessageId m)
 			throws DbException {
@@ -3132,6 +3785,12 @@ abstract class JdbcDatabase implements Database<Connection> {
 		}
 	}
 
+	@Override
+	public void raiseRequestedFlag(Connection txn, ContactId c,
+			Collection<MessageId> m) throws DbException {
+		updateStatuses(txn, c, m, "requested = TRUE");
+	}
+
 	@Override
 	public boolean raiseSeenFlag(Connection txn, ContactId c, MessageId m)
 			throws DbException {
@@ -3152,6 +3811,24 @@ abstract class JdbcDatabase implements Database<Connection> {
 		}
 	}
 
+	@Override
+	public Collection<MessageId> raiseSeenFlag(Connection txn, ContactId c,
+			Collection<MessageId> m) throws DbException {
+		if (m.isEmpty()) return Collections.emptyList();
+		// Find out which of the messages haven't been seen
+		Set<MessageId> unseen = new HashSet<>();
+		List<MessageId> ids = new ArrayList<>(new LinkedHashSet<>(m));
+		String sql = "SELECT messageId FROM statuses"
+				+ " WHERE contactId = ? AND seen = FALSE"
+				+ " AND messageId IN (";
+		executeInChunks(txn, sql, c, ids,
+				rs -> unseen.add(new MessageId(rs.getBytes(1))));
+		List<MessageId> raised = new ArrayList<>(unseen.size());
+		for (MessageId id : ids) if (unseen.contains(id)) raised.add(id);
+		updateStatuses(txn, c, raised, "seen = TRUE");
+		return raised;
+	}
+
 	@Override
 	public void removeContact(Connection txn, ContactId c)
 			throws DbException {
@@ -3379,6 +4056,12 @@ abstract class JdbcDatabase implements Database<Connection> {
 		}
 	}
 
+	@Override
+	public void resetExpiryTime(Connection txn, ContactId c,
+			Collection<MessageId> m) throws DbException {
+		updateStatuses(txn, c, m, "expiry = 0, txCount = 0");
+	}
+
 	@Override
 	public void resetUnackedMessagesToSend(Connection txn, ContactId c)
 			throws DbException {
@@ -3633,6 +4316,74 @@ abstract class JdbcDatabase implements Database<Connection> {
 		}
 	}
 
+	@Override
+	public void setSendPriority(Connection txn, ClientId c, int majorVersion,
+			SendPriority p) throws DbException {
+		// Clients set their priorities every time the database is opened,
+		// so don't rewrite the statuses if the priority hasn't changed
+		if (getSendPriority(txn, c, majorVersion) == p) return;
+		PreparedStatement ps = null;
+		try {
+			String sql = "UPDATE sendPriorities SET sendPriority = ?"
+					+ " WHERE clientId = ? AND majorVersion = ?";
+			ps = txn.prepareStatement(sql);
+			ps.setInt(1, p.getValue());
+			ps.setString(2, c.getString());
+			ps.setInt(3, majorVersion);
+			int affected = ps.executeUpdate();
+			if (affected < 0 || affected > 1) throw new DbStateException();
+			ps.close();
+			if (affected == 0) {
+				sql = "INSERT INTO sendPriorities"
+						+ " (clientId, majorVersion, sendPriority)"
+						+ " VALUES (?, ?, ?)";
+				ps = txn.prepareStatement(sql);
+				ps.setString(1, c.getString());
+				ps.setInt(2, majorVersion);
+				ps.setInt(3, p.getValue());
+				affected = ps.executeUpdate();
+				if (affected != 1) throw new DbStateException();
+				ps.close();
+			}
+			// Update denormalised column in statuses
+			sql = "UPDATE statuses SET sendPriority = ?"
+					+ " WHERE sendPriority <> ?"
+					+ " AND groupId IN (SELECT groupId FROM groups"
+					+ " WHERE clientId = ? AND majorVersion = ?)";
+			ps = txn.prepareStatement(sql);
+			ps.setInt(1, p.getValue());
+			ps.setInt(2, p.getValue());
+			ps.setString(3, c.getString());
+			ps.setInt(4, majorVersion);
+			affected = ps.executeUpdate();
+			if (affected < 0) throw new DbStateException();
+			ps.close();
+		} catch (SQLException e) {
+			tryToClose(ps, LOG, WARNING);
+			throw new DbException(e);
+		}
+	}
+
+	@Override
+	public void setStreamCounter(Connection txn, TransportId t, KeySetId k,
+			long streamCounter) throws DbException {
+		PreparedStatement ps = null;
+		try {
+			String sql = "UPDATE outgoingKeys SET stream = ?"
+					+ " WHERE transportId = ? AND keySetId = ?";
+			ps = txn.prepareStatement(sql);
+			ps.setLong(1, streamCounter);
+			ps.setString(2, t.getString());
+			ps.setInt(3, k.getInt());
+			int affected = ps.executeUpdate();
+			if (affected != 1) throw new DbStateException();
+			ps.close();
+		} catch (SQLException e) {
+			tryToClose(ps, LOG, WARNING);
+			throw new DbException(e);
+		}
+	}
+
 	@Override
 	public void setSyncVersions(Connection txn, ContactId c,
 			List<Byte> supported) throws DbException {
@@ -3711,6 +4462,47 @@ abstract class JdbcDatabase implements Database<Connection> {
 		}
 	}
 
+	@Override
+	public Map<MessageId, Long> startCleanupTimer(Connection txn,
+			Collection<MessageId> m) throws DbException {
+		if (m.isEmpty()) return Collections.emptyMap();
+		long now = clock.currentTimeMillis();
+		// Find the messages with timers that haven't been started
+		Map<MessageId, Long> deadlines = new HashMap<>();
+		String sql = "SELECT messageId, cleanupTimerDuration"
+				+ " FROM messages"
+				+ " WHERE cleanupTimerDuration IS NOT NULL"
+				+ " AND cleanupDeadline IS NULL"
+				+ " AND messageId IN (";
+		executeInChunks(txn, sql, null, new ArrayList<>(new LinkedHashSet<>(m)),
+				rs -> deadlines.put(new MessageId(rs.getBytes(1)),
+						now + rs.getLong(2)));
+		if (deadlines.isEmpty()) return deadlines;
+		PreparedStatement ps = null;
+		try {
+			// Start the timers in a single batch
+			sql = "UPDATE messages SET cleanupDeadline = ?"
+					+ " WHERE messageId = ?";
+			ps = txn.prepareStatement(sql);
+			for (Entry<MessageId, Long> e : deadlines.entrySet()) {
+				ps.setLong(1, e.getValue());
+				ps.setBytes(2, e.getKey().getBytes());
+				ps.addBatch();
+			}
+			int[] batchAffected = ps.executeBatch();
+			if (batchAffected.length != deadlines.size())
+				throw new DbStateException();
+			for (int rows : batchAffected) {
+				if (rows != 1) throw new DbStateException();
+			}
+			ps.close();
+			return deadlines;
+		} catch (SQLException e) {
+			tryToClose(ps, LOG, WARNING);
+			throw new DbException(e);
+		}
+	}
+
 	@Override
 	public void stopCleanupTimer(Connection txn, MessageId m)
 			throws DbException {
@@ -3765,6 +4557,60 @@ abstract class JdbcDatabase implements Database<Connection> {
 		}
 	}
 
+	@Override
+	public void updateRetransmissionData(Connection txn, ContactId c,
+			Collection<MessageId> m, long maxLatency) throws DbException {
+		if (m.isEmpty()) return;
+		// Load the transmission counts, which determine the expiry times
+		Map<MessageId, Integer> txCounts = new HashMap<>(m.size());
+		String sql = "SELECT messageId, txCount FROM statuses"
+				+ " WHERE contactId = ? AND messageId IN (";
+		executeInChunks(txn, sql, c, new ArrayList<>(m), rs ->
+				txCounts.put(new MessageId(rs.getBytes(1)), rs.getInt(2)));
+		PreparedStatement ps = null;
+		try {
+			for (MessageId id : m) {
+				if (!txCounts.containsKey(id)) throw new DbStateException();
+			}
+			// Update all the statuses in a single batch
+			sql = "UPDATE statuses"
+					+ " SET expiry = ?, txCount = txCount + 1, maxLatency = ?"
+					+ " WHERE messageId = ? AND contactId = ?";
+			ps = txn.prepareStatement(sql);
+			long now = clock.currentTimeMillis();
+			ps.setLong(2, maxLatency);
+			ps.setInt(4, c.getInt());
+			for (Entry<MessageId, Integer> e : txCounts.entrySet()) {
+				ps.setLong(1, calculateExpiry(now, maxLatency, e.getValue()));
+				ps.setBytes(3, e.getKey().getBytes());
+				ps.addBatch();
+			}
+			int[] batchAffected = ps.executeBatch();
+			if (batchAffected.length != txCounts.size())
+				throw new DbStateException();
+			for (int rows : batchAffected) {
+				if (rows != 1) throw new DbStateException();
+			}
+			ps.close();
+		} catch (SQLException e) {
+			tryToClose(ps, LOG, WARNING);
+			throw new DbException(e);
+		}
+	}
+
+	/**
+	 * Applies the given SET clause to the statuses of the given messages with
+	 * respect to the given contact, using as few statements as possible.
+	 */
+	private void updateStatuses(Connection txn, ContactId c,
+			Collection<MessageId> m, String set) throws DbException {
+		if (m.isEmpty()) return;
+		String sql = "UPDATE statuses SET " + set
+				+ " WHERE contactId = ? AND messageId IN (";
+		executeInChunks(txn, sql, c, new ArrayList<>(new LinkedHashSet<>(m)),
+				null);
+	}
+
 	@Override
 	public void updateTransportKeys(Connection txn, TransportKeySet ks)
 			throws DbException {
@@ -3831,4 +4677,10 @@ abstract class JdbcDatabase implements Database<Connection> {
 			throw new DbException(e);
 		}
 	}
+
+	@NotNullByDefault
+	private interface RowHandler {
+
+		void handleRow(ResultSet rs) throws SQLException;
+	}
 }
@@ -0,0 +1,145 @@
+package org.briarproject.bramble.db;
+
+import org.briarproject.bramble.api.sync.MessageId;
+import org.briarproject.nullsafety.NotNullByDefault;
+
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+import static org.briarproject.bramble.util.ByteUtils.readUint64;
+
+/**
+ * A Bloom filter of message IDs, used for skipping database lookups for
+ * messages that are definitely not in the database.
+ * <p>
+ * The filter never returns false for an ID that has been added, but it may
+ * return true for an ID that hasn't been added. The probability of a false
+ * positive grows as IDs are added, and exceeds the target rate when more than
+ * {@link #getCapacity() capacity} IDs have been added. IDs can't be removed,
+ * so the filter should be rebuilt when it's full.
+ * <p>
+ * IDs can be added and looked up concurrently without locking.
+ */
+@ThreadSafe
+@NotNullByDefault
+class MessageIdFilter {
+
+	/**
+	 * The number of bits per ID, which gives a false positive rate of about
+	 * 1% when the filter is at capacity.
+	 */
+	private static final int BITS_PER_ID = 10;
+
+	/**
+	 * The number of bits set for each ID, which is close to optimal for the
+	 * number of bits per ID.
+	 */
+	private static final int HASHES = 7;
+
+	private final AtomicLongArray bits;
+	private final long numBits;
+	private final int capacity;
+	private final long seed1, seed2;
+	private final AtomicInteger count = new AtomicInteger(0);
+
+	/**
+	 * @param capacity the number of IDs that can be added before the false
+	 * positive rate exceeds the target rate
+	 */
+	MessageIdFilter(int capacity) {
+		if (capacity < 1) throw new IllegalArgumentException();
+		this.capacity = capacity;
+		int words = (int) ((((long) capacity) * BITS_PER_ID + 63) / 64);
+		bits = new AtomicLongArray(words);
+		numBits = words * 64L;
+		// Message IDs are hashes, but IDs offered by contacts aren't checked
+		// until the messages are received, so randomise the bit positions
+		SecureRandom random = new SecureRandom();
+		seed1 = random.nextLong();
+		seed2 = random.nextLong();
+	}
+
+	/**
+	 * Adds the given ID to the filter.
+	 */
+	void add(MessageId m) {
+		byte[] b = m.getBytes();
+		long h1 = readUint64(b, 0) ^ seed1;
+		long h2 = (readUint64(b, 8) ^ seed2) | 1;
+		for (int i = 0; i < HASHES; i++) {
+			long bit = getBit(h1, h2, i);
+			int word = (int) (bit >>> 6);
+			long mask = 1L << (bit & 63);
+			// Loop until the bit is set by us or another thread
+			while (true) {
+				long old = bits.get(word);
+				if ((old & mask) != 0) break;
+				if (bits.compareAndSet(word, old, old | mask)) break;
+			}
+		}
+		count.incrementAndGet();
+	}
+
+	/**
+	 * Returns false if the given ID has definitely not been added to the
+	 * filter, or true if it may have been added.
+	 */
+	boolean mightContain(MessageId m) {
+		byte[] b = m.getBytes();
+		long h1 = readUint64(b, 0) ^ seed1;
+		long h2 = (readUint64(b, 8) ^ seed2) | 1;
+		for (int i = 0; i < HASHES; i++) {
+			long bit = getBit(h1, h2, i);
+			if ((bits.get((int) (bit >>> 6)) & (1L << (bit & 63))) == 0)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the number of IDs that can be added before the false positive
+	 * rate exceeds the target rate.
+	 */
+	int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Returns the number of times {@link #add(MessageId)} has been called.
+	 */
+	int getCount() {
+		return count.get();
+	}
+
+	/**
+	 * Returns true if more IDs have been added than the filter's capacity.
+	 */
+	boolean isFull() {
+		return count.get() > capacity;
+	}
+
+	/**
+	 * Returns the expected probability that {@link #mightContain(MessageId)}
+	 * returns true for an ID that hasn't been added, given the number of IDs
+	 * that have been added.
+	 */
+	double getFalsePositiveRate() {
+		double exponent = -(double) HASHES * count.get() / numBits;
+		return Math.pow(1 - Math.exp(exponent), HASHES);
+	}
+
+	/**
+	 * Returns the approximate number of bytes of memory used by the filter.
+	 */
+	long getMemoryUsage() {
+		return numBits / 8;
+	}
+
+	// Double hashing: the i'th bit index is h1 + i * h2, modulo the size
+	private long getBit(long h1, long h2, int i) {
+		return ((h1 + i * h2) & Long.MAX_VALUE) % numBits;
+	}
+}
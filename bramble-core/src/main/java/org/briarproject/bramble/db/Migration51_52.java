@@ -0,0 +1,56 @@
+package org.briarproject.bramble.db;
+
+import org.briarproject.bramble.api.db.DbException;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.logging.Logger;
+
+import static java.util.logging.Level.WARNING;
+import static java.util.logging.Logger.getLogger;
+import static org.briarproject.bramble.db.JdbcUtils.tryToClose;
+
+class Migration51_52 implements Migration<Connection> {
+
+	private static final Logger LOG = getLogger(Migration51_52.class.getName());
+
+	private final DatabaseTypes dbTypes;
+
+	Migration51_52(DatabaseTypes dbTypes) {
+		this.dbTypes = dbTypes;
+	}
+
+	@Override
+	public int getStartVersion() {
+		return 51;
+	}
+
+	@Override
+	public int getEndVersion() {
+		return 52;
+	}
+
+	@Override
+	public void migrate(Connection txn) throws DbException {
+		Statement s = null;
+		try {
+			s = txn.createStatement();
+			s.execute(dbTypes.replaceTypes("CREATE TABLE sendPriorities"
+					+ " (clientId _STRING NOT NULL,"
+					+ " majorVersion INT NOT NULL,"
+					+ " sendPriority INT NOT NULL,"
+					+ " PRIMARY KEY (clientId, majorVersion))"));
+			// Existing messages have normal priority
+			s.execute("ALTER TABLE statuses"
+					+ " ADD COLUMN sendPriority INT DEFAULT 1 NOT NULL");
+			// Replaced by indexes that include the send priority
+			s.execute("DROP INDEX IF EXISTS statusesByContactIdTimestamp");
+			s.execute("DROP INDEX IF EXISTS"
+					+ " statusesByContactIdTxCountTimestamp");
+		} catch (SQLException e) {
+			tryToClose(s, LOG, WARNING);
+			throw new DbException(e);
+		}
+	}
+}
@@ -0,0 +1,162 @@
+package org.briarproject.bramble.db;
+
+import org.briarproject.nullsafety.NotNullByDefault;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.annotation.concurrent.NotThreadSafe;
+
+import static java.util.logging.Level.WARNING;
+import static java.util.logging.Logger.getLogger;
+import static org.briarproject.bramble.db.JdbcUtils.tryToClose;
+
+/**
+ * A bounded cache of prepared statements belonging to a single
+ * {@link Connection}.
+ * <p>
+ * The cache wraps the connection in a connection that returns a cached
+ * statement from {@link Connection#prepareStatement(String)} if the same SQL
+ * has been prepared before. Closing a cached statement clears its parameters
+ * and returns it to the cache, so callers can prepare and close statements
+ * as usual. The least recently used statement is closed when the cache is
+ * full.
+ * <p>
+ * The cache is keyed by SQL, so callers should avoid building SQL that
+ * varies between calls, such as IN clauses with varying numbers of
+ * placeholders, which would evict more useful statements from the cache.
+ * <p>
+ * Like the connection itself, the cache must only be used by one thread at
+ * a time.
+ */
+@NotThreadSafe
+@NotNullByDefault
+class StatementCache {
+
+	private static final Logger LOG = getLogger(StatementCache.class.getName());
+
+	private final Connection connection, cachingConnection;
+	private final int capacity;
+	private final AtomicLong hits, misses;
+	private final LinkedHashMap<String, CachedStatement> cache;
+
+	/**
+	 * @param connection the connection whose statements will be cached
+	 * @param capacity the maximum number of statements to cache
+	 * @param hits a counter that will be incremented whenever a cached
+	 * statement is reused
+	 * @param misses a counter that will be incremented whenever a statement
+	 * has to be prepared
+	 */
+	StatementCache(Connection connection, int capacity, AtomicLong hits,
+			AtomicLong misses) {
+		this.connection = connection;
+		this.capacity = capacity;
+		this.hits = hits;
+		this.misses = misses;
+		cache = new LinkedHashMap<>(capacity, 0.75f, true);
+		cachingConnection = new CachingConnection();
+	}
+
+	/**
+	 * Returns a connection that prepares statements through the cache.
+	 */
+	Connection getConnection() {
+		return cachingConnection;
+	}
+
+	private PreparedStatement prepareStatement(String sql)
+			throws SQLException {
+		CachedStatement cached = cache.get(sql);
+		if (cached != null && !cached.inUse) {
+			hits.incrementAndGet();
+			cached.inUse = true;
+			return cached;
+		}
+		misses.incrementAndGet();
+		PreparedStatement ps = connection.prepareStatement(sql);
+		// If the cached statement is in use, for example by a caller further
+		// up the stack, don't replace it
+		if (cached != null) return ps;
+		cached = new CachedStatement(sql, ps);
+		cached.inUse = true;
+		cache.put(sql, cached);
+		evictIfNecessary();
+		return cached;
+	}
+
+	private void evictIfNecessary() {
+		Iterator<CachedStatement> it = cache.values().iterator();
+		while (cache.size() > capacity && it.hasNext()) {
+			CachedStatement eldest = it.next();
+			if (eldest.inUse) continue;
+			it.remove();
+			tryToClose(eldest.statement, LOG, WARNING);
+		}
+	}
+
+	private void closeAll() {
+		for (CachedStatement cached : cache.values())
+			tryToClose(cached.statement, LOG, WARNING);
+		cache.clear();
+	}
+
+	private class CachingConnection extends ForwardingConnection {
+
+		private CachingConnection() {
+			super(connection);
+		}
+
+		@Override
+		public PreparedStatement prepareStatement(String sql)
+				throws SQLException {
+			return StatementCache.this.prepareStatement(sql);
+		}
+
+		@Override
+		public void close() throws SQLException {
+			closeAll();
+			connection.close();
+		}
+	}
+
+	private class CachedStatement extends ForwardingPreparedStatement {
+
+		private final String sql;
+		private final PreparedStatement statement;
+
+		private boolean inUse = false;
+
+		private CachedStatement(String sql, PreparedStatement statement) {
+			super(statement);
+			this.sql = sql;
+			this.statement = statement;
+		}
+
+		@Override
+		public void close() throws SQLException {
+			if (!inUse) return;
+			inUse = false;
+			try {
+				statement.clearParameters();
+				statement.clearBatch();
+			} catch (SQLException e) {
+				// Don't reuse a statement that may be in an unknown state
+				if (cache.get(sql) == this) cache.remove(sql);
+				statement.close();
+				throw e;
+			}
+			evictIfNecessary();
+		}
+
+		@Override
+		public boolean isClosed() throws SQLException {
+			return !inUse || statement.isClosed();
+		}
+	}
+}
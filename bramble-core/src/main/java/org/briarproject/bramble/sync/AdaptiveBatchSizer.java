@@ -0,0 +1,112 @@
+package org.briarproject.bramble.sync;
+
+import org.briarproject.bramble.api.sync.MessageId;
+import org.briarproject.nullsafety.NotNullByDefault;
+
+import java.util.logging.Logger;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import static java.util.logging.Level.FINE;
+import static java.util.logging.Logger.getLogger;
+import static org.briarproject.bramble.api.sync.SyncConstants.MAX_MESSAGE_IDS;
+
+/**
+ * A {@link BatchSizer} that adapts the batch capacity to the measured rates
+ * at which batches are generated and written.
+ * <p>
+ * The batch capacity is limited so that generating a batch holds the DB for
+ * no more than {@link #TARGET_GENERATION_TIME} and writing a batch takes no
+ * more than {@link #TARGET_WRITE_TIME}. Fast transports, such as LAN and
+ * removable drives, get larger batches than slow transports such as Tor and
+ * Bluetooth.
+ */
+@ThreadSafe
+@NotNullByDefault
+class AdaptiveBatchSizer implements BatchSizer {
+
+	private static final Logger LOG =
+			getLogger(AdaptiveBatchSizer.class.getName());
+
+	/**
+	 * The target time in milliseconds for generating a batch.
+	 */
+	static final long TARGET_GENERATION_TIME = 100;
+
+	/**
+	 * The target time in milliseconds for writing a batch.
+	 */
+	static final long TARGET_WRITE_TIME = 1000;
+
+	/**
+	 * The minimum number of message IDs to include in an ack or offer.
+	 */
+	static final int MIN_MESSAGE_IDS = 64;
+
+	/**
+	 * The weight given to each new measurement in the moving averages.
+	 */
+	private static final double SMOOTHING = 0.25;
+
+	private final Object lock = new Object();
+
+	// Bytes per millisecond, or zero if not yet measured
+	@GuardedBy("lock")
+	private double generationRate = 0, writeRate = 0;
+
+	@Override
+	public int getBatchCapacity() {
+		double capacity = Double.MAX_VALUE;
+		synchronized (lock) {
+			if (generationRate == 0 && writeRate == 0)
+				return DEFAULT_BATCH_CAPACITY;
+			if (generationRate > 0)
+				capacity = generationRate * TARGET_GENERATION_TIME;
+			if (writeRate > 0)
+				capacity = Math.min(capacity, writeRate * TARGET_WRITE_TIME);
+		}
+		if (capacity < MIN_BATCH_CAPACITY) return MIN_BATCH_CAPACITY;
+		if (capacity > MAX_BATCH_CAPACITY) return MAX_BATCH_CAPACITY;
+		return (int) capacity;
+	}
+
+	@Override
+	public int getMaxMessageIds() {
+		double ids;
+		synchronized (lock) {
+			if (writeRate == 0) return MAX_MESSAGE_IDS;
+			ids = writeRate * TARGET_WRITE_TIME / MessageId.LENGTH;
+		}
+		if (ids < MIN_MESSAGE_IDS) return MIN_MESSAGE_IDS;
+		if (ids > MAX_MESSAGE_IDS) return MAX_MESSAGE_IDS;
+		return (int) ids;
+	}
+
+	@Override
+	public void onBatchGenerated(long bytes, long duration) {
+		if (bytes <= 0) return;
+		synchronized (lock) {
+			generationRate = update(generationRate, bytes, duration);
+		}
+		if (LOG.isLoggable(FINE))
+			LOG.fine("Generated " + bytes + " bytes in " + duration + " ms");
+	}
+
+	@Override
+	public void onBatchWritten(long bytes, long duration) {
+		if (bytes <= 0) return;
+		synchronized (lock) {
+			writeRate = update(writeRate, bytes, duration);
+		}
+		if (LOG.isLoggable(FINE))
+			LOG.fine("Wrote " + bytes + " bytes in " + duration + " ms");
+	}
+
+	private static double update(double average, long bytes, long duration) {
+		// Durations are measured in whole milliseconds
+		double rate = (double) bytes / Math.max(1, duration);
+		if (average == 0) return rate;
+		return average * (1 - SMOOTHING) + rate * SMOOTHING;
+	}
+}
@@ -0,0 +1,61 @@
+package org.briarproject.bramble.sync;
+
+import org.briarproject.bramble.api.record.Record;
+import org.briarproject.bramble.api.sync.SyncConstants;
+import org.briarproject.nullsafety.NotNullByDefault;
+
+import static org.briarproject.bramble.api.record.Record.RECORD_HEADER_BYTES;
+import static org.briarproject.bramble.api.sync.SyncConstants.MAX_MESSAGE_LENGTH;
+
+/**
+ * Chooses the sizes of the batches and message ID records sent over a
+ * transport.
+ * <p>
+ * Larger batches mean fewer round-trips between the DB and the output
+ * stream, but each round-trip blocks the DB for longer. A sizer may measure
+ * how quickly batches are generated and written, and adapt the sizes to the
+ * transport.
+ */
+@NotNullByDefault
+interface BatchSizer {
+
+	/**
+	 * The minimum batch capacity, which is {@link Record#RECORD_HEADER_BYTES}
+	 * + {@link SyncConstants#MAX_MESSAGE_LENGTH} to ensure that maximum-size
+	 * messages can be selected for transmission.
+	 */
+	int MIN_BATCH_CAPACITY = RECORD_HEADER_BYTES + MAX_MESSAGE_LENGTH;
+
+	/**
+	 * The batch capacity used before any measurements have been made.
+	 */
+	int DEFAULT_BATCH_CAPACITY = MIN_BATCH_CAPACITY * 2;
+
+	/**
+	 * The maximum batch capacity.
+	 */
+	int MAX_BATCH_CAPACITY = MIN_BATCH_CAPACITY * 16;
+
+	/**
+	 * Returns the capacity in bytes of the next batch to generate.
+	 */
+	int getBatchCapacity();
+
+	/**
+	 * Returns the maximum number of message IDs to include in the next ack
+	 * or offer.
+	 */
+	int getMaxMessageIds();
+
+	/**
+	 * Records that a batch of the given size in bytes, including record
+	 * headers, was generated in the given number of milliseconds.
+	 */
+	void onBatchGenerated(long bytes, long duration);
+
+	/**
+	 * Records that a batch of the given size in bytes, including record
+	 * headers, was written and flushed in the given number of milliseconds.
+	 */
+	void onBatchWritten(long bytes, long duration);
+}
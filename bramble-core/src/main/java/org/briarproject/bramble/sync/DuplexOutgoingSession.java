@@ -12,13 +12,14 @@ import org.briarproject.bramble.api.lifecycle.IoExecutor;
 import org.briarproject.bramble.api.lifecycle.event.LifecycleEvent;
 import org.briarproject.bramble.api.plugin.TransportId;
 import org.briarproject.bramble.api.plugin.event.TransportInactiveEvent;
-import org.briarproject.bramble.api.record.Record;
 import org.briarproject.bramble.api.sync.Ack;
+import org.briarproject.bramble.api.sync.GroupId;
 import org.briarproject.bramble.api.sync.Message;
+import org.briarproject.bramble.api.sync.MessageId;
 import org.briarproject.bramble.api.sync.Offer;
 import org.briarproject.bramble.api.sync.Priority;
 import org.briarproject.bramble.api.sync.Request;
-import org.briarproject.bramble.api.sync.SyncConstants;
+import org.briarproject.bramble.api.sync.Sketch;
 import org.briarproject.bramble.api.sync.SyncRecordWriter;
 import org.briarproject.bramble.api.sync.SyncSession;
 import org.briarproject.bramble.api.sync.Versions;
@@ -28,20 +29,30 @@ import org.briarproject.bramble.api.sync.event.MessageRequestedEvent;
 import org.briarproject.bramble.api.sync.event.MessageSharedEvent;
 import org.briarproject.bramble.api.sync.event.MessageToAckEvent;
 import org.briarproject.bramble.api.sync.event.MessageToRequestEvent;
+import org.briarproject.bramble.api.sync.event.SketchReceivedEvent;
+import org.briarproject.bramble.api.sync.event.SyncVersionsReceivedEvent;
 import org.briarproject.bramble.api.system.Clock;
 import org.briarproject.bramble.api.transport.StreamWriter;
 import org.briarproject.nullsafety.NotNullByDefault;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Executor;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
 import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
 import javax.annotation.concurrent.ThreadSafe;
 
 import static java.lang.Boolean.TRUE;
@@ -50,12 +61,14 @@ import static java.util.logging.Level.INFO;
 import static java.util.logging.Level.WARNING;
 import static java.util.logging.Logger.getLogger;
 import static org.briarproject.bramble.api.lifecycle.LifecycleManager.LifecycleState.STOPPING;
-import static org.briarproject.bramble.api.record.Record.RECORD_HEADER_BYTES;
 import static org.briarproject.bramble.api.sync.Group.Visibility.SHARED;
 import static org.briarproject.bramble.api.sync.SyncConstants.MAX_MESSAGE_IDS;
-import static org.briarproject.bramble.api.sync.SyncConstants.MAX_MESSAGE_LENGTH;
+import static org.briarproject.bramble.api.sync.SyncConstants.SKETCH_VERSION;
 import static org.briarproject.bramble.api.sync.SyncConstants.SUPPORTED_VERSIONS;
+import static org.briarproject.bramble.sync.InvertibleBloomFilter.MAX_CELLS;
+import static org.briarproject.bramble.sync.SimplexOutgoingSession.getBatchLength;
 import static org.briarproject.bramble.util.LogUtils.logException;
+import static org.briarproject.bramble.util.LogUtils.now;
 
 /**
  * An outgoing {@link SyncSession} suitable for duplex transports. The session
@@ -77,14 +90,22 @@ class DuplexOutgoingSession implements SyncSession, EventListener {
 	};
 
 	/**
-	 * The batch capacity must be at least {@link Record#RECORD_HEADER_BYTES}
-	 * + {@link SyncConstants#MAX_MESSAGE_LENGTH} to ensure that maximum-size
-	 * messages can be selected for transmission. Larger batches will mean
-	 * fewer round-trips between the DB and the output stream, but each
-	 * round-trip will block the DB for longer.
+	 * The maximum number of batches that can be generated and waiting to be
+	 * written. While one batch is being written to a slow transport the next
+	 * batch can be generated, so the transport doesn't have to wait for the
+	 * DB. Messages in a batch are marked as sent when the batch is generated,
+	 * so any batches that haven't been written when the session ends will be
+	 * retransmitted when they expire.
 	 */
-	private static final int BATCH_CAPACITY =
-			(RECORD_HEADER_BYTES + MAX_MESSAGE_LENGTH) * 2;
+	static final int MAX_PREFETCHED_BATCHES = 2;
+
+	/**
+	 * The minimum number of unseen messages in a group for which a sketch
+	 * will be sent, if the contact supports sketches. A sketch is about as
+	 * long as an offer, so it's only worth sending if the unseen messages
+	 * won't fit in a single offer.
+	 */
+	static final int MIN_MESSAGES_TO_SKETCH = MAX_MESSAGE_IDS;
 
 	private final DatabaseComponent db;
 	private final Executor dbExecutor;
@@ -95,24 +116,34 @@ class DuplexOutgoingSession implements SyncSession, EventListener {
 	private final long maxLatency, maxIdleTime;
 	private final StreamWriter streamWriter;
 	private final SyncRecordWriter recordWriter;
+	private final BatchSizer batchSizer;
 	@Nullable
 	private final Priority priority;
+	private final SessionMetrics metrics;
 	private final BlockingQueue<ThrowingRunnable<IOException>> writerTasks;
 
 	private final AtomicBoolean generateAckQueued = new AtomicBoolean(false);
 	private final AtomicBoolean generateBatchQueued = new AtomicBoolean(false);
+	private final AtomicInteger batchesToWrite = new AtomicInteger(0);
 	private final AtomicBoolean generateOfferQueued = new AtomicBoolean(false);
 	private final AtomicBoolean generateRequestQueued =
 			new AtomicBoolean(false);
+	private final AtomicBoolean generateSketchesQueued =
+			new AtomicBoolean(false);
 	private final AtomicLong nextSendTime = new AtomicLong(Long.MAX_VALUE);
 
+	private final Object lock = new Object();
+	@GuardedBy("lock")
+	private final Set<GroupId> sketchedGroups = new HashSet<>();
+
 	private volatile boolean interrupted = false;
 
 	DuplexOutgoingSession(DatabaseComponent db, Executor dbExecutor,
 			EventBus eventBus, Clock clock, ContactId contactId,
 			TransportId transportId, long maxLatency, int maxIdleTime,
 			StreamWriter streamWriter, SyncRecordWriter recordWriter,
-			@Nullable Priority priority) {
+			BatchSizer batchSizer, @Nullable Priority priority,
+			SessionMetrics metrics) {
 		this.db = db;
 		this.dbExecutor = dbExecutor;
 		this.eventBus = eventBus;
@@ -123,7 +154,9 @@ class DuplexOutgoingSession implements SyncSession, EventListener {
 		this.maxIdleTime = maxIdleTime;
 		this.streamWriter = streamWriter;
 		this.recordWriter = recordWriter;
+		this.batchSizer = batchSizer;
 		this.priority = priority;
+		this.metrics = metrics;
 		writerTasks = new LinkedBlockingQueue<>();
 	}
 
@@ -184,7 +217,8 @@ class DuplexOutgoingSession implements SyncSession, EventListener {
 						LOG.info("Next send time decreased");
 					} else {
 						task.run();
-						dataToFlush = true;
+						// Batches are flushed when they're written
+						dataToFlush = !(task instanceof WriteBatch);
 					}
 				}
 				streamWriter.sendEndOfStream();
@@ -199,22 +233,62 @@ class DuplexOutgoingSession implements SyncSession, EventListener {
 
 	private void generateAck() {
 		if (generateAckQueued.compareAndSet(false, true))
-			dbExecutor.execute(new GenerateAck());
+			queueDbTask(new GenerateAck());
 	}
 
 	private void generateBatch() {
 		if (generateBatchQueued.compareAndSet(false, true))
-			dbExecutor.execute(new GenerateBatch());
+			queueDbTask(new GenerateBatch());
 	}
 
 	private void generateOffer() {
 		if (generateOfferQueued.compareAndSet(false, true))
-			dbExecutor.execute(new GenerateOffer());
+			queueDbTask(new GenerateOffer());
 	}
 
 	private void generateRequest() {
 		if (generateRequestQueued.compareAndSet(false, true))
-			dbExecutor.execute(new GenerateRequest());
+			queueDbTask(new GenerateRequest());
+	}
+
+	private void generateSketches() {
+		// Sketches are only generated once per session
+		if (generateSketchesQueued.compareAndSet(false, true))
+			queueDbTask(new GenerateSketches());
+	}
+
+	private void generateSketch(GroupId g) {
+		if (addSketchedGroup(g)) queueDbTask(new GenerateSketch(g));
+	}
+
+	/**
+	 * Queues a task on the DB executor, recording how long the session waits
+	 * for the task to be started and completed.
+	 */
+	private void queueDbTask(Runnable task) {
+		long queued = now();
+		dbExecutor.execute(() -> {
+			task.run();
+			metrics.onDbWait(now() - queued);
+		});
+	}
+
+	/**
+	 * Records that a sketch has been generated for the given group, returning
+	 * false if a sketch has already been generated for the group during this
+	 * session.
+	 */
+	private boolean addSketchedGroup(GroupId g) {
+		synchronized (lock) {
+			return sketchedGroups.add(g);
+		}
+	}
+
+	private static Sketch createSketch(GroupId g,
+			Collection<MessageId> ids) {
+		InvertibleBloomFilter f = new InvertibleBloomFilter(MAX_CELLS);
+		for (MessageId m : ids) f.add(m);
+		return new Sketch(g, f.toBytes());
 	}
 
 	private void setNextSendTime(long time) {
@@ -256,6 +330,22 @@ class DuplexOutgoingSession implements SyncSession, EventListener {
 		} else if (e instanceof MessageToRequestEvent) {
 			if (((MessageToRequestEvent) e).getContactId().equals(contactId))
 				generateRequest();
+		} else if (e instanceof SyncVersionsReceivedEvent) {
+			SyncVersionsReceivedEvent s = (SyncVersionsReceivedEvent) e;
+			// Only send sketches over the connection that received the
+			// versions
+			if (s.getContactId().equals(contactId) &&
+					s.getTransportId().equals(transportId) &&
+					s.getSupportedVersions().contains(SKETCH_VERSION)) {
+				generateSketches();
+			}
+		} else if (e instanceof SketchReceivedEvent) {
+			SketchReceivedEvent s = (SketchReceivedEvent) e;
+			// Reply with our own sketch so the contact can reconcile too
+			if (s.getContactId().equals(contactId) &&
+					s.getTransportId().equals(transportId)) {
+				generateSketch(s.getGroupId());
+			}
 		} else if (e instanceof LifecycleEvent) {
 			LifecycleEvent l = (LifecycleEvent) e;
 			if (l.getLifecycleState() == STOPPING) interrupt();
@@ -276,8 +366,9 @@ class DuplexOutgoingSession implements SyncSession, EventListener {
 			if (interrupted) return;
 			if (!generateAckQueued.getAndSet(false)) throw new AssertionError();
 			try {
+				int maxMessageIds = batchSizer.getMaxMessageIds();
 				Ack a = db.transactionWithNullableResult(false, txn ->
-						db.generateAck(txn, contactId, MAX_MESSAGE_IDS));
+						db.generateAck(txn, contactId, maxMessageIds));
 				if (LOG.isLoggable(INFO))
 					LOG.info("Generated ack: " + (a != null));
 				if (a != null) writerTasks.add(new WriteAck(a));
@@ -314,19 +405,32 @@ class DuplexOutgoingSession implements SyncSession, EventListener {
 			if (interrupted) return;
 			if (!generateBatchQueued.getAndSet(false))
 				throw new AssertionError();
+			// Don't generate more batches until the writer has caught up. The
+			// writer will queue another batch when it writes one
+			if (batchesToWrite.get() >= MAX_PREFETCHED_BATCHES) return;
 			try {
+				int capacity = batchSizer.getBatchCapacity();
+				long start = now();
 				Collection<Message> b =
 						db.transactionWithNullableResult(false, txn -> {
 							Collection<Message> batch =
 									db.generateRequestedBatch(txn, contactId,
-											BATCH_CAPACITY, maxLatency);
+											capacity, maxLatency);
 							setNextSendTime(db.getNextSendTime(txn, contactId,
 									maxLatency));
 							return batch;
 						});
 				if (LOG.isLoggable(INFO))
 					LOG.info("Generated batch: " + (b != null));
-				if (b != null) writerTasks.add(new WriteBatch(b));
+				if (b != null) {
+					long duration = now() - start;
+					batchSizer.onBatchGenerated(getBatchLength(b), duration);
+					metrics.onBatchGenerated(duration);
+					batchesToWrite.incrementAndGet();
+					writerTasks.add(new WriteBatch(b));
+					// Prefetch the next batch while this one is written
+					generateBatch();
+				}
 			} catch (DbException e) {
 				logException(LOG, WARNING, e);
 				interrupt();
@@ -346,8 +450,13 @@ class DuplexOutgoingSession implements SyncSession, EventListener {
 		@Override
 		public void run() throws IOException {
 			if (interrupted) return;
+			// Flush the batch so the time taken to send it can be measured
+			long start = now();
 			for (Message m : batch) recordWriter.writeMessage(m);
+			recordWriter.flush();
+			batchSizer.onBatchWritten(getBatchLength(batch), now() - start);
 			LOG.info("Sent batch");
+			batchesToWrite.decrementAndGet();
 			generateBatch();
 		}
 	}
@@ -361,9 +470,10 @@ class DuplexOutgoingSession implements SyncSession, EventListener {
 			if (!generateOfferQueued.getAndSet(false))
 				throw new AssertionError();
 			try {
+				int maxMessageIds = batchSizer.getMaxMessageIds();
 				Offer o = db.transactionWithNullableResult(false, txn -> {
 					Offer offer = db.generateOffer(txn, contactId,
-							MAX_MESSAGE_IDS, maxLatency);
+							maxMessageIds, maxLatency);
 					setNextSendTime(db.getNextSendTime(txn, contactId,
 							maxLatency));
 					return offer;
@@ -434,4 +544,79 @@ class DuplexOutgoingSession implements SyncSession, EventListener {
 			generateRequest();
 		}
 	}
+
+	private class GenerateSketches implements Runnable {
+
+		@DatabaseExecutor
+		@Override
+		public void run() {
+			if (interrupted) return;
+			try {
+				List<Sketch> sketches = db.transactionWithResult(true, txn -> {
+					List<Sketch> result = new ArrayList<>();
+					Map<GroupId, Integer> counts =
+							db.getUnseenMessageCounts(txn, contactId);
+					for (Entry<GroupId, Integer> en : counts.entrySet()) {
+						GroupId g = en.getKey();
+						if (en.getValue() < MIN_MESSAGES_TO_SKETCH) continue;
+						if (!addSketchedGroup(g)) continue;
+						result.add(createSketch(g,
+								db.getSharedMessageIds(txn, contactId, g)));
+					}
+					return result;
+				});
+				if (LOG.isLoggable(INFO))
+					LOG.info("Generated " + sketches.size() + " sketches");
+				for (Sketch s : sketches) writerTasks.add(new WriteSketch(s));
+			} catch (DbException e) {
+				logException(LOG, WARNING, e);
+				interrupt();
+			}
+		}
+	}
+
+	private class GenerateSketch implements Runnable {
+
+		private final GroupId groupId;
+
+		private GenerateSketch(GroupId groupId) {
+			this.groupId = groupId;
+		}
+
+		@DatabaseExecutor
+		@Override
+		public void run() {
+			if (interrupted) return;
+			try {
+				Sketch s = db.transactionWithNullableResult(true, txn -> {
+					if (!db.containsGroup(txn, groupId)) return null;
+					return createSketch(groupId,
+							db.getSharedMessageIds(txn, contactId, groupId));
+				});
+				if (LOG.isLoggable(INFO))
+					LOG.info("Generated sketch: " + (s != null));
+				if (s != null) writerTasks.add(new WriteSketch(s));
+			} catch (DbException e) {
+				logException(LOG, WARNING, e);
+				interrupt();
+			}
+		}
+	}
+
+	private class WriteSketch implements ThrowingRunnable<IOException> {
+
+		private final Sketch sketch;
+
+		private WriteSketch(Sketch sketch) {
+			this.sketch = sketch;
+		}
+
+		@IoExecutor
+		@Override
+		public void run() throws IOException {
+			if (interrupted) return;
+			recordWriter.writeSketch(sketch);
+			LOG.info("Sent sketch");
+		}
+	}
 }
@@ -19,6 +19,7 @@ import javax.annotation.concurrent.ThreadSafe;
 
 import static java.util.logging.Level.INFO;
 import static java.util.logging.Logger.getLogger;
+import static org.briarproject.bramble.util.LogUtils.now;
 
 /**
  * A {@link SimplexOutgoingSession} that sends messages eagerly, ie
@@ -37,17 +38,21 @@ class EagerSimplexOutgoingSession extends SimplexOutgoingSession {
 			TransportId transportId,
 			long maxLatency,
 			StreamWriter streamWriter,
-			SyncRecordWriter recordWriter) {
+			SyncRecordWriter recordWriter,
+			BatchSizer batchSizer,
+			SessionMetrics metrics) {
 		super(db, eventBus, contactId, transportId, maxLatency, streamWriter,
-				recordWriter);
+				recordWriter, batchSizer, metrics);
 	}
 
 	@Override
 	void sendMessages() throws DbException, IOException {
 		for (MessageId m : loadUnackedMessageIdsToSend()) {
 			if (isInterrupted()) break;
+			long start = now();
 			Message message = db.transactionWithNullableResult(false, txn ->
 					db.getMessageToSend(txn, contactId, m, maxLatency, true));
+			metrics.onDbWait(now() - start);
 			if (message == null) continue; // No longer shared
 			recordWriter.writeMessage(message);
 			LOG.info("Sent message");
@@ -56,8 +61,10 @@ class EagerSimplexOutgoingSession extends SimplexOutgoingSession {
 
 	private Collection<MessageId> loadUnackedMessageIdsToSend()
 			throws DbException {
+		long start = now();
 		Collection<MessageId> ids = db.transactionWithResult(true, txn ->
 				db.getUnackedMessagesToSend(txn, contactId));
+		metrics.onDbWait(now() - start);
 		if (LOG.isLoggable(INFO)) {
 			LOG.info(ids.size() + " unacked messages to send");
 		}
@@ -5,34 +5,57 @@ import org.briarproject.bramble.api.contact.ContactId;
 import org.briarproject.bramble.api.contact.event.ContactRemovedEvent;
 import org.briarproject.bramble.api.db.DatabaseComponent;
 import org.briarproject.bramble.api.db.DatabaseExecutor;
+import org.briarproject.bramble.api.db.DatabaseReadExecutor;
 import org.briarproject.bramble.api.db.DbException;
+import org.briarproject.bramble.api.db.DbRunnable;
+import org.briarproject.bramble.api.db.Transaction;
 import org.briarproject.bramble.api.event.Event;
 import org.briarproject.bramble.api.event.EventBus;
 import org.briarproject.bramble.api.event.EventListener;
 import org.briarproject.bramble.api.lifecycle.IoExecutor;
 import org.briarproject.bramble.api.lifecycle.event.LifecycleEvent;
+import org.briarproject.bramble.api.plugin.TransportId;
 import org.briarproject.bramble.api.sync.Ack;
+import org.briarproject.bramble.api.sync.GroupId;
 import org.briarproject.bramble.api.sync.Message;
+import org.briarproject.bramble.api.sync.MessageId;
 import org.briarproject.bramble.api.sync.Offer;
 import org.briarproject.bramble.api.sync.Priority;
 import org.briarproject.bramble.api.sync.PriorityHandler;
 import org.briarproject.bramble.api.sync.Request;
+import org.briarproject.bramble.api.sync.Sketch;
+import org.briarproject.bramble.api.sync.SyncConstants;
 import org.briarproject.bramble.api.sync.SyncRecordReader;
 import org.briarproject.bramble.api.sync.SyncSession;
-import org.briarproject.bramble.api.sync.Versions;
+import org.briarproject.bramble.api.sync.event.SketchReceivedEvent;
+import org.briarproject.bramble.api.sync.event.SyncVersionsReceivedEvent;
+import org.briarproject.bramble.api.sync.validation.ValidationManager;
 import org.briarproject.nullsafety.NotNullByDefault;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.ListIterator;
+import java.util.Set;
 import java.util.concurrent.Executor;
 import java.util.logging.Logger;
 
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
 import javax.annotation.concurrent.ThreadSafe;
 
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
+import static java.util.logging.Level.INFO;
 import static java.util.logging.Level.WARNING;
 import static java.util.logging.Logger.getLogger;
 import static org.briarproject.bramble.api.lifecycle.LifecycleManager.LifecycleState.STOPPING;
+import static org.briarproject.bramble.api.sync.SyncConstants.MAX_MESSAGE_IDS;
 import static org.briarproject.bramble.util.LogUtils.logException;
+import static org.briarproject.bramble.util.LogUtils.now;
 
 /**
  * An incoming {@link SyncSession}.
@@ -44,24 +67,51 @@ class IncomingSession implements SyncSession, EventListener {
 	private static final Logger LOG =
 			getLogger(IncomingSession.class.getName());
 
+	/**
+	 * The maximum number of records that will be applied to the database in
+	 * a single transaction.
+	 */
+	static final int MAX_RECORDS_PER_TRANSACTION = 100;
+
+	/**
+	 * The time after which no more records will be added to a transaction,
+	 * in milliseconds.
+	 */
+	private static final long MAX_TRANSACTION_DURATION = 500;
+
 	private final DatabaseComponent db;
-	private final Executor dbExecutor;
+	private final Executor dbExecutor, dbReadExecutor;
 	private final EventBus eventBus;
 	private final ContactId contactId;
+	private final TransportId transportId;
 	private final SyncRecordReader recordReader;
 	private final PriorityHandler priorityHandler;
+	private final ValidationManager validationManager;
+	private final SessionMetrics metrics;
+
+	private final Object lock = new Object();
+	@GuardedBy("lock")
+	private final LinkedList<QueuedRecord> queue = new LinkedList<>();
+	@GuardedBy("lock")
+	private boolean drainScheduled = false;
 
 	private volatile boolean interrupted = false;
 
 	IncomingSession(DatabaseComponent db, Executor dbExecutor,
-			EventBus eventBus, ContactId contactId,
-			SyncRecordReader recordReader, PriorityHandler priorityHandler) {
+			Executor dbReadExecutor, EventBus eventBus, ContactId contactId,
+			TransportId transportId, SyncRecordReader recordReader,
+			PriorityHandler priorityHandler,
+			ValidationManager validationManager, SessionMetrics metrics) {
 		this.db = db;
 		this.dbExecutor = dbExecutor;
+		this.dbReadExecutor = dbReadExecutor;
 		this.eventBus = eventBus;
 		this.contactId = contactId;
+		this.transportId = transportId;
 		this.recordReader = recordReader;
 		this.priorityHandler = priorityHandler;
+		this.validationManager = validationManager;
+		this.metrics = metrics;
 	}
 
 	@IoExecutor
@@ -77,22 +127,33 @@ class IncomingSession implements SyncSession, EventListener {
 				}
 				if (recordReader.hasAck()) {
 					Ack a = recordReader.readAck();
-					dbExecutor.execute(new ReceiveAck(a));
+					enqueue(txn -> db.receiveAck(txn, contactId, a));
 				} else if (recordReader.hasMessage()) {
 					Message m = recordReader.readMessage();
-					dbExecutor.execute(new ReceiveMessage(m));
+					// Hold the message's place while it's validated
+					QueuedRecord r = reserve();
+					dbReadExecutor.execute(() -> receiveMessage(m, r));
 				} else if (recordReader.hasOffer()) {
 					Offer o = recordReader.readOffer();
-					dbExecutor.execute(new ReceiveOffer(o));
+					enqueue(txn -> db.receiveOffer(txn, contactId, o));
 				} else if (recordReader.hasRequest()) {
 					Request r = recordReader.readRequest();
-					dbExecutor.execute(new ReceiveRequest(r));
+					enqueue(txn -> db.receiveRequest(txn, contactId, r));
 				} else if (recordReader.hasVersions()) {
-					Versions v = recordReader.readVersions();
-					dbExecutor.execute(new ReceiveVersions(v));
+					List<Byte> supported =
+							recordReader.readVersions().getSupportedVersions();
+					enqueue(txn -> receiveVersions(txn, supported));
 				} else if (recordReader.hasPriority()) {
 					Priority p = recordReader.readPriority();
 					priorityHandler.handle(p);
+				} else if (recordReader.hasSketch()) {
+					Sketch s = recordReader.readSketch();
+					InvertibleBloomFilter f =
+							InvertibleBloomFilter.fromBytes(s.getCells());
+					GroupId g = s.getGroupId();
+					// Hold the sketch's place while it's reconciled
+					QueuedRecord r = reserve();
+					dbReadExecutor.execute(() -> receiveSketch(g, f, r));
 				} else {
 					// unknown records are ignored in RecordReader#eof()
 					throw new FormatException();
@@ -120,83 +181,253 @@ class IncomingSession implements SyncSession, EventListener {
 		}
 	}
 
-	private class ReceiveAck implements Runnable {
-
-		private final Ack ack;
-
-		private ReceiveAck(Ack ack) {
-			this.ack = ack;
+	/**
+	 * Validates the given message while the session reads more records, then
+	 * stores it along with the outcome of validation. If we already have the
+	 * message, it's stored without being validated again. Most new messages
+	 * can be ruled out without querying the database, so checking for
+	 * duplicates is cheap. The check runs on the read lane, so it doesn't
+	 * wait behind the writes it's meant to avoid.
+	 * <p>
+	 * The message is stored in the given place in the queue, so records read
+	 * after the message are applied after it.
+	 */
+	@DatabaseReadExecutor
+	private void receiveMessage(Message m, QueuedRecord place) {
+		try {
+			boolean duplicate = db.transactionWithResult(true,
+					txn -> db.containsMessage(txn, m.getId()));
+			if (duplicate) {
+				fill(place, singletonList(
+						txn -> db.receiveMessage(txn, contactId, m)));
+			} else {
+				validationManager.prevalidateMessage(contactId, m,
+						task -> fill(place, singletonList(task)));
+			}
+		} catch (DbException e) {
+			logException(LOG, WARNING, e);
+			fill(place, emptyList());
+			interrupt();
 		}
+	}
 
-		@DatabaseExecutor
-		@Override
-		public void run() {
-			try {
-				db.transaction(false, txn ->
-						db.receiveAck(txn, contactId, ack));
-			} catch (DbException e) {
-				logException(LOG, WARNING, e);
-				interrupt();
+	/**
+	 * Stores the sync protocol versions supported by the contact, and lets
+	 * the outgoing session for this connection know which versions it can
+	 * use.
+	 */
+	@DatabaseExecutor
+	private void receiveVersions(Transaction txn, List<Byte> supported)
+			throws DbException {
+		db.setSyncVersions(txn, contactId, supported);
+		txn.attach(new SyncVersionsReceivedEvent(contactId, transportId,
+				supported));
+	}
+
+	/**
+	 * Compares a sketch received from the contact with the messages we share
+	 * with the contact in the same group. If the difference can be recovered,
+	 * the messages we both have are treated as acked, so we won't offer them,
+	 * and the messages only the contact has are treated as offered, so we'll
+	 * request them. Otherwise the messages will be offered and requested as
+	 * usual.
+	 * <p>
+	 * Our messages are loaded in a read-only transaction. The acks and offers
+	 * are queued in the given place as records of at most
+	 * {@link SyncConstants#MAX_MESSAGE_IDS} IDs each, so a large group
+	 * doesn't hold up other writers.
+	 */
+	@DatabaseReadExecutor
+	private void receiveSketch(GroupId g, InvertibleBloomFilter theirs,
+			QueuedRecord place) {
+		List<DbRunnable<DbException>> tasks = new ArrayList<>();
+		try {
+			Collection<MessageId> ours = db.transactionWithNullableResult(
+					true, txn -> loadSharedMessageIds(txn, g));
+			if (ours == null) return;
+			for (MessageId m : ours) theirs.remove(m);
+			List<MessageId> onlyTheirs = new ArrayList<>();
+			Set<MessageId> onlyOurs = new HashSet<>();
+			if (theirs.decode(onlyTheirs, onlyOurs)) {
+				List<MessageId> common = new ArrayList<>(ours.size());
+				for (MessageId m : ours) {
+					if (!onlyOurs.contains(m)) common.add(m);
+				}
+				for (List<MessageId> ids : split(common)) {
+					Ack a = new Ack(ids);
+					tasks.add(txn -> db.receiveAck(txn, contactId, a));
+				}
+				for (List<MessageId> ids : split(onlyTheirs)) {
+					Offer o = new Offer(ids);
+					tasks.add(txn -> db.receiveOffer(txn, contactId, o));
+				}
+				if (LOG.isLoggable(INFO)) {
+					LOG.info("Reconciled sketch: " + common.size()
+							+ " common, " + onlyOurs.size() + " ours, "
+							+ onlyTheirs.size() + " theirs");
+				}
+			} else {
+				LOG.info("Could not reconcile sketch");
 			}
+			// Let the outgoing session send our own sketch for the group
+			tasks.add(txn -> txn.attach(
+					new SketchReceivedEvent(contactId, transportId, g)));
+		} catch (DbException e) {
+			logException(LOG, WARNING, e);
+			interrupt();
+		} finally {
+			fill(place, tasks);
 		}
 	}
 
-	private class ReceiveMessage implements Runnable {
+	@Nullable
+	@DatabaseReadExecutor
+	private Collection<MessageId> loadSharedMessageIds(Transaction txn,
+			GroupId g) throws DbException {
+		if (!db.containsGroup(txn, g)) return null;
+		return db.getSharedMessageIds(txn, contactId, g);
+	}
 
-		private final Message message;
+	private static List<List<MessageId>> split(List<MessageId> ids) {
+		List<List<MessageId>> lists = new ArrayList<>();
+		for (int start = 0; start < ids.size(); start += MAX_MESSAGE_IDS) {
+			int end = Math.min(start + MAX_MESSAGE_IDS, ids.size());
+			lists.add(ids.subList(start, end));
+		}
+		return lists;
+	}
 
-		private ReceiveMessage(Message message) {
-			this.message = message;
+	/**
+	 * Adds a task to the queue of records waiting to be applied to the
+	 * database, and schedules a drain task if one is needed.
+	 * This method may be called on any thread.
+	 */
+	private void enqueue(DbRunnable<DbException> task) {
+		synchronized (lock) {
+			queue.add(new QueuedRecord(task));
+			if (!startDrain()) return;
 		}
+		scheduleDrain();
+	}
 
-		@DatabaseExecutor
-		@Override
-		public void run() {
-			try {
-				db.transaction(false, txn ->
-						db.receiveMessage(txn, contactId, message));
-			} catch (DbException e) {
-				logException(LOG, WARNING, e);
-				interrupt();
-			}
+	/**
+	 * Adds a placeholder to the queue of records waiting to be applied to
+	 * the database. Records queued after the placeholder won't be applied
+	 * until the placeholder has been
+	 * {@link #fill(QueuedRecord, List) filled}.
+	 */
+	private QueuedRecord reserve() {
+		QueuedRecord place = new QueuedRecord(null);
+		synchronized (lock) {
+			queue.add(place);
 		}
+		return place;
 	}
 
-	private class ReceiveOffer implements Runnable {
+	/**
+	 * Replaces a placeholder with the given tasks, which may be empty, and
+	 * schedules a drain task if one is needed. This method may be called on
+	 * any thread.
+	 */
+	private void fill(QueuedRecord place,
+			List<DbRunnable<DbException>> tasks) {
+		synchronized (lock) {
+			ListIterator<QueuedRecord> it = queue.listIterator();
+			while (it.hasNext()) {
+				if (it.next() == place) {
+					it.remove();
+					for (DbRunnable<DbException> t : tasks) {
+						it.add(new QueuedRecord(t));
+					}
+					break;
+				}
+			}
+			if (!startDrain()) return;
+		}
+		scheduleDrain();
+	}
 
-		private final Offer offer;
+	/**
+	 * Returns true, and marks a drain task as scheduled, if the record at
+	 * the head of the queue is ready to be applied and a drain task isn't
+	 * already scheduled.
+	 */
+	@GuardedBy("lock")
+	private boolean startDrain() {
+		if (drainScheduled) return false;
+		QueuedRecord head = queue.peek();
+		if (head == null || head.task == null) return false;
+		drainScheduled = true;
+		return true;
+	}
 
-		private ReceiveOffer(Offer offer) {
-			this.offer = offer;
-		}
+	private void scheduleDrain() {
+		long queued = now();
+		dbExecutor.execute(() -> drainQueue(queued));
+	}
 
-		@DatabaseExecutor
-		@Override
-		public void run() {
+	/**
+	 * Applies queued records to the database in a single transaction, up to
+	 * {@link #MAX_RECORDS_PER_TRANSACTION} records or
+	 * {@link #MAX_TRANSACTION_DURATION} milliseconds, whichever comes first.
+	 * Records are applied in the order they were read, so the transaction's
+	 * commit actions and events are broadcast in that order too. Draining
+	 * stops at a placeholder that hasn't been filled. If the transaction
+	 * fails, the records are applied again in separate transactions, so a
+	 * bad record doesn't cause the others to be lost.
+	 * <p>
+	 * The time from the drain task being scheduled to the transaction
+	 * completing is recorded as time spent waiting for the database.
+	 */
+	@DatabaseExecutor
+	private void drainQueue(long queued) {
+		try {
+			List<DbRunnable<DbException>> batch = new ArrayList<>();
 			try {
-				db.transaction(false, txn ->
-						db.receiveOffer(txn, contactId, offer));
+				db.transaction(false, txn -> {
+					long start = now();
+					while (batch.size() < MAX_RECORDS_PER_TRANSACTION) {
+						DbRunnable<DbException> task = null;
+						synchronized (lock) {
+							QueuedRecord head = queue.peek();
+							if (head != null && head.task != null) {
+								queue.poll();
+								task = head.task;
+							}
+						}
+						if (task == null) break;
+						batch.add(task);
+						task.run(txn);
+						if (now() - start >= MAX_TRANSACTION_DURATION) break;
+					}
+				});
 			} catch (DbException e) {
 				logException(LOG, WARNING, e);
-				interrupt();
+				applySeparately(batch);
 			}
+			metrics.onDbWait(now() - queued);
+		} finally {
+			boolean ready;
+			synchronized (lock) {
+				drainScheduled = false;
+				ready = startDrain();
+			}
+			// More records are ready or the budget ran out - yield to other
+			// tasks
+			if (ready) scheduleDrain();
 		}
 	}
 
-	private class ReceiveRequest implements Runnable {
-
-		private final Request request;
-
-		private ReceiveRequest(Request request) {
-			this.request = request;
-		}
-
-		@DatabaseExecutor
-		@Override
-		public void run() {
+	/**
+	 * Applies each of the given records to the database in its own
+	 * transaction. If a record can't be applied, the session is interrupted,
+	 * but the other records are still applied.
+	 */
+	@DatabaseExecutor
+	private void applySeparately(List<DbRunnable<DbException>> batch) {
+		for (DbRunnable<DbException> task : batch) {
 			try {
-				db.transaction(false, txn ->
-						db.receiveRequest(txn, contactId, request));
+				db.transaction(false, task);
 			} catch (DbException e) {
 				logException(LOG, WARNING, e);
 				interrupt();
@@ -204,25 +435,18 @@ class IncomingSession implements SyncSession, EventListener {
 		}
 	}
 
-	private class ReceiveVersions implements Runnable {
-
-		private final Versions versions;
+	/**
+	 * A record waiting to be applied to the database. A record without a
+	 * task is a placeholder for a message that's still being validated or
+	 * a sketch that's still being reconciled.
+	 */
+	private static class QueuedRecord {
 
-		private ReceiveVersions(Versions versions) {
-			this.versions = versions;
-		}
+		@Nullable
+		private final DbRunnable<DbException> task;
 
-		@DatabaseExecutor
-		@Override
-		public void run() {
-			try {
-				List<Byte> supported = versions.getSupportedVersions();
-				db.transaction(false,
-						txn -> db.setSyncVersions(txn, contactId, supported));
-			} catch (DbException e) {
-				logException(LOG, WARNING, e);
-				interrupt();
-			}
+		private QueuedRecord(@Nullable DbRunnable<DbException> task) {
+			this.task = task;
 		}
 	}
 }
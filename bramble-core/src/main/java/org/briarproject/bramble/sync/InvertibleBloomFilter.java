@@ -0,0 +1,218 @@
+package org.briarproject.bramble.sync;
+
+import org.briarproject.bramble.api.FormatException;
+import org.briarproject.bramble.api.UniqueId;
+import org.briarproject.bramble.api.sync.MessageId;
+import org.briarproject.nullsafety.NotNullByDefault;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+
+import javax.annotation.concurrent.NotThreadSafe;
+
+import static org.briarproject.bramble.api.record.Record.MAX_RECORD_PAYLOAD_BYTES;
+import static org.briarproject.bramble.util.ByteUtils.INT_32_BYTES;
+import static org.briarproject.bramble.util.ByteUtils.INT_64_BYTES;
+import static org.briarproject.bramble.util.ByteUtils.readUint32;
+import static org.briarproject.bramble.util.ByteUtils.readUint64;
+import static org.briarproject.bramble.util.ByteUtils.writeUint32;
+import static org.briarproject.bramble.util.ByteUtils.writeUint64;
+
+/**
+ * An invertible Bloom filter of message IDs, used for finding the difference
+ * between two peers' sets of messages.
+ * <p>
+ * The table is divided into {@link #HASHES} equal partitions, and each ID is
+ * added to one cell in each partition. A cell holds the number of IDs added
+ * to it, the XOR of the IDs and the XOR of their checksums. When one peer's
+ * IDs are removed from the other peer's filter, the IDs they have in common
+ * cancel out. If the remaining difference is small compared with the number
+ * of cells, it can be recovered by repeatedly taking an ID from a cell that
+ * holds a single ID and removing the ID from its other cells.
+ * <p>
+ * The cells are chosen using the bytes of the IDs, which are hashes, so both
+ * peers build compatible filters without sharing a key.
+ */
+@NotThreadSafe
+@NotNullByDefault
+class InvertibleBloomFilter {
+
+	/**
+	 * The number of cells each ID is added to.
+	 */
+	static final int HASHES = 3;
+
+	/**
+	 * The length of an encoded cell in bytes: a count, an ID and a checksum.
+	 */
+	static final int CELL_LENGTH =
+			INT_32_BYTES + UniqueId.LENGTH + INT_64_BYTES;
+
+	/**
+	 * The maximum number of cells that fit in a sketch record along with the
+	 * group ID.
+	 */
+	static final int MAX_CELLS = (MAX_RECORD_PAYLOAD_BYTES - UniqueId.LENGTH)
+			/ CELL_LENGTH / HASHES * HASHES;
+
+	private final int cells, partitionSize;
+	private final int[] counts;
+	private final byte[] idSums;
+	private final long[] checksumSums;
+
+	InvertibleBloomFilter(int cells) {
+		if (cells < HASHES || cells % HASHES != 0)
+			throw new IllegalArgumentException();
+		this.cells = cells;
+		partitionSize = cells / HASHES;
+		counts = new int[cells];
+		idSums = new byte[cells * UniqueId.LENGTH];
+		checksumSums = new long[cells];
+	}
+
+	/**
+	 * Decodes a filter that was encoded with {@link #toBytes()}.
+	 */
+	static InvertibleBloomFilter fromBytes(byte[] b) throws FormatException {
+		if (b.length == 0 || b.length % CELL_LENGTH != 0)
+			throw new FormatException();
+		int cells = b.length / CELL_LENGTH;
+		if (cells % HASHES != 0) throw new FormatException();
+		InvertibleBloomFilter f = new InvertibleBloomFilter(cells);
+		for (int i = 0; i < cells; i++) {
+			int off = i * CELL_LENGTH;
+			f.counts[i] = (int) readUint32(b, off);
+			off += INT_32_BYTES;
+			System.arraycopy(b, off, f.idSums, i * UniqueId.LENGTH,
+					UniqueId.LENGTH);
+			off += UniqueId.LENGTH;
+			f.checksumSums[i] = readUint64(b, off);
+			if (f.checksumSums[i] < 0) throw new FormatException();
+		}
+		return f;
+	}
+
+	/**
+	 * Encodes the filter as a byte array of {@link #CELL_LENGTH} bytes per
+	 * cell.
+	 */
+	byte[] toBytes() {
+		byte[] b = new byte[cells * CELL_LENGTH];
+		for (int i = 0; i < cells; i++) {
+			int off = i * CELL_LENGTH;
+			writeUint32(counts[i] & 0xFFFFFFFFL, b, off);
+			off += INT_32_BYTES;
+			System.arraycopy(idSums, i * UniqueId.LENGTH, b, off,
+					UniqueId.LENGTH);
+			off += UniqueId.LENGTH;
+			writeUint64(checksumSums[i], b, off);
+		}
+		return b;
+	}
+
+	int getCells() {
+		return cells;
+	}
+
+	void add(MessageId m) {
+		update(m.getBytes(), 1);
+	}
+
+	void remove(MessageId m) {
+		update(m.getBytes(), -1);
+	}
+
+	/**
+	 * Recovers the IDs that have been added to the filter more times than
+	 * they've been removed, and the IDs that have been removed more times
+	 * than they've been added. The filter is emptied in the process.
+	 *
+	 * @return True if the difference was recovered completely. If false is
+	 * returned, the collections may contain part of the difference and
+	 * should be discarded.
+	 */
+	boolean decode(Collection<MessageId> added,
+			Collection<MessageId> removed) {
+		Deque<Integer> pure = new ArrayDeque<>();
+		for (int i = 0; i < cells; i++) if (isPure(i)) pure.add(i);
+		int recovered = 0;
+		while (!pure.isEmpty()) {
+			int cell = pure.poll();
+			// The cell may have changed since it was queued
+			if (!isPure(cell)) continue;
+			// A valid filter can't yield more IDs than it has cells
+			if (++recovered > cells) return false;
+			byte[] id = new byte[UniqueId.LENGTH];
+			System.arraycopy(idSums, cell * UniqueId.LENGTH, id, 0,
+					UniqueId.LENGTH);
+			int count = counts[cell];
+			if (count == 1) added.add(new MessageId(id));
+			else removed.add(new MessageId(id));
+			update(id, -count);
+			for (int i = 0; i < HASHES; i++) {
+				int c = getCell(id, 0, i);
+				if (isPure(c)) pure.add(c);
+			}
+		}
+		// The difference was recovered if all the cells are now empty
+		for (int i = 0; i < cells; i++) {
+			if (counts[i] != 0 || checksumSums[i] != 0) return false;
+		}
+		for (byte b : idSums) if (b != 0) return false;
+		return true;
+	}
+
+	private void update(byte[] id, int delta) {
+		long checksum = getChecksum(id, 0);
+		for (int i = 0; i < HASHES; i++) {
+			int cell = getCell(id, 0, i);
+			counts[cell] += delta;
+			int sumOff = cell * UniqueId.LENGTH;
+			for (int j = 0; j < UniqueId.LENGTH; j++)
+				idSums[sumOff + j] ^= id[j];
+			checksumSums[cell] ^= checksum;
+		}
+	}
+
+	/**
+	 * Returns true if the given cell appears to hold a single ID: the count
+	 * is one or minus one, the checksum matches the ID, and the cell is one
+	 * of the ID's cells.
+	 */
+	private boolean isPure(int cell) {
+		int count = counts[cell];
+		if (count != 1 && count != -1) return false;
+		int off = cell * UniqueId.LENGTH;
+		if (getChecksum(idSums, off) != checksumSums[cell]) return false;
+		for (int i = 0; i < HASHES; i++) {
+			if (getCell(idSums, off, i) == cell) return true;
+		}
+		return false;
+	}
+
+	// The i'th cell is chosen by the i'th 64 bits of the ID
+	private int getCell(byte[] id, int off, int i) {
+		long word = readUint64(id, off + i * INT_64_BYTES) & Long.MAX_VALUE;
+		return i * partitionSize + (int) (word % partitionSize);
+	}
+
+	// The checksum must not be a linear function of the ID, otherwise the
+	// XOR of several IDs would match the XOR of their checksums
+	private static long getChecksum(byte[] id, int off) {
+		long h = 0;
+		for (int i = 0; i < UniqueId.LENGTH; i += INT_64_BYTES)
+			h = mix(h + readUint64(id, off + i));
+		return h & Long.MAX_VALUE;
+	}
+
+	// The finalisation step of MurmurHash3
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
@@ -28,6 +28,7 @@ import static java.util.logging.Logger.getLogger;
 import static org.briarproject.bramble.api.record.Record.RECORD_HEADER_BYTES;
 import static org.briarproject.bramble.api.sync.SyncConstants.MAX_MESSAGE_IDS;
 import static org.briarproject.bramble.api.sync.SyncConstants.MESSAGE_HEADER_LENGTH;
+import static org.briarproject.bramble.util.LogUtils.now;
 
 /**
  * A {@link SimplexOutgoingSession} for sending and acking messages via a
@@ -53,10 +54,12 @@ class MailboxOutgoingSession extends SimplexOutgoingSession {
 			long maxLatency,
 			StreamWriter streamWriter,
 			SyncRecordWriter recordWriter,
+			BatchSizer batchSizer,
+			SessionMetrics metrics,
 			OutgoingSessionRecord sessionRecord,
 			long capacity) {
 		super(db, eventBus, contactId, transportId, maxLatency, streamWriter,
-				recordWriter);
+				recordWriter, batchSizer, metrics);
 		this.sessionRecord = sessionRecord;
 		this.initialCapacity = capacity;
 	}
@@ -83,8 +86,10 @@ class MailboxOutgoingSession extends SimplexOutgoingSession {
 	}
 
 	private List<MessageId> loadMessageIdsToAck() throws DbException {
+		long start = now();
 		Collection<MessageId> ids = db.transactionWithResult(true, txn ->
 				db.getMessagesToAck(txn, contactId));
+		metrics.onDbWait(now() - start);
 		if (LOG.isLoggable(INFO)) {
 			LOG.info(ids.size() + " messages to ack");
 		}
@@ -100,8 +105,10 @@ class MailboxOutgoingSession extends SimplexOutgoingSession {
 		for (MessageId m : loadMessageIdsToSend()) {
 			if (isInterrupted()) break;
 			// Defer marking the message as sent
+			long start = now();
 			Message message = db.transactionWithNullableResult(true, txn ->
 					db.getMessageToSend(txn, contactId, m, maxLatency, false));
+			metrics.onDbWait(now() - start);
 			if (message == null) continue; // No longer shared
 			recordWriter.writeMessage(message);
 			sessionRecord.onMessageSent(m);
@@ -114,8 +121,10 @@ class MailboxOutgoingSession extends SimplexOutgoingSession {
 		if (capacity < RECORD_HEADER_BYTES + MESSAGE_HEADER_LENGTH) {
 			return emptyList(); // Out of capacity
 		}
+		long start = now();
 		Collection<MessageId> ids = db.transactionWithResult(true, txn ->
 				db.getMessagesToSend(txn, contactId, capacity, maxLatency));
+		metrics.onDbWait(now() - start);
 		if (LOG.isLoggable(INFO)) {
 			LOG.info(ids.size() + " messages to send");
 		}
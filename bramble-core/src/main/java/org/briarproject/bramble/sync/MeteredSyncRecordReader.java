@@ -0,0 +1,148 @@
+package org.briarproject.bramble.sync;
+
+import org.briarproject.bramble.api.UniqueId;
+import org.briarproject.bramble.api.sync.Ack;
+import org.briarproject.bramble.api.sync.Message;
+import org.briarproject.bramble.api.sync.Offer;
+import org.briarproject.bramble.api.sync.Priority;
+import org.briarproject.bramble.api.sync.Request;
+import org.briarproject.bramble.api.sync.Sketch;
+import org.briarproject.bramble.api.sync.SyncRecordReader;
+import org.briarproject.bramble.api.sync.Versions;
+import org.briarproject.nullsafety.NotNullByDefault;
+
+import java.io.IOException;
+
+import javax.annotation.concurrent.NotThreadSafe;
+
+import static org.briarproject.bramble.api.record.Record.RECORD_HEADER_BYTES;
+import static org.briarproject.bramble.api.sync.RecordTypes.ACK;
+import static org.briarproject.bramble.api.sync.RecordTypes.MESSAGE;
+import static org.briarproject.bramble.api.sync.RecordTypes.OFFER;
+import static org.briarproject.bramble.api.sync.RecordTypes.PRIORITY;
+import static org.briarproject.bramble.api.sync.RecordTypes.REQUEST;
+import static org.briarproject.bramble.api.sync.RecordTypes.SKETCH;
+import static org.briarproject.bramble.api.sync.RecordTypes.VERSIONS;
+import static org.briarproject.bramble.util.LogUtils.now;
+
+/**
+ * A {@link SyncRecordReader} that reports the records it reads to a
+ * {@link SessionMetrics}. Record lengths are calculated from the parsed
+ * records, which have the same lengths as the records that were read.
+ */
+@NotThreadSafe
+@NotNullByDefault
+class MeteredSyncRecordReader implements SyncRecordReader {
+
+	private final SyncRecordReader reader;
+	private final SessionMetrics metrics;
+	private final long created;
+
+	private boolean receivedData = false;
+
+	MeteredSyncRecordReader(SyncRecordReader reader, SessionMetrics metrics) {
+		this.reader = reader;
+		this.metrics = metrics;
+		created = now();
+	}
+
+	@Override
+	public boolean eof() throws IOException {
+		return reader.eof();
+	}
+
+	@Override
+	public boolean hasAck() throws IOException {
+		return reader.hasAck();
+	}
+
+	@Override
+	public Ack readAck() throws IOException {
+		Ack a = reader.readAck();
+		onRecordReceived(ACK, a.getMessageIds().size() * UniqueId.LENGTH);
+		metrics.onAckReceived(a.getMessageIds());
+		return a;
+	}
+
+	@Override
+	public boolean hasMessage() throws IOException {
+		return reader.hasMessage();
+	}
+
+	@Override
+	public Message readMessage() throws IOException {
+		Message m = reader.readMessage();
+		onRecordReceived(MESSAGE, m.getRawLength());
+		return m;
+	}
+
+	@Override
+	public boolean hasOffer() throws IOException {
+		return reader.hasOffer();
+	}
+
+	@Override
+	public Offer readOffer() throws IOException {
+		Offer o = reader.readOffer();
+		onRecordReceived(OFFER, o.getMessageIds().size() * UniqueId.LENGTH);
+		return o;
+	}
+
+	@Override
+	public boolean hasRequest() throws IOException {
+		return reader.hasRequest();
+	}
+
+	@Override
+	public Request readRequest() throws IOException {
+		Request r = reader.readRequest();
+		onRecordReceived(REQUEST,
+				r.getMessageIds().size() * UniqueId.LENGTH);
+		return r;
+	}
+
+	@Override
+	public boolean hasVersions() throws IOException {
+		return reader.hasVersions();
+	}
+
+	@Override
+	public Versions readVersions() throws IOException {
+		Versions v = reader.readVersions();
+		onRecordReceived(VERSIONS, v.getSupportedVersions().size());
+		return v;
+	}
+
+	@Override
+	public boolean hasPriority() throws IOException {
+		return reader.hasPriority();
+	}
+
+	@Override
+	public Priority readPriority() throws IOException {
+		Priority p = reader.readPriority();
+		onRecordReceived(PRIORITY, p.getNonce().length);
+		return p;
+	}
+
+	@Override
+	public boolean hasSketch() throws IOException {
+		return reader.hasSketch();
+	}
+
+	@Override
+	public Sketch readSketch() throws IOException {
+		Sketch s = reader.readSketch();
+		onRecordReceived(SKETCH, UniqueId.LENGTH + s.getCells().length);
+		return s;
+	}
+
+	private void onRecordReceived(byte recordType, int payloadLength) {
+		metrics.onRecordReceived(recordType,
+				RECORD_HEADER_BYTES + payloadLength);
+		if (!receivedData) {
+			receivedData = true;
+			metrics.onFirstRecordReceived(now() - created);
+		}
+	}
+}
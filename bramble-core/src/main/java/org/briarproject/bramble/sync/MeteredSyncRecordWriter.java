@@ -0,0 +1,120 @@
+package org.briarproject.bramble.sync;
+
+import org.briarproject.bramble.api.sync.Ack;
+import org.briarproject.bramble.api.sync.Message;
+import org.briarproject.bramble.api.sync.Offer;
+import org.briarproject.bramble.api.sync.Priority;
+import org.briarproject.bramble.api.sync.Request;
+import org.briarproject.bramble.api.sync.Sketch;
+import org.briarproject.bramble.api.sync.SyncRecordWriter;
+import org.briarproject.bramble.api.sync.Versions;
+import org.briarproject.nullsafety.NotNullByDefault;
+
+import java.io.IOException;
+
+import javax.annotation.concurrent.NotThreadSafe;
+
+import static org.briarproject.bramble.api.sync.RecordTypes.ACK;
+import static org.briarproject.bramble.api.sync.RecordTypes.MESSAGE;
+import static org.briarproject.bramble.api.sync.RecordTypes.OFFER;
+import static org.briarproject.bramble.api.sync.RecordTypes.PRIORITY;
+import static org.briarproject.bramble.api.sync.RecordTypes.REQUEST;
+import static org.briarproject.bramble.api.sync.RecordTypes.SKETCH;
+import static org.briarproject.bramble.api.sync.RecordTypes.VERSIONS;
+import static org.briarproject.bramble.util.LogUtils.now;
+
+/**
+ * A {@link SyncRecordWriter} that reports the records it writes to a
+ * {@link SessionMetrics}.
+ */
+@NotThreadSafe
+@NotNullByDefault
+class MeteredSyncRecordWriter implements SyncRecordWriter {
+
+	private final SyncRecordWriter writer;
+	private final SessionMetrics metrics;
+	private final long created;
+
+	private boolean sentData = false;
+
+	MeteredSyncRecordWriter(SyncRecordWriter writer, SessionMetrics metrics) {
+		this.writer = writer;
+		this.metrics = metrics;
+		created = now();
+	}
+
+	@Override
+	public void writeAck(Ack a) throws IOException {
+		long before = writer.getBytesWritten();
+		writer.writeAck(a);
+		onRecordSent(ACK, before, true);
+	}
+
+	@Override
+	public void writeMessage(Message m) throws IOException {
+		long before = writer.getBytesWritten();
+		writer.writeMessage(m);
+		onRecordSent(MESSAGE, before, true);
+		metrics.onMessageSent(m.getId());
+	}
+
+	@Override
+	public void writeOffer(Offer o) throws IOException {
+		long before = writer.getBytesWritten();
+		writer.writeOffer(o);
+		onRecordSent(OFFER, before, true);
+	}
+
+	@Override
+	public void writeRequest(Request r) throws IOException {
+		long before = writer.getBytesWritten();
+		writer.writeRequest(r);
+		onRecordSent(REQUEST, before, true);
+	}
+
+	@Override
+	public void writeVersions(Versions v) throws IOException {
+		long before = writer.getBytesWritten();
+		writer.writeVersions(v);
+		onRecordSent(VERSIONS, before, false);
+	}
+
+	@Override
+	public void writePriority(Priority p) throws IOException {
+		long before = writer.getBytesWritten();
+		writer.writePriority(p);
+		onRecordSent(PRIORITY, before, false);
+	}
+
+	@Override
+	public void writeSketch(Sketch s) throws IOException {
+		long before = writer.getBytesWritten();
+		writer.writeSketch(s);
+		onRecordSent(SKETCH, before, true);
+	}
+
+	@Override
+	public void flush() throws IOException {
+		writer.flush();
+	}
+
+	@Override
+	public long getBytesWritten() {
+		return writer.getBytesWritten();
+	}
+
+	/**
+	 * Reports a record that has been written. Versions and priority records
+	 * are written before the session touches the database, so they don't
+	 * count as the first data sent.
+	 */
+	private void onRecordSent(byte recordType, long bytesBefore,
+			boolean data) {
+		metrics.onRecordSent(recordType,
+				writer.getBytesWritten() - bytesBefore);
+		if (data && !sentData) {
+			sentData = true;
+			metrics.onFirstRecordSent(now() - created);
+		}
+	}
+}
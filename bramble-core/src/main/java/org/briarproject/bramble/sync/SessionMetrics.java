@@ -0,0 +1,64 @@
+package org.briarproject.bramble.sync;
+
+import org.briarproject.bramble.api.sync.MessageId;
+import org.briarproject.nullsafety.NotNullByDefault;
+
+import java.util.Collection;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Records metrics for the sync sessions with a contact over a transport.
+ * Times are in milliseconds.
+ */
+@ThreadSafe
+@NotNullByDefault
+interface SessionMetrics {
+
+	/**
+	 * Called when a record has been written, with the length of the record
+	 * in bytes, including the header.
+	 */
+	void onRecordSent(byte recordType, long bytes);
+
+	/**
+	 * Called when a record has been read, with the length of the record in
+	 * bytes, including the header.
+	 */
+	void onRecordReceived(byte recordType, long bytes);
+
+	/**
+	 * Called when an outgoing session writes its first record that needed
+	 * the database, with the time since the session was created.
+	 */
+	void onFirstRecordSent(long delay);
+
+	/**
+	 * Called when an incoming session reads its first record, with the time
+	 * since the session was created.
+	 */
+	void onFirstRecordReceived(long delay);
+
+	/**
+	 * Called when an outgoing session has generated a batch of messages,
+	 * with the time taken to generate the batch.
+	 */
+	void onBatchGenerated(long duration);
+
+	/**
+	 * Called when a session has waited for the database, including any time
+	 * spent waiting for the database executor.
+	 */
+	void onDbWait(long duration);
+
+	/**
+	 * Called when a message has been written, so the round-trip time can be
+	 * measured when the message is acked.
+	 */
+	void onMessageSent(MessageId m);
+
+	/**
+	 * Called when an ack has been read, with the IDs of the acked messages.
+	 */
+	void onAckReceived(Collection<MessageId> acked);
+}
@@ -11,10 +11,8 @@ import org.briarproject.bramble.api.lifecycle.IoExecutor;
 import org.briarproject.bramble.api.lifecycle.event.LifecycleEvent;
 import org.briarproject.bramble.api.plugin.TransportId;
 import org.briarproject.bramble.api.plugin.event.TransportInactiveEvent;
-import org.briarproject.bramble.api.record.Record;
 import org.briarproject.bramble.api.sync.Ack;
 import org.briarproject.bramble.api.sync.Message;
-import org.briarproject.bramble.api.sync.SyncConstants;
 import org.briarproject.bramble.api.sync.SyncRecordWriter;
 import org.briarproject.bramble.api.sync.SyncSession;
 import org.briarproject.bramble.api.sync.Versions;
@@ -34,9 +32,9 @@ import static java.util.logging.Logger.getLogger;
 import static org.briarproject.bramble.api.lifecycle.LifecycleManager.LifecycleState.STOPPING;
 import static org.briarproject.bramble.api.record.Record.RECORD_HEADER_BYTES;
 import static org.briarproject.bramble.api.sync.SyncConstants.MAX_MESSAGE_IDS;
-import static org.briarproject.bramble.api.sync.SyncConstants.MAX_MESSAGE_LENGTH;
 import static org.briarproject.bramble.api.sync.SyncConstants.SUPPORTED_VERSIONS;
 import static org.briarproject.bramble.util.LogUtils.logException;
+import static org.briarproject.bramble.util.LogUtils.now;
 
 /**
  * An outgoing {@link SyncSession} suitable for simplex transports. The session
@@ -50,16 +48,6 @@ class SimplexOutgoingSession implements SyncSession, EventListener {
 	private static final Logger LOG =
 			getLogger(SimplexOutgoingSession.class.getName());
 
-	/**
-	 * The batch capacity must be at least {@link Record#RECORD_HEADER_BYTES}
-	 * + {@link SyncConstants#MAX_MESSAGE_LENGTH} to ensure that maximum-size
-	 * messages can be selected for transmission. Larger batches will mean
-	 * fewer round-trips between the DB and the output stream, but each
-	 * round-trip will block the DB for longer.
-	 */
-	static final int BATCH_CAPACITY =
-			(RECORD_HEADER_BYTES + MAX_MESSAGE_LENGTH) * 2;
-
 	protected final DatabaseComponent db;
 	protected final EventBus eventBus;
 	protected final ContactId contactId;
@@ -67,6 +55,8 @@ class SimplexOutgoingSession implements SyncSession, EventListener {
 	protected final long maxLatency;
 	protected final StreamWriter streamWriter;
 	protected final SyncRecordWriter recordWriter;
+	protected final BatchSizer batchSizer;
+	protected final SessionMetrics metrics;
 
 	private volatile boolean interrupted = false;
 
@@ -76,7 +66,9 @@ class SimplexOutgoingSession implements SyncSession, EventListener {
 			TransportId transportId,
 			long maxLatency,
 			StreamWriter streamWriter,
-			SyncRecordWriter recordWriter) {
+			SyncRecordWriter recordWriter,
+			BatchSizer batchSizer,
+			SessionMetrics metrics) {
 		this.db = db;
 		this.eventBus = eventBus;
 		this.contactId = contactId;
@@ -84,6 +76,8 @@ class SimplexOutgoingSession implements SyncSession, EventListener {
 		this.maxLatency = maxLatency;
 		this.streamWriter = streamWriter;
 		this.recordWriter = recordWriter;
+		this.batchSizer = batchSizer;
+		this.metrics = metrics;
 	}
 
 	@IoExecutor
@@ -136,8 +130,10 @@ class SimplexOutgoingSession implements SyncSession, EventListener {
 	}
 
 	private boolean generateAndSendAck() throws DbException, IOException {
+		long start = now();
 		Ack a = db.transactionWithNullableResult(false, txn ->
 				db.generateAck(txn, contactId, MAX_MESSAGE_IDS));
+		metrics.onDbWait(now() - start);
 		if (LOG.isLoggable(INFO))
 			LOG.info("Generated ack: " + (a != null));
 		if (a == null) return false; // No more acks to send
@@ -151,13 +147,36 @@ class SimplexOutgoingSession implements SyncSession, EventListener {
 	}
 
 	private boolean generateAndSendBatch() throws DbException, IOException {
+		int capacity = batchSizer.getBatchCapacity();
+		long start = now();
 		Collection<Message> b = db.transactionWithNullableResult(false, txn ->
-				db.generateBatch(txn, contactId, BATCH_CAPACITY, maxLatency));
+				db.generateBatch(txn, contactId, capacity, maxLatency));
+		long duration = now() - start;
+		metrics.onDbWait(duration);
 		if (LOG.isLoggable(INFO))
 			LOG.info("Generated batch: " + (b != null));
 		if (b == null) return false; // No more messages to send
+		long bytes = getBatchLength(b);
+		batchSizer.onBatchGenerated(bytes, duration);
+		metrics.onBatchGenerated(duration);
+		// Flush the batch so the time taken to send it can be measured
+		start = now();
 		for (Message m : b) recordWriter.writeMessage(m);
+		recordWriter.flush();
+		batchSizer.onBatchWritten(bytes, now() - start);
 		LOG.info("Sent batch");
 		return true;
 	}
+
+	/**
+	 * Returns the number of bytes needed to write the given batch, including
+	 * record headers.
+	 */
+	static long getBatchLength(Collection<Message> batch) {
+		long length = 0;
+		for (Message m : batch) {
+			length += RECORD_HEADER_BYTES + m.getRawLength();
+		}
+		return length;
+	}
 }
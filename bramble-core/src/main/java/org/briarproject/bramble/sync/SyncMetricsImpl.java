@@ -0,0 +1,273 @@
+package org.briarproject.bramble.sync;
+
+import org.briarproject.bramble.api.contact.ContactId;
+import org.briarproject.bramble.api.contact.event.ContactRemovedEvent;
+import org.briarproject.bramble.api.event.Event;
+import org.briarproject.bramble.api.event.EventListener;
+import org.briarproject.bramble.api.plugin.TransportId;
+import org.briarproject.bramble.api.sync.MessageId;
+import org.briarproject.bramble.api.sync.SyncMetrics;
+import org.briarproject.bramble.api.sync.SyncStats;
+import org.briarproject.nullsafety.NotNullByDefault;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import static org.briarproject.bramble.api.sync.RecordTypes.SKETCH;
+import static org.briarproject.bramble.util.LogUtils.now;
+
+@ThreadSafe
+@NotNullByDefault
+class SyncMetricsImpl implements SyncMetrics, EventListener {
+
+	/**
+	 * The maximum number of sent messages per contact whose send times are
+	 * remembered for measuring ack round-trip times. Messages that are acked
+	 * after being forgotten aren't measured.
+	 */
+	static final int MAX_TIMED_MESSAGES = 1000;
+
+	private static final int RECORD_TYPES = SKETCH + 1;
+
+	private final Object lock = new Object();
+	@GuardedBy("lock")
+	private final Map<ContactId, Map<TransportId, Counters>> counters =
+			new HashMap<>();
+	@GuardedBy("lock")
+	private final Map<ContactId, Map<MessageId, SentMessage>> sent =
+			new HashMap<>();
+
+	/**
+	 * Returns a {@link SessionMetrics} for recording metrics for a sync
+	 * session with the given contact over the given transport. The
+	 * session's counters are looked up once, so recording metrics doesn't
+	 * contend with other sessions for the lock.
+	 */
+	SessionMetrics getSessionMetrics(ContactId c, TransportId t) {
+		synchronized (lock) {
+			return new SessionMetricsImpl(getCounters(c, t),
+					getSentMessages(c));
+		}
+	}
+
+	@Override
+	public SyncStats getStats(ContactId c, TransportId t) {
+		synchronized (lock) {
+			Map<TransportId, Counters> forContact = counters.get(c);
+			Counters x = forContact == null ? null : forContact.get(t);
+			if (x == null) x = new Counters();
+			return x.getStats(c, t);
+		}
+	}
+
+	@Override
+	public Collection<SyncStats> getStats() {
+		synchronized (lock) {
+			List<SyncStats> stats = new ArrayList<>();
+			for (Entry<ContactId, Map<TransportId, Counters>> e :
+					counters.entrySet()) {
+				ContactId c = e.getKey();
+				for (Entry<TransportId, Counters> e1 :
+						e.getValue().entrySet()) {
+					stats.add(e1.getValue().getStats(c, e1.getKey()));
+				}
+			}
+			return stats;
+		}
+	}
+
+	@Override
+	public void eventOccurred(Event e) {
+		if (e instanceof ContactRemovedEvent) {
+			ContactId c = ((ContactRemovedEvent) e).getContactId();
+			Map<MessageId, SentMessage> forContact;
+			synchronized (lock) {
+				counters.remove(c);
+				forContact = sent.remove(c);
+			}
+			// Any sessions that are still running won't time their acks
+			if (forContact != null) {
+				synchronized (forContact) {
+					forContact.clear();
+				}
+			}
+		}
+	}
+
+	@GuardedBy("lock")
+	private Counters getCounters(ContactId c, TransportId t) {
+		Map<TransportId, Counters> forContact = counters.get(c);
+		if (forContact == null) {
+			forContact = new HashMap<>();
+			counters.put(c, forContact);
+		}
+		Counters x = forContact.get(t);
+		if (x == null) {
+			x = new Counters();
+			forContact.put(t, x);
+		}
+		return x;
+	}
+
+	/**
+	 * Returns the sent messages for the given contact. The map is shared by
+	 * all the sessions with the contact, which synchronize on the map.
+	 */
+	@GuardedBy("lock")
+	private Map<MessageId, SentMessage> getSentMessages(ContactId c) {
+		Map<MessageId, SentMessage> forContact = sent.get(c);
+		if (forContact == null) {
+			forContact = new LinkedHashMap<MessageId, SentMessage>() {
+				@Override
+				protected boolean removeEldestEntry(
+						Entry<MessageId, SentMessage> eldest) {
+					return size() > MAX_TIMED_MESSAGES;
+				}
+			};
+			sent.put(c, forContact);
+		}
+		return forContact;
+	}
+
+	private static boolean isKnownRecordType(byte recordType) {
+		return recordType >= 0 && recordType < RECORD_TYPES;
+	}
+
+	@ThreadSafe
+	@NotNullByDefault
+	private static class SessionMetricsImpl implements SessionMetrics {
+
+		private final Counters counters;
+		@GuardedBy("sent")
+		private final Map<MessageId, SentMessage> sent;
+
+		private SessionMetricsImpl(Counters counters,
+				Map<MessageId, SentMessage> sent) {
+			this.counters = counters;
+			this.sent = sent;
+		}
+
+		@Override
+		public void onRecordSent(byte recordType, long bytes) {
+			if (!isKnownRecordType(recordType)) return;
+			counters.recordsSent.incrementAndGet(recordType);
+			counters.bytesSent.addAndGet(recordType, bytes);
+		}
+
+		@Override
+		public void onRecordReceived(byte recordType, long bytes) {
+			if (!isKnownRecordType(recordType)) return;
+			counters.recordsReceived.incrementAndGet(recordType);
+			counters.bytesReceived.addAndGet(recordType, bytes);
+		}
+
+		@Override
+		public void onFirstRecordSent(long delay) {
+			counters.timeToFirstByteSent.set(delay);
+		}
+
+		@Override
+		public void onFirstRecordReceived(long delay) {
+			counters.timeToFirstByteReceived.set(delay);
+		}
+
+		@Override
+		public void onBatchGenerated(long duration) {
+			counters.batchesGenerated.incrementAndGet();
+			counters.batchGenerationTime.addAndGet(duration);
+		}
+
+		@Override
+		public void onDbWait(long duration) {
+			counters.dbWaitTime.addAndGet(duration);
+		}
+
+		@Override
+		public void onMessageSent(MessageId m) {
+			SentMessage s = new SentMessage(counters, now());
+			synchronized (sent) {
+				// If the message is sent again, time the latest copy
+				sent.remove(m);
+				sent.put(m, s);
+			}
+		}
+
+		@Override
+		public void onAckReceived(Collection<MessageId> acked) {
+			long now = now();
+			synchronized (sent) {
+				for (MessageId m : acked) {
+					SentMessage s = sent.remove(m);
+					if (s == null) continue;
+					// Credit the transport the message was sent over
+					s.counters.acksTimed.incrementAndGet();
+					s.counters.ackRoundTripTime.addAndGet(now - s.time);
+				}
+			}
+		}
+	}
+
+	/**
+	 * The counters for a contact and transport. Each counter is updated
+	 * atomically, but a snapshot of the counters isn't taken atomically.
+	 */
+	@ThreadSafe
+	@NotNullByDefault
+	private static class Counters {
+
+		private final AtomicLongArray recordsSent =
+				new AtomicLongArray(RECORD_TYPES);
+		private final AtomicLongArray bytesSent =
+				new AtomicLongArray(RECORD_TYPES);
+		private final AtomicLongArray recordsReceived =
+				new AtomicLongArray(RECORD_TYPES);
+		private final AtomicLongArray bytesReceived =
+				new AtomicLongArray(RECORD_TYPES);
+		private final AtomicLong batchesGenerated = new AtomicLong(0);
+		private final AtomicLong batchGenerationTime = new AtomicLong(0);
+		private final AtomicLong dbWaitTime = new AtomicLong(0);
+		private final AtomicLong timeToFirstByteSent = new AtomicLong(-1);
+		private final AtomicLong timeToFirstByteReceived =
+				new AtomicLong(-1);
+		private final AtomicLong acksTimed = new AtomicLong(0);
+		private final AtomicLong ackRoundTripTime = new AtomicLong(0);
+
+		private SyncStats getStats(ContactId c, TransportId t) {
+			return new SyncStats(c, t, toArray(recordsSent),
+					toArray(bytesSent), toArray(recordsReceived),
+					toArray(bytesReceived), batchesGenerated.get(),
+					batchGenerationTime.get(), dbWaitTime.get(),
+					timeToFirstByteSent.get(), timeToFirstByteReceived.get(),
+					acksTimed.get(), ackRoundTripTime.get());
+		}
+
+		private static long[] toArray(AtomicLongArray a) {
+			long[] copy = new long[a.length()];
+			for (int i = 0; i < copy.length; i++) copy[i] = a.get(i);
+			return copy;
+		}
+	}
+
+	@NotNullByDefault
+	private static class SentMessage {
+
+		// The counters for the transport the message was sent over
+		private final Counters counters;
+		private final long time;
+
+		private SentMessage(Counters counters, long time) {
+			this.counters = counters;
+			this.time = time;
+		}
+	}
+}
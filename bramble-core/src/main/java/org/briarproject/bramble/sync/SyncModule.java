@@ -1,7 +1,9 @@
 package org.briarproject.bramble.sync;
 
+import org.briarproject.bramble.api.event.EventBus;
 import org.briarproject.bramble.api.sync.GroupFactory;
 import org.briarproject.bramble.api.sync.MessageFactory;
+import org.briarproject.bramble.api.sync.SyncMetrics;
 import org.briarproject.bramble.api.sync.SyncRecordReaderFactory;
 import org.briarproject.bramble.api.sync.SyncRecordWriterFactory;
 import org.briarproject.bramble.api.sync.SyncSessionFactory;
@@ -42,4 +44,17 @@ public class SyncModule {
 			SyncSessionFactoryImpl syncSessionFactory) {
 		return syncSessionFactory;
 	}
+
+	@Provides
+	@Singleton
+	SyncMetricsImpl provideSyncMetricsImpl(EventBus eventBus) {
+		SyncMetricsImpl syncMetrics = new SyncMetricsImpl();
+		eventBus.addListener(syncMetrics);
+		return syncMetrics;
+	}
+
+	@Provides
+	SyncMetrics provideSyncMetrics(SyncMetricsImpl syncMetrics) {
+		return syncMetrics;
+	}
 }
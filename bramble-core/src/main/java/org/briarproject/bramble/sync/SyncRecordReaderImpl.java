@@ -6,12 +6,14 @@ import org.briarproject.bramble.api.record.Record;
 import org.briarproject.bramble.api.record.RecordReader;
 import org.briarproject.bramble.api.record.RecordReader.RecordPredicate;
 import org.briarproject.bramble.api.sync.Ack;
+import org.briarproject.bramble.api.sync.GroupId;
 import org.briarproject.bramble.api.sync.Message;
 import org.briarproject.bramble.api.sync.MessageFactory;
 import org.briarproject.bramble.api.sync.MessageId;
 import org.briarproject.bramble.api.sync.Offer;
 import org.briarproject.bramble.api.sync.Priority;
 import org.briarproject.bramble.api.sync.Request;
+import org.briarproject.bramble.api.sync.Sketch;
 import org.briarproject.bramble.api.sync.SyncRecordReader;
 import org.briarproject.bramble.api.sync.Versions;
 import org.briarproject.bramble.util.ByteUtils;
@@ -29,6 +31,7 @@ import static org.briarproject.bramble.api.sync.RecordTypes.MESSAGE;
 import static org.briarproject.bramble.api.sync.RecordTypes.OFFER;
 import static org.briarproject.bramble.api.sync.RecordTypes.PRIORITY;
 import static org.briarproject.bramble.api.sync.RecordTypes.REQUEST;
+import static org.briarproject.bramble.api.sync.RecordTypes.SKETCH;
 import static org.briarproject.bramble.api.sync.RecordTypes.VERSIONS;
 import static org.briarproject.bramble.api.sync.SyncConstants.MAX_MESSAGE_LENGTH;
 import static org.briarproject.bramble.api.sync.SyncConstants.MAX_SUPPORTED_VERSIONS;
@@ -52,7 +55,8 @@ class SyncRecordReaderImpl implements SyncRecordReader {
 
 	private static boolean isKnownRecordType(byte type) {
 		return type == ACK || type == MESSAGE || type == OFFER ||
-				type == REQUEST || type == VERSIONS || type == PRIORITY;
+				type == REQUEST || type == VERSIONS || type == PRIORITY ||
+				type == SKETCH;
 	}
 
 	private final MessageFactory messageFactory;
@@ -199,4 +203,25 @@ class SyncRecordReaderImpl implements SyncRecordReader {
 		nextRecord = null;
 		return payload;
 	}
+
+	@Override
+	public boolean hasSketch() throws IOException {
+		return !eof() && getNextRecordType() == SKETCH;
+	}
+
+	@Override
+	public Sketch readSketch() throws IOException {
+		if (!hasSketch()) throw new FormatException();
+		if (nextRecord == null) throw new AssertionError();
+		byte[] payload = nextRecord.getPayload();
+		if (payload.length <= UniqueId.LENGTH) throw new FormatException();
+		byte[] groupId = new byte[UniqueId.LENGTH];
+		System.arraycopy(payload, 0, groupId, 0, UniqueId.LENGTH);
+		byte[] cells = new byte[payload.length - UniqueId.LENGTH];
+		System.arraycopy(payload, UniqueId.LENGTH, cells, 0, cells.length);
+		// Check that the cells can be decoded
+		InvertibleBloomFilter.fromBytes(cells);
+		nextRecord = null;
+		return new Sketch(new GroupId(groupId), cells);
+	}
 }
@@ -9,6 +9,7 @@ import org.briarproject.bramble.api.sync.MessageId;
 import org.briarproject.bramble.api.sync.Offer;
 import org.briarproject.bramble.api.sync.Priority;
 import org.briarproject.bramble.api.sync.Request;
+import org.briarproject.bramble.api.sync.Sketch;
 import org.briarproject.bramble.api.sync.SyncRecordWriter;
 import org.briarproject.bramble.api.sync.Versions;
 import org.briarproject.nullsafety.NotNullByDefault;
@@ -23,6 +24,7 @@ import static org.briarproject.bramble.api.sync.RecordTypes.MESSAGE;
 import static org.briarproject.bramble.api.sync.RecordTypes.OFFER;
 import static org.briarproject.bramble.api.sync.RecordTypes.PRIORITY;
 import static org.briarproject.bramble.api.sync.RecordTypes.REQUEST;
+import static org.briarproject.bramble.api.sync.RecordTypes.SKETCH;
 import static org.briarproject.bramble.api.sync.RecordTypes.VERSIONS;
 import static org.briarproject.bramble.api.sync.SyncConstants.PROTOCOL_VERSION;
 
@@ -81,6 +83,13 @@ class SyncRecordWriterImpl implements SyncRecordWriter {
 				new Record(PROTOCOL_VERSION, PRIORITY, p.getNonce()));
 	}
 
+	@Override
+	public void writeSketch(Sketch s) throws IOException {
+		payload.write(s.getGroupId().getBytes());
+		payload.write(s.getCells());
+		writeRecord(SKETCH);
+	}
+
 	@Override
 	public void flush() throws IOException {
 		writer.flush();
@@ -3,6 +3,7 @@ package org.briarproject.bramble.sync;
 import org.briarproject.bramble.api.contact.ContactId;
 import org.briarproject.bramble.api.db.DatabaseComponent;
 import org.briarproject.bramble.api.db.DatabaseExecutor;
+import org.briarproject.bramble.api.db.DatabaseReadExecutor;
 import org.briarproject.bramble.api.event.EventBus;
 import org.briarproject.bramble.api.plugin.TransportId;
 import org.briarproject.bramble.api.sync.OutgoingSessionRecord;
@@ -14,65 +15,84 @@ import org.briarproject.bramble.api.sync.SyncRecordWriter;
 import org.briarproject.bramble.api.sync.SyncRecordWriterFactory;
 import org.briarproject.bramble.api.sync.SyncSession;
 import org.briarproject.bramble.api.sync.SyncSessionFactory;
+import org.briarproject.bramble.api.sync.validation.ValidationManager;
 import org.briarproject.bramble.api.system.Clock;
 import org.briarproject.bramble.api.transport.StreamWriter;
 import org.briarproject.nullsafety.NotNullByDefault;
 
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.Executor;
 
 import javax.annotation.Nullable;
-import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
 import javax.inject.Inject;
 
 import static org.briarproject.bramble.api.mailbox.MailboxConstants.MAX_FILE_PAYLOAD_BYTES;
 
-@Immutable
+@ThreadSafe
 @NotNullByDefault
 class SyncSessionFactoryImpl implements SyncSessionFactory {
 
 	private final DatabaseComponent db;
-	private final Executor dbExecutor;
+	private final Executor dbExecutor, dbReadExecutor;
 	private final EventBus eventBus;
 	private final Clock clock;
 	private final SyncRecordReaderFactory recordReaderFactory;
 	private final SyncRecordWriterFactory recordWriterFactory;
+	private final ValidationManager validationManager;
+	private final SyncMetricsImpl syncMetrics;
+
+	private final Object lock = new Object();
+	@GuardedBy("lock")
+	private final Map<TransportId, BatchSizer> batchSizers = new HashMap<>();
 
 	@Inject
 	SyncSessionFactoryImpl(DatabaseComponent db,
-			@DatabaseExecutor Executor dbExecutor, EventBus eventBus,
+			@DatabaseExecutor Executor dbExecutor,
+			@DatabaseReadExecutor Executor dbReadExecutor, EventBus eventBus,
 			Clock clock, SyncRecordReaderFactory recordReaderFactory,
-			SyncRecordWriterFactory recordWriterFactory) {
+			SyncRecordWriterFactory recordWriterFactory,
+			ValidationManager validationManager,
+			SyncMetricsImpl syncMetrics) {
 		this.db = db;
 		this.dbExecutor = dbExecutor;
+		this.dbReadExecutor = dbReadExecutor;
 		this.eventBus = eventBus;
 		this.clock = clock;
 		this.recordReaderFactory = recordReaderFactory;
 		this.recordWriterFactory = recordWriterFactory;
+		this.validationManager = validationManager;
+		this.syncMetrics = syncMetrics;
 	}
 
 	@Override
-	public SyncSession createIncomingSession(ContactId c, InputStream in,
-			PriorityHandler handler) {
-		SyncRecordReader recordReader =
-				recordReaderFactory.createRecordReader(in);
-		return new IncomingSession(db, dbExecutor, eventBus, c, recordReader,
-				handler);
+	public SyncSession createIncomingSession(ContactId c, TransportId t,
+			InputStream in, PriorityHandler handler) {
+		SessionMetrics metrics = syncMetrics.getSessionMetrics(c, t);
+		SyncRecordReader recordReader = new MeteredSyncRecordReader(
+				recordReaderFactory.createRecordReader(in), metrics);
+		return new IncomingSession(db, dbExecutor, dbReadExecutor, eventBus,
+				c, t, recordReader, handler, validationManager, metrics);
 	}
 
 	@Override
 	public SyncSession createSimplexOutgoingSession(ContactId c, TransportId t,
 			long maxLatency, boolean eager, StreamWriter streamWriter) {
-		OutputStream out = streamWriter.getOutputStream();
+		SessionMetrics metrics = syncMetrics.getSessionMetrics(c, t);
 		SyncRecordWriter recordWriter =
-				recordWriterFactory.createRecordWriter(out);
+				createRecordWriter(streamWriter, metrics);
 		if (eager) {
 			return new EagerSimplexOutgoingSession(db, eventBus, c, t,
-					maxLatency, streamWriter, recordWriter);
+					maxLatency, streamWriter, recordWriter, getBatchSizer(t),
+					metrics);
 		} else {
 			return new SimplexOutgoingSession(db, eventBus, c, t,
-					maxLatency, streamWriter, recordWriter);
+					maxLatency, streamWriter, recordWriter, getBatchSizer(t),
+					metrics);
 		}
 	}
 
@@ -80,22 +100,46 @@ class SyncSessionFactoryImpl implements SyncSessionFactory {
 	public SyncSession createSimplexOutgoingSession(ContactId c, TransportId t,
 			long maxLatency, StreamWriter streamWriter,
 			OutgoingSessionRecord sessionRecord) {
-		OutputStream out = streamWriter.getOutputStream();
+		SessionMetrics metrics = syncMetrics.getSessionMetrics(c, t);
 		SyncRecordWriter recordWriter =
-				recordWriterFactory.createRecordWriter(out);
+				createRecordWriter(streamWriter, metrics);
 		return new MailboxOutgoingSession(db, eventBus, c, t, maxLatency,
-				streamWriter, recordWriter, sessionRecord,
-				MAX_FILE_PAYLOAD_BYTES);
+				streamWriter, recordWriter, getBatchSizer(t), metrics,
+				sessionRecord, MAX_FILE_PAYLOAD_BYTES);
 	}
 
 	@Override
 	public SyncSession createDuplexOutgoingSession(ContactId c, TransportId t,
 			long maxLatency, int maxIdleTime, StreamWriter streamWriter,
 			@Nullable Priority priority) {
-		OutputStream out = streamWriter.getOutputStream();
+		SessionMetrics metrics = syncMetrics.getSessionMetrics(c, t);
 		SyncRecordWriter recordWriter =
-				recordWriterFactory.createRecordWriter(out);
+				createRecordWriter(streamWriter, metrics);
 		return new DuplexOutgoingSession(db, dbExecutor, eventBus, clock, c, t,
-				maxLatency, maxIdleTime, streamWriter, recordWriter, priority);
+				maxLatency, maxIdleTime, streamWriter, recordWriter,
+				getBatchSizer(t), priority, metrics);
+	}
+
+	private SyncRecordWriter createRecordWriter(StreamWriter streamWriter,
+			SessionMetrics metrics) {
+		OutputStream out = streamWriter.getOutputStream();
+		return new MeteredSyncRecordWriter(
+				recordWriterFactory.createRecordWriter(out), metrics);
+	}
+
+	/**
+	 * Returns the batch sizer for the given transport. All sessions using the
+	 * transport share a sizer, so measurements made by earlier sessions are
+	 * used by later ones.
+	 */
+	private BatchSizer getBatchSizer(TransportId t) {
+		synchronized (lock) {
+			BatchSizer sizer = batchSizers.get(t);
+			if (sizer == null) {
+				sizer = new AdaptiveBatchSizer();
+				batchSizers.put(t, sizer);
+			}
+			return sizer;
+		}
 	}
 }
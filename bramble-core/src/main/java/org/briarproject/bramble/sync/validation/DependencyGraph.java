@@ -0,0 +1,181 @@
+package org.briarproject.bramble.sync.validation;
+
+import org.briarproject.bramble.api.sync.MessageId;
+import org.briarproject.bramble.api.sync.validation.MessageState;
+import org.briarproject.nullsafety.NotNullByDefault;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * An in-memory copy of the dependencies of messages that are pending
+ * delivery, used for deciding which pending messages are ready to be
+ * delivered without querying the database for each message.
+ * <p>
+ * The graph only needs to be updated when the state of a message it knows
+ * about changes. States that change elsewhere may cause the graph to report
+ * that a message isn't ready when it is, but never the reverse, as messages
+ * never leave the delivered or invalid states. A message that is missed in
+ * this way will be added to another delivery queue by whoever changed the
+ * state of its dependency.
+ * <p>
+ * Changes made while a database transaction is running should be made
+ * through a {@link Changes} object, which is applied to the graph when the
+ * transaction has committed, so the graph never reflects a transaction that
+ * failed.
+ */
+@NotThreadSafe
+@NotNullByDefault
+class DependencyGraph {
+
+	// Pending message -> dependency -> state of dependency
+	private final Map<MessageId, Map<MessageId, MessageState>> dependencies =
+			new HashMap<>();
+	// Dependency -> pending messages that depend on it
+	private final Map<MessageId, List<MessageId>> dependents =
+			new HashMap<>();
+
+	/**
+	 * Adds a pending message and the states of its dependencies to the
+	 * graph, replacing any dependencies the graph already holds for the
+	 * message.
+	 */
+	void addDependencies(MessageId m, Map<MessageId, MessageState> states) {
+		dependencies.put(m, new HashMap<>(states));
+		for (MessageId dependency : states.keySet()) {
+			List<MessageId> list = dependents.get(dependency);
+			if (list == null) {
+				list = new ArrayList<>();
+				dependents.put(dependency, list);
+			}
+			list.add(m);
+		}
+	}
+
+	/**
+	 * Returns the states of the given message's dependencies, or null if
+	 * the graph doesn't hold the message's dependencies.
+	 */
+	@Nullable
+	Map<MessageId, MessageState> getDependencies(MessageId m) {
+		return dependencies.get(m);
+	}
+
+	/**
+	 * Records that the given message has left the pending state, updating
+	 * the dependencies of any pending messages that depend on it.
+	 */
+	void setState(MessageId m, MessageState state) {
+		dependencies.remove(m);
+		List<MessageId> list = dependents.remove(m);
+		if (list == null) return;
+		for (MessageId dependent : list) {
+			Map<MessageId, MessageState> states = dependencies.get(dependent);
+			if (states != null) states.put(m, state);
+		}
+	}
+
+	/**
+	 * Removes the given message's dependencies from the graph, for example
+	 * if the message is no longer pending.
+	 */
+	void remove(MessageId m) {
+		dependencies.remove(m);
+	}
+
+	/**
+	 * Returns an object for making changes to the graph that are only
+	 * applied when {@link Changes#apply()} is called.
+	 */
+	Changes startChanges() {
+		return new Changes();
+	}
+
+	/**
+	 * Changes to the graph that aren't applied until the transaction that
+	 * made them has committed. The changes are visible through this object
+	 * before they're applied.
+	 */
+	@NotThreadSafe
+	@NotNullByDefault
+	class Changes {
+
+		// Pending message -> dependency -> state of dependency
+		private final Map<MessageId, Map<MessageId, MessageState>> added =
+				new HashMap<>();
+		// Messages whose dependencies have been removed
+		private final Set<MessageId> removed = new HashSet<>();
+		// Message -> state the message has moved to
+		private final Map<MessageId, MessageState> states = new HashMap<>();
+		// The changes, in the order they were made
+		private final List<Runnable> changes = new ArrayList<>();
+
+		private Changes() {
+		}
+
+		/**
+		 * Returns a copy of the states of the given message's dependencies,
+		 * including any changes, or null if the graph doesn't hold the
+		 * message's dependencies.
+		 */
+		@Nullable
+		Map<MessageId, MessageState> getDependencies(MessageId m) {
+			if (removed.contains(m)) return null;
+			Map<MessageId, MessageState> deps = added.get(m);
+			if (deps == null) deps = dependencies.get(m);
+			if (deps == null) return null;
+			Map<MessageId, MessageState> copy = new HashMap<>(deps);
+			for (Entry<MessageId, MessageState> e : copy.entrySet()) {
+				MessageState state = states.get(e.getKey());
+				if (state != null) e.setValue(state);
+			}
+			return copy;
+		}
+
+		/**
+		 * @see DependencyGraph#addDependencies(MessageId, Map)
+		 */
+		void addDependencies(MessageId m, Map<MessageId, MessageState> s) {
+			Map<MessageId, MessageState> copy = new HashMap<>(s);
+			removed.remove(m);
+			added.put(m, copy);
+			changes.add(() -> DependencyGraph.this.addDependencies(m, copy));
+		}
+
+		/**
+		 * @see DependencyGraph#setState(MessageId, MessageState)
+		 */
+		void setState(MessageId m, MessageState state) {
+			removed.add(m);
+			added.remove(m);
+			states.put(m, state);
+			changes.add(() -> DependencyGraph.this.setState(m, state));
+		}
+
+		/**
+		 * @see DependencyGraph#remove(MessageId)
+		 */
+		void remove(MessageId m) {
+			removed.add(m);
+			added.remove(m);
+			changes.add(() -> DependencyGraph.this.remove(m));
+		}
+
+		/**
+		 * Applies the changes to the graph. This should be called when the
+		 * transaction that made the changes has committed.
+		 */
+		void apply() {
+			for (Runnable r : changes) r.run();
+			changes.clear();
+		}
+	}
+}
@@ -1,9 +1,13 @@
 package org.briarproject.bramble.sync.validation;
 
+import org.briarproject.bramble.api.Consumer;
 import org.briarproject.bramble.api.Pair;
+import org.briarproject.bramble.api.contact.ContactId;
 import org.briarproject.bramble.api.db.DatabaseComponent;
 import org.briarproject.bramble.api.db.DatabaseExecutor;
+import org.briarproject.bramble.api.db.DatabaseReadExecutor;
 import org.briarproject.bramble.api.db.DbException;
+import org.briarproject.bramble.api.db.DbRunnable;
 import org.briarproject.bramble.api.db.Metadata;
 import org.briarproject.bramble.api.db.NoSuchGroupException;
 import org.briarproject.bramble.api.db.NoSuchMessageException;
@@ -13,10 +17,12 @@ import org.briarproject.bramble.api.event.EventListener;
 import org.briarproject.bramble.api.lifecycle.Service;
 import org.briarproject.bramble.api.sync.ClientId;
 import org.briarproject.bramble.api.sync.Group;
+import org.briarproject.bramble.api.sync.GroupId;
 import org.briarproject.bramble.api.sync.InvalidMessageException;
 import org.briarproject.bramble.api.sync.Message;
 import org.briarproject.bramble.api.sync.MessageContext;
 import org.briarproject.bramble.api.sync.MessageId;
+import org.briarproject.bramble.api.sync.event.GroupRemovedEvent;
 import org.briarproject.bramble.api.sync.event.MessageAddedEvent;
 import org.briarproject.bramble.api.sync.validation.IncomingMessageHook;
 import org.briarproject.bramble.api.sync.validation.IncomingMessageHook.DeliveryAction;
@@ -26,19 +32,28 @@ import org.briarproject.bramble.api.sync.validation.ValidationManager;
 import org.briarproject.bramble.api.versioning.ClientMajorVersion;
 import org.briarproject.nullsafety.NotNullByDefault;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Queue;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.ThreadSafe;
 import javax.inject.Inject;
 
+import static java.util.Collections.emptyMap;
+import static java.util.Collections.newSetFromMap;
+import static java.util.Collections.singletonList;
 import static java.util.logging.Level.INFO;
 import static java.util.logging.Level.WARNING;
 import static org.briarproject.bramble.api.sync.validation.IncomingMessageHook.DeliveryAction.ACCEPT_DO_NOT_SHARE;
@@ -58,21 +73,35 @@ class ValidationManagerImpl implements ValidationManager, Service,
 	private static final Logger LOG =
 			Logger.getLogger(ValidationManagerImpl.class.getName());
 
+	/**
+	 * The maximum number of messages to validate, deliver, share or
+	 * invalidate in a single transaction.
+	 */
+	static final int MAX_MESSAGES_PER_TRANSACTION = 100;
+
 	private final DatabaseComponent db;
-	private final Executor dbExecutor, validationExecutor;
+	private final Executor dbExecutor, dbReadExecutor, validationExecutor;
 	private final Map<ClientMajorVersion, MessageValidator> validators;
 	private final Map<ClientMajorVersion, IncomingMessageHook> hooks;
+	// Groups are immutable, so they can be cached for validation
+	private final Map<GroupId, Group> groups;
+	// Messages that were validated before being stored
+	private final Set<MessageId> prevalidated;
 	private final AtomicBoolean used = new AtomicBoolean(false);
 
 	@Inject
 	ValidationManagerImpl(DatabaseComponent db,
 			@DatabaseExecutor Executor dbExecutor,
+			@DatabaseReadExecutor Executor dbReadExecutor,
 			@ValidationExecutor Executor validationExecutor) {
 		this.db = db;
 		this.dbExecutor = dbExecutor;
+		this.dbReadExecutor = dbReadExecutor;
 		this.validationExecutor = validationExecutor;
 		validators = new ConcurrentHashMap<>();
 		hooks = new ConcurrentHashMap<>();
+		groups = new ConcurrentHashMap<>();
+		prevalidated = newSetFromMap(new ConcurrentHashMap<>());
 	}
 
 	@Override
@@ -99,46 +128,189 @@ class ValidationManagerImpl implements ValidationManager, Service,
 		hooks.put(new ClientMajorVersion(c, majorVersion), hook);
 	}
 
+	@Override
+	public void prevalidateMessage(ContactId c, Message m,
+			Consumer<DbRunnable<DbException>> storer) {
+		Group g = groups.get(m.getGroupId());
+		if (g == null) loadGroupAndPrevalidateAsync(c, m, storer);
+		else prevalidateMessageAsync(c, m, g, storer);
+	}
+
 	private void validateOutstandingMessagesAsync() {
-		dbExecutor.execute(this::validateOutstandingMessages);
+		dbReadExecutor.execute(this::validateOutstandingMessages);
 	}
 
-	@DatabaseExecutor
+	@DatabaseReadExecutor
 	private void validateOutstandingMessages() {
 		try {
 			Queue<MessageId> unvalidated = new LinkedList<>(
 					db.transactionWithResult(true, db::getMessagesToValidate));
-			validateNextMessageAsync(unvalidated);
+			validateNextMessagesAsync(unvalidated);
 		} catch (DbException e) {
 			logException(LOG, WARNING, e);
 		}
 	}
 
-	private void validateNextMessageAsync(Queue<MessageId> unvalidated) {
+	private void validateNextMessagesAsync(Queue<MessageId> unvalidated) {
 		if (unvalidated.isEmpty()) return;
-		dbExecutor.execute(() -> validateNextMessage(unvalidated));
+		dbReadExecutor.execute(() -> validateNextMessages(unvalidated));
 	}
 
-	@DatabaseExecutor
-	private void validateNextMessage(Queue<MessageId> unvalidated) {
+	/**
+	 * Loads a batch of messages from the unvalidated queue in a single
+	 * transaction and validates them in parallel. The next batch is loaded
+	 * when the results for this batch have been stored, so at most one
+	 * batch is held in memory. If the batch can't be loaded in a single
+	 * transaction, the messages are loaded one per transaction.
+	 */
+	@DatabaseReadExecutor
+	private void validateNextMessages(Queue<MessageId> unvalidated) {
+		List<MessageId> ids = pollBatch(unvalidated);
+		List<Pair<Message, Group>> batch;
 		try {
-			Pair<Message, Group> mg = db.transactionWithResult(true, txn -> {
-				MessageId id = unvalidated.poll();
-				if (id == null) throw new AssertionError();
+			batch = db.transactionWithResult(true,
+					txn -> loadMessages(txn, ids));
+		} catch (DbException e) {
+			logException(LOG, WARNING, e);
+			batch = new ArrayList<>();
+			for (MessageId id : ids) {
+				try {
+					batch.addAll(db.transactionWithResult(true,
+							txn -> loadMessages(txn, singletonList(id))));
+				} catch (DbException e1) {
+					logException(LOG, WARNING, e1);
+				}
+			}
+		}
+		if (batch.isEmpty()) validateNextMessagesAsync(unvalidated);
+		else validateBatchAsync(batch, unvalidated);
+	}
+
+	@DatabaseReadExecutor
+	private List<Pair<Message, Group>> loadMessages(Transaction txn,
+			Collection<MessageId> ids) throws DbException {
+		List<Pair<Message, Group>> batch = new ArrayList<>(ids.size());
+		for (MessageId id : ids) {
+			try {
 				Message m = db.getMessage(txn, id);
-				Group g = db.getGroup(txn, m.getGroupId());
-				return new Pair<>(m, g);
+				batch.add(new Pair<>(m, loadGroup(txn, m.getGroupId())));
+			} catch (NoSuchMessageException e) {
+				LOG.info("Message removed before validation");
+			} catch (NoSuchGroupException e) {
+				LOG.info("Group removed before validation");
+			}
+		}
+		return batch;
+	}
+
+	private void validateBatchAsync(List<Pair<Message, Group>> batch,
+			Queue<MessageId> unvalidated) {
+		Queue<ValidationResult> results = new ConcurrentLinkedQueue<>();
+		AtomicInteger remaining = new AtomicInteger(batch.size());
+		for (Pair<Message, Group> mg : batch) {
+			validationExecutor.execute(() -> {
+				Message m = mg.getFirst();
+				Group g = mg.getSecond();
+				try {
+					validateMessage(m, g, results);
+				} catch (RuntimeException e) {
+					// Don't let a faulty validator stall the batch. The
+					// message is left unvalidated, so it will be validated
+					// again at the next startup
+					logException(LOG, WARNING, e);
+				} finally {
+					if (remaining.decrementAndGet() == 0) {
+						storeValidationResultsAsync(results, unvalidated);
+					}
+				}
 			});
-			validateMessageAsync(mg.getFirst(), mg.getSecond());
-			validateNextMessageAsync(unvalidated);
-		} catch (NoSuchMessageException e) {
-			LOG.info("Message removed before validation");
-			validateNextMessageAsync(unvalidated);
-		} catch (NoSuchGroupException e) {
-			LOG.info("Group removed before validation");
-			validateNextMessageAsync(unvalidated);
+		}
+	}
+
+	@ValidationExecutor
+	private void validateMessage(Message m, Group g,
+			Queue<ValidationResult> results) {
+		MessageValidator v = getValidator(g);
+		if (v != null) {
+			MessageContext context = validateMessage(v, m, g);
+			results.add(new ValidationResult(m, g, context));
+		}
+	}
+
+	/**
+	 * Stores the outcomes of validating a batch of messages and then loads
+	 * the next batch from the unvalidated queue.
+	 */
+	private void storeValidationResultsAsync(
+			Collection<ValidationResult> results,
+			Queue<MessageId> unvalidated) {
+		if (results.isEmpty()) {
+			validateNextMessagesAsync(unvalidated);
+			return;
+		}
+		dbExecutor.execute(() -> {
+			storeValidationResults(results);
+			validateNextMessagesAsync(unvalidated);
+		});
+	}
+
+	/**
+	 * Stores the outcomes of validating a batch of messages in a single
+	 * transaction. If the transaction fails, the outcomes are stored one
+	 * per transaction, so one outcome that can't be stored doesn't cause
+	 * the others to be lost.
+	 */
+	@DatabaseExecutor
+	private void storeValidationResults(Collection<ValidationResult> results) {
+		try {
+			storeValidationResultBatch(results);
 		} catch (DbException e) {
 			logException(LOG, WARNING, e);
+			if (results.size() == 1) return;
+			for (ValidationResult r : results) {
+				try {
+					storeValidationResultBatch(singletonList(r));
+				} catch (DbException e1) {
+					logException(LOG, WARNING, e1);
+				}
+			}
+		}
+	}
+
+	@DatabaseExecutor
+	private void storeValidationResultBatch(
+			Collection<ValidationResult> results) throws DbException {
+		Queue<MessageId> invalidate = new LinkedList<>();
+		Queue<MessageId> pending = new LinkedList<>();
+		Queue<MessageId> toShare = new LinkedList<>();
+		db.transaction(false, txn -> {
+			for (ValidationResult r : results) {
+				storeValidationResult(txn, r, invalidate, pending, toShare);
+			}
+		});
+		processQueuesAsync(invalidate, pending, toShare);
+	}
+
+	@DatabaseExecutor
+	private void storeValidationResult(Transaction txn, ValidationResult r,
+			Queue<MessageId> invalidate, Queue<MessageId> pending,
+			Queue<MessageId> toShare) throws DbException {
+		MessageId id = r.message.getId();
+		try {
+			if (r.context == null) {
+				if (db.getMessageState(txn, id) != INVALID) {
+					invalidateMessage(txn, id);
+					addDependentsToInvalidate(txn, id, invalidate);
+				}
+			} else {
+				storeMessageContext(txn, r.message, r.group.getClientId(),
+						r.group.getMajorVersion(), r.context, invalidate,
+						pending, toShare);
+			}
+		} catch (NoSuchMessageException e) {
+			LOG.info("Message removed during validation");
+		} catch (NoSuchGroupException e) {
+			LOG.info("Group removed during validation");
 		}
 	}
 
@@ -149,75 +321,132 @@ class ValidationManagerImpl implements ValidationManager, Service,
 	@DatabaseExecutor
 	private void deliverOutstandingMessages() {
 		try {
-			Queue<MessageId> pending = new LinkedList<>(
-					db.transactionWithResult(true, db::getPendingMessages));
-			deliverNextPendingMessageAsync(pending);
+			DependencyGraph graph = new DependencyGraph();
+			Queue<MessageId> pending = db.transactionWithResult(true,
+					txn -> loadPendingMessages(txn, graph));
+			deliverNextPendingMessagesAsync(pending, graph);
 		} catch (DbException e) {
 			logException(LOG, WARNING, e);
 		}
 	}
 
-	private void deliverNextPendingMessageAsync(Queue<MessageId> pending) {
+	/**
+	 * Returns the IDs of any messages that are pending delivery and adds
+	 * their dependencies to the given graph, using one query for all the
+	 * messages.
+	 */
+	@DatabaseExecutor
+	private Queue<MessageId> loadPendingMessages(Transaction txn,
+			DependencyGraph graph) throws DbException {
+		Collection<MessageId> ids = db.getPendingMessages(txn);
+		Map<MessageId, Map<MessageId, MessageState>> dependencies =
+				db.getPendingMessageDependencies(txn);
+		for (MessageId id : ids) {
+			Map<MessageId, MessageState> states = dependencies.get(id);
+			// Messages that were deferred may not have any dependencies
+			if (states == null) states = emptyMap();
+			graph.addDependencies(id, states);
+		}
+		return new LinkedList<>(ids);
+	}
+
+	private void deliverNextPendingMessagesAsync(Queue<MessageId> pending,
+			DependencyGraph graph) {
 		if (pending.isEmpty()) return;
-		dbExecutor.execute(() -> deliverNextPendingMessage(pending));
+		dbExecutor.execute(() -> deliverNextPendingMessages(pending, graph));
 	}
 
+	/**
+	 * Delivers a batch of messages from the pending queue in a single
+	 * transaction. Dependents of delivered messages are added to the batch
+	 * and may be delivered in the same transaction.
+	 */
 	@DatabaseExecutor
-	private void deliverNextPendingMessage(Queue<MessageId> pending) {
+	private void deliverNextPendingMessages(Queue<MessageId> pending,
+			DependencyGraph graph) {
+		processBatch(pending, batch ->
+				deliverPendingMessages(batch, pending, graph));
+		deliverNextPendingMessagesAsync(pending, graph);
+	}
+
+	@DatabaseExecutor
+	private void deliverPendingMessages(Queue<MessageId> batch,
+			Queue<MessageId> pending, DependencyGraph graph)
+			throws DbException {
+		Queue<MessageId> toShare = new LinkedList<>();
+		Queue<MessageId> invalidate = new LinkedList<>();
+		DependencyGraph.Changes changes = graph.startChanges();
+		db.transaction(false, txn -> {
+			for (int i = 0; i < MAX_MESSAGES_PER_TRANSACTION; i++) {
+				MessageId id = batch.poll();
+				if (id == null) break;
+				deliverPendingMessage(txn, id, changes, batch, invalidate,
+						toShare);
+			}
+		});
+		// The transaction has committed, so update the graph and queues
+		changes.apply();
+		pending.addAll(batch);
+		invalidateNextMessagesAsync(invalidate);
+		shareNextMessagesAsync(toShare);
+	}
+
+	@DatabaseExecutor
+	private void deliverPendingMessage(Transaction txn, MessageId id,
+			DependencyGraph.Changes graph, Queue<MessageId> pending,
+			Queue<MessageId> invalidate, Queue<MessageId> toShare)
+			throws DbException {
 		try {
-			Queue<MessageId> toShare = new LinkedList<>();
-			Queue<MessageId> invalidate = new LinkedList<>();
-			db.transaction(false, txn -> {
-				boolean anyInvalid = false, allDelivered = true;
-				MessageId id = pending.poll();
-				if (id == null) throw new AssertionError();
-				// Check if message is still pending
-				if (db.getMessageState(txn, id) == PENDING) {
-					// Check if dependencies are valid and delivered
-					Map<MessageId, MessageState> states =
-							db.getMessageDependencies(txn, id);
-					for (Entry<MessageId, MessageState> e : states.entrySet()) {
-						if (e.getValue() == INVALID) anyInvalid = true;
-						if (e.getValue() != DELIVERED) allDelivered = false;
-					}
-					if (anyInvalid) {
-						invalidateMessage(txn, id);
-						addDependentsToInvalidate(txn, id, invalidate);
-					} else if (allDelivered) {
-						Message m = db.getMessage(txn, id);
-						Group g = db.getGroup(txn, m.getGroupId());
-						ClientId c = g.getClientId();
-						int majorVersion = g.getMajorVersion();
-						Metadata meta =
-								db.getMessageMetadataForValidator(txn, id);
-						DeliveryAction action =
-								deliverMessage(txn, m, c, majorVersion, meta);
-						if (action == REJECT) {
-							invalidateMessage(txn, id);
-							addDependentsToInvalidate(txn, id, invalidate);
-						} else if (action == ACCEPT_SHARE) {
-							db.setMessageState(txn, m.getId(), DELIVERED);
-							addPendingDependents(txn, id, pending);
-							db.setMessageShared(txn, id);
-							toShare.addAll(states.keySet());
-						} else if (action == ACCEPT_DO_NOT_SHARE) {
-							db.setMessageState(txn, m.getId(), DELIVERED);
-							addPendingDependents(txn, id, pending);
-						}
-					}
+			// Check if message is still pending
+			if (db.getMessageState(txn, id) != PENDING) {
+				graph.remove(id);
+				return;
+			}
+			// Check if dependencies are valid and delivered
+			Map<MessageId, MessageState> states = graph.getDependencies(id);
+			if (states == null) {
+				states = db.getMessageDependencies(txn, id);
+				graph.addDependencies(id, states);
+			}
+			boolean anyInvalid = false, allDelivered = true;
+			for (Entry<MessageId, MessageState> e : states.entrySet()) {
+				if (e.getValue() == INVALID) anyInvalid = true;
+				if (e.getValue() != DELIVERED) allDelivered = false;
+			}
+			if (anyInvalid) {
+				invalidateMessage(txn, id);
+				addDependentsToInvalidate(txn, id, invalidate);
+				graph.setState(id, INVALID);
+			} else if (allDelivered) {
+				Message m = db.getMessage(txn, id);
+				Group g = loadGroup(txn, m.getGroupId());
+				ClientId c = g.getClientId();
+				int majorVersion = g.getMajorVersion();
+				Metadata meta = db.getMessageMetadataForValidator(txn, id);
+				DeliveryAction action =
+						deliverMessage(txn, m, c, majorVersion, meta);
+				if (action == REJECT) {
+					invalidateMessage(txn, id);
+					addDependentsToInvalidate(txn, id, invalidate);
+					graph.setState(id, INVALID);
+				} else if (action == ACCEPT_SHARE) {
+					db.setMessageState(txn, id, DELIVERED);
+					addPendingDependents(txn, id, pending);
+					db.setMessageShared(txn, id);
+					toShare.addAll(states.keySet());
+					graph.setState(id, DELIVERED);
+				} else if (action == ACCEPT_DO_NOT_SHARE) {
+					db.setMessageState(txn, id, DELIVERED);
+					addPendingDependents(txn, id, pending);
+					graph.setState(id, DELIVERED);
 				}
-			});
-			if (!invalidate.isEmpty()) invalidateNextMessageAsync(invalidate);
-			if (!toShare.isEmpty()) shareNextMessageAsync(toShare);
-			deliverNextPendingMessageAsync(pending);
+			}
 		} catch (NoSuchMessageException e) {
 			LOG.info("Message removed before delivery");
-			deliverNextPendingMessageAsync(pending);
+			graph.remove(id);
 		} catch (NoSuchGroupException e) {
 			LOG.info("Group removed before delivery");
-			deliverNextPendingMessageAsync(pending);
-		} catch (DbException e) {
-			logException(LOG, WARNING, e);
+			graph.remove(id);
 		}
 	}
 
@@ -227,25 +456,46 @@ class ValidationManagerImpl implements ValidationManager, Service,
 
 	@ValidationExecutor
 	private void validateMessage(Message m, Group g) {
+		MessageValidator v = getValidator(g);
+		if (v == null) return;
+		MessageContext context = validateMessage(v, m, g);
+		if (context == null) {
+			Queue<MessageId> invalidate = new LinkedList<>();
+			invalidate.add(m.getId());
+			invalidateNextMessagesAsync(invalidate);
+		} else {
+			storeMessageContextAsync(m, g.getClientId(), g.getMajorVersion(),
+					context);
+		}
+	}
+
+	@Nullable
+	private MessageValidator getValidator(Group g) {
 		ClientMajorVersion cv =
 				new ClientMajorVersion(g.getClientId(), g.getMajorVersion());
 		MessageValidator v = validators.get(cv);
-		if (v == null) {
-			if (LOG.isLoggable(WARNING)) LOG.warning("No validator for " + cv);
-		} else {
-			if (LOG.isLoggable(INFO)) {
-				LOG.info("Validating message for " + cv.getClientId());
-			}
-			try {
-				MessageContext context = v.validateMessage(m, g);
-				storeMessageContextAsync(m, g.getClientId(),
-						g.getMajorVersion(), context);
-			} catch (InvalidMessageException e) {
-				logException(LOG, INFO, e);
-				Queue<MessageId> invalidate = new LinkedList<>();
-				invalidate.add(m.getId());
-				invalidateNextMessageAsync(invalidate);
-			}
+		if (v == null && LOG.isLoggable(WARNING)) {
+			LOG.warning("No validator for " + cv);
+		}
+		return v;
+	}
+
+	/**
+	 * Validates the given message, returning its context, or null if the
+	 * message is invalid.
+	 */
+	@Nullable
+	@ValidationExecutor
+	private MessageContext validateMessage(MessageValidator v, Message m,
+			Group g) {
+		if (LOG.isLoggable(INFO)) {
+			LOG.info("Validating message for " + g.getClientId());
+		}
+		try {
+			return v.validateMessage(m, g);
+		} catch (InvalidMessageException e) {
+			logException(LOG, INFO, e);
+			return null;
 		}
 	}
 
@@ -259,57 +509,13 @@ class ValidationManagerImpl implements ValidationManager, Service,
 	private void storeMessageContext(Message m, ClientId c, int majorVersion,
 			MessageContext context) {
 		try {
-			MessageId id = m.getId();
 			Queue<MessageId> invalidate = new LinkedList<>();
 			Queue<MessageId> pending = new LinkedList<>();
 			Queue<MessageId> toShare = new LinkedList<>();
-			db.transaction(false, txn -> {
-				boolean anyInvalid = false, allDelivered = true;
-				// Check if message has any dependencies
-				Collection<MessageId> dependencies = context.getDependencies();
-				if (!dependencies.isEmpty()) {
-					db.addMessageDependencies(txn, m, dependencies);
-					// Check if dependencies are valid and delivered
-					Map<MessageId, MessageState> states =
-							db.getMessageDependencies(txn, id);
-					for (Entry<MessageId, MessageState> e : states.entrySet()) {
-						if (e.getValue() == INVALID) anyInvalid = true;
-						if (e.getValue() != DELIVERED) allDelivered = false;
-					}
-				}
-				if (anyInvalid) {
-					if (db.getMessageState(txn, id) != INVALID) {
-						invalidateMessage(txn, id);
-						addDependentsToInvalidate(txn, id, invalidate);
-					}
-				} else {
-					Metadata meta = context.getMetadata();
-					db.mergeMessageMetadata(txn, id, meta);
-					if (allDelivered) {
-						DeliveryAction action =
-								deliverMessage(txn, m, c, majorVersion, meta);
-						if (action == REJECT) {
-							invalidateMessage(txn, id);
-							addDependentsToInvalidate(txn, id, invalidate);
-						} else if (action == DEFER) {
-							db.setMessageState(txn, id, PENDING);
-						} else if (action == ACCEPT_SHARE) {
-							db.setMessageState(txn, id, DELIVERED);
-							addPendingDependents(txn, id, pending);
-							db.setMessageShared(txn, id);
-							toShare.addAll(dependencies);
-						} else if (action == ACCEPT_DO_NOT_SHARE) {
-							db.setMessageState(txn, id, DELIVERED);
-							addPendingDependents(txn, id, pending);
-						}
-					} else {
-						db.setMessageState(txn, id, PENDING);
-					}
-				}
-			});
-			if (!invalidate.isEmpty()) invalidateNextMessageAsync(invalidate);
-			if (!pending.isEmpty()) deliverNextPendingMessageAsync(pending);
-			if (!toShare.isEmpty()) shareNextMessageAsync(toShare);
+			db.transaction(false, txn ->
+					storeMessageContext(txn, m, c, majorVersion, context,
+							invalidate, pending, toShare));
+			processQueuesAsync(invalidate, pending, toShare);
 		} catch (NoSuchMessageException e) {
 			LOG.info("Message removed during validation");
 		} catch (NoSuchGroupException e) {
@@ -319,6 +525,56 @@ class ValidationManagerImpl implements ValidationManager, Service,
 		}
 	}
 
+	@DatabaseExecutor
+	private void storeMessageContext(Transaction txn, Message m, ClientId c,
+			int majorVersion, MessageContext context,
+			Queue<MessageId> invalidate, Queue<MessageId> pending,
+			Queue<MessageId> toShare) throws DbException {
+		MessageId id = m.getId();
+		boolean anyInvalid = false, allDelivered = true;
+		// Check if message has any dependencies
+		Collection<MessageId> dependencies = context.getDependencies();
+		if (!dependencies.isEmpty()) {
+			db.addMessageDependencies(txn, m, dependencies);
+			// Check if dependencies are valid and delivered
+			Map<MessageId, MessageState> states =
+					db.getMessageDependencies(txn, id);
+			for (Entry<MessageId, MessageState> e : states.entrySet()) {
+				if (e.getValue() == INVALID) anyInvalid = true;
+				if (e.getValue() != DELIVERED) allDelivered = false;
+			}
+		}
+		if (anyInvalid) {
+			if (db.getMessageState(txn, id) != INVALID) {
+				invalidateMessage(txn, id);
+				addDependentsToInvalidate(txn, id, invalidate);
+			}
+		} else {
+			Metadata meta = context.getMetadata();
+			db.mergeMessageMetadata(txn, id, meta);
+			if (allDelivered) {
+				DeliveryAction action =
+						deliverMessage(txn, m, c, majorVersion, meta);
+				if (action == REJECT) {
+					invalidateMessage(txn, id);
+					addDependentsToInvalidate(txn, id, invalidate);
+				} else if (action == DEFER) {
+					db.setMessageState(txn, id, PENDING);
+				} else if (action == ACCEPT_SHARE) {
+					db.setMessageState(txn, id, DELIVERED);
+					addPendingDependents(txn, id, pending);
+					db.setMessageShared(txn, id);
+					toShare.addAll(dependencies);
+				} else if (action == ACCEPT_DO_NOT_SHARE) {
+					db.setMessageState(txn, id, DELIVERED);
+					addPendingDependents(txn, id, pending);
+				}
+			} else {
+				db.setMessageState(txn, id, PENDING);
+			}
+		}
+	}
+
 	@DatabaseExecutor
 	private DeliveryAction deliverMessage(Transaction txn, Message m,
 			ClientId c, int majorVersion, Metadata meta) {
@@ -349,6 +605,13 @@ class ValidationManagerImpl implements ValidationManager, Service,
 		}
 	}
 
+	private void processQueuesAsync(Queue<MessageId> invalidate,
+			Queue<MessageId> pending, Queue<MessageId> toShare) {
+		invalidateNextMessagesAsync(invalidate);
+		deliverNextPendingMessagesAsync(pending, new DependencyGraph());
+		shareNextMessagesAsync(toShare);
+	}
+
 	private void shareOutstandingMessagesAsync() {
 		dbExecutor.execute(this::shareOutstandingMessages);
 	}
@@ -358,67 +621,125 @@ class ValidationManagerImpl implements ValidationManager, Service,
 		try {
 			Queue<MessageId> toShare = new LinkedList<>(
 					db.transactionWithResult(true, db::getMessagesToShare));
-			shareNextMessageAsync(toShare);
+			shareNextMessagesAsync(toShare);
 		} catch (DbException e) {
 			logException(LOG, WARNING, e);
 		}
 	}
 
 	/**
-	 * Shares the next message from the toShare queue asynchronously.
+	 * Shares a batch of messages from the toShare queue asynchronously.
 	 * <p>
 	 * This method should only be called for messages that have all their
 	 * dependencies delivered and have been delivered themselves.
 	 */
-	private void shareNextMessageAsync(Queue<MessageId> toShare) {
+	private void shareNextMessagesAsync(Queue<MessageId> toShare) {
 		if (toShare.isEmpty()) return;
-		dbExecutor.execute(() -> shareNextMessage(toShare));
+		dbExecutor.execute(() -> shareNextMessages(toShare));
 	}
 
 	@DatabaseExecutor
-	private void shareNextMessage(Queue<MessageId> toShare) {
-		try {
-			db.transaction(false, txn -> {
-				MessageId id = toShare.poll();
-				if (id == null) throw new AssertionError();
-				db.setMessageShared(txn, id);
-				toShare.addAll(db.getMessageDependencies(txn, id).keySet());
-			});
-			shareNextMessageAsync(toShare);
-		} catch (NoSuchMessageException e) {
-			LOG.info("Message removed before sharing");
-			shareNextMessageAsync(toShare);
-		} catch (NoSuchGroupException e) {
-			LOG.info("Group removed before sharing");
-			shareNextMessageAsync(toShare);
-		} catch (DbException e) {
-			logException(LOG, WARNING, e);
-		}
+	private void shareNextMessages(Queue<MessageId> toShare) {
+		processBatch(toShare, batch -> shareMessages(batch, toShare));
+		shareNextMessagesAsync(toShare);
+	}
+
+	/**
+	 * Shares a batch of messages in a single transaction. Dependencies of
+	 * shared messages are added to the batch and may be shared in the same
+	 * transaction.
+	 */
+	@DatabaseExecutor
+	private void shareMessages(Queue<MessageId> batch,
+			Queue<MessageId> toShare) throws DbException {
+		db.transaction(false, txn -> {
+			for (int i = 0; i < MAX_MESSAGES_PER_TRANSACTION; i++) {
+				MessageId id = batch.poll();
+				if (id == null) break;
+				try {
+					db.setMessageShared(txn, id);
+					batch.addAll(db.getMessageDependencies(txn, id).keySet());
+				} catch (NoSuchMessageException e) {
+					LOG.info("Message removed before sharing");
+				}
+			}
+		});
+		// The transaction has committed, so queue any remaining dependencies
+		toShare.addAll(batch);
 	}
 
-	private void invalidateNextMessageAsync(Queue<MessageId> invalidate) {
+	private void invalidateNextMessagesAsync(Queue<MessageId> invalidate) {
 		if (invalidate.isEmpty()) return;
-		dbExecutor.execute(() -> invalidateNextMessage(invalidate));
+		dbExecutor.execute(() -> invalidateNextMessages(invalidate));
 	}
 
 	@DatabaseExecutor
-	private void invalidateNextMessage(Queue<MessageId> invalidate) {
-		try {
-			db.transaction(false, txn -> {
-				MessageId id = invalidate.poll();
-				if (id == null) throw new AssertionError();
-				if (db.getMessageState(txn, id) != INVALID) {
-					invalidateMessage(txn, id);
-					addDependentsToInvalidate(txn, id, invalidate);
+	private void invalidateNextMessages(Queue<MessageId> invalidate) {
+		processBatch(invalidate, batch ->
+				invalidateMessages(batch, invalidate));
+		invalidateNextMessagesAsync(invalidate);
+	}
+
+	/**
+	 * Invalidates a batch of messages in a single transaction. Dependents
+	 * of invalidated messages are added to the batch and may be invalidated
+	 * in the same transaction.
+	 */
+	@DatabaseExecutor
+	private void invalidateMessages(Queue<MessageId> batch,
+			Queue<MessageId> invalidate) throws DbException {
+		db.transaction(false, txn -> {
+			for (int i = 0; i < MAX_MESSAGES_PER_TRANSACTION; i++) {
+				MessageId id = batch.poll();
+				if (id == null) break;
+				try {
+					if (db.getMessageState(txn, id) != INVALID) {
+						invalidateMessage(txn, id);
+						addDependentsToInvalidate(txn, id, batch);
+					}
+				} catch (NoSuchMessageException e) {
+					LOG.info("Message removed before invalidation");
 				}
-			});
-			invalidateNextMessageAsync(invalidate);
-		} catch (NoSuchMessageException e) {
-			LOG.info("Message removed before invalidation");
-			invalidateNextMessageAsync(invalidate);
+			}
+		});
+		// The transaction has committed, so queue any remaining dependents
+		invalidate.addAll(batch);
+	}
+
+	/**
+	 * Removes a batch of up to {@link #MAX_MESSAGES_PER_TRANSACTION}
+	 * messages from the given queue and passes them to the given processor.
+	 * If the processor's transaction fails, the messages are passed to the
+	 * processor one at a time, so one message that can't be processed
+	 * doesn't cause the others to be lost.
+	 */
+	@DatabaseExecutor
+	private void processBatch(Queue<MessageId> queue,
+			BatchProcessor processor) {
+		List<MessageId> ids = pollBatch(queue);
+		try {
+			processor.process(new LinkedList<>(ids));
 		} catch (DbException e) {
 			logException(LOG, WARNING, e);
+			if (ids.size() == 1) return;
+			for (MessageId id : ids) {
+				try {
+					processor.process(new LinkedList<>(singletonList(id)));
+				} catch (DbException e1) {
+					logException(LOG, WARNING, e1);
+				}
+			}
+		}
+	}
+
+	private List<MessageId> pollBatch(Queue<MessageId> queue) {
+		List<MessageId> ids = new ArrayList<>();
+		for (int i = 0; i < MAX_MESSAGES_PER_TRANSACTION; i++) {
+			MessageId id = queue.poll();
+			if (id == null) break;
+			ids.add(id);
 		}
+		return ids;
 	}
 
 	@DatabaseExecutor
@@ -441,27 +762,163 @@ class ValidationManagerImpl implements ValidationManager, Service,
 	@Override
 	public void eventOccurred(Event e) {
 		if (e instanceof MessageAddedEvent) {
-			// Validate the message if it wasn't created locally
+			// Validate the message if it wasn't created locally or validated
+			// before it was stored
 			MessageAddedEvent m = (MessageAddedEvent) e;
-			if (m.getContactId() != null)
-				loadGroupAndValidateAsync(m.getMessage());
+			Message message = m.getMessage();
+			if (m.getContactId() != null
+					&& !prevalidated.contains(message.getId())) {
+				loadGroupAndValidateAsync(message);
+			}
+		} else if (e instanceof GroupRemovedEvent) {
+			GroupRemovedEvent g = (GroupRemovedEvent) e;
+			groups.remove(g.getGroup().getId());
 		}
 	}
 
 	private void loadGroupAndValidateAsync(Message m) {
-		dbExecutor.execute(() -> loadGroupAndValidate(m));
+		dbReadExecutor.execute(() -> loadGroupAndValidate(m));
 	}
 
-	@DatabaseExecutor
+	@DatabaseReadExecutor
 	private void loadGroupAndValidate(Message m) {
 		try {
-			Group g = db.transactionWithResult(true, txn ->
-					db.getGroup(txn, m.getGroupId()));
-			validateMessageAsync(m, g);
+			validateMessageAsync(m, loadGroup(m.getGroupId()));
 		} catch (NoSuchGroupException e) {
 			LOG.info("Group removed before validation");
 		} catch (DbException e) {
 			logException(LOG, WARNING, e);
 		}
 	}
+
+	@DatabaseReadExecutor
+	private Group loadGroup(GroupId g) throws DbException {
+		Group group = groups.get(g);
+		if (group != null) return group;
+		return db.transactionWithResult(true, txn -> loadGroup(txn, g));
+	}
+
+	private Group loadGroup(Transaction txn, GroupId g) throws DbException {
+		Group group = groups.get(g);
+		if (group == null) {
+			group = db.getGroup(txn, g);
+			groups.put(g, group);
+		}
+		return group;
+	}
+
+	private void loadGroupAndPrevalidateAsync(ContactId c, Message m,
+			Consumer<DbRunnable<DbException>> storer) {
+		dbReadExecutor.execute(() -> loadGroupAndPrevalidate(c, m, storer));
+	}
+
+	@DatabaseReadExecutor
+	private void loadGroupAndPrevalidate(ContactId c, Message m,
+			Consumer<DbRunnable<DbException>> storer) {
+		try {
+			prevalidateMessageAsync(c, m, loadGroup(m.getGroupId()), storer);
+		} catch (NoSuchGroupException e) {
+			// The message will be ignored unless the group is added before
+			// the message is stored, in which case it will be validated then
+			storer.accept(txn -> db.receiveMessage(txn, c, m));
+		} catch (DbException e) {
+			logException(LOG, WARNING, e);
+			storer.accept(txn -> db.receiveMessage(txn, c, m));
+		}
+	}
+
+	private void prevalidateMessageAsync(ContactId c, Message m, Group g,
+			Consumer<DbRunnable<DbException>> storer) {
+		validationExecutor.execute(() -> prevalidateMessage(c, m, g, storer));
+	}
+
+	@ValidationExecutor
+	private void prevalidateMessage(ContactId c, Message m, Group g,
+			Consumer<DbRunnable<DbException>> storer) {
+		ClientMajorVersion cv =
+				new ClientMajorVersion(g.getClientId(), g.getMajorVersion());
+		MessageValidator v = validators.get(cv);
+		if (v == null) {
+			// The message will be validated (or not) after it's stored
+			storer.accept(txn -> db.receiveMessage(txn, c, m));
+			return;
+		}
+		if (LOG.isLoggable(INFO)) {
+			LOG.info("Prevalidating message for " + cv.getClientId());
+		}
+		MessageContext context;
+		try {
+			context = v.validateMessage(m, g);
+		} catch (InvalidMessageException e) {
+			logException(LOG, INFO, e);
+			context = null;
+		} catch (RuntimeException e) {
+			// Store the message without a validation result, as we would
+			// if it hadn't been prevalidated
+			logException(LOG, WARNING, e);
+			storer.accept(txn -> db.receiveMessage(txn, c, m));
+			return;
+		}
+		MessageContext result = context;
+		storer.accept(txn -> storePrevalidatedMessage(txn, c, m, g, result));
+	}
+
+	/**
+	 * Stores a message received from the given contact, along with the
+	 * outcome of validating it. The context is null if the message is
+	 * invalid.
+	 */
+	@DatabaseExecutor
+	private void storePrevalidatedMessage(Transaction txn, ContactId c,
+			Message m, Group g, @Nullable MessageContext context)
+			throws DbException {
+		MessageId id = m.getId();
+		// Commit actions run in order, so the message will be marked as
+		// prevalidated when the MessageAddedEvent is broadcast
+		txn.attach(() -> prevalidated.add(id));
+		boolean added = db.receiveMessage(txn, c, m);
+		txn.attach(() -> prevalidated.remove(id));
+		if (!added) return;
+		Queue<MessageId> invalidate = new LinkedList<>();
+		Queue<MessageId> pending = new LinkedList<>();
+		Queue<MessageId> toShare = new LinkedList<>();
+		if (context == null) {
+			invalidateMessage(txn, id);
+			addDependentsToInvalidate(txn, id, invalidate);
+		} else {
+			storeMessageContext(txn, m, g.getClientId(), g.getMajorVersion(),
+					context, invalidate, pending, toShare);
+		}
+		txn.attach(() -> processQueuesAsync(invalidate, pending, toShare));
+	}
+
+	private interface BatchProcessor {
+
+		/**
+		 * Processes the messages in the given queue in a single transaction.
+		 * Messages added to the queue during the transaction may also be
+		 * processed.
+		 */
+		@DatabaseExecutor
+		void process(Queue<MessageId> batch) throws DbException;
+	}
+
+	/**
+	 * The outcome of validating a message. The context is null if the message
+	 * is invalid.
+	 */
+	private static class ValidationResult {
+
+		private final Message message;
+		private final Group group;
+		@Nullable
+		private final MessageContext context;
+
+		private ValidationResult(Message message, Group group,
+				@Nullable MessageContext context) {
+			this.message = message;
+			this.group = group;
+			this.context = context;
+		}
+	}
 }
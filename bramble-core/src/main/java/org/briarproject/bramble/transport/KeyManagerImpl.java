@@ -107,7 +107,17 @@ class KeyManagerImpl implements KeyManager, Service, EventListener {
 	}
 
 	@Override
-	public void stopService() {
+	public void stopService() throws ServiceException {
+		// Release any unused stream numbers, so they aren't skipped when the
+		// app restarts
+		try {
+			db.transaction(false, txn -> {
+				for (TransportKeyManager m : managers.values())
+					m.releaseStreamCounterLeases(txn);
+			});
+		} catch (DbException e) {
+			throw new ServiceException(e);
+		}
 	}
 
 	@Override
@@ -194,17 +204,25 @@ class KeyManagerImpl implements KeyManager, Service, EventListener {
 	@Override
 	public StreamContext getStreamContext(ContactId c, TransportId t)
 			throws DbException {
-		return withManager(t, m ->
-				db.transactionWithNullableResult(false, txn ->
-						m.getStreamContext(txn, c)));
+		return withManager(t, m -> {
+			// Use a reserved stream number if there is one, to avoid a write
+			StreamContext ctx = m.getLeasedStreamContext(c);
+			if (ctx != null) return ctx;
+			return db.transactionWithNullableResult(false, txn ->
+					m.getStreamContext(txn, c));
+		});
 	}
 
 	@Override
 	public StreamContext getStreamContext(PendingContactId p, TransportId t)
 			throws DbException {
-		return withManager(t, m ->
-				db.transactionWithNullableResult(false, txn ->
-						m.getStreamContext(txn, p)));
+		return withManager(t, m -> {
+			// Use a reserved stream number if there is one, to avoid a write
+			StreamContext ctx = m.getLeasedStreamContext(p);
+			if (ctx != null) return ctx;
+			return db.transactionWithNullableResult(false, txn ->
+					m.getStreamContext(txn, p));
+		});
 	}
 
 	@Override
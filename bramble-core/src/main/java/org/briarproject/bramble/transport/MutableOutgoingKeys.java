@@ -12,7 +12,7 @@ class MutableOutgoingKeys {
 
 	private final SecretKey tagKey, headerKey;
 	private final long timePeriod;
-	private long streamCounter;
+	private long streamCounter, leaseEnd;
 	private boolean active;
 
 	MutableOutgoingKeys(OutgoingKeys out) {
@@ -20,6 +20,8 @@ class MutableOutgoingKeys {
 		headerKey = out.getHeaderKey();
 		timePeriod = out.getTimePeriod();
 		streamCounter = out.getStreamCounter();
+		// The stream counter in the DB is the end of any previous lease
+		leaseEnd = streamCounter;
 		active = out.isActive();
 	}
 
@@ -48,6 +50,30 @@ class MutableOutgoingKeys {
 		streamCounter++;
 	}
 
+	/**
+	 * Returns true if the current stream number has been reserved in the DB,
+	 * so it can be used without writing to the DB.
+	 */
+	boolean isStreamCounterLeased() {
+		return streamCounter < leaseEnd;
+	}
+
+	/**
+	 * Records that stream numbers up to, but not including, the given number
+	 * have been reserved in the DB.
+	 */
+	void extendLease(long leaseEnd) {
+		if (leaseEnd > this.leaseEnd) this.leaseEnd = leaseEnd;
+	}
+
+	/**
+	 * Records that the unused stream numbers reserved in the DB have been
+	 * released, so they must not be used without reserving them again.
+	 */
+	void releaseLease() {
+		leaseEnd = streamCounter;
+	}
+
 	boolean isActive() {
 		return active;
 	}
@@ -34,6 +34,23 @@ class MutableTransportKeys {
 		}
 	}
 
+	/**
+	 * Creates keys from existing mutable keys, which may be shared with
+	 * other instances.
+	 */
+	MutableTransportKeys(TransportId transportId, MutableIncomingKeys inPrev,
+			MutableIncomingKeys inCurr, MutableIncomingKeys inNext,
+			MutableOutgoingKeys outCurr, @Nullable SecretKey rootKey,
+			boolean alice) {
+		this.transportId = transportId;
+		this.inPrev = inPrev;
+		this.inCurr = inCurr;
+		this.inNext = inNext;
+		this.outCurr = outCurr;
+		this.rootKey = rootKey;
+		this.alice = alice;
+	}
+
 	TransportKeys snapshot() {
 		if (rootKey == null) {
 			return new TransportKeys(transportId, inPrev.snapshot(),
@@ -2,32 +2,41 @@ package org.briarproject.bramble.transport;
 
 import org.briarproject.nullsafety.NotNullByDefault;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
-
 import javax.annotation.concurrent.NotThreadSafe;
 
 import static org.briarproject.bramble.util.ByteUtils.MAX_32_BIT_UNSIGNED;
 
+/**
+ * A window of stream numbers, recording which ones have been seen.
+ * <p>
+ * The window is stored as a bitset of longs, where bit i of the window is
+ * bit (i % 64) of word (i / 64). The bitmap format used for persistence is
+ * unchanged: bit i of the window is bit (7 - i % 8) of byte (i / 8).
+ */
 @NotThreadSafe
 @NotNullByDefault
 class ReorderingWindow {
 
+	private final int size;
+	private final long[] seen;
+	// Reused for reporting changes to the caller
+	private final Change change;
+
 	private long base;
-	private boolean[] seen;
 
 	ReorderingWindow(long base, byte[] bitmap) {
 		if (base < 0) throw new IllegalArgumentException();
 		if (base > MAX_32_BIT_UNSIGNED + 1)
 			throw new IllegalArgumentException();
 		this.base = base;
-		seen = new boolean[bitmap.length * 8];
+		size = bitmap.length * 8;
+		seen = new long[(size + 63) / 64];
 		for (int i = 0; i < bitmap.length; i++) {
-			for (int j = 0; j < 8; j++) {
-				if ((bitmap[i] & (128 >> j)) != 0) seen[i * 8 + j] = true;
-			}
+			// Reverse the bit order so bit j of the byte is bit 7 - j here
+			long b = Integer.reverse(bitmap[i] & 0xFF) >>> 24;
+			seen[i / 8] |= b << ((i % 8) * 8);
 		}
+		change = new Change(size);
 	}
 
 	long getBase() {
@@ -35,69 +44,142 @@ class ReorderingWindow {
 	}
 
 	byte[] getBitmap() {
-		byte[] bitmap = new byte[seen.length / 8];
+		byte[] bitmap = new byte[size / 8];
 		for (int i = 0; i < bitmap.length; i++) {
-			for (int j = 0; j < 8; j++) {
-				if (seen[i * 8 + j]) bitmap[i] |= 128 >> j;
-			}
+			int b = (int) (seen[i / 8] >>> ((i % 8) * 8)) & 0xFF;
+			bitmap[i] = (byte) (Integer.reverse(b) >>> 24);
 		}
 		return bitmap;
 	}
 
-	List<Long> getUnseen() {
-		List<Long> unseen = new ArrayList<>(seen.length);
-		for (int i = 0; i < seen.length; i++)
-			if (!seen[i]) unseen.add(base + i);
-		return unseen;
+	/**
+	 * Returns the lowest unseen stream number in the window that's greater
+	 * than or equal to the given stream number, or -1 if there is no such
+	 * stream number. This can be used to iterate over the unseen stream
+	 * numbers without allocating.
+	 */
+	long getNextUnseen(long from) {
+		long offset = Math.max(0, from - base);
+		if (offset >= size) return -1;
+		int next = nextUnseenOffset((int) offset);
+		return next == size ? -1 : base + next;
 	}
 
+	/**
+	 * Marks the given stream number as seen and slides the window if
+	 * necessary. The returned {@link Change} is reused by subsequent calls,
+	 * so it must not be retained.
+	 */
 	Change setSeen(long index) {
 		if (index < base) throw new IllegalArgumentException();
-		if (index >= base + seen.length) throw new IllegalArgumentException();
+		if (index >= base + size) throw new IllegalArgumentException();
 		if (index > MAX_32_BIT_UNSIGNED) throw new IllegalArgumentException();
 		int offset = (int) (index - base);
-		if (seen[offset]) throw new IllegalArgumentException();
-		seen[offset] = true;
+		if (isSeen(offset)) throw new IllegalArgumentException();
+		seen[offset >>> 6] |= 1L << offset;
+		change.clear();
 		// Rule 1: Slide until all elements above the midpoint are unseen
-		int slide = Math.max(0, offset + 1 - seen.length / 2);
+		int slide = Math.max(0, offset + 1 - size / 2);
 		// Rule 2: Slide until the lowest element is unseen
-		while (seen[slide]) slide++;
-		// If the window doesn't need to slide, return
-		if (slide == 0) {
-			List<Long> added = Collections.emptyList();
-			List<Long> removed = Collections.singletonList(index);
-			return new Change(added, removed);
-		}
+		slide = nextUnseenOffset(slide);
 		// Record the elements that will be added and removed
-		List<Long> added = new ArrayList<>(slide);
-		List<Long> removed = new ArrayList<>(slide);
-		for (int i = 0; i < slide; i++) {
-			if (!seen[i]) removed.add(base + i);
-			added.add(base + seen.length + i);
+		for (int i = nextUnseenOffset(0); i < slide;
+				i = nextUnseenOffset(i + 1)) {
+			change.addRemoved(base + i);
 		}
-		removed.add(index);
+		change.addRemoved(index);
+		for (int i = 0; i < slide; i++) change.addAdded(base + size + i);
 		// Update the window
-		base += slide;
-		for (int i = 0; i + slide < seen.length; i++) seen[i] = seen[i + slide];
-		for (int i = seen.length - slide; i < seen.length; i++) seen[i] = false;
-		return new Change(added, removed);
+		if (slide > 0) {
+			base += slide;
+			shiftRight(slide);
+		}
+		return change;
+	}
+
+	private boolean isSeen(int offset) {
+		return (seen[offset >>> 6] & (1L << offset)) != 0;
+	}
+
+	/**
+	 * Returns the offset of the lowest unseen element at or above the given
+	 * offset, or the size of the window if all such elements have been seen.
+	 */
+	private int nextUnseenOffset(int offset) {
+		int word = offset >>> 6;
+		if (word >= seen.length) return size;
+		// Treat the bits below the offset as seen
+		long unseen = ~seen[word] & (-1L << offset);
+		while (unseen == 0) {
+			if (++word == seen.length) return size;
+			unseen = ~seen[word];
+		}
+		return Math.min(size, word * 64 + Long.numberOfTrailingZeros(unseen));
+	}
+
+	/**
+	 * Shifts the bitset towards the lowest element by the given number of
+	 * bits, filling the highest elements with zeroes.
+	 */
+	private void shiftRight(int bits) {
+		int words = bits >>> 6, shift = bits & 63;
+		for (int i = 0; i < seen.length; i++) {
+			int src = i + words;
+			long w = src < seen.length ? seen[src] >>> shift : 0;
+			if (shift != 0 && src + 1 < seen.length)
+				w |= seen[src + 1] << (64 - shift);
+			seen[i] = w;
+		}
 	}
 
+	/**
+	 * The stream numbers added to and removed from the window by a call to
+	 * {@link #setSeen(long)}.
+	 */
+	@NotThreadSafe
+	@NotNullByDefault
 	static class Change {
 
-		private final List<Long> added, removed;
+		private final long[] added, removed;
+		private int addedCount = 0, removedCount = 0;
+
+		private Change(int size) {
+			// At most the whole window can be replaced, and the removed
+			// elements include the one that was seen
+			added = new long[size];
+			removed = new long[size + 1];
+		}
+
+		private void clear() {
+			addedCount = 0;
+			removedCount = 0;
+		}
+
+		private void addAdded(long streamNumber) {
+			added[addedCount++] = streamNumber;
+		}
+
+		private void addRemoved(long streamNumber) {
+			removed[removedCount++] = streamNumber;
+		}
+
+		int getAddedCount() {
+			return addedCount;
+		}
 
-		Change(List<Long> added, List<Long> removed) {
-			this.added = added;
-			this.removed = removed;
+		long getAdded(int i) {
+			if (i < 0 || i >= addedCount) throw new IndexOutOfBoundsException();
+			return added[i];
 		}
 
-		List<Long> getAdded() {
-			return added;
+		int getRemovedCount() {
+			return removedCount;
 		}
 
-		List<Long> getRemoved() {
-			return removed;
+		long getRemoved(int i) {
+			if (i < 0 || i >= removedCount)
+				throw new IndexOutOfBoundsException();
+			return removed[i];
 		}
 	}
 }
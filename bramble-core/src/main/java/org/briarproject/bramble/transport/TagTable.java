@@ -0,0 +1,205 @@
+package org.briarproject.bramble.transport;
+
+import org.briarproject.bramble.api.Predicate;
+import org.briarproject.nullsafety.NotNullByDefault;
+
+import javax.annotation.concurrent.NotThreadSafe;
+
+import static org.briarproject.bramble.api.transport.TransportConstants.TAG_LENGTH;
+import static org.briarproject.bramble.util.ByteUtils.INT_64_BYTES;
+import static org.briarproject.bramble.util.ByteUtils.readUint64;
+
+/**
+ * A hash table mapping tags to the stream numbers they were derived from and
+ * a value shared by all tags derived from the same keys.
+ * <p>
+ * Tags are stored as pairs of longs in a primitive array, using open
+ * addressing with linear probing, so the table doesn't allocate any objects
+ * per tag. Looking up a tag doesn't allocate: {@link #find(byte[])} returns
+ * the slot holding the tag, which can be passed to {@link #getValue(int)},
+ * {@link #getStreamNumber(int)} and {@link #remove(int)}. Slots are only
+ * valid until the table is next modified.
+ */
+@NotThreadSafe
+@NotNullByDefault
+class TagTable<V> {
+
+	private static final int MIN_CAPACITY = 64; // Must be a power of two
+
+	// Each slot holds a tag (two longs), a stream number and a value. A slot
+	// is empty if its value is null
+	private long[] tags;
+	private long[] streamNumbers;
+	private Object[] values;
+	private int size = 0;
+
+	TagTable() {
+		allocate(MIN_CAPACITY);
+	}
+
+	private void allocate(int capacity) {
+		tags = new long[capacity * 2];
+		streamNumbers = new long[capacity];
+		values = new Object[capacity];
+	}
+
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Adds the given tag to the table, replacing any existing entry for the
+	 * tag.
+	 */
+	void put(byte[] tag, V value, long streamNumber) {
+		if (tag.length != TAG_LENGTH) throw new IllegalArgumentException();
+		put(tag, 0, value, streamNumber);
+	}
+
+	/**
+	 * Adds the tag starting at the given offset of the given buffer to the
+	 * table, replacing any existing entry for the tag.
+	 */
+	void put(byte[] buf, int off, V value, long streamNumber) {
+		if (off < 0 || off + TAG_LENGTH > buf.length)
+			throw new IllegalArgumentException();
+		// Keep the load factor at or below 1/2
+		if ((size + 1) * 2 > values.length) resize(values.length * 2);
+		long hi = readUint64(buf, off);
+		long lo = readUint64(buf, off + INT_64_BYTES);
+		int slot = findSlot(hi, lo);
+		if (values[slot] == null) {
+			tags[slot * 2] = hi;
+			tags[slot * 2 + 1] = lo;
+			size++;
+		}
+		streamNumbers[slot] = streamNumber;
+		values[slot] = value;
+	}
+
+	/**
+	 * Returns the slot holding the given tag, or -1 if the tag isn't in the
+	 * table.
+	 */
+	int find(byte[] tag) {
+		if (tag.length != TAG_LENGTH) return -1;
+		long hi = readUint64(tag, 0), lo = readUint64(tag, INT_64_BYTES);
+		int slot = findSlot(hi, lo);
+		return values[slot] == null ? -1 : slot;
+	}
+
+	@SuppressWarnings("unchecked")
+	V getValue(int slot) {
+		Object value = values[slot];
+		if (value == null) throw new IllegalArgumentException();
+		return (V) value;
+	}
+
+	long getStreamNumber(int slot) {
+		if (values[slot] == null) throw new IllegalArgumentException();
+		return streamNumbers[slot];
+	}
+
+	/**
+	 * Removes the given tag from the table, if it's present.
+	 */
+	void remove(byte[] tag) {
+		int slot = find(tag);
+		if (slot != -1) remove(slot);
+	}
+
+	/**
+	 * Removes the tag in the given slot. Other entries may be moved to fill
+	 * the gap.
+	 */
+	void remove(int slot) {
+		if (values[slot] == null) throw new IllegalArgumentException();
+		int mask = values.length - 1;
+		int hole = slot;
+		// Move any later entries in the same run back into the hole if the
+		// hole is between their home slot and their current slot
+		for (int i = (slot + 1) & mask; values[i] != null; i = (i + 1) & mask) {
+			int home = getHomeSlot(tags[i * 2], tags[i * 2 + 1]);
+			if (((i - home) & mask) >= ((i - hole) & mask)) {
+				tags[hole * 2] = tags[i * 2];
+				tags[hole * 2 + 1] = tags[i * 2 + 1];
+				streamNumbers[hole] = streamNumbers[i];
+				values[hole] = values[i];
+				hole = i;
+			}
+		}
+		values[hole] = null;
+		size--;
+	}
+
+	/**
+	 * Removes all tags whose values match the given predicate.
+	 */
+	@SuppressWarnings("unchecked")
+	void removeIf(Predicate<V> predicate) {
+		long[] oldTags = tags;
+		long[] oldStreamNumbers = streamNumbers;
+		Object[] oldValues = values;
+		allocate(oldValues.length);
+		size = 0;
+		for (int i = 0; i < oldValues.length; i++) {
+			Object value = oldValues[i];
+			if (value != null && !predicate.test((V) value)) {
+				insert(oldTags[i * 2], oldTags[i * 2 + 1],
+						oldStreamNumbers[i], value);
+			}
+		}
+	}
+
+	void clear() {
+		allocate(MIN_CAPACITY);
+		size = 0;
+	}
+
+	private void resize(int capacity) {
+		long[] oldTags = tags;
+		long[] oldStreamNumbers = streamNumbers;
+		Object[] oldValues = values;
+		allocate(capacity);
+		size = 0;
+		for (int i = 0; i < oldValues.length; i++) {
+			Object value = oldValues[i];
+			if (value != null) {
+				insert(oldTags[i * 2], oldTags[i * 2 + 1],
+						oldStreamNumbers[i], value);
+			}
+		}
+	}
+
+	/**
+	 * Inserts a tag that isn't in the table, without resizing.
+	 */
+	private void insert(long hi, long lo, long streamNumber, Object value) {
+		int slot = findSlot(hi, lo);
+		tags[slot * 2] = hi;
+		tags[slot * 2 + 1] = lo;
+		streamNumbers[slot] = streamNumber;
+		values[slot] = value;
+		size++;
+	}
+
+	/**
+	 * Returns the slot holding the given tag, or the empty slot where it
+	 * should be inserted.
+	 */
+	private int findSlot(long hi, long lo) {
+		int mask = values.length - 1;
+		int slot = getHomeSlot(hi, lo);
+		while (true) {
+			if (values[slot] == null) return slot;
+			if (tags[slot * 2] == hi && tags[slot * 2 + 1] == lo) return slot;
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	private int getHomeSlot(long hi, long lo) {
+		// Tags are pseudo-random, but mix the bits in case of bad inputs
+		long h = (hi ^ lo) * 0x9E3779B97F4A7C15L;
+		return (int) (h >>> 32) & (values.length - 1);
+	}
+}
@@ -36,6 +36,22 @@ interface TransportKeyManager {
 
 	boolean canSendOutgoingStreams(PendingContactId p);
 
+	/**
+	 * Returns a stream context for sending a stream to the given contact,
+	 * using a stream number that has already been reserved in the DB, or
+	 * null if no reserved stream number is available.
+	 */
+	@Nullable
+	StreamContext getLeasedStreamContext(ContactId c);
+
+	/**
+	 * Returns a stream context for sending a stream to the given pending
+	 * contact, using a stream number that has already been reserved in the
+	 * DB, or null if no reserved stream number is available.
+	 */
+	@Nullable
+	StreamContext getLeasedStreamContext(PendingContactId p);
+
 	@Nullable
 	StreamContext getStreamContext(Transaction txn, ContactId c)
 			throws DbException;
@@ -53,4 +69,11 @@ interface TransportKeyManager {
 
 	void markTagAsRecognised(Transaction txn, byte[] tag) throws DbException;
 
+	/**
+	 * Writes the next unused outgoing stream number of each key set to the
+	 * DB, releasing any stream numbers that were reserved but not used, so
+	 * they aren't skipped when the app restarts.
+	 */
+	void releaseStreamCounterLeases(Transaction txn) throws DbException;
+
 }
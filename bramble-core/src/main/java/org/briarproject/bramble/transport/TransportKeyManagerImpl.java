@@ -1,8 +1,8 @@
 package org.briarproject.bramble.transport;
 
-import org.briarproject.bramble.api.Bytes;
 import org.briarproject.bramble.api.contact.ContactId;
 import org.briarproject.bramble.api.contact.PendingContactId;
+import org.briarproject.bramble.api.crypto.CryptoExecutor;
 import org.briarproject.bramble.api.crypto.SecretKey;
 import org.briarproject.bramble.api.crypto.TransportCrypto;
 import org.briarproject.bramble.api.db.DatabaseComponent;
@@ -13,6 +13,7 @@ import org.briarproject.bramble.api.plugin.TransportId;
 import org.briarproject.bramble.api.system.Clock;
 import org.briarproject.bramble.api.system.TaskScheduler;
 import org.briarproject.bramble.api.system.Wakeful;
+import org.briarproject.bramble.api.transport.IncomingKeys;
 import org.briarproject.bramble.api.transport.KeySetId;
 import org.briarproject.bramble.api.transport.StreamContext;
 import org.briarproject.bramble.api.transport.TransportKeySet;
@@ -23,8 +24,12 @@ import org.briarproject.nullsafety.NotNullByDefault;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
 import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.ReentrantLock;
@@ -34,11 +39,18 @@ import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
 import javax.annotation.concurrent.ThreadSafe;
 
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+import static java.lang.System.arraycopy;
+import static java.util.Arrays.asList;
+import static java.util.Collections.newSetFromMap;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
 import static java.util.logging.Level.WARNING;
 import static java.util.logging.Logger.getLogger;
 import static org.briarproject.bramble.api.transport.TransportConstants.MAX_CLOCK_DIFFERENCE;
 import static org.briarproject.bramble.api.transport.TransportConstants.PROTOCOL_VERSION;
+import static org.briarproject.bramble.api.transport.TransportConstants.REORDERING_WINDOW_SIZE;
 import static org.briarproject.bramble.api.transport.TransportConstants.TAG_LENGTH;
 import static org.briarproject.bramble.util.ByteUtils.MAX_32_BIT_UNSIGNED;
 import static org.briarproject.bramble.util.LogUtils.logException;
@@ -51,9 +63,26 @@ class TransportKeyManagerImpl implements TransportKeyManager {
 	private static final Logger LOG =
 			getLogger(TransportKeyManagerImpl.class.getName());
 
+	/**
+	 * The number of outgoing stream numbers reserved by each write to the
+	 * DB. Reserved stream numbers that haven't been used are released when
+	 * the app shuts down cleanly, but they're skipped after a crash, so this
+	 * must be small enough for the contact's reordering window to accept the
+	 * next stream number.
+	 */
+	static final int STREAM_COUNTER_LEASE = REORDERING_WINDOW_SIZE / 4;
+
+	/**
+	 * How long before the start of each time period the keys for the period
+	 * are derived and their tags are encoded. This work is done on the
+	 * {@link CryptoExecutor} without holding the lock, so incoming streams
+	 * can still be recognised while the keys are being updated.
+	 */
+	static final long KEY_UPDATE_LEAD_TIME = MINUTES.toMillis(10);
+
 	private final DatabaseComponent db;
 	private final TransportCrypto transportCrypto;
-	private final Executor dbExecutor;
+	private final Executor dbExecutor, cryptoExecutor;
 	private final TaskScheduler scheduler;
 	private final Clock clock;
 	private final TransportId transportId;
@@ -64,7 +93,10 @@ class TransportKeyManagerImpl implements TransportKeyManager {
 	@GuardedBy("lock")
 	private final Map<KeySetId, MutableTransportKeySet> keys = new HashMap<>();
 	@GuardedBy("lock")
-	private final Map<Bytes, TagContext> inContexts = new HashMap<>();
+	private final TagTable<TagContext> inContexts = new TagTable<>();
+	// Reused for encoding tags, which are copied into the tag table
+	@GuardedBy("lock")
+	private final byte[] tagBuffer = new byte[TAG_LENGTH];
 	@GuardedBy("lock")
 	private final Map<ContactId, MutableTransportKeySet>
 			contactOutContexts = new HashMap<>();
@@ -75,6 +107,7 @@ class TransportKeyManagerImpl implements TransportKeyManager {
 	TransportKeyManagerImpl(DatabaseComponent db,
 			TransportCrypto transportCrypto,
 			Executor dbExecutor,
+			Executor cryptoExecutor,
 			TaskScheduler scheduler,
 			Clock clock,
 			TransportId transportId,
@@ -82,6 +115,7 @@ class TransportKeyManagerImpl implements TransportKeyManager {
 		this.db = db;
 		this.transportCrypto = transportCrypto;
 		this.dbExecutor = dbExecutor;
+		this.cryptoExecutor = cryptoExecutor;
 		this.scheduler = scheduler;
 		this.clock = clock;
 		this.transportId = transportId;
@@ -162,13 +196,15 @@ class TransportKeyManagerImpl implements TransportKeyManager {
 	private void encodeTags(KeySetId keySetId, @Nullable ContactId contactId,
 			@Nullable PendingContactId pendingContactId,
 			MutableIncomingKeys inKeys, boolean handshakeMode) {
-		for (long streamNumber : inKeys.getWindow().getUnseen()) {
-			TagContext tagCtx = new TagContext(keySetId, contactId,
-					pendingContactId, inKeys, streamNumber, handshakeMode);
-			byte[] tag = new byte[TAG_LENGTH];
-			transportCrypto.encodeTag(tag, inKeys.getTagKey(), PROTOCOL_VERSION,
-					streamNumber);
-			inContexts.put(new Bytes(tag), tagCtx);
+		// All tags derived from the same keys share a context
+		TagContext tagCtx = new TagContext(keySetId, contactId,
+				pendingContactId, inKeys, handshakeMode);
+		ReorderingWindow window = inKeys.getWindow();
+		for (long streamNumber = window.getNextUnseen(0); streamNumber != -1;
+				streamNumber = window.getNextUnseen(streamNumber + 1)) {
+			transportCrypto.encodeTag(tagBuffer, inKeys.getTagKey(),
+					PROTOCOL_VERSION, streamNumber);
+			inContexts.put(tagBuffer, tagCtx, streamNumber);
 		}
 	}
 
@@ -199,18 +235,125 @@ class TransportKeyManagerImpl implements TransportKeyManager {
 	}
 
 	private void scheduleKeyUpdate(long now) {
-		long delay = timePeriodLength - now % timePeriodLength;
-		scheduler.schedule(this::updateKeys, dbExecutor, delay, MILLISECONDS);
+		// Prepare the update for the next time period ahead of time
+		long timePeriod = now / timePeriodLength + 1;
+		long delay = timePeriod * timePeriodLength - now;
+		scheduler.schedule(() -> prepareKeyUpdate(timePeriod), cryptoExecutor,
+				max(0, delay - KEY_UPDATE_LEAD_TIME), MILLISECONDS);
+	}
+
+	@CryptoExecutor
+	private void prepareKeyUpdate(long timePeriod) {
+		KeyUpdate update = createKeyUpdate(timePeriod);
+		// Apply the update at the start of the time period
+		long delay = timePeriod * timePeriodLength - clock.currentTimeMillis();
+		scheduler.schedule(() -> applyKeyUpdate(update), dbExecutor,
+				max(0, delay), MILLISECONDS);
 	}
 
 	@DatabaseExecutor
 	@Wakeful
-	private void updateKeys() {
+	private void applyKeyUpdate(KeyUpdate update) {
+		long now = clock.currentTimeMillis();
+		long timePeriod = now / timePeriodLength;
+		if (update.timePeriod != timePeriod) {
+			// The update was prepared for another time period, for example
+			// because the device was asleep at the start of the period.
+			// Prepare an update for the current period on the crypto
+			// executor, rather than deriving keys on the DB executor
+			cryptoExecutor.execute(() -> prepareKeyUpdate(timePeriod));
+			return;
+		}
+		addMissingKeySetUpdates(update);
 		try {
-			db.transaction(false, this::updateKeys);
+			db.transaction(false, txn -> applyKeyUpdate(txn, update));
 		} catch (DbException e) {
 			logException(LOG, WARNING, e);
 		}
+		// Schedule the next key update
+		scheduleKeyUpdate(now);
+	}
+
+	/**
+	 * Adds updates for any key sets that were added after the given update
+	 * was prepared. The lock is only held while taking a snapshot of the
+	 * new key sets.
+	 */
+	private void addMissingKeySetUpdates(KeyUpdate update) {
+		List<TransportKeySet> added = new ArrayList<>();
+		lock.lock();
+		try {
+			for (MutableTransportKeySet ks : keys.values()) {
+				if (!update.keySets.containsKey(ks.getKeySetId())) {
+					added.add(new TransportKeySet(ks.getKeySetId(),
+							ks.getContactId(), ks.getPendingContactId(),
+							ks.getKeys().snapshot()));
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+		for (TransportKeySet ks : added) {
+			update.keySets.put(ks.getKeySetId(),
+					createKeySetUpdate(ks.getKeys(), update.timePeriod));
+		}
+	}
+
+	/**
+	 * Derives the keys for the given time period and encodes the tags for
+	 * any new incoming keys. The lock is only held while taking a snapshot
+	 * of the current keys.
+	 */
+	private KeyUpdate createKeyUpdate(long timePeriod) {
+		List<TransportKeySet> snapshot;
+		lock.lock();
+		try {
+			snapshot = snapshotKeys();
+		} finally {
+			lock.unlock();
+		}
+		KeyUpdate update = new KeyUpdate(timePeriod);
+		for (TransportKeySet ks : snapshot) {
+			update.keySets.put(ks.getKeySetId(),
+					createKeySetUpdate(ks.getKeys(), timePeriod));
+		}
+		return update;
+	}
+
+	private KeySetUpdate createKeySetUpdate(TransportKeys k,
+			long timePeriod) {
+		TransportKeys k1 = transportCrypto.updateTransportKeys(k, timePeriod);
+		KeySetUpdate update = new KeySetUpdate(k1);
+		if (k1.getTimePeriod() > k.getTimePeriod()) {
+			// Encode the tags for any incoming keys that weren't retained
+			for (IncomingKeys in : asList(k1.getPreviousIncomingKeys(),
+					k1.getCurrentIncomingKeys(), k1.getNextIncomingKeys())) {
+				if (!hasIncomingKeys(k, in.getTimePeriod()))
+					update.tags.add(encodeTags(in));
+			}
+		}
+		return update;
+	}
+
+	private boolean hasIncomingKeys(TransportKeys k, long timePeriod) {
+		return k.getPreviousIncomingKeys().getTimePeriod() == timePeriod ||
+				k.getCurrentIncomingKeys().getTimePeriod() == timePeriod ||
+				k.getNextIncomingKeys().getTimePeriod() == timePeriod;
+	}
+
+	private EncodedTags encodeTags(IncomingKeys in) {
+		ReorderingWindow window = new ReorderingWindow(in.getWindowBase(),
+				in.getWindowBitmap());
+		EncodedTags encoded = new EncodedTags(in.getTimePeriod(),
+				in.getWindowBitmap().length * 8);
+		byte[] tag = new byte[TAG_LENGTH];
+		for (long streamNumber = window.getNextUnseen(0); streamNumber != -1;
+				streamNumber = window.getNextUnseen(streamNumber + 1)) {
+			transportCrypto.encodeTag(tag, in.getTagKey(), PROTOCOL_VERSION,
+					streamNumber);
+			encoded.add(tag, streamNumber);
+		}
+		return encoded;
 	}
 
 	@Override
@@ -297,13 +440,11 @@ class TransportKeyManagerImpl implements TransportKeyManager {
 		lock.lock();
 		try {
 			// Remove mutable state for the contact
-			Iterator<TagContext> it = inContexts.values().iterator();
-			while (it.hasNext())
-				if (c.equals(it.next().contactId)) it.remove();
+			inContexts.removeIf(tagCtx -> c.equals(tagCtx.contactId));
 			contactOutContexts.remove(c);
-			Iterator<MutableTransportKeySet> it1 = keys.values().iterator();
-			while (it1.hasNext())
-				if (c.equals(it1.next().getContactId())) it1.remove();
+			Iterator<MutableTransportKeySet> it = keys.values().iterator();
+			while (it.hasNext())
+				if (c.equals(it.next().getContactId())) it.remove();
 		} finally {
 			lock.unlock();
 		}
@@ -314,13 +455,11 @@ class TransportKeyManagerImpl implements TransportKeyManager {
 		lock.lock();
 		try {
 			// Remove mutable state for the pending contact
-			Iterator<TagContext> it = inContexts.values().iterator();
-			while (it.hasNext())
-				if (p.equals(it.next().pendingContactId)) it.remove();
+			inContexts.removeIf(tagCtx -> p.equals(tagCtx.pendingContactId));
 			pendingContactOutContexts.remove(p);
-			Iterator<MutableTransportKeySet> it1 = keys.values().iterator();
-			while (it1.hasNext())
-				if (p.equals(it1.next().getPendingContactId())) it1.remove();
+			Iterator<MutableTransportKeySet> it = keys.values().iterator();
+			while (it.hasNext())
+				if (p.equals(it.next().getPendingContactId())) it.remove();
 		} finally {
 			lock.unlock();
 		}
@@ -350,6 +489,33 @@ class TransportKeyManagerImpl implements TransportKeyManager {
 		}
 	}
 
+	@Override
+	public StreamContext getLeasedStreamContext(ContactId c) {
+		return getLeasedStreamContext(c, null);
+	}
+
+	@Override
+	public StreamContext getLeasedStreamContext(PendingContactId p) {
+		return getLeasedStreamContext(null, p);
+	}
+
+	@Nullable
+	private StreamContext getLeasedStreamContext(@Nullable ContactId c,
+			@Nullable PendingContactId p) {
+		lock.lock();
+		try {
+			// Look up the outgoing keys for the contact
+			MutableTransportKeySet ks = getOutgoingKeySet(c, p);
+			if (ks == null) return null;
+			MutableOutgoingKeys outKeys = ks.getKeys().getCurrentOutgoingKeys();
+			if (!outKeys.isActive()) throw new AssertionError();
+			if (!outKeys.isStreamCounterLeased()) return null;
+			return createStreamContext(c, p, ks);
+		} finally {
+			lock.unlock();
+		}
+	}
+
 	@Override
 	public StreamContext getStreamContext(Transaction txn, ContactId c)
 			throws DbException {
@@ -375,14 +541,57 @@ class TransportKeyManagerImpl implements TransportKeyManager {
 			MutableOutgoingKeys outKeys = keys.getCurrentOutgoingKeys();
 			if (!outKeys.isActive()) throw new AssertionError();
 			if (outKeys.getStreamCounter() > MAX_32_BIT_UNSIGNED) return null;
-			// Create a stream context
-			StreamContext ctx = new StreamContext(c, p, transportId,
-					outKeys.getTagKey(), outKeys.getHeaderKey(),
-					outKeys.getStreamCounter(), keys.isHandshakeMode());
-			// Increment the stream counter and write it back to the DB
-			outKeys.incrementStreamCounter();
-			db.incrementStreamCounter(txn, transportId, ks.getKeySetId());
-			return ctx;
+			if (!outKeys.isStreamCounterLeased()) {
+				// Reserve a block of stream numbers, starting with this one
+				long leaseEnd = min(outKeys.getStreamCounter() +
+						STREAM_COUNTER_LEASE, MAX_32_BIT_UNSIGNED + 1);
+				db.setStreamCounter(txn, transportId, ks.getKeySetId(),
+						leaseEnd);
+				// Don't use the rest of the block until it's been committed
+				txn.attach(() -> extendLease(outKeys, leaseEnd));
+			}
+			return createStreamContext(c, p, ks);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void releaseStreamCounterLeases(Transaction txn)
+			throws DbException {
+		lock.lock();
+		try {
+			for (MutableTransportKeySet ks : keys.values()) {
+				MutableOutgoingKeys outKeys =
+						ks.getKeys().getCurrentOutgoingKeys();
+				if (!outKeys.isStreamCounterLeased()) continue;
+				db.setStreamCounter(txn, transportId, ks.getKeySetId(),
+						outKeys.getStreamCounter());
+				// Stop using the lease now, so a stream number that's used
+				// before the transaction commits can't be used again
+				outKeys.releaseLease();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@GuardedBy("lock")
+	private StreamContext createStreamContext(@Nullable ContactId c,
+			@Nullable PendingContactId p, MutableTransportKeySet ks) {
+		MutableTransportKeys keys = ks.getKeys();
+		MutableOutgoingKeys outKeys = keys.getCurrentOutgoingKeys();
+		StreamContext ctx = new StreamContext(c, p, transportId,
+				outKeys.getTagKey(), outKeys.getHeaderKey(),
+				outKeys.getStreamCounter(), keys.isHandshakeMode());
+		outKeys.incrementStreamCounter();
+		return ctx;
+	}
+
+	private void extendLease(MutableOutgoingKeys outKeys, long leaseEnd) {
+		lock.lock();
+		try {
+			outKeys.extendLease(leaseEnd);
 		} finally {
 			lock.unlock();
 		}
@@ -393,9 +602,10 @@ class TransportKeyManagerImpl implements TransportKeyManager {
 			throws DbException {
 		lock.lock();
 		try {
-			StreamContext ctx = streamContextFromTag(tag);
-			if (ctx == null) return null;
-			markTagAsRecognised(txn, tag);
+			int slot = inContexts.find(tag);
+			if (slot == -1) return null;
+			StreamContext ctx = streamContextFromSlot(slot);
+			markTagAsRecognised(txn, slot);
 			return ctx;
 		} finally {
 			lock.unlock();
@@ -406,52 +616,62 @@ class TransportKeyManagerImpl implements TransportKeyManager {
 	public StreamContext getStreamContextOnly(Transaction txn, byte[] tag) {
 		lock.lock();
 		try {
-			return streamContextFromTag(tag);
+			// Look up the incoming keys for the tag
+			int slot = inContexts.find(tag);
+			if (slot == -1) return null;
+			return streamContextFromSlot(slot);
 		} finally {
 			lock.unlock();
 		}
 	}
 
 	@GuardedBy("lock")
-	@Nullable
-	private StreamContext streamContextFromTag(byte[] tag) {
-		// Look up the incoming keys for the tag
-		TagContext tagCtx = inContexts.get(new Bytes(tag));
-		if (tagCtx == null) return null;
+	private StreamContext streamContextFromSlot(int slot) {
+		TagContext tagCtx = inContexts.getValue(slot);
 		MutableIncomingKeys inKeys = tagCtx.inKeys;
 		// Create a stream context
 		return new StreamContext(tagCtx.contactId,
 				tagCtx.pendingContactId, transportId,
 				inKeys.getTagKey(), inKeys.getHeaderKey(),
-				tagCtx.streamNumber, tagCtx.handshakeMode);
+				inContexts.getStreamNumber(slot), tagCtx.handshakeMode);
 	}
 
 	@Override
 	public void markTagAsRecognised(Transaction txn, byte[] tag)
 			throws DbException {
-		TagContext tagCtx = inContexts.remove(new Bytes(tag));
-		if (tagCtx == null) return;
+		lock.lock();
+		try {
+			int slot = inContexts.find(tag);
+			if (slot != -1) markTagAsRecognised(txn, slot);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@GuardedBy("lock")
+	private void markTagAsRecognised(Transaction txn, int slot)
+			throws DbException {
+		TagContext tagCtx = inContexts.getValue(slot);
+		long seen = inContexts.getStreamNumber(slot);
+		inContexts.remove(slot);
 		MutableIncomingKeys inKeys = tagCtx.inKeys;
 		// Update the reordering window
 		ReorderingWindow window = inKeys.getWindow();
-		Change change = window.setSeen(tagCtx.streamNumber);
+		Change change = window.setSeen(seen);
 		// Add tags for any stream numbers added to the window
-		for (long streamNumber : change.getAdded()) {
-			byte[] addTag = new byte[TAG_LENGTH];
-			transportCrypto.encodeTag(addTag, inKeys.getTagKey(),
+		for (int i = 0; i < change.getAddedCount(); i++) {
+			long streamNumber = change.getAdded(i);
+			transportCrypto.encodeTag(tagBuffer, inKeys.getTagKey(),
 					PROTOCOL_VERSION, streamNumber);
-			TagContext tagCtx1 = new TagContext(tagCtx.keySetId,
-					tagCtx.contactId, tagCtx.pendingContactId, inKeys,
-					streamNumber, tagCtx.handshakeMode);
-			inContexts.put(new Bytes(addTag), tagCtx1);
+			inContexts.put(tagBuffer, tagCtx, streamNumber);
 		}
 		// Remove tags for any stream numbers removed from the window
-		for (long streamNumber : change.getRemoved()) {
-			if (streamNumber == tagCtx.streamNumber) continue;
-			byte[] removeTag = new byte[TAG_LENGTH];
-			transportCrypto.encodeTag(removeTag, inKeys.getTagKey(),
+		for (int i = 0; i < change.getRemovedCount(); i++) {
+			long streamNumber = change.getRemoved(i);
+			if (streamNumber == seen) continue;
+			transportCrypto.encodeTag(tagBuffer, inKeys.getTagKey(),
 					PROTOCOL_VERSION, streamNumber);
-			inContexts.remove(new Bytes(removeTag));
+			inContexts.remove(tagBuffer);
 		}
 		// Write the window back to the DB
 		db.setReorderingWindow(txn, tagCtx.keySetId, transportId,
@@ -470,33 +690,127 @@ class TransportKeyManagerImpl implements TransportKeyManager {
 	}
 
 	@DatabaseExecutor
-	@Wakeful
-	private void updateKeys(Transaction txn) throws DbException {
-		long now = clock.currentTimeMillis();
+	private void applyKeyUpdate(Transaction txn, KeyUpdate update)
+			throws DbException {
 		lock.lock();
 		try {
-			// Update the keys to the current time period
-			Collection<TransportKeySet> snapshot = new ArrayList<>(keys.size());
-			for (MutableTransportKeySet ks : keys.values()) {
-				snapshot.add(new TransportKeySet(ks.getKeySetId(),
-						ks.getContactId(), ks.getPendingContactId(),
-						ks.getKeys().snapshot()));
+			Collection<TransportKeySet> updated = new ArrayList<>();
+			Set<MutableIncomingKeys> retired =
+					newSetFromMap(new IdentityHashMap<>());
+			for (Entry<KeySetId, MutableTransportKeySet> e : keys.entrySet()) {
+				MutableTransportKeySet ks = e.getValue();
+				MutableTransportKeys m = ks.getKeys();
+				KeySetUpdate u = update.keySets.get(e.getKey());
+				// If the keys were added since the missing updates were
+				// added, update them now. This is bounded by the number of
+				// key sets added in that short window, usually none
+				if (u == null) {
+					u = createKeySetUpdate(m.snapshot(), update.timePeriod);
+				}
+				long oldPeriod = m.getCurrentOutgoingKeys().getTimePeriod();
+				if (u.keys.getTimePeriod() <= oldPeriod) continue;
+				MutableTransportKeySet ks1 = rotateKeys(ks, u, retired);
+				e.setValue(ks1);
+				updated.add(new TransportKeySet(ks1.getKeySetId(),
+						ks1.getContactId(), ks1.getPendingContactId(),
+						ks1.getKeys().snapshot()));
 			}
-			UpdateResult updateResult = updateKeys(snapshot, now);
-			// Rebuild the mutable state for all contacts
-			inContexts.clear();
-			contactOutContexts.clear();
-			pendingContactOutContexts.clear();
-			keys.clear();
-			addKeys(updateResult.current);
+			// Remove the tags for any incoming keys that weren't retained
+			if (!retired.isEmpty())
+				inContexts.removeIf(tagCtx -> retired.contains(tagCtx.inKeys));
 			// Write any updated keys back to the DB
-			if (!updateResult.updated.isEmpty())
-				db.updateTransportKeys(txn, updateResult.updated);
+			if (!updated.isEmpty()) db.updateTransportKeys(txn, updated);
 		} finally {
 			lock.unlock();
 		}
-		// Schedule the next key update
-		scheduleKeyUpdate(now);
+	}
+
+	@GuardedBy("lock")
+	private List<TransportKeySet> snapshotKeys() {
+		List<TransportKeySet> snapshot = new ArrayList<>(keys.size());
+		for (MutableTransportKeySet ks : keys.values()) {
+			snapshot.add(new TransportKeySet(ks.getKeySetId(),
+					ks.getContactId(), ks.getPendingContactId(),
+					ks.getKeys().snapshot()));
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Replaces the given key set with one containing the updated keys.
+	 * Incoming keys that are retained keep their reordering windows and
+	 * tags, so the only work done here is adding the pre-computed tags for
+	 * new incoming keys. Incoming keys that aren't retained are added to
+	 * the given set.
+	 */
+	@GuardedBy("lock")
+	private MutableTransportKeySet rotateKeys(MutableTransportKeySet ks,
+			KeySetUpdate u, Set<MutableIncomingKeys> retired) {
+		MutableTransportKeys m = ks.getKeys();
+		TransportKeys k1 = u.keys;
+		MutableIncomingKeys inPrev =
+				rotateIncomingKeys(ks, k1.getPreviousIncomingKeys(), u);
+		MutableIncomingKeys inCurr =
+				rotateIncomingKeys(ks, k1.getCurrentIncomingKeys(), u);
+		MutableIncomingKeys inNext =
+				rotateIncomingKeys(ks, k1.getNextIncomingKeys(), u);
+		for (MutableIncomingKeys in : asList(m.getPreviousIncomingKeys(),
+				m.getCurrentIncomingKeys(), m.getNextIncomingKeys())) {
+			if (in != inPrev && in != inCurr && in != inNext) retired.add(in);
+		}
+		MutableOutgoingKeys outCurr = m.getCurrentOutgoingKeys();
+		boolean active = outCurr.isActive();
+		if (k1.getCurrentOutgoingKeys().getTimePeriod() !=
+				outCurr.getTimePeriod()) {
+			outCurr = new MutableOutgoingKeys(k1.getCurrentOutgoingKeys());
+			// The keys may have been activated since the update was prepared
+			if (active) outCurr.activate();
+		}
+		MutableTransportKeys m1;
+		if (k1.isHandshakeMode()) {
+			m1 = new MutableTransportKeys(transportId, inPrev, inCurr,
+					inNext, outCurr, k1.getRootKey(), k1.isAlice());
+		} else {
+			m1 = new MutableTransportKeys(transportId, inPrev, inCurr,
+					inNext, outCurr, null, false);
+		}
+		MutableTransportKeySet ks1 = new MutableTransportKeySet(
+				ks.getKeySetId(), ks.getContactId(), ks.getPendingContactId(),
+				m1);
+		// Use the new key set for outgoing streams if the old one was used
+		if (getOutgoingKeySet(ks.getContactId(), ks.getPendingContactId())
+				== ks) {
+			if (ks.getContactId() == null)
+				pendingContactOutContexts.put(ks.getPendingContactId(), ks1);
+			else contactOutContexts.put(ks.getContactId(), ks1);
+		} else {
+			considerReplacingOutgoingKeys(ks1);
+		}
+		return ks1;
+	}
+
+	@GuardedBy("lock")
+	private MutableIncomingKeys rotateIncomingKeys(MutableTransportKeySet ks,
+			IncomingKeys in, KeySetUpdate u) {
+		MutableTransportKeys m = ks.getKeys();
+		long timePeriod = in.getTimePeriod();
+		// Retain any existing keys for the period, with their windows
+		for (MutableIncomingKeys inKeys : asList(m.getPreviousIncomingKeys(),
+				m.getCurrentIncomingKeys(), m.getNextIncomingKeys())) {
+			if (inKeys.getTimePeriod() == timePeriod) return inKeys;
+		}
+		// Add the pre-computed tags for the new keys
+		EncodedTags encoded = u.getTags(timePeriod);
+		if (encoded == null) throw new AssertionError();
+		MutableIncomingKeys inKeys = new MutableIncomingKeys(in);
+		TagContext tagCtx = new TagContext(ks.getKeySetId(),
+				ks.getContactId(), ks.getPendingContactId(), inKeys,
+				m.isHandshakeMode());
+		for (int i = 0; i < encoded.count; i++) {
+			inContexts.put(encoded.tags, i * TAG_LENGTH, tagCtx,
+					encoded.streamNumbers[i]);
+		}
+		return inKeys;
 	}
 
 	private static class TagContext {
@@ -507,19 +821,16 @@ class TransportKeyManagerImpl implements TransportKeyManager {
 		@Nullable
 		private final PendingContactId pendingContactId;
 		private final MutableIncomingKeys inKeys;
-		private final long streamNumber;
 		private final boolean handshakeMode;
 
 		private TagContext(KeySetId keySetId, @Nullable ContactId contactId,
 				@Nullable PendingContactId pendingContactId,
-				MutableIncomingKeys inKeys, long streamNumber,
-				boolean handshakeMode) {
+				MutableIncomingKeys inKeys, boolean handshakeMode) {
 			requireExactlyOneNull(contactId, pendingContactId);
 			this.keySetId = keySetId;
 			this.contactId = contactId;
 			this.pendingContactId = pendingContactId;
 			this.inKeys = inKeys;
-			this.streamNumber = streamNumber;
 			this.handshakeMode = handshakeMode;
 		}
 	}
@@ -529,4 +840,55 @@ class TransportKeyManagerImpl implements TransportKeyManager {
 		private final Collection<TransportKeySet> current = new ArrayList<>();
 		private final Collection<TransportKeySet> updated = new ArrayList<>();
 	}
+
+	/**
+	 * Keys that have been derived for a time period, with the tags for any
+	 * new incoming keys, ready to be swapped in at the start of the period.
+	 */
+	private static class KeyUpdate {
+
+		private final long timePeriod;
+		private final Map<KeySetId, KeySetUpdate> keySets = new HashMap<>();
+
+		private KeyUpdate(long timePeriod) {
+			this.timePeriod = timePeriod;
+		}
+	}
+
+	private static class KeySetUpdate {
+
+		private final TransportKeys keys;
+		private final List<EncodedTags> tags = new ArrayList<>();
+
+		private KeySetUpdate(TransportKeys keys) {
+			this.keys = keys;
+		}
+
+		@Nullable
+		private EncodedTags getTags(long timePeriod) {
+			for (EncodedTags encoded : tags) {
+				if (encoded.timePeriod == timePeriod) return encoded;
+			}
+			return null;
+		}
+	}
+
+	private static class EncodedTags {
+
+		private final long timePeriod;
+		private final byte[] tags;
+		private final long[] streamNumbers;
+		private int count = 0;
+
+		private EncodedTags(long timePeriod, int maxTags) {
+			this.timePeriod = timePeriod;
+			tags = new byte[maxTags * TAG_LENGTH];
+			streamNumbers = new long[maxTags];
+		}
+
+		private void add(byte[] tag, long streamNumber) {
+			arraycopy(tag, 0, tags, count * TAG_LENGTH, TAG_LENGTH);
+			streamNumbers[count++] = streamNumber;
+		}
+	}
 }
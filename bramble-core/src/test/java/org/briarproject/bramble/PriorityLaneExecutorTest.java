@@ -0,0 +1,155 @@
+package org.briarproject.bramble;
+
+import org.briarproject.bramble.test.BrambleTestCase;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.Arrays.asList;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PriorityLaneExecutorTest extends BrambleTestCase {
+
+	private static final String TAG = "Test";
+	private static final int TASKS = 10;
+
+	@Test
+	public void testTasksDoNotRunInParallelOnDelegate() throws Exception {
+		// Delegate to a multi-threaded executor
+		Executor delegate = Executors.newCachedThreadPool();
+		PriorityLaneExecutor executor =
+				new PriorityLaneExecutor(TAG, delegate);
+		List<Integer> list = new Vector<>();
+		CountDownLatch latch = new CountDownLatch(TASKS);
+		for (int i = 0; i < TASKS; i++) {
+			int result = i;
+			executor.execute(() -> {
+				try {
+					// Each task runs faster than the previous task
+					Thread.sleep(TASKS - result);
+					list.add(result);
+				} catch (InterruptedException e) {
+					fail();
+				}
+				latch.countDown();
+			});
+		}
+		// Wait for all the tasks to finish
+		latch.await();
+		// The tasks should have finished in the order they were submitted
+		assertEquals(ascendingOrder(0, TASKS), list);
+	}
+
+	@Test
+	public void testPriorityTasksRunBeforeWaitingTasks() throws Exception {
+		// Delegate to a multi-threaded executor
+		Executor delegate = Executors.newCachedThreadPool();
+		PriorityLaneExecutor executor =
+				new PriorityLaneExecutor(TAG, delegate);
+		Executor priorityLane = executor.getPriorityLane();
+		List<Integer> list = new Vector<>();
+		CountDownLatch firstTaskStarted = new CountDownLatch(1);
+		CountDownLatch allTasksSubmitted = new CountDownLatch(1);
+		CountDownLatch latch = new CountDownLatch(TASKS * 2 + 1);
+		// The first task waits until all the other tasks have been submitted
+		executor.execute(() -> {
+			firstTaskStarted.countDown();
+			try {
+				assertTrue(allTasksSubmitted.await(10, SECONDS));
+			} catch (InterruptedException e) {
+				fail();
+			}
+			latch.countDown();
+		});
+		assertTrue(firstTaskStarted.await(10, SECONDS));
+		// Submit normal and priority tasks alternately
+		for (int i = 0; i < TASKS; i++) {
+			int normal = TASKS + i, priority = i;
+			executor.execute(() -> {
+				list.add(normal);
+				latch.countDown();
+			});
+			priorityLane.execute(() -> {
+				list.add(priority);
+				latch.countDown();
+			});
+		}
+		allTasksSubmitted.countDown();
+		// Wait for all the tasks to finish
+		assertTrue(latch.await(10, SECONDS));
+		// The priority tasks should have run first, and the tasks in each
+		// lane should have run in the order they were submitted
+		assertEquals(ascendingOrder(0, TASKS * 2), list);
+	}
+
+	@Test
+	public void testRejectedTasksAreDiscarded() {
+		// Delegate to an executor that rejects every other task
+		AtomicInteger submitted = new AtomicInteger(0);
+		Executor delegate = r -> {
+			if (submitted.getAndIncrement() % 2 == 0)
+				throw new RejectedExecutionException();
+			r.run();
+		};
+		PriorityLaneExecutor executor =
+				new PriorityLaneExecutor(TAG, delegate);
+		List<Integer> list = new ArrayList<>();
+		for (int i = 0; i < TASKS; i++) {
+			int result = i;
+			executor.execute(() -> list.add(result));
+		}
+		// The rejected tasks should have been discarded, and the executor
+		// should have kept delegating the other tasks
+		List<Integer> expected = new ArrayList<>();
+		for (int i = 1; i < TASKS; i += 2) expected.add(i);
+		assertEquals(expected, list);
+	}
+
+	@Test
+	public void testWaitingTaskIsDelegatedIfNextTaskIsRejected() {
+		// Delegate to an executor that rejects the second task
+		List<Runnable> accepted = new ArrayList<>();
+		AtomicInteger submitted = new AtomicInteger(0);
+		Executor delegate = r -> {
+			if (submitted.getAndIncrement() == 1)
+				throw new RejectedExecutionException();
+			accepted.add(r);
+		};
+		PriorityLaneExecutor executor =
+				new PriorityLaneExecutor(TAG, delegate);
+		List<Integer> list = new ArrayList<>();
+		for (int i = 0; i < 3; i++) {
+			int result = i;
+			executor.execute(() -> list.add(result));
+		}
+		// Only the first task has been delegated so far
+		assertEquals(1, accepted.size());
+		// When the first task finishes, the second task should be rejected
+		// and the third task should be delegated instead
+		accepted.get(0).run();
+		assertEquals(2, accepted.size());
+		accepted.get(1).run();
+		assertEquals(asList(0, 2), list);
+		// The executor should still accept new tasks
+		executor.execute(() -> list.add(3));
+		assertEquals(3, accepted.size());
+		accepted.get(2).run();
+		assertEquals(asList(0, 2, 3), list);
+	}
+
+	private List<Integer> ascendingOrder(int start, int end) {
+		List<Integer> list = new ArrayList<>(end - start);
+		for (int i = start; i < end; i++) list.add(i);
+		return list;
+	}
+}
@@ -0,0 +1,78 @@
+package org.briarproject.bramble.crypto;
+
+import org.briarproject.bramble.api.crypto.SecretKey;
+
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.briarproject.bramble.api.transport.TransportConstants.FRAME_HEADER_PLAINTEXT_LENGTH;
+import static org.briarproject.bramble.api.transport.TransportConstants.FRAME_NONCE_LENGTH;
+import static org.briarproject.bramble.api.transport.TransportConstants.MAC_LENGTH;
+import static org.briarproject.bramble.api.transport.TransportConstants.MAX_PAYLOAD_LENGTH;
+import static org.briarproject.bramble.test.TestUtils.getRandomBytes;
+import static org.briarproject.bramble.test.TestUtils.getSecretKey;
+
+// Not a JUnit test
+public class AuthenticatedCipherPerformanceTest {
+
+	private static final int WARMUP_FRAMES = 100_000;
+	private static final int SAMPLES = 50;
+	private static final int FRAMES_PER_SAMPLE = 10_000;
+
+	public static void main(String[] args) throws GeneralSecurityException {
+		for (int i = 0; i < 2; i++) {
+			runTest("BouncyCastle",
+					new BouncyCastleXSalsa20Poly1305AuthenticatedCipher());
+			runTest("XSalsa20Poly1305",
+					new XSalsa20Poly1305AuthenticatedCipher());
+		}
+	}
+
+	private static void runTest(String name, AuthenticatedCipher cipher)
+			throws GeneralSecurityException {
+		SecretKey key = getSecretKey();
+		byte[] nonce = getRandomBytes(FRAME_NONCE_LENGTH);
+		byte[] header = getRandomBytes(FRAME_HEADER_PLAINTEXT_LENGTH);
+		byte[] payload = getRandomBytes(MAX_PAYLOAD_LENGTH);
+		byte[] ciphertext = new byte[MAX_PAYLOAD_LENGTH + MAC_LENGTH];
+		// Each frame has an encrypted header and payload, like the frames
+		// written by StreamEncrypterImpl
+		for (int i = 0; i < WARMUP_FRAMES; i++) {
+			encryptFrame(cipher, key, nonce, header, payload, ciphertext);
+		}
+		List<Long> samples = new ArrayList<>();
+		for (int i = 0; i < SAMPLES; i++) {
+			long start = System.nanoTime();
+			for (int j = 0; j < FRAMES_PER_SAMPLE; j++) {
+				encryptFrame(cipher, key, nonce, header, payload, ciphertext);
+			}
+			samples.add(System.nanoTime() - start);
+		}
+		long median = median(samples);
+		long bytes = (long) FRAMES_PER_SAMPLE *
+				(FRAME_HEADER_PLAINTEXT_LENGTH + MAX_PAYLOAD_LENGTH);
+		System.out.println(String.format("%s: %,d ns per frame, %.1f MB/s",
+				name, median / FRAMES_PER_SAMPLE, bytes * 1000.0 / median));
+	}
+
+	private static void encryptFrame(AuthenticatedCipher cipher,
+			SecretKey key, byte[] nonce, byte[] header, byte[] payload,
+			byte[] ciphertext) throws GeneralSecurityException {
+		nonce[0]++;
+		cipher.init(true, key, nonce);
+		cipher.process(header, 0, header.length, ciphertext, 0);
+		nonce[0]++;
+		cipher.init(true, key, nonce);
+		cipher.process(payload, 0, payload.length, ciphertext, 0);
+	}
+
+	private static long median(List<Long> list) {
+		int size = list.size();
+		if (size == 0) throw new IllegalArgumentException();
+		Collections.sort(list);
+		if (size % 2 == 1) return list.get(size / 2);
+		return (list.get(size / 2 - 1) + list.get(size / 2)) / 2;
+	}
+}
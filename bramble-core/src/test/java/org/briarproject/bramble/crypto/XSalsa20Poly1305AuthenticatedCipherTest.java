@@ -9,6 +9,9 @@ import org.junit.Test;
 import java.security.GeneralSecurityException;
 import java.util.Random;
 
+import static java.util.Arrays.copyOfRange;
+import static org.briarproject.bramble.test.TestUtils.getRandomBytes;
+import static org.briarproject.bramble.test.TestUtils.getSecretKey;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 
@@ -95,4 +98,47 @@ public class XSalsa20Poly1305AuthenticatedCipherTest extends BrambleTestCase {
 		byte[] output = new byte[TEST_PLAINTEXT.length];
 		cipher.process(input, 0, input.length, output, 0);
 	}
+
+	@Test
+	public void testCompatibleWithBouncyCastle() throws Exception {
+		Random random = new Random();
+		AuthenticatedCipher cipher = new XSalsa20Poly1305AuthenticatedCipher();
+		AuthenticatedCipher reference =
+				new BouncyCastleXSalsa20Poly1305AuthenticatedCipher();
+		int macBytes = cipher.getMacBytes();
+		// The cipher is reused, with lengths crossing block boundaries
+		for (int i = 0; i < 1000; i++) {
+			SecretKey k = getSecretKey();
+			byte[] iv = getRandomBytes(TEST_IV.length);
+			int len = random.nextInt(2048);
+			int off = random.nextInt(8);
+			byte[] plaintext = getRandomBytes(off + len);
+			byte[] expected = new byte[macBytes + len];
+			reference.init(true, k, iv);
+			reference.process(plaintext, off, len, expected, 0);
+			// Encrypt
+			byte[] ciphertext = new byte[off + macBytes + len];
+			cipher.init(true, k, iv);
+			assertEquals(macBytes + len,
+					cipher.process(plaintext, off, len, ciphertext, off));
+			assertArrayEquals(expected, copyOfRange(ciphertext, off,
+					ciphertext.length));
+			// Decrypt
+			byte[] output = new byte[off + len];
+			cipher.init(false, k, iv);
+			assertEquals(len, cipher.process(ciphertext, off, macBytes + len,
+					output, off));
+			assertArrayEquals(copyOfRange(plaintext, off, plaintext.length),
+					copyOfRange(output, off, output.length));
+		}
+	}
+
+	@Test(expected = GeneralSecurityException.class)
+	public void testEncryptFailsWithShortOutput() throws Exception {
+		SecretKey k = new SecretKey(TEST_KEY);
+		AuthenticatedCipher cipher = new XSalsa20Poly1305AuthenticatedCipher();
+		cipher.init(true, k, TEST_IV);
+		byte[] output = new byte[TEST_CIPHERTEXT.length - 1];
+		cipher.process(TEST_PLAINTEXT, 0, TEST_PLAINTEXT.length, output, 0);
+	}
 }
@@ -11,6 +11,7 @@ import org.briarproject.bramble.api.crypto.PublicKey;
 import org.briarproject.bramble.api.crypto.SecretKey;
 import org.briarproject.bramble.api.db.ContactExistsException;
 import org.briarproject.bramble.api.db.DatabaseComponent;
+import org.briarproject.bramble.api.db.DbException;
 import org.briarproject.bramble.api.db.Metadata;
 import org.briarproject.bramble.api.db.NoSuchContactException;
 import org.briarproject.bramble.api.db.NoSuchGroupException;
@@ -18,6 +19,7 @@ import org.briarproject.bramble.api.db.NoSuchIdentityException;
 import org.briarproject.bramble.api.db.NoSuchMessageException;
 import org.briarproject.bramble.api.db.NoSuchPendingContactException;
 import org.briarproject.bramble.api.db.NoSuchTransportException;
+import org.briarproject.bramble.api.db.Transaction;
 import org.briarproject.bramble.api.event.Event;
 import org.briarproject.bramble.api.event.EventBus;
 import org.briarproject.bramble.api.identity.Author;
@@ -62,7 +64,9 @@ import org.junit.Test;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicReference;
 
@@ -72,7 +76,7 @@ import static java.util.Collections.emptyMap;
 import static java.util.Collections.singletonList;
 import static java.util.Collections.singletonMap;
 import static java.util.concurrent.TimeUnit.HOURS;
-import static org.briarproject.bramble.api.db.DatabaseComponent.TIMER_NOT_STARTED;
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.briarproject.bramble.api.record.Record.RECORD_HEADER_BYTES;
 import static org.briarproject.bramble.api.sync.Group.Visibility.INVISIBLE;
 import static org.briarproject.bramble.api.sync.Group.Visibility.SHARED;
@@ -161,6 +165,17 @@ public class DatabaseComponentImplTest extends BrambleMockTestCase {
 	private DatabaseComponent createDatabaseComponent(Database<Object> database,
 			EventBus eventBus, Executor eventExecutor,
 			ShutdownManager shutdownManager) {
+		return createDatabaseComponent(database, eventBus, eventExecutor,
+				shutdownManager, false);
+	}
+
+	private DatabaseComponent createDatabaseComponent(Database<Object> database,
+			EventBus eventBus, Executor eventExecutor,
+			ShutdownManager shutdownManager, boolean concurrentReads) {
+		context.checking(new Expectations() {{
+			oneOf(database).supportsConcurrentReads();
+			will(returnValue(concurrentReads));
+		}});
 		return new DatabaseComponentImpl<>(database, Object.class, eventBus,
 				eventExecutor, shutdownManager);
 	}
@@ -599,11 +614,11 @@ public class DatabaseComponentImplTest extends BrambleMockTestCase {
 			throws Exception {
 		context.checking(new Expectations() {{
 			// Check whether the group is in the DB (which it's not)
-			exactly(10).of(database).startTransaction();
+			exactly(11).of(database).startTransaction();
 			will(returnValue(txn));
-			exactly(10).of(database).containsGroup(txn, groupId);
+			exactly(11).of(database).containsGroup(txn, groupId);
 			will(returnValue(false));
-			exactly(10).of(database).abortTransaction(txn);
+			exactly(11).of(database).abortTransaction(txn);
 			// Allow other checks to pass
 			allowing(database).containsContact(txn, contactId);
 			will(returnValue(true));
@@ -660,6 +675,15 @@ public class DatabaseComponentImplTest extends BrambleMockTestCase {
 			// Expected
 		}
 
+		try {
+			db.transaction(true, transaction ->
+					db.getMessageMetadata(transaction, groupId,
+							new Metadata(), Long.MAX_VALUE, 1));
+			fail();
+		} catch (NoSuchGroupException expected) {
+			// Expected
+		}
+
 		try {
 			db.transaction(true, transaction ->
 					db.getMessageStatus(transaction, contactId, groupId));
@@ -888,8 +912,8 @@ public class DatabaseComponentImplTest extends BrambleMockTestCase {
 
 		try {
 			db.transaction(false, transaction ->
-					db.incrementStreamCounter(transaction, transportId,
-							keySetId));
+					db.setStreamCounter(transaction, transportId, keySetId,
+							123));
 			fail();
 		} catch (NoSuchTransportException expected) {
 			// Expected
@@ -1006,15 +1030,9 @@ public class DatabaseComponentImplTest extends BrambleMockTestCase {
 			oneOf(database).getMessagesToSend(txn, contactId,
 					BATCH_CAPACITY, maxLatency);
 			will(returnValue(ids));
-			// First message
-			oneOf(database).getMessage(txn, messageId);
-			will(returnValue(message));
-			oneOf(database).updateRetransmissionData(txn, contactId, messageId,
-					maxLatency);
-			// Second message
-			oneOf(database).getMessage(txn, messageId1);
-			will(returnValue(message1));
-			oneOf(database).updateRetransmissionData(txn, contactId, messageId1,
+			oneOf(database).getMessages(txn, ids);
+			will(returnValue(messages));
+			oneOf(database).updateRetransmissionData(txn, contactId, ids,
 					maxLatency);
 			oneOf(database).lowerRequestedFlag(txn, contactId, ids);
 			oneOf(database).commitTransaction(txn);
@@ -1039,9 +1057,7 @@ public class DatabaseComponentImplTest extends BrambleMockTestCase {
 			will(returnValue(true));
 			oneOf(database).getMessagesToOffer(txn, contactId, 123, maxLatency);
 			will(returnValue(ids));
-			oneOf(database).updateRetransmissionData(txn, contactId, messageId,
-					maxLatency);
-			oneOf(database).updateRetransmissionData(txn, contactId, messageId1,
+			oneOf(database).updateRetransmissionData(txn, contactId, ids,
 					maxLatency);
 			oneOf(database).commitTransaction(txn);
 		}});
@@ -1091,16 +1107,10 @@ public class DatabaseComponentImplTest extends BrambleMockTestCase {
 			oneOf(database).getRequestedMessagesToSend(txn, contactId,
 					BATCH_CAPACITY, maxLatency);
 			will(returnValue(ids));
-			// First message
-			oneOf(database).getMessage(txn, messageId);
-			will(returnValue(message));
-			oneOf(database).updateRetransmissionData(txn, contactId,
-					messageId, maxLatency);
-			// Second message
-			oneOf(database).getMessage(txn, messageId1);
-			will(returnValue(message1));
-			oneOf(database).updateRetransmissionData(txn, contactId,
-					messageId1, maxLatency);
+			oneOf(database).getMessages(txn, ids);
+			will(returnValue(messages));
+			oneOf(database).updateRetransmissionData(txn, contactId, ids,
+					maxLatency);
 			oneOf(database).lowerRequestedFlag(txn, contactId, ids);
 			oneOf(database).commitTransaction(txn);
 			oneOf(eventBus).broadcast(with(any(MessagesSentEvent.class)));
@@ -1186,12 +1196,14 @@ public class DatabaseComponentImplTest extends BrambleMockTestCase {
 			will(returnValue(txn));
 			oneOf(database).containsContact(txn, contactId);
 			will(returnValue(true));
-			oneOf(database).containsVisibleMessage(txn, contactId, messageId);
-			will(returnValue(true));
-			oneOf(database).raiseSeenFlag(txn, contactId, messageId);
-			will(returnValue(true));
-			oneOf(database).startCleanupTimer(txn, messageId);
-			will(returnValue(TIMER_NOT_STARTED)); // No cleanup duration was set
+			oneOf(database).getVisibleMessages(txn, contactId,
+					singletonList(messageId));
+			will(returnValue(singletonList(messageId)));
+			oneOf(database).raiseSeenFlag(txn, contactId,
+					singletonList(messageId));
+			will(returnValue(singletonList(messageId)));
+			oneOf(database).startCleanupTimer(txn, singletonList(messageId));
+			will(returnValue(emptyMap())); // No cleanup duration was set
 			oneOf(database).commitTransaction(txn);
 			oneOf(eventBus).broadcast(with(any(MessagesAckedEvent.class)));
 		}});
@@ -1211,10 +1223,12 @@ public class DatabaseComponentImplTest extends BrambleMockTestCase {
 			will(returnValue(txn));
 			oneOf(database).containsContact(txn, contactId);
 			will(returnValue(true));
-			oneOf(database).containsVisibleMessage(txn, contactId, messageId);
-			will(returnValue(true));
-			oneOf(database).raiseSeenFlag(txn, contactId, messageId);
-			will(returnValue(false)); // Already acked
+			oneOf(database).getVisibleMessages(txn, contactId,
+					singletonList(messageId));
+			will(returnValue(singletonList(messageId)));
+			oneOf(database).raiseSeenFlag(txn, contactId,
+					singletonList(messageId));
+			will(returnValue(emptyList())); // Already acked
 			oneOf(database).commitTransaction(txn);
 		}});
 		DatabaseComponent db = createDatabaseComponent(database, eventBus,
@@ -1234,12 +1248,14 @@ public class DatabaseComponentImplTest extends BrambleMockTestCase {
 			will(returnValue(txn));
 			oneOf(database).containsContact(txn, contactId);
 			will(returnValue(true));
-			oneOf(database).containsVisibleMessage(txn, contactId, messageId);
-			will(returnValue(true));
-			oneOf(database).raiseSeenFlag(txn, contactId, messageId);
-			will(returnValue(true));
-			oneOf(database).startCleanupTimer(txn, messageId);
-			will(returnValue(deadline));
+			oneOf(database).getVisibleMessages(txn, contactId,
+					singletonList(messageId));
+			will(returnValue(singletonList(messageId)));
+			oneOf(database).raiseSeenFlag(txn, contactId,
+					singletonList(messageId));
+			will(returnValue(singletonList(messageId)));
+			oneOf(database).startCleanupTimer(txn, singletonList(messageId));
+			will(returnValue(singletonMap(messageId, deadline)));
 			oneOf(database).commitTransaction(txn);
 			oneOf(eventBus).broadcast(with(any(
 					CleanupTimerStartedEvent.class)));
@@ -1289,8 +1305,8 @@ public class DatabaseComponentImplTest extends BrambleMockTestCase {
 
 		db.transaction(false, transaction -> {
 			// Receive the message twice
-			db.receiveMessage(transaction, contactId, message);
-			db.receiveMessage(transaction, contactId, message);
+			assertTrue(db.receiveMessage(transaction, contactId, message));
+			assertFalse(db.receiveMessage(transaction, contactId, message));
 		});
 	}
 
@@ -1315,8 +1331,8 @@ public class DatabaseComponentImplTest extends BrambleMockTestCase {
 		DatabaseComponent db = createDatabaseComponent(database, eventBus,
 				eventExecutor, shutdownManager);
 
-		db.transaction(false, transaction ->
-				db.receiveMessage(transaction, contactId, message));
+		db.transaction(false, transaction -> assertFalse(
+				db.receiveMessage(transaction, contactId, message)));
 	}
 
 	@Test
@@ -1333,8 +1349,8 @@ public class DatabaseComponentImplTest extends BrambleMockTestCase {
 		DatabaseComponent db = createDatabaseComponent(database, eventBus,
 				eventExecutor, shutdownManager);
 
-		db.transaction(false, transaction ->
-				db.receiveMessage(transaction, contactId, message));
+		db.transaction(false, transaction -> assertFalse(
+				db.receiveMessage(transaction, contactId, message)));
 	}
 
 	@Test
@@ -1347,25 +1363,22 @@ public class DatabaseComponentImplTest extends BrambleMockTestCase {
 			will(returnValue(txn));
 			oneOf(database).containsContact(txn, contactId);
 			will(returnValue(true));
+			// The second message is visible - ack it
+			oneOf(database).getVisibleMessages(txn, contactId,
+					asList(messageId, messageId1, messageId2, messageId3));
+			will(returnValue(singletonList(messageId1)));
+			oneOf(database).raiseSeenFlag(txn, contactId,
+					singletonList(messageId1));
+			will(returnValue(singletonList(messageId1)));
+			oneOf(database).raiseAckFlag(txn, contactId,
+					singletonList(messageId1));
 			// There's room for two more offered messages
 			oneOf(database).countOfferedMessages(txn, contactId);
 			will(returnValue(MAX_OFFERED_MESSAGES - 2));
-			// The first message isn't visible - request it
-			oneOf(database).containsVisibleMessage(txn, contactId, messageId);
-			will(returnValue(false));
-			oneOf(database).addOfferedMessage(txn, contactId, messageId);
-			// The second message is visible - ack it
-			oneOf(database).containsVisibleMessage(txn, contactId, messageId1);
-			will(returnValue(true));
-			oneOf(database).raiseSeenFlag(txn, contactId, messageId1);
-			oneOf(database).raiseAckFlag(txn, contactId, messageId1);
-			// The third message isn't visible - request it
-			oneOf(database).containsVisibleMessage(txn, contactId, messageId2);
-			will(returnValue(false));
-			oneOf(database).addOfferedMessage(txn, contactId, messageId2);
+			// The first and third messages aren't visible - request them.
 			// The fourth message isn't visible, but there's no room to store it
-			oneOf(database).containsVisibleMessage(txn, contactId, messageId3);
-			will(returnValue(false));
+			oneOf(database).addOfferedMessages(txn, contactId,
+					asList(messageId, messageId2));
 			oneOf(database).commitTransaction(txn);
 			oneOf(eventBus).broadcast(with(any(MessageToAckEvent.class)));
 			oneOf(eventBus).broadcast(with(any(MessageToRequestEvent.class)));
@@ -1386,10 +1399,13 @@ public class DatabaseComponentImplTest extends BrambleMockTestCase {
 			will(returnValue(txn));
 			oneOf(database).containsContact(txn, contactId);
 			will(returnValue(true));
-			oneOf(database).containsVisibleMessage(txn, contactId, messageId);
-			will(returnValue(true));
-			oneOf(database).raiseRequestedFlag(txn, contactId, messageId);
-			oneOf(database).resetExpiryTime(txn, contactId, messageId);
+			oneOf(database).getVisibleMessages(txn, contactId,
+					singletonList(messageId));
+			will(returnValue(singletonList(messageId)));
+			oneOf(database).raiseRequestedFlag(txn, contactId,
+					singletonList(messageId));
+			oneOf(database).resetExpiryTime(txn, contactId,
+					singletonList(messageId));
 			oneOf(database).commitTransaction(txn);
 			oneOf(eventBus).broadcast(with(any(MessageRequestedEvent.class)));
 		}});
@@ -1433,11 +1449,11 @@ public class DatabaseComponentImplTest extends BrambleMockTestCase {
 			will(returnValue(true));
 			oneOf(database).getMessageLength(txn, messageId);
 			will(returnValue(message.getRawLength()));
-			oneOf(database).updateRetransmissionData(txn, contactId, messageId,
-					maxLatency);
 			// Second message is no longer visible - don't mark as sent
 			oneOf(database).containsVisibleMessage(txn, contactId, messageId1);
 			will(returnValue(false));
+			oneOf(database).updateRetransmissionData(txn, contactId,
+					singletonList(messageId), maxLatency);
 			oneOf(database).lowerRequestedFlag(txn, contactId,
 					singletonList(messageId));
 			oneOf(database).commitTransaction(txn);
@@ -1672,6 +1688,47 @@ public class DatabaseComponentImplTest extends BrambleMockTestCase {
 		});
 	}
 
+	@Test
+	public void testGetMessageStatusByMessageIds() throws Exception {
+		MessageStatus status =
+				new MessageStatus(messageId, contactId, true, true);
+		Collection<MessageId> ids = singletonList(messageId);
+
+		context.checking(new Expectations() {{
+			// startTransaction()
+			oneOf(database).startTransaction();
+			will(returnValue(txn));
+			// getMessageStatus()
+			oneOf(database).containsContact(txn, contactId);
+			will(returnValue(true));
+			oneOf(database).getMessageStatus(txn, contactId, ids);
+			will(returnValue(singletonMap(messageId, status)));
+			// getMessageStatus() again
+			oneOf(database).containsContact(txn, contactId);
+			will(returnValue(true));
+			oneOf(database).getMessageStatus(txn, contactId, ids);
+			will(returnValue(emptyMap()));
+			// abortTransaction()
+			oneOf(database).abortTransaction(txn);
+		}});
+		DatabaseComponent db = createDatabaseComponent(database, eventBus,
+				eventExecutor, shutdownManager);
+
+		try {
+			db.transaction(true, transaction -> {
+				// The stored status should be returned
+				Map<MessageId, MessageStatus> statuses =
+						db.getMessageStatus(transaction, contactId, ids);
+				assertEquals(singletonMap(messageId, status), statuses);
+				// The message is missing
+				db.getMessageStatus(transaction, contactId, ids);
+			});
+			fail();
+		} catch (NoSuchMessageException expected) {
+			// Expected
+		}
+	}
+
 	private TransportKeys createHandshakeKeys() {
 		SecretKey inPrevTagKey = getSecretKey();
 		SecretKey inPrevHeaderKey = getSecretKey();
@@ -1774,22 +1831,85 @@ public class DatabaseComponentImplTest extends BrambleMockTestCase {
 		testCannotStartTransactionDuringTransaction(false, false);
 	}
 
+	@Test(expected = IllegalStateException.class)
+	public void testCannotStartReadTransactionDuringConcurrentRead()
+			throws Exception {
+		testCannotStartTransactionDuringTransaction(true, true, true);
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testCannotStartWriteTransactionDuringConcurrentRead()
+			throws Exception {
+		testCannotStartTransactionDuringTransaction(true, false, true);
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testCannotStartConcurrentReadDuringWriteTransaction()
+			throws Exception {
+		testCannotStartTransactionDuringTransaction(false, true, true);
+	}
+
 	private void testCannotStartTransactionDuringTransaction(
 			boolean firstTxnReadOnly, boolean secondTxnReadOnly)
 			throws Exception {
+		testCannotStartTransactionDuringTransaction(firstTxnReadOnly,
+				secondTxnReadOnly, false);
+	}
+
+	private void testCannotStartTransactionDuringTransaction(
+			boolean firstTxnReadOnly, boolean secondTxnReadOnly,
+			boolean concurrentReads) throws Exception {
 		context.checking(new Expectations() {{
 			oneOf(database).startTransaction();
 			will(returnValue(txn));
 		}});
 
 		DatabaseComponent db = createDatabaseComponent(database, eventBus,
-				eventExecutor, shutdownManager);
+				eventExecutor, shutdownManager, concurrentReads);
 
 		assertNotNull(db.startTransaction(firstTxnReadOnly));
 		db.startTransaction(secondTxnReadOnly);
 		fail();
 	}
 
+	@Test
+	public void testConcurrentReadDoesNotWaitForWriteTransaction()
+			throws Exception {
+		Object readTxn = new Object();
+		context.checking(new Expectations() {{
+			oneOf(database).startTransaction();
+			will(returnValue(txn));
+			oneOf(database).startTransaction();
+			will(returnValue(readTxn));
+			oneOf(database).commitTransaction(readTxn);
+			oneOf(database).commitTransaction(txn);
+		}});
+
+		DatabaseComponent db = createDatabaseComponent(database, eventBus,
+				eventExecutor, shutdownManager, true);
+
+		Transaction writeTxn = db.startTransaction(false);
+		try {
+			// A read-only transaction on another thread should not have to
+			// wait for the write transaction to finish
+			CountDownLatch readFinished = new CountDownLatch(1);
+			Thread reader = new Thread(() -> {
+				try {
+					db.transaction(true, transaction -> {
+					});
+					readFinished.countDown();
+				} catch (DbException e) {
+					fail();
+				}
+			});
+			reader.start();
+			assertTrue(readFinished.await(10, SECONDS));
+			db.commitTransaction(writeTxn);
+		} finally {
+			db.endTransaction(writeTxn);
+		}
+	}
+
 	@Test
 	public void testCannotAddLocalIdentityAsContact() throws Exception {
 		context.checking(new Expectations() {{
@@ -60,7 +60,7 @@ public abstract class DatabasePerformanceComparisonTest
 		writeResult(name, aDurations, bDurations, comparison);
 	}
 
-	private SteadyStateResult benchmark(boolean conditionA,
+	SteadyStateResult benchmark(boolean conditionA,
 			BenchmarkTask<Database<Connection>> task) throws Exception {
 		deleteTestDirectory(testDir);
 		Database<Connection> db = openDatabase(conditionA);
@@ -73,7 +73,7 @@ public abstract class DatabasePerformanceComparisonTest
 		return result;
 	}
 
-	private Database<Connection> openDatabase(boolean conditionA)
+	Database<Connection> openDatabase(boolean conditionA)
 			throws DbException {
 		Database<Connection> db = createDatabase(conditionA,
 				new TestDatabaseConfig(testDir), new TestMessageFactory(),
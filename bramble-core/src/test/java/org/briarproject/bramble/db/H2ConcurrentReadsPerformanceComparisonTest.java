@@ -0,0 +1,155 @@
+package org.briarproject.bramble.db;
+
+import org.briarproject.bramble.api.db.DatabaseComponent;
+import org.briarproject.bramble.api.db.DatabaseConfig;
+import org.briarproject.bramble.api.db.DbException;
+import org.briarproject.bramble.api.db.Transaction;
+import org.briarproject.bramble.api.event.EventBus;
+import org.briarproject.bramble.api.lifecycle.ShutdownManager;
+import org.briarproject.bramble.api.sync.Group;
+import org.briarproject.bramble.api.sync.MessageFactory;
+import org.briarproject.bramble.api.system.Clock;
+import org.briarproject.bramble.test.ImmediateExecutor;
+import org.briarproject.bramble.test.TestDatabaseConfig;
+import org.jmock.Mockery;
+import org.junit.Ignore;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.briarproject.bramble.api.sync.validation.MessageState.DELIVERED;
+import static org.briarproject.bramble.test.TestUtils.deleteTestDirectory;
+import static org.briarproject.bramble.test.TestUtils.getClientId;
+import static org.briarproject.bramble.test.TestUtils.getGroup;
+import static org.briarproject.bramble.test.TestUtils.getMessage;
+
+/**
+ * Measures the latency of read-only transactions while a background thread
+ * is running large write transactions. Both the reads and the writes run
+ * in transactions started by the {@link DatabaseComponent}. In condition A,
+ * concurrent reads are enabled, so read-only transactions run concurrently
+ * with the writer. In condition B they wait for the component's lock.
+ */
+@Ignore
+public class H2ConcurrentReadsPerformanceComparisonTest
+		extends DatabasePerformanceComparisonTest {
+
+	/**
+	 * How many messages the background writer adds in each transaction.
+	 */
+	private static final int MESSAGES_PER_WRITE = 200;
+
+	@Override
+	Database<Connection> createDatabase(boolean conditionA,
+			DatabaseConfig databaseConfig, MessageFactory messageFactory,
+			Clock clock) {
+		return new H2Database(new TestDatabaseConfig(testDir, conditionA),
+				messageFactory, clock);
+	}
+
+	@Override
+	SteadyStateResult benchmark(boolean conditionA,
+			BenchmarkTask<Database<Connection>> task) throws Exception {
+		deleteTestDirectory(testDir);
+		Database<Connection> db = openDatabase(conditionA);
+		populateDatabase(db);
+		db.close();
+		db = openDatabase(conditionA);
+		// The component isn't opened and no events are attached to the
+		// transactions, so the event bus and shutdown manager are unused
+		Mockery context = new Mockery();
+		DatabaseComponent dbc = new DatabaseComponentImpl<>(db,
+				Connection.class, context.mock(EventBus.class),
+				new ImmediateExecutor(), context.mock(ShutdownManager.class));
+		AtomicBoolean running = new AtomicBoolean(true);
+		AtomicReference<Throwable> writerError = new AtomicReference<>();
+		Thread writer = startWriter(db, dbc, running, writerError);
+		// Measure the time taken to start a read-only transaction, run the
+		// task in it and end the transaction while the writer is running
+		AtomicReference<Connection> current = new AtomicReference<>();
+		Database<Connection> view = getTransactionView(db, current);
+		SteadyStateResult result = measureSteadyState(db, d -> {
+			Transaction txn = dbc.startTransaction(true);
+			try {
+				current.set((Connection) txn.unbox());
+				task.run(view);
+				dbc.commitTransaction(txn);
+			} finally {
+				current.set(null);
+				dbc.endTransaction(txn);
+			}
+		});
+		running.set(false);
+		writer.join();
+		db.close();
+		if (writerError.get() != null)
+			throw new AssertionError(writerError.get());
+		return result;
+	}
+
+	private Thread startWriter(Database<Connection> db, DatabaseComponent dbc,
+			AtomicBoolean running, AtomicReference<Throwable> error)
+			throws DbException {
+		Group g = getGroup(getClientId(), 123);
+		dbc.transaction(false, txn ->
+				db.addGroup((Connection) txn.unbox(), g));
+		// Each write transaction holds the component's write lock
+		Thread writer = new Thread(() -> {
+			try {
+				while (running.get()) {
+					dbc.transaction(false, txn -> {
+						Connection c = (Connection) txn.unbox();
+						for (int i = 0; i < MESSAGES_PER_WRITE; i++) {
+							db.addMessage(c, getMessage(g.getId()), DELIVERED,
+									true, false, null);
+						}
+					});
+				}
+			} catch (DbException | RuntimeException e) {
+				error.set(e);
+			}
+		});
+		writer.start();
+		return writer;
+	}
+
+	/**
+	 * Returns a view of the given database in which the benchmark task's
+	 * transaction is the component's current transaction, so the task runs
+	 * under the component's locking rather than on its own connection.
+	 */
+	@SuppressWarnings("unchecked")
+	private Database<Connection> getTransactionView(Database<Connection> db,
+			AtomicReference<Connection> current) {
+		InvocationHandler handler = (proxy, method, args) -> {
+			String name = method.getName();
+			if (name.equals("startTransaction")) {
+				Connection txn = current.get();
+				if (txn == null) throw new IllegalStateException();
+				return txn;
+			}
+			// The component commits or aborts the transaction
+			if (name.equals("commitTransaction") ||
+					name.equals("abortTransaction")) {
+				return null;
+			}
+			try {
+				return method.invoke(db, args);
+			} catch (InvocationTargetException e) {
+				throw e.getCause();
+			}
+		};
+		return (Database<Connection>) Proxy.newProxyInstance(
+				Database.class.getClassLoader(),
+				new Class<?>[] {Database.class}, handler);
+	}
+
+	@Override
+	protected String getTestName() {
+		return getClass().getSimpleName();
+	}
+}
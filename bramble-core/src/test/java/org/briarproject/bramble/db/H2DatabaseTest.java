@@ -3,6 +3,13 @@ package org.briarproject.bramble.db;
 import org.briarproject.bramble.api.db.DatabaseConfig;
 import org.briarproject.bramble.api.sync.MessageFactory;
 import org.briarproject.bramble.api.system.Clock;
+import org.junit.Test;
+
+import static org.briarproject.bramble.db.H2Database.MAX_GROWTH;
+import static org.briarproject.bramble.db.H2Database.getGrowth;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 public class H2DatabaseTest extends JdbcDatabaseTest {
 
@@ -11,4 +18,19 @@ public class H2DatabaseTest extends JdbcDatabaseTest {
 			MessageFactory messageFactory, Clock clock) {
 		return new H2Database(config, messageFactory, clock);
 	}
+
+	@Test
+	public void testGrowthSinceLastCompaction() {
+		// A database that has never been fully compacted should be compacted
+		assertEquals(1, getGrowth(0, 1000), 0);
+		assertTrue(getGrowth(0, 1000) > MAX_GROWTH);
+		// A database that hasn't grown since it was compacted should not
+		assertEquals(0, getGrowth(1000, 1000), 0);
+		assertEquals(0, getGrowth(1000, 800), 0);
+		// A database that has grown by half should be compacted
+		assertEquals(1 / 3.0, getGrowth(1000, 1500), 0.001);
+		assertTrue(getGrowth(1000, 1500) > MAX_GROWTH);
+		// A database that has grown by a tenth should not
+		assertFalse(getGrowth(1000, 1100) > MAX_GROWTH);
+	}
 }
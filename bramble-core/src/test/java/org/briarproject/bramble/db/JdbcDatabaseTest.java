@@ -47,6 +47,7 @@ import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Enumeration;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -57,6 +58,7 @@ import java.util.concurrent.atomic.AtomicLong;
 
 import static java.util.Arrays.asList;
 import static java.util.Collections.emptyList;
+import static java.util.Collections.singleton;
 import static java.util.Collections.singletonList;
 import static java.util.Collections.singletonMap;
 import static java.util.concurrent.TimeUnit.SECONDS;
@@ -68,6 +70,9 @@ import static org.briarproject.bramble.api.record.Record.RECORD_HEADER_BYTES;
 import static org.briarproject.bramble.api.sync.Group.Visibility.INVISIBLE;
 import static org.briarproject.bramble.api.sync.Group.Visibility.SHARED;
 import static org.briarproject.bramble.api.sync.Group.Visibility.VISIBLE;
+import static org.briarproject.bramble.api.sync.SendPriority.BULK;
+import static org.briarproject.bramble.api.sync.SendPriority.NORMAL;
+import static org.briarproject.bramble.api.sync.SyncConstants.MESSAGE_HEADER_LENGTH;
 import static org.briarproject.bramble.api.sync.validation.MessageState.DELIVERED;
 import static org.briarproject.bramble.api.sync.validation.MessageState.INVALID;
 import static org.briarproject.bramble.api.sync.validation.MessageState.PENDING;
@@ -906,7 +911,7 @@ public abstract class JdbcDatabaseTest extends BrambleTestCase {
 	}
 
 	@Test
-	public void testIncrementStreamCounter() throws Exception {
+	public void testSetStreamCounter() throws Exception {
 		long timePeriod = 123;
 		TransportKeys keys = createTransportKeys(timePeriod, true);
 		long streamCounter = keys.getCurrentOutgoingKeys().getStreamCounter();
@@ -921,9 +926,8 @@ public abstract class JdbcDatabaseTest extends BrambleTestCase {
 		db.addTransport(txn, transportId, 123);
 		assertEquals(keySetId, db.addTransportKeys(txn, contactId, keys));
 
-		// Increment the stream counter twice and retrieve the transport keys
-		db.incrementStreamCounter(txn, transportId, keySetId);
-		db.incrementStreamCounter(txn, transportId, keySetId);
+		// Set the stream counter and retrieve the transport keys
+		db.setStreamCounter(txn, transportId, keySetId, streamCounter + 2);
 		Collection<TransportKeySet> newKeys =
 				db.getTransportKeys(txn, transportId);
 		assertEquals(1, newKeys.size());
@@ -948,7 +952,7 @@ public abstract class JdbcDatabaseTest extends BrambleTestCase {
 	}
 
 	@Test
-	public void testIncrementStreamCounterForHandshakeKeys() throws Exception {
+	public void testSetStreamCounterForHandshakeKeys() throws Exception {
 		long timePeriod = 123;
 		SecretKey rootKey = getSecretKey();
 		boolean alice = random.nextBoolean();
@@ -965,9 +969,8 @@ public abstract class JdbcDatabaseTest extends BrambleTestCase {
 		db.addTransport(txn, transportId, 123);
 		assertEquals(keySetId, db.addTransportKeys(txn, contactId, keys));
 
-		// Increment the stream counter twice and retrieve the handshake keys
-		db.incrementStreamCounter(txn, transportId, keySetId);
-		db.incrementStreamCounter(txn, transportId, keySetId);
+		// Set the stream counter and retrieve the handshake keys
+		db.setStreamCounter(txn, transportId, keySetId, streamCounter + 2);
 		Collection<TransportKeySet> newKeys =
 				db.getTransportKeys(txn, transportId);
 		assertEquals(1, newKeys.size());
@@ -1547,6 +1550,174 @@ public abstract class JdbcDatabaseTest extends BrambleTestCase {
 		db.close();
 	}
 
+	@Test
+	public void testGetMessageStatusForMessages() throws Exception {
+		Message message1 = getMessage(groupId);
+		MessageId messageId1 = message1.getId();
+		MessageId unknownId = new MessageId(getRandomId());
+		Collection<MessageId> ids = asList(messageId, messageId1, unknownId);
+
+		Database<Connection> db = open(false);
+		Connection txn = db.startTransaction();
+
+		// Add a contact, a shared group and two shared messages
+		db.addIdentity(txn, identity);
+		assertEquals(contactId,
+				db.addContact(txn, author, localAuthor.getId(), null, true));
+		db.addGroup(txn, group);
+		db.addGroupVisibility(txn, contactId, groupId, true);
+		db.addMessage(txn, message, DELIVERED, true, false, null);
+		db.addMessage(txn, message1, DELIVERED, true, false, null);
+
+		// Pretend the first message was sent to the contact and acked
+		db.updateRetransmissionData(txn, contactId, messageId,
+				Integer.MAX_VALUE);
+		db.raiseSeenFlag(txn, contactId, messageId);
+
+		// The unknown message should not be included
+		Map<MessageId, MessageStatus> statuses =
+				db.getMessageStatus(txn, contactId, ids);
+		assertEquals(2, statuses.size());
+		MessageStatus status = statuses.get(messageId);
+		assertNotNull(status);
+		assertEquals(messageId, status.getMessageId());
+		assertEquals(contactId, status.getContactId());
+		assertTrue(status.isSent());
+		assertTrue(status.isSeen());
+		status = statuses.get(messageId1);
+		assertNotNull(status);
+		assertEquals(messageId1, status.getMessageId());
+		assertEquals(contactId, status.getContactId());
+		assertFalse(status.isSent());
+		assertFalse(status.isSeen());
+
+		// Make the group invisible to the contact
+		db.removeGroupVisibility(txn, contactId, groupId);
+
+		// The default statuses should be returned
+		statuses = db.getMessageStatus(txn, contactId, ids);
+		assertEquals(2, statuses.size());
+		for (MessageStatus s : statuses.values()) {
+			assertEquals(contactId, s.getContactId());
+			assertFalse(s.isSent());
+			assertFalse(s.isSeen());
+		}
+
+		db.commitTransaction(txn);
+		db.close();
+	}
+
+	@Test
+	public void testMetadataQueriesRequireAllTermsToMatch() throws Exception {
+		Message message1 = getMessage(groupId);
+		MessageId messageId1 = message1.getId();
+
+		Database<Connection> db = open(false);
+		Connection txn = db.startTransaction();
+
+		// Add a group and two messages
+		db.addGroup(txn, group);
+		db.addMessage(txn, message, DELIVERED, true, false, null);
+		db.addMessage(txn, message1, DELIVERED, true, false, null);
+
+		// The second message has the first message's values for two keys,
+		// and a value for a third key that's stored under another key
+		Metadata metadata = new Metadata();
+		metadata.put("foo", new byte[] {'b', 'a', 'r'});
+		metadata.put("baz", new byte[] {'b', 'a', 'm'});
+		metadata.put("qux", new byte[] {'q', 'u', 'x'});
+		db.mergeMessageMetadata(txn, messageId, metadata);
+		Metadata metadata1 = new Metadata();
+		metadata1.put("foo", new byte[] {'b', 'a', 'r'});
+		metadata1.put("baz", new byte[] {'b', 'a', 'm'});
+		metadata1.put("quux", new byte[] {'q', 'u', 'x'});
+		db.mergeMessageMetadata(txn, messageId1, metadata1);
+
+		// A query for all three of the first message's values should only
+		// match the first message
+		Collection<MessageId> ids = db.getMessageIds(txn, groupId, metadata);
+		assertEquals(singletonList(messageId), new ArrayList<>(ids));
+		Map<MessageId, Metadata> all =
+				db.getMessageMetadata(txn, groupId, metadata);
+		assertEquals(1, all.size());
+		assertMetadataEquals(metadata, all.get(messageId));
+
+		// A query for the two shared values should match both messages
+		Metadata query = new Metadata();
+		query.put("foo", new byte[] {'b', 'a', 'r'});
+		query.put("baz", new byte[] {'b', 'a', 'm'});
+		ids = db.getMessageIds(txn, groupId, query);
+		assertEquals(2, ids.size());
+		assertTrue(ids.contains(messageId));
+		assertTrue(ids.contains(messageId1));
+		all = db.getMessageMetadata(txn, groupId, query);
+		assertEquals(2, all.size());
+		assertMetadataEquals(metadata, all.get(messageId));
+		assertMetadataEquals(metadata1, all.get(messageId1));
+
+		db.commitTransaction(txn);
+		db.close();
+	}
+
+	@Test
+	public void testPagedMetadataQueries() throws Exception {
+		// Four messages with metadata, two of which share a timestamp
+		Message message1 = getMessage(groupId, 123, 1000);
+		Message message2 = getMessage(groupId, 123, 2000);
+		Message message3 = getMessage(groupId, 123, 2000);
+		Message message4 = getMessage(groupId, 123, 3000);
+		// A message with the newest timestamp that doesn't match the query
+		Message message5 = getMessage(groupId, 123, 4000);
+		MessageId messageId1 = message1.getId();
+		MessageId messageId2 = message2.getId();
+		MessageId messageId3 = message3.getId();
+		MessageId messageId4 = message4.getId();
+
+		Database<Connection> db = open(false);
+		Connection txn = db.startTransaction();
+
+		// Add a group and the messages
+		db.addGroup(txn, group);
+		Metadata metadata = new Metadata();
+		metadata.put("foo", new byte[] {'b', 'a', 'r'});
+		for (Message m : asList(message1, message2, message3, message4)) {
+			db.addMessage(txn, m, DELIVERED, true, false, null);
+			db.mergeMessageMetadata(txn, m.getId(), metadata);
+		}
+		db.addMessage(txn, message5, DELIVERED, true, false, null);
+		Metadata metadata5 = new Metadata();
+		metadata5.put("foo", new byte[] {'b', 'a', 'z'});
+		db.mergeMessageMetadata(txn, message5.getId(), metadata5);
+
+		// The newest matching message should be returned
+		Map<MessageId, Metadata> page =
+				db.getMessageMetadata(txn, groupId, metadata, 5000, 1);
+		assertEquals(singleton(messageId4), page.keySet());
+		assertMetadataEquals(metadata, page.get(messageId4));
+
+		// Messages that share the oldest timestamp should all be returned
+		page = db.getMessageMetadata(txn, groupId, metadata, 5000, 2);
+		assertEquals(new HashSet<>(asList(messageId2, messageId3, messageId4)),
+				page.keySet());
+		page = db.getMessageMetadata(txn, groupId, metadata, 3000, 1);
+		assertEquals(new HashSet<>(asList(messageId2, messageId3)),
+				page.keySet());
+
+		// Only messages older than the given timestamp should be returned
+		page = db.getMessageMetadata(txn, groupId, metadata, 2000, 10);
+		assertEquals(singleton(messageId1), page.keySet());
+		page = db.getMessageMetadata(txn, groupId, metadata, 1000, 10);
+		assertTrue(page.isEmpty());
+
+		// An empty query should match all the messages
+		page = db.getMessageMetadata(txn, groupId, new Metadata(), 5000, 1);
+		assertEquals(singleton(message5.getId()), page.keySet());
+		assertMetadataEquals(metadata5, page.get(message5.getId()));
+
+		db.commitTransaction(txn);
+		db.close();
+	}
+
 	private void assertMetadataEquals(Metadata m1, Metadata m2) {
 		assertEquals(m1.keySet(), m2.keySet());
 		for (Entry<String, byte[]> e : m1.entrySet()) {
@@ -1646,6 +1817,52 @@ public abstract class JdbcDatabaseTest extends BrambleTestCase {
 		db.close();
 	}
 
+	@Test
+	public void testGetPendingMessageDependencies() throws Exception {
+		Message message1 = getMessage(groupId);
+		Message message2 = getMessage(groupId);
+		MessageId messageId1 = message1.getId();
+		MessageId messageId2 = message2.getId();
+		MessageId messageId3 = new MessageId(getRandomId());
+
+		Database<Connection> db = open(false);
+		Connection txn = db.startTransaction();
+
+		// Add a group and some messages
+		db.addGroup(txn, group);
+		db.addMessage(txn, message, PENDING, true, false, contactId);
+		db.addMessage(txn, message1, PENDING, true, false, contactId);
+		db.addMessage(txn, message2, INVALID, true, false, contactId);
+
+		// The root depends on message 1 and a missing message. Message 1
+		// has no dependencies, and message 2 isn't pending
+		db.addMessageDependency(txn, message, messageId1, PENDING);
+		db.addMessageDependency(txn, message, messageId3, PENDING);
+		db.addMessageDependency(txn, message2, messageId1, INVALID);
+
+		Map<MessageId, Map<MessageId, MessageState>> pending =
+				db.getPendingMessageDependencies(txn);
+		assertEquals(1, pending.size());
+		Map<MessageId, MessageState> dependencies = pending.get(messageId);
+		assertEquals(2, dependencies.size());
+		assertEquals(PENDING, dependencies.get(messageId1));
+		assertEquals(UNKNOWN, dependencies.get(messageId3)); // Missing
+		assertFalse(pending.containsKey(messageId2));
+
+		// Deliver message 1 - the root's dependency state should be updated
+		db.setMessageState(txn, messageId1, DELIVERED);
+		pending = db.getPendingMessageDependencies(txn);
+		assertEquals(1, pending.size());
+		assertEquals(DELIVERED, pending.get(messageId).get(messageId1));
+
+		// Deliver the root - it should no longer be returned
+		db.setMessageState(txn, messageId, DELIVERED);
+		assertTrue(db.getPendingMessageDependencies(txn).isEmpty());
+
+		db.commitTransaction(txn);
+		db.close();
+	}
+
 	@Test
 	public void testMessageDependenciesAcrossGroups() throws Exception {
 		Database<Connection> db = open(false);
@@ -2149,6 +2366,81 @@ public abstract class JdbcDatabaseTest extends BrambleTestCase {
 		db.close();
 	}
 
+	@Test
+	public void testBatchMessageRetransmission() throws Exception {
+		long now = System.currentTimeMillis();
+		AtomicLong time = new AtomicLong(now);
+		Database<Connection> db =
+				open(false, new TestMessageFactory(), new SettableClock(time));
+		Connection txn = db.startTransaction();
+
+		// Add a contact, a shared group and more shared messages than fit
+		// in a single IN clause
+		db.addIdentity(txn, identity);
+		assertEquals(contactId,
+				db.addContact(txn, author, localAuthor.getId(), null, true));
+		db.addGroup(txn, group);
+		db.addGroupVisibility(txn, contactId, groupId, true);
+		List<Message> messages = new ArrayList<>();
+		for (int i = 0; i < 150; i++) {
+			Message m = getMessage(groupId, 100);
+			db.addMessage(txn, m, DELIVERED, true, false, null);
+			messages.add(m);
+		}
+
+		// Retrieve the messages from the database
+		Collection<MessageId> ids = db.getMessagesToSend(txn, contactId,
+				ONE_MEGABYTE, MAX_LATENCY);
+		assertEquals(150, ids.size());
+		List<Message> loaded = db.getMessages(txn, ids);
+		assertEquals(new ArrayList<>(ids), getIds(loaded));
+		assertTrue(loaded.containsAll(messages));
+		for (Message m : loaded) assertEquals(100, m.getBody().length);
+
+		// Mark the messages as sent
+		db.updateRetransmissionData(txn, contactId, ids, MAX_LATENCY);
+
+		// The messages should expire after 2 * MAX_LATENCY
+		assertEquals(now + MAX_LATENCY * 2,
+				db.getNextSendTime(txn, contactId, MAX_LATENCY));
+		ids = db.getMessagesToSend(txn, contactId, ONE_MEGABYTE, MAX_LATENCY);
+		assertTrue(ids.isEmpty());
+
+		db.commitTransaction(txn);
+		db.close();
+	}
+
+	@Test
+	public void testMessagesToSendAreLimitedByCapacity() throws Exception {
+		Database<Connection> db = open(false);
+		Connection txn = db.startTransaction();
+
+		// Add a contact, a shared group and three shared messages
+		db.addIdentity(txn, identity);
+		assertEquals(contactId,
+				db.addContact(txn, author, localAuthor.getId(), null, true));
+		db.addGroup(txn, group);
+		db.addGroupVisibility(txn, contactId, groupId, true);
+		for (int i = 0; i < 3; i++) {
+			Message m = getMessage(groupId, 1);
+			db.addMessage(txn, m, DELIVERED, true, false, null);
+		}
+
+		// Only as many messages as fit in the capacity should be returned
+		int length = RECORD_HEADER_BYTES + MESSAGE_HEADER_LENGTH + 1;
+		assertEquals(2, db.getMessagesToSend(txn, contactId, length * 2,
+				MAX_LATENCY).size());
+		assertEquals(2, db.getMessagesToSend(txn, contactId, length * 3 - 1,
+				MAX_LATENCY).size());
+		assertEquals(3, db.getMessagesToSend(txn, contactId, length * 3,
+				MAX_LATENCY).size());
+		assertTrue(db.getMessagesToSend(txn, contactId, length - 1,
+				MAX_LATENCY).isEmpty());
+
+		db.commitTransaction(txn);
+		db.close();
+	}
+
 	@Test
 	public void testFasterMessageRetransmission() throws Exception {
 		long now = System.currentTimeMillis();
@@ -2500,6 +2792,300 @@ public abstract class JdbcDatabaseTest extends BrambleTestCase {
 		assertEquals(NO_CLEANUP_DEADLINE, db.getNextCleanupDeadline(txn));
 	}
 
+	@Test
+	public void testPreparedStatementsAreReused() throws Exception {
+		JdbcDatabase db = (JdbcDatabase) open(false);
+		Connection txn = db.startTransaction();
+		db.addGroup(txn, group);
+		db.commitTransaction(txn);
+
+		// The first query may have to prepare a statement
+		txn = db.startTransaction();
+		assertTrue(db.containsGroup(txn, groupId));
+		long hits = db.getStatementCacheHits();
+		long misses = db.getStatementCacheMisses();
+
+		// Repeating the query should reuse the statement
+		assertTrue(db.containsGroup(txn, groupId));
+		assertEquals(hits + 1, db.getStatementCacheHits());
+		assertEquals(misses, db.getStatementCacheMisses());
+		db.commitTransaction(txn);
+
+		// The statement should still be cached when the connection is
+		// reused for another transaction
+		txn = db.startTransaction();
+		assertTrue(db.containsGroup(txn, groupId));
+		assertEquals(hits + 2, db.getStatementCacheHits());
+		assertEquals(misses, db.getStatementCacheMisses());
+		assertFalse(db.containsGroup(txn, new GroupId(getRandomId())));
+		assertEquals(hits + 3, db.getStatementCacheHits());
+		db.commitTransaction(txn);
+
+		db.close();
+	}
+
+	@Test
+	public void testMessageIdFilterSkipsUnknownMessages() throws Exception {
+		JdbcDatabase db = (JdbcDatabase) open(false);
+		Connection txn = db.startTransaction();
+		db.addGroup(txn, group);
+		db.addMessage(txn, message, DELIVERED, true, false, null);
+		db.commitTransaction(txn);
+
+		// Looking up the stored message should query the database
+		txn = db.startTransaction();
+		long skips = db.getMessageIdFilterSkips();
+		assertTrue(db.containsMessage(txn, messageId));
+		assertEquals(skips, db.getMessageIdFilterSkips());
+
+		// Looking up an unknown message should skip the database
+		assertFalse(db.containsMessage(txn, new MessageId(getRandomId())));
+		assertEquals(skips + 1, db.getMessageIdFilterSkips());
+		assertTrue(db.getMessageIdFilterMemoryUsage() > 0);
+		assertTrue(db.getMessageIdFilterFalsePositiveRate() < 0.01);
+
+		// Add enough messages to fill the filter, so it's rebuilt
+		List<MessageId> ids = new ArrayList<>();
+		for (int i = 0; i < 2000; i++) {
+			Message m = getMessage(groupId);
+			db.addMessage(txn, m, DELIVERED, true, false, null);
+			ids.add(m.getId());
+		}
+		db.commitTransaction(txn);
+
+		// All the messages should still be found
+		txn = db.startTransaction();
+		assertTrue(db.containsMessage(txn, messageId));
+		for (MessageId m : ids) assertTrue(db.containsMessage(txn, m));
+		db.commitTransaction(txn);
+
+		// If a transaction that rebuilds the filter is aborted, messages it
+		// removed should still be found
+		txn = db.startTransaction();
+		db.removeMessage(txn, messageId);
+		for (int i = 0; i < 2000; i++) {
+			Message m = getMessage(groupId);
+			db.addMessage(txn, m, DELIVERED, true, false, null);
+		}
+		db.abortTransaction(txn);
+		txn = db.startTransaction();
+		assertTrue(db.containsMessage(txn, messageId));
+		db.commitTransaction(txn);
+
+		db.close();
+	}
+
+	@Test
+	public void testBulkAckOfferAndRequestOperations() throws Exception {
+		Database<Connection> db = open(false);
+		Connection txn = db.startTransaction();
+
+		// Add a contact, a shared group and more shared messages than fit
+		// in a single IN clause
+		db.addIdentity(txn, identity);
+		assertEquals(contactId,
+				db.addContact(txn, author, localAuthor.getId(), null, true));
+		db.addGroup(txn, group);
+		db.addGroupVisibility(txn, contactId, groupId, true);
+		List<MessageId> ids = new ArrayList<>();
+		for (int i = 0; i < 150; i++) {
+			Message m = getMessage(groupId);
+			db.addMessage(txn, m, DELIVERED, true, false, null);
+			ids.add(m.getId());
+		}
+
+		// Only the stored messages should be visible, in the order given
+		List<MessageId> unknown = new ArrayList<>();
+		for (int i = 0; i < 10; i++) unknown.add(new MessageId(getRandomId()));
+		List<MessageId> query = new ArrayList<>(unknown);
+		query.addAll(ids);
+		assertEquals(ids, db.getVisibleMessages(txn, contactId, query));
+
+		// Raise the requested flag - the messages should be sendable
+		db.raiseRequestedFlag(txn, contactId, ids);
+		db.resetExpiryTime(txn, contactId, ids);
+		assertEquals(new HashSet<>(ids), new HashSet<>(
+				db.getRequestedMessagesToSend(txn, contactId, ONE_MEGABYTE,
+						MAX_LATENCY)));
+
+		// Raising the seen flag should return the messages that weren't seen
+		List<MessageId> first = ids.subList(0, 50);
+		assertEquals(first, db.raiseSeenFlag(txn, contactId, first));
+		assertEquals(ids.subList(50, 150),
+				db.raiseSeenFlag(txn, contactId, ids));
+		assertTrue(db.raiseSeenFlag(txn, contactId, ids).isEmpty());
+
+		// Seen messages shouldn't be sent
+		assertTrue(db.getRequestedMessagesToSend(txn, contactId,
+				ONE_MEGABYTE, MAX_LATENCY).isEmpty());
+
+		// Raise the ack flag - the messages should need to be acked
+		db.raiseAckFlag(txn, contactId, ids);
+		assertEquals(new HashSet<>(ids), new HashSet<>(
+				db.getMessagesToAck(txn, contactId, ids.size())));
+
+		// Offered messages should only be stored once
+		db.addOfferedMessages(txn, contactId, unknown);
+		db.addOfferedMessages(txn, contactId, unknown);
+		assertEquals(unknown.size(), db.countOfferedMessages(txn, contactId));
+
+		db.commitTransaction(txn);
+		db.close();
+	}
+
+	@Test
+	public void testUnseenMessageCountsAndSharedMessageIds()
+			throws Exception {
+		Database<Connection> db = open(false);
+		Connection txn = db.startTransaction();
+
+		// Add a contact and a shared group
+		db.addIdentity(txn, identity);
+		assertEquals(contactId,
+				db.addContact(txn, author, localAuthor.getId(), null, true));
+		db.addGroup(txn, group);
+		db.addGroupVisibility(txn, contactId, groupId, true);
+
+		// No messages yet
+		assertTrue(db.getUnseenMessageCounts(txn, contactId).isEmpty());
+		assertTrue(db.getSharedMessageIds(txn, contactId, groupId).isEmpty());
+
+		// Add some shared messages and one that isn't shared
+		List<MessageId> ids = new ArrayList<>();
+		for (int i = 0; i < 10; i++) {
+			Message m = getMessage(groupId);
+			db.addMessage(txn, m, DELIVERED, true, false, null);
+			ids.add(m.getId());
+		}
+		db.addMessage(txn, getMessage(groupId), DELIVERED, false, false,
+				null);
+
+		// All the shared messages are unseen
+		assertEquals(singletonMap(groupId, 10),
+				db.getUnseenMessageCounts(txn, contactId));
+		assertEquals(new HashSet<>(ids), new HashSet<>(
+				db.getSharedMessageIds(txn, contactId, groupId)));
+
+		// Seen messages aren't counted, but are still returned
+		db.raiseSeenFlag(txn, contactId, ids.subList(0, 4));
+		assertEquals(singletonMap(groupId, 6),
+				db.getUnseenMessageCounts(txn, contactId));
+		assertEquals(new HashSet<>(ids), new HashSet<>(
+				db.getSharedMessageIds(txn, contactId, groupId)));
+
+		// If the group stops being shared, nothing is counted or returned
+		db.setGroupVisibility(txn, contactId, groupId, false);
+		assertTrue(db.getUnseenMessageCounts(txn, contactId).isEmpty());
+		assertTrue(db.getSharedMessageIds(txn, contactId, groupId).isEmpty());
+
+		db.commitTransaction(txn);
+		db.close();
+	}
+
+	@Test
+	public void testMessagesAreSentInPriorityOrder() throws Exception {
+		ClientId bulkClientId = getClientId();
+		Group bulkGroup = getGroup(bulkClientId, majorVersion);
+		long now = System.currentTimeMillis();
+		Message old = getMessage(bulkGroup.getId(), 100, now - 1000);
+		Message recent = getMessage(groupId, 100, now);
+
+		Database<Connection> db = open(false);
+		Connection txn = db.startTransaction();
+
+		// Clients have normal priority by default
+		assertEquals(NORMAL, db.getSendPriority(txn, clientId, majorVersion));
+
+		// Add a contact, two shared groups and a message in each group
+		db.addIdentity(txn, identity);
+		assertEquals(contactId,
+				db.addContact(txn, author, localAuthor.getId(), null, true));
+		db.addGroup(txn, group);
+		db.addGroupVisibility(txn, contactId, groupId, true);
+		db.addGroup(txn, bulkGroup);
+		db.addGroupVisibility(txn, contactId, bulkGroup.getId(), true);
+		db.addMessage(txn, old, DELIVERED, true, false, null);
+		db.addMessage(txn, recent, DELIVERED, true, false, null);
+
+		// With equal priorities, the older message comes first
+		List<MessageId> oldFirst = asList(old.getId(), recent.getId());
+		assertEquals(oldFirst, db.getMessagesToOffer(txn, contactId, 10,
+				MAX_LATENCY));
+		assertEquals(oldFirst, db.getMessagesToSend(txn, contactId,
+				ONE_MEGABYTE, MAX_LATENCY));
+
+		// Lowering the priority of the older message's client should
+		// affect the existing message
+		db.setSendPriority(txn, bulkClientId, majorVersion, BULK);
+		assertEquals(BULK, db.getSendPriority(txn, bulkClientId, majorVersion));
+		List<MessageId> recentFirst = asList(recent.getId(), old.getId());
+		assertEquals(recentFirst, db.getMessagesToOffer(txn, contactId, 10,
+				MAX_LATENCY));
+		assertEquals(recentFirst, db.getMessagesToSend(txn, contactId,
+				ONE_MEGABYTE, MAX_LATENCY));
+		assertEquals(recentFirst,
+				db.getUnackedMessagesToSend(txn, contactId));
+
+		// Messages added later should get the client's priority
+		Message older = getMessage(bulkGroup.getId(), 100, now - 2000);
+		db.addMessage(txn, older, DELIVERED, true, false, null);
+		assertEquals(asList(recent.getId(), older.getId(), old.getId()),
+				db.getMessagesToSend(txn, contactId, ONE_MEGABYTE,
+						MAX_LATENCY));
+
+		// Setting the same priority again should change nothing
+		db.setSendPriority(txn, bulkClientId, majorVersion, BULK);
+		assertEquals(BULK, db.getSendPriority(txn, bulkClientId, majorVersion));
+		assertEquals(asList(recent.getId(), older.getId(), old.getId()),
+				db.getMessagesToSend(txn, contactId, ONE_MEGABYTE,
+						MAX_LATENCY));
+
+		// Restoring normal priority should restore timestamp order
+		db.setSendPriority(txn, bulkClientId, majorVersion, NORMAL);
+		assertEquals(asList(older.getId(), old.getId(), recent.getId()),
+				db.getMessagesToSend(txn, contactId, ONE_MEGABYTE,
+						MAX_LATENCY));
+
+		db.commitTransaction(txn);
+		db.close();
+	}
+
+	@Test
+	public void testBulkCleanupTimers() throws Exception {
+		long duration = 60_000;
+		long now = System.currentTimeMillis();
+		AtomicLong time = new AtomicLong(now);
+		Database<Connection> db =
+				open(false, new TestMessageFactory(), new SettableClock(time));
+		Connection txn = db.startTransaction();
+
+		// Add a group and two messages, one with a cleanup timer duration
+		Message message1 = getMessage(groupId);
+		MessageId messageId1 = message1.getId();
+		db.addGroup(txn, group);
+		db.addMessage(txn, message, DELIVERED, false, false, null);
+		db.addMessage(txn, message1, DELIVERED, false, false, null);
+		db.setCleanupTimerDuration(txn, messageId, duration);
+
+		// Only the message with a timer duration should have its timer started
+		List<MessageId> both = asList(messageId, messageId1);
+		assertEquals(singletonMap(messageId, now + duration),
+				db.startCleanupTimer(txn, both));
+		assertEquals(now + duration, db.getNextCleanupDeadline(txn));
+
+		// The timer can't be started again
+		assertTrue(db.startCleanupTimer(txn, both).isEmpty());
+
+		db.commitTransaction(txn);
+		db.close();
+	}
+
+	private List<MessageId> getIds(List<Message> messages) {
+		List<MessageId> ids = new ArrayList<>(messages.size());
+		for (Message m : messages) ids.add(m.getId());
+		return ids;
+	}
+
 	private Database<Connection> open(boolean resume) throws Exception {
 		return open(resume, new TestMessageFactory(), new SystemClock());
 	}
@@ -0,0 +1,68 @@
+package org.briarproject.bramble.db;
+
+import org.briarproject.bramble.api.sync.MessageId;
+import org.briarproject.bramble.test.BrambleTestCase;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.briarproject.bramble.test.TestUtils.getRandomId;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MessageIdFilterTest extends BrambleTestCase {
+
+	private static final int CAPACITY = 10_000;
+
+	@Test
+	public void testAddedIdsAreAlwaysFound() {
+		MessageIdFilter filter = new MessageIdFilter(CAPACITY);
+		List<MessageId> ids = new ArrayList<>(CAPACITY);
+		for (int i = 0; i < CAPACITY; i++) {
+			MessageId m = new MessageId(getRandomId());
+			filter.add(m);
+			ids.add(m);
+		}
+		for (MessageId m : ids) assertTrue(filter.mightContain(m));
+		assertEquals(CAPACITY, filter.getCount());
+		assertFalse(filter.isFull());
+	}
+
+	@Test
+	public void testFalsePositiveRateAtCapacity() {
+		MessageIdFilter filter = new MessageIdFilter(CAPACITY);
+		assertEquals(0, filter.getFalsePositiveRate(), 0);
+		for (int i = 0; i < CAPACITY; i++)
+			filter.add(new MessageId(getRandomId()));
+		// The expected rate should be about 1%
+		double expected = filter.getFalsePositiveRate();
+		assertTrue(expected > 0.005 && expected < 0.015);
+		// The observed rate should be close to the expected rate
+		int falsePositives = 0, trials = 100_000;
+		for (int i = 0; i < trials; i++) {
+			if (filter.mightContain(new MessageId(getRandomId())))
+				falsePositives++;
+		}
+		double observed = (double) falsePositives / trials;
+		assertTrue(observed < expected * 2);
+	}
+
+	@Test
+	public void testFilterIsFullWhenCapacityIsExceeded() {
+		MessageIdFilter filter = new MessageIdFilter(1);
+		filter.add(new MessageId(getRandomId()));
+		assertFalse(filter.isFull());
+		filter.add(new MessageId(getRandomId()));
+		assertTrue(filter.isFull());
+	}
+
+	@Test
+	public void testMemoryUsageIsProportionalToCapacity() {
+		MessageIdFilter filter = new MessageIdFilter(CAPACITY);
+		assertEquals(CAPACITY, filter.getCapacity());
+		// Ten bits per ID, rounded up to a whole number of longs
+		assertEquals((CAPACITY * 10 + 63) / 64 * 8, filter.getMemoryUsage());
+	}
+}
@@ -0,0 +1,119 @@
+package org.briarproject.bramble.db;
+
+import org.briarproject.bramble.test.BrambleMockTestCase;
+import org.jmock.Expectations;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class StatementCacheTest extends BrambleMockTestCase {
+
+	private static final String SQL = "SELECT foo FROM bar";
+	private static final String SQL1 = "SELECT baz FROM bam";
+
+	private final Connection connection = context.mock(Connection.class);
+	private final PreparedStatement statement =
+			context.mock(PreparedStatement.class, "statement");
+	private final PreparedStatement statement1 =
+			context.mock(PreparedStatement.class, "statement1");
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	@Test
+	public void testStatementIsReusedAfterClosing() throws Exception {
+		Connection c = createCache(1);
+
+		context.checking(new Expectations() {{
+			oneOf(connection).prepareStatement(SQL);
+			will(returnValue(statement));
+			oneOf(statement).setInt(1, 123);
+			exactly(2).of(statement).clearParameters();
+			exactly(2).of(statement).clearBatch();
+			oneOf(statement).setInt(1, 234);
+		}});
+
+		PreparedStatement ps = c.prepareStatement(SQL);
+		ps.setInt(1, 123);
+		ps.close();
+		PreparedStatement ps1 = c.prepareStatement(SQL);
+		ps1.setInt(1, 234);
+		ps1.close();
+
+		assertSame(ps, ps1);
+		assertEquals(1, hits.get());
+		assertEquals(1, misses.get());
+	}
+
+	@Test
+	public void testStatementIsNotSharedWhileInUse() throws Exception {
+		Connection c = createCache(1);
+
+		context.checking(new Expectations() {{
+			exactly(2).of(connection).prepareStatement(SQL);
+			will(onConsecutiveCalls(returnValue(statement),
+					returnValue(statement1)));
+			// The second statement isn't cached, so it's really closed
+			oneOf(statement1).close();
+			oneOf(statement).clearParameters();
+			oneOf(statement).clearBatch();
+		}});
+
+		PreparedStatement ps = c.prepareStatement(SQL);
+		PreparedStatement ps1 = c.prepareStatement(SQL);
+		assertNotSame(ps, ps1);
+		ps1.close();
+		ps.close();
+
+		assertEquals(0, hits.get());
+		assertEquals(2, misses.get());
+	}
+
+	@Test
+	public void testLeastRecentlyUsedStatementIsEvicted() throws Exception {
+		Connection c = createCache(1);
+
+		context.checking(new Expectations() {{
+			oneOf(connection).prepareStatement(SQL);
+			will(returnValue(statement));
+			oneOf(statement).clearParameters();
+			oneOf(statement).clearBatch();
+			oneOf(connection).prepareStatement(SQL1);
+			will(returnValue(statement1));
+			// The first statement is evicted when the second is prepared
+			oneOf(statement).close();
+		}});
+
+		c.prepareStatement(SQL).close();
+		c.prepareStatement(SQL1);
+	}
+
+	@Test
+	public void testClosingConnectionClosesCachedStatements()
+			throws Exception {
+		Connection c = createCache(2);
+
+		context.checking(new Expectations() {{
+			oneOf(connection).prepareStatement(SQL);
+			will(returnValue(statement));
+			oneOf(statement).clearParameters();
+			oneOf(statement).clearBatch();
+			oneOf(statement).close();
+			oneOf(connection).close();
+		}});
+
+		c.prepareStatement(SQL).close();
+		c.close();
+	}
+
+	private Connection createCache(int capacity) {
+		return new StatementCache(connection, capacity, hits, misses)
+				.getConnection();
+	}
+}
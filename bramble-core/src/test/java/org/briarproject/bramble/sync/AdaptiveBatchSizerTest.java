@@ -0,0 +1,83 @@
+package org.briarproject.bramble.sync;
+
+import org.briarproject.bramble.api.sync.MessageId;
+import org.briarproject.bramble.test.BrambleTestCase;
+import org.junit.Test;
+
+import static org.briarproject.bramble.api.sync.SyncConstants.MAX_MESSAGE_IDS;
+import static org.briarproject.bramble.sync.AdaptiveBatchSizer.MIN_MESSAGE_IDS;
+import static org.briarproject.bramble.sync.AdaptiveBatchSizer.TARGET_GENERATION_TIME;
+import static org.briarproject.bramble.sync.AdaptiveBatchSizer.TARGET_WRITE_TIME;
+import static org.briarproject.bramble.sync.BatchSizer.DEFAULT_BATCH_CAPACITY;
+import static org.briarproject.bramble.sync.BatchSizer.MAX_BATCH_CAPACITY;
+import static org.briarproject.bramble.sync.BatchSizer.MIN_BATCH_CAPACITY;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AdaptiveBatchSizerTest extends BrambleTestCase {
+
+	@Test
+	public void testDefaultsAreUsedBeforeMeasurements() {
+		AdaptiveBatchSizer sizer = new AdaptiveBatchSizer();
+		assertEquals(DEFAULT_BATCH_CAPACITY, sizer.getBatchCapacity());
+		assertEquals(MAX_MESSAGE_IDS, sizer.getMaxMessageIds());
+	}
+
+	@Test
+	public void testFastTransportGetsLargeBatches() {
+		AdaptiveBatchSizer sizer = new AdaptiveBatchSizer();
+		// Generating and writing are both very fast
+		sizer.onBatchGenerated(DEFAULT_BATCH_CAPACITY, 0);
+		sizer.onBatchWritten(DEFAULT_BATCH_CAPACITY, 0);
+		assertEquals(MAX_BATCH_CAPACITY, sizer.getBatchCapacity());
+		assertEquals(MAX_MESSAGE_IDS, sizer.getMaxMessageIds());
+	}
+
+	@Test
+	public void testSlowTransportGetsSmallBatches() {
+		AdaptiveBatchSizer sizer = new AdaptiveBatchSizer();
+		// Generating is fast but writing is very slow
+		sizer.onBatchGenerated(DEFAULT_BATCH_CAPACITY, 0);
+		sizer.onBatchWritten(DEFAULT_BATCH_CAPACITY, 60_000);
+		assertEquals(MIN_BATCH_CAPACITY, sizer.getBatchCapacity());
+		assertEquals(MIN_MESSAGE_IDS, sizer.getMaxMessageIds());
+	}
+
+	@Test
+	public void testCapacityIsLimitedBySlowerStage() {
+		AdaptiveBatchSizer sizer = new AdaptiveBatchSizer();
+		// Writing at 100 bytes per ms allows 100 KB batches, but generating
+		// at 500 bytes per ms only allows 50 KB batches
+		long bytes = DEFAULT_BATCH_CAPACITY;
+		sizer.onBatchWritten(bytes, bytes / 100);
+		sizer.onBatchGenerated(bytes, bytes / 500);
+		double generationRate = (double) bytes / (bytes / 500);
+		assertEquals((int) (generationRate * TARGET_GENERATION_TIME),
+				sizer.getBatchCapacity());
+		// The ID limit depends on the write rate
+		double writeRate = (double) bytes / (bytes / 100);
+		int ids = (int) (writeRate * TARGET_WRITE_TIME / MessageId.LENGTH);
+		assertEquals(Math.min(ids, MAX_MESSAGE_IDS), sizer.getMaxMessageIds());
+	}
+
+	@Test
+	public void testMeasurementsAreSmoothed() {
+		AdaptiveBatchSizer sizer = new AdaptiveBatchSizer();
+		sizer.onBatchWritten(MIN_BATCH_CAPACITY, 1000);
+		int slow = sizer.getBatchCapacity();
+		// A single faster write should only move part of the way towards
+		// the faster rate
+		sizer.onBatchWritten(MIN_BATCH_CAPACITY * 4, 1000);
+		int faster = sizer.getBatchCapacity();
+		assertEquals(MIN_BATCH_CAPACITY, slow);
+		assertTrue(faster > slow && faster < MIN_BATCH_CAPACITY * 4);
+	}
+
+	@Test
+	public void testEmptyBatchesAreIgnored() {
+		AdaptiveBatchSizer sizer = new AdaptiveBatchSizer();
+		sizer.onBatchGenerated(0, 1000);
+		sizer.onBatchWritten(0, 1000);
+		assertEquals(DEFAULT_BATCH_CAPACITY, sizer.getBatchCapacity());
+	}
+}
@@ -0,0 +1,154 @@
+package org.briarproject.bramble.sync;
+
+import org.briarproject.bramble.api.contact.ContactId;
+import org.briarproject.bramble.api.db.DatabaseComponent;
+import org.briarproject.bramble.api.db.Transaction;
+import org.briarproject.bramble.api.event.EventBus;
+import org.briarproject.bramble.api.plugin.TransportId;
+import org.briarproject.bramble.api.sync.GroupId;
+import org.briarproject.bramble.api.sync.Message;
+import org.briarproject.bramble.api.sync.SyncRecordWriter;
+import org.briarproject.bramble.api.sync.event.MessageRequestedEvent;
+import org.briarproject.bramble.api.sync.event.SyncVersionsReceivedEvent;
+import org.briarproject.bramble.api.system.Clock;
+import org.briarproject.bramble.api.transport.StreamWriter;
+import org.briarproject.bramble.test.BrambleMockTestCase;
+import org.briarproject.bramble.test.DbExpectations;
+import org.jmock.lib.concurrent.DeterministicExecutor;
+import org.junit.Test;
+
+import java.util.List;
+
+import static java.util.Collections.emptyMap;
+import static java.util.Collections.singletonList;
+import static org.briarproject.bramble.api.record.Record.RECORD_HEADER_BYTES;
+import static org.briarproject.bramble.api.sync.SyncConstants.MAX_MESSAGE_BODY_LENGTH;
+import static org.briarproject.bramble.api.sync.SyncConstants.SKETCH_VERSION;
+import static org.briarproject.bramble.sync.BatchSizer.DEFAULT_BATCH_CAPACITY;
+import static org.briarproject.bramble.sync.DuplexOutgoingSession.MAX_PREFETCHED_BATCHES;
+import static org.briarproject.bramble.test.TestUtils.getContactId;
+import static org.briarproject.bramble.test.TestUtils.getMessage;
+import static org.briarproject.bramble.test.TestUtils.getRandomId;
+import static org.briarproject.bramble.test.TestUtils.getTransportId;
+
+public class DuplexOutgoingSessionTest extends BrambleMockTestCase {
+
+	private static final int MAX_LATENCY = Integer.MAX_VALUE;
+	private static final int MAX_IDLE_TIME = 30_000;
+
+	private final DatabaseComponent db = context.mock(DatabaseComponent.class);
+	private final EventBus eventBus = context.mock(EventBus.class);
+	private final Clock clock = context.mock(Clock.class);
+	private final StreamWriter streamWriter = context.mock(StreamWriter.class);
+	private final SyncRecordWriter recordWriter =
+			context.mock(SyncRecordWriter.class);
+	private final BatchSizer batchSizer = context.mock(BatchSizer.class);
+	private final SessionMetrics metrics =
+			context.mock(SessionMetrics.class);
+
+	private final DeterministicExecutor dbExecutor =
+			new DeterministicExecutor();
+	private final ContactId contactId = getContactId();
+	private final TransportId transportId = getTransportId();
+	private final Message message = getMessage(new GroupId(getRandomId()),
+			MAX_MESSAGE_BODY_LENGTH);
+	private final long batchLength =
+			RECORD_HEADER_BYTES + message.getRawLength();
+
+	@Test
+	public void testBatchesArePrefetchedUpToLimit() throws Exception {
+		DuplexOutgoingSession session = createSession();
+		Transaction txn = new Transaction(null, false);
+
+		context.checking(new DbExpectations() {{
+			// Generate as many batches as can be prefetched, without
+			// waiting for the writer
+			exactly(MAX_PREFETCHED_BATCHES).of(batchSizer).getBatchCapacity();
+			will(returnValue(DEFAULT_BATCH_CAPACITY));
+			exactly(MAX_PREFETCHED_BATCHES).of(db)
+					.transactionWithNullableResult(with(false),
+							withNullableDbCallable(txn));
+			exactly(MAX_PREFETCHED_BATCHES).of(db).generateRequestedBatch(
+					txn, contactId, DEFAULT_BATCH_CAPACITY, MAX_LATENCY);
+			will(returnValue(singletonList(message)));
+			exactly(MAX_PREFETCHED_BATCHES).of(db).getNextSendTime(txn,
+					contactId, MAX_LATENCY);
+			will(returnValue(Long.MAX_VALUE));
+			exactly(MAX_PREFETCHED_BATCHES).of(batchSizer).onBatchGenerated(
+					with(batchLength), with(any(long.class)));
+			exactly(MAX_PREFETCHED_BATCHES).of(metrics).onBatchGenerated(
+					with(any(long.class)));
+			// Each task records the time spent waiting for the DB,
+			// including the task that finds the limit has been reached
+			exactly(MAX_PREFETCHED_BATCHES + 1).of(metrics)
+					.onDbWait(with(any(long.class)));
+		}});
+
+		session.eventOccurred(new MessageRequestedEvent(contactId));
+		dbExecutor.runUntilIdle();
+
+		context.checking(new DbExpectations() {{
+			// The task runs but doesn't generate a batch
+			oneOf(metrics).onDbWait(with(any(long.class)));
+		}});
+
+		// No more batches should be generated until the writer catches up
+		session.eventOccurred(new MessageRequestedEvent(contactId));
+		dbExecutor.runUntilIdle();
+	}
+
+	@Test
+	public void testNoMoreBatchesArePrefetchedIfNothingToSend()
+			throws Exception {
+		DuplexOutgoingSession session = createSession();
+		Transaction txn = new Transaction(null, false);
+
+		context.checking(new DbExpectations() {{
+			// No messages to send
+			oneOf(batchSizer).getBatchCapacity();
+			will(returnValue(DEFAULT_BATCH_CAPACITY));
+			oneOf(db).transactionWithNullableResult(with(false),
+					withNullableDbCallable(txn));
+			oneOf(db).generateRequestedBatch(txn, contactId,
+					DEFAULT_BATCH_CAPACITY, MAX_LATENCY);
+			will(returnValue(null));
+			oneOf(db).getNextSendTime(txn, contactId, MAX_LATENCY);
+			will(returnValue(Long.MAX_VALUE));
+			oneOf(metrics).onDbWait(with(any(long.class)));
+		}});
+
+		session.eventOccurred(new MessageRequestedEvent(contactId));
+		dbExecutor.runUntilIdle();
+	}
+
+	@Test
+	public void testSketchesAreOnlySentOverTransportThatReceivedVersions()
+			throws Exception {
+		DuplexOutgoingSession session = createSession();
+		Transaction txn = new Transaction(null, true);
+		List<Byte> supported = singletonList(SKETCH_VERSION);
+
+		// Versions received over another transport should be ignored
+		session.eventOccurred(new SyncVersionsReceivedEvent(contactId,
+				getTransportId(), supported));
+		dbExecutor.runUntilIdle();
+
+		context.checking(new DbExpectations() {{
+			// No groups are big enough to sketch
+			oneOf(db).transactionWithResult(with(true), withDbCallable(txn));
+			oneOf(db).getUnseenMessageCounts(txn, contactId);
+			will(returnValue(emptyMap()));
+			oneOf(metrics).onDbWait(with(any(long.class)));
+		}});
+
+		session.eventOccurred(new SyncVersionsReceivedEvent(contactId,
+				transportId, supported));
+		dbExecutor.runUntilIdle();
+	}
+
+	private DuplexOutgoingSession createSession() {
+		return new DuplexOutgoingSession(db, dbExecutor, eventBus, clock,
+				contactId, transportId, MAX_LATENCY, MAX_IDLE_TIME,
+				streamWriter, recordWriter, batchSizer, null, metrics);
+	}
+}
@@ -35,6 +35,9 @@ public class EagerSimplexOutgoingSessionTest extends BrambleMockTestCase {
 	private final StreamWriter streamWriter = context.mock(StreamWriter.class);
 	private final SyncRecordWriter recordWriter =
 			context.mock(SyncRecordWriter.class);
+	private final BatchSizer batchSizer = context.mock(BatchSizer.class);
+	private final SessionMetrics metrics =
+			context.mock(SessionMetrics.class);
 
 	private final ContactId contactId = getContactId();
 	private final TransportId transportId = getTransportId();
@@ -49,7 +52,8 @@ public class EagerSimplexOutgoingSessionTest extends BrambleMockTestCase {
 	public void testNothingToSendEagerly() throws Exception {
 		EagerSimplexOutgoingSession session =
 				new EagerSimplexOutgoingSession(db, eventBus, contactId,
-						transportId, MAX_LATENCY, streamWriter, recordWriter);
+						transportId, MAX_LATENCY, streamWriter, recordWriter,
+						batchSizer, metrics);
 
 		Transaction noAckTxn = new Transaction(null, false);
 		Transaction noIdsTxn = new Transaction(null, true);
@@ -62,11 +66,13 @@ public class EagerSimplexOutgoingSessionTest extends BrambleMockTestCase {
 			// No acks to send
 			oneOf(db).transactionWithNullableResult(with(false),
 					withNullableDbCallable(noAckTxn));
+			oneOf(metrics).onDbWait(with(any(long.class)));
 			oneOf(db).generateAck(noAckTxn, contactId, MAX_MESSAGE_IDS);
 			will(returnValue(null));
 			// No messages to send
 			oneOf(db).transactionWithResult(with(true),
 					withDbCallable(noIdsTxn));
+			oneOf(metrics).onDbWait(with(any(long.class)));
 			oneOf(db).getUnackedMessagesToSend(noIdsTxn, contactId);
 			will(returnValue(emptyList()));
 			// Send the end of stream marker
@@ -82,7 +88,8 @@ public class EagerSimplexOutgoingSessionTest extends BrambleMockTestCase {
 	public void testSomethingToSendEagerly() throws Exception {
 		EagerSimplexOutgoingSession session =
 				new EagerSimplexOutgoingSession(db, eventBus, contactId,
-						transportId, MAX_LATENCY, streamWriter, recordWriter);
+						transportId, MAX_LATENCY, streamWriter, recordWriter,
+						batchSizer, metrics);
 
 		Transaction ackTxn = new Transaction(null, false);
 		Transaction noAckTxn = new Transaction(null, false);
@@ -98,27 +105,32 @@ public class EagerSimplexOutgoingSessionTest extends BrambleMockTestCase {
 			// One ack to send
 			oneOf(db).transactionWithNullableResult(with(false),
 					withNullableDbCallable(ackTxn));
+			oneOf(metrics).onDbWait(with(any(long.class)));
 			oneOf(db).generateAck(ackTxn, contactId, MAX_MESSAGE_IDS);
 			will(returnValue(ack));
 			oneOf(recordWriter).writeAck(ack);
 			// No more acks
 			oneOf(db).transactionWithNullableResult(with(false),
 					withNullableDbCallable(noAckTxn));
+			oneOf(metrics).onDbWait(with(any(long.class)));
 			oneOf(db).generateAck(noAckTxn, contactId, MAX_MESSAGE_IDS);
 			will(returnValue(null));
 			// Two messages to send
 			oneOf(db).transactionWithResult(with(true), withDbCallable(idsTxn));
+			oneOf(metrics).onDbWait(with(any(long.class)));
 			oneOf(db).getUnackedMessagesToSend(idsTxn, contactId);
 			will(returnValue(asList(message.getId(), message1.getId())));
 			// Try to send the first message - it's no longer shared
 			oneOf(db).transactionWithNullableResult(with(false),
 					withNullableDbCallable(msgTxn));
+			oneOf(metrics).onDbWait(with(any(long.class)));
 			oneOf(db).getMessageToSend(msgTxn, contactId, message.getId(),
 					MAX_LATENCY, true);
 			will(returnValue(null));
 			// Send the second message
 			oneOf(db).transactionWithNullableResult(with(false),
 					withNullableDbCallable(msgTxn1));
+			oneOf(metrics).onDbWait(with(any(long.class)));
 			oneOf(db).getMessageToSend(msgTxn1, contactId, message1.getId(),
 					MAX_LATENCY, true);
 			will(returnValue(message1));
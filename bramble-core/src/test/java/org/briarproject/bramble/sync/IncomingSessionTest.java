@@ -0,0 +1,614 @@
+package org.briarproject.bramble.sync;
+
+import org.briarproject.bramble.api.Consumer;
+import org.briarproject.bramble.api.contact.ContactId;
+import org.briarproject.bramble.api.db.DatabaseComponent;
+import org.briarproject.bramble.api.db.DbException;
+import org.briarproject.bramble.api.db.DbRunnable;
+import org.briarproject.bramble.api.db.EventAction;
+import org.briarproject.bramble.api.db.Transaction;
+import org.briarproject.bramble.api.event.Event;
+import org.briarproject.bramble.api.event.EventBus;
+import org.briarproject.bramble.api.plugin.TransportId;
+import org.briarproject.bramble.api.sync.Ack;
+import org.briarproject.bramble.api.sync.GroupId;
+import org.briarproject.bramble.api.sync.Message;
+import org.briarproject.bramble.api.sync.MessageId;
+import org.briarproject.bramble.api.sync.Offer;
+import org.briarproject.bramble.api.sync.PriorityHandler;
+import org.briarproject.bramble.api.sync.Sketch;
+import org.briarproject.bramble.api.sync.SyncRecordReader;
+import org.briarproject.bramble.api.sync.Versions;
+import org.briarproject.bramble.api.sync.event.SketchReceivedEvent;
+import org.briarproject.bramble.api.sync.event.SyncVersionsReceivedEvent;
+import org.briarproject.bramble.api.sync.validation.ValidationManager;
+import org.briarproject.bramble.test.BrambleMockTestCase;
+import org.briarproject.bramble.test.CaptureArgumentAction;
+import org.briarproject.bramble.test.ConsumeArgumentAction;
+import org.briarproject.bramble.test.DbExpectations;
+import org.briarproject.bramble.test.PredicateMatcher;
+import org.jmock.Sequence;
+import org.jmock.lib.concurrent.DeterministicExecutor;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static org.briarproject.bramble.api.sync.SyncConstants.MAX_MESSAGE_IDS;
+import static org.briarproject.bramble.sync.IncomingSession.MAX_RECORDS_PER_TRANSACTION;
+import static org.briarproject.bramble.sync.InvertibleBloomFilter.MAX_CELLS;
+import static org.briarproject.bramble.test.TestUtils.getContactId;
+import static org.briarproject.bramble.test.TestUtils.getMessage;
+import static org.briarproject.bramble.test.TestUtils.getRandomId;
+import static org.briarproject.bramble.test.TestUtils.getTransportId;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class IncomingSessionTest extends BrambleMockTestCase {
+
+	private final DatabaseComponent db = context.mock(DatabaseComponent.class);
+	private final EventBus eventBus = context.mock(EventBus.class);
+	private final SyncRecordReader recordReader =
+			context.mock(SyncRecordReader.class);
+	private final PriorityHandler priorityHandler =
+			context.mock(PriorityHandler.class);
+	private final ValidationManager validationManager =
+			context.mock(ValidationManager.class);
+	private final SessionMetrics metrics =
+			context.mock(SessionMetrics.class);
+
+	private final DeterministicExecutor dbExecutor =
+			new DeterministicExecutor();
+	private final DeterministicExecutor dbReadExecutor =
+			new DeterministicExecutor();
+	private final ContactId contactId = getContactId();
+	private final TransportId transportId = getTransportId();
+	private final Ack ack =
+			new Ack(singletonList(new MessageId(getRandomId())));
+	private final Message message = getMessage(new GroupId(getRandomId()));
+	private final DbRunnable<DbException> storeMessage =
+			txn -> db.receiveMessage(txn, contactId, message);
+
+	@Test
+	public void testQueuedRecordsAreAppliedInOneTransaction()
+			throws Exception {
+		IncomingSession session = createSession();
+		Transaction txn = new Transaction(null, false);
+		Transaction txn1 = new Transaction(null, true);
+		Sequence sequence = context.sequence("records");
+
+		context.checking(new DbExpectations() {{
+			oneOf(eventBus).addListener(session);
+			// Read a message and an ack
+			oneOf(recordReader).eof();
+			will(returnValue(false));
+			oneOf(recordReader).hasAck();
+			will(returnValue(false));
+			oneOf(recordReader).hasMessage();
+			will(returnValue(true));
+			oneOf(recordReader).readMessage();
+			will(returnValue(message));
+			oneOf(recordReader).eof();
+			will(returnValue(false));
+			oneOf(recordReader).hasAck();
+			will(returnValue(true));
+			oneOf(recordReader).readAck();
+			will(returnValue(ack));
+			oneOf(recordReader).eof();
+			will(returnValue(true));
+			oneOf(eventBus).removeListener(session);
+			// The message is new, so it's validated
+			oneOf(db).transactionWithResult(with(true),
+					withDbCallable(txn1));
+			oneOf(db).containsMessage(txn1, message.getId());
+			will(returnValue(false));
+			oneOf(validationManager).prevalidateMessage(with(contactId),
+					with(message), with(any(Consumer.class)));
+			will(new ConsumeArgumentAction<>(Consumer.class, 2,
+					storer -> storer.accept(storeMessage)));
+			// Apply both records in a single transaction, in the order
+			// they were read
+			oneOf(db).transaction(with(false), withDbRunnable(txn));
+			oneOf(metrics).onDbWait(with(any(long.class)));
+			oneOf(db).receiveMessage(txn, contactId, message);
+			inSequence(sequence);
+			oneOf(db).receiveAck(txn, contactId, ack);
+			inSequence(sequence);
+		}});
+
+		session.run();
+		runUntilIdle();
+	}
+
+	@Test
+	public void testMessageIsStoredWhenValidationFinishes()
+			throws Exception {
+		IncomingSession session = createSession();
+		Transaction txn = new Transaction(null, false);
+		Transaction txn1 = new Transaction(null, true);
+		AtomicReference<Consumer> storer = new AtomicReference<>();
+		Sequence sequence = context.sequence("records");
+
+		context.checking(new DbExpectations() {{
+			oneOf(eventBus).addListener(session);
+			// Read a message and an ack
+			oneOf(recordReader).eof();
+			will(returnValue(false));
+			oneOf(recordReader).hasAck();
+			will(returnValue(false));
+			oneOf(recordReader).hasMessage();
+			will(returnValue(true));
+			oneOf(recordReader).readMessage();
+			will(returnValue(message));
+			oneOf(recordReader).eof();
+			will(returnValue(false));
+			oneOf(recordReader).hasAck();
+			will(returnValue(true));
+			oneOf(recordReader).readAck();
+			will(returnValue(ack));
+			oneOf(recordReader).eof();
+			will(returnValue(true));
+			oneOf(eventBus).removeListener(session);
+			// The message is new, so it's validated. The ack waits for
+			// validation to finish
+			oneOf(db).transactionWithResult(with(true),
+					withDbCallable(txn1));
+			oneOf(db).containsMessage(txn1, message.getId());
+			will(returnValue(false));
+			oneOf(validationManager).prevalidateMessage(with(contactId),
+					with(message), with(any(Consumer.class)));
+			will(new CaptureArgumentAction<>(storer, Consumer.class, 2));
+		}});
+
+		session.run();
+		runUntilIdle();
+
+		context.checking(new DbExpectations() {{
+			// Store the message when validation finishes, then apply the ack
+			oneOf(db).transaction(with(false), withDbRunnable(txn));
+			oneOf(metrics).onDbWait(with(any(long.class)));
+			oneOf(db).receiveMessage(txn, contactId, message);
+			inSequence(sequence);
+			oneOf(db).receiveAck(txn, contactId, ack);
+			inSequence(sequence);
+		}});
+
+		storer.get().accept(storeMessage);
+		runUntilIdle();
+	}
+
+	@Test
+	public void testOfferIsAppliedAfterPrecedingMessage() throws Exception {
+		IncomingSession session = createSession();
+		Transaction txn = new Transaction(null, false);
+		Transaction txn1 = new Transaction(null, true);
+		Offer offer = new Offer(singletonList(message.getId()));
+		AtomicReference<Consumer> storer = new AtomicReference<>();
+		Sequence sequence = context.sequence("records");
+
+		context.checking(new DbExpectations() {{
+			oneOf(eventBus).addListener(session);
+			// Read a message and an offer for the same message
+			oneOf(recordReader).eof();
+			will(returnValue(false));
+			oneOf(recordReader).hasAck();
+			will(returnValue(false));
+			oneOf(recordReader).hasMessage();
+			will(returnValue(true));
+			oneOf(recordReader).readMessage();
+			will(returnValue(message));
+			oneOf(recordReader).eof();
+			will(returnValue(false));
+			oneOf(recordReader).hasAck();
+			will(returnValue(false));
+			oneOf(recordReader).hasMessage();
+			will(returnValue(false));
+			oneOf(recordReader).hasOffer();
+			will(returnValue(true));
+			oneOf(recordReader).readOffer();
+			will(returnValue(offer));
+			oneOf(recordReader).eof();
+			will(returnValue(true));
+			oneOf(eventBus).removeListener(session);
+			// The message is new, so it's validated
+			oneOf(db).transactionWithResult(with(true),
+					withDbCallable(txn1));
+			oneOf(db).containsMessage(txn1, message.getId());
+			will(returnValue(false));
+			oneOf(validationManager).prevalidateMessage(with(contactId),
+					with(message), with(any(Consumer.class)));
+			will(new CaptureArgumentAction<>(storer, Consumer.class, 2));
+		}});
+
+		// The offer isn't applied while the message is being validated
+		session.run();
+		runUntilIdle();
+
+		context.checking(new DbExpectations() {{
+			// Store the message, then apply the offer, so we don't request
+			// the message again
+			oneOf(db).transaction(with(false), withDbRunnable(txn));
+			oneOf(metrics).onDbWait(with(any(long.class)));
+			oneOf(db).receiveMessage(txn, contactId, message);
+			inSequence(sequence);
+			oneOf(db).receiveOffer(txn, contactId, offer);
+			inSequence(sequence);
+		}});
+
+		storer.get().accept(storeMessage);
+		runUntilIdle();
+	}
+
+	@Test
+	public void testLargeBacklogIsSplitBetweenTransactions()
+			throws Exception {
+		IncomingSession session = createSession();
+		Transaction txn1 = new Transaction(null, false);
+		Transaction txn2 = new Transaction(null, false);
+		int records = MAX_RECORDS_PER_TRANSACTION + 1;
+
+		context.checking(new DbExpectations() {{
+			oneOf(eventBus).addListener(session);
+			// Read more acks than fit in one transaction
+			exactly(records).of(recordReader).eof();
+			will(returnValue(false));
+			exactly(records).of(recordReader).hasAck();
+			will(returnValue(true));
+			exactly(records).of(recordReader).readAck();
+			will(returnValue(ack));
+			oneOf(recordReader).eof();
+			will(returnValue(true));
+			oneOf(eventBus).removeListener(session);
+			// The first transaction is full, the second gets the remainder
+			oneOf(db).transaction(with(false), withDbRunnable(txn1));
+			oneOf(metrics).onDbWait(with(any(long.class)));
+			exactly(MAX_RECORDS_PER_TRANSACTION).of(db)
+					.receiveAck(txn1, contactId, ack);
+			oneOf(db).transaction(with(false), withDbRunnable(txn2));
+			oneOf(metrics).onDbWait(with(any(long.class)));
+			oneOf(db).receiveAck(txn2, contactId, ack);
+		}});
+
+		session.run();
+		runUntilIdle();
+	}
+
+	@Test
+	public void testSessionIsInterruptedIfTransactionFails()
+			throws Exception {
+		IncomingSession session = createSession();
+		Transaction txn = new Transaction(null, false);
+		Transaction txn1 = new Transaction(null, false);
+		Transaction txn2 = new Transaction(null, false);
+		Transaction txn3 = new Transaction(null, true);
+
+		context.checking(new DbExpectations() {{
+			oneOf(eventBus).addListener(session);
+			// Read a message and an ack
+			oneOf(recordReader).eof();
+			will(returnValue(false));
+			oneOf(recordReader).hasAck();
+			will(returnValue(false));
+			oneOf(recordReader).hasMessage();
+			will(returnValue(true));
+			oneOf(recordReader).readMessage();
+			will(returnValue(message));
+			oneOf(recordReader).eof();
+			will(returnValue(false));
+			oneOf(recordReader).hasAck();
+			will(returnValue(true));
+			oneOf(recordReader).readAck();
+			will(returnValue(ack));
+			oneOf(recordReader).eof();
+			will(returnValue(true));
+			oneOf(eventBus).removeListener(session);
+			// The message is new, so it's validated
+			oneOf(db).transactionWithResult(with(true),
+					withDbCallable(txn3));
+			oneOf(db).containsMessage(txn3, message.getId());
+			will(returnValue(false));
+			oneOf(validationManager).prevalidateMessage(with(contactId),
+					with(message), with(any(Consumer.class)));
+			will(new ConsumeArgumentAction<>(Consumer.class, 2,
+					storer -> storer.accept(storeMessage)));
+			// The transaction fails while storing the message
+			oneOf(db).transaction(with(false), withDbRunnable(txn));
+			oneOf(db).receiveMessage(txn, contactId, message);
+			will(throwException(new DbException()));
+			// The message is retried in its own transaction, which fails
+			oneOf(db).transaction(with(false), withDbRunnable(txn1));
+			oneOf(db).receiveMessage(txn1, contactId, message);
+			will(throwException(new DbException()));
+			// The ack is still applied in the next transaction
+			oneOf(db).transaction(with(false), withDbRunnable(txn2));
+			oneOf(db).receiveAck(txn2, contactId, ack);
+			exactly(2).of(metrics).onDbWait(with(any(long.class)));
+		}});
+
+		session.run();
+		runUntilIdle();
+
+		// The session should not read any more records
+		context.checking(new DbExpectations() {{
+			oneOf(eventBus).addListener(session);
+			oneOf(eventBus).removeListener(session);
+		}});
+
+		session.run();
+	}
+
+	@Test
+	public void testDuplicateMessageIsNotValidated() throws Exception {
+		IncomingSession session = createSession();
+		Transaction txn = new Transaction(null, false);
+		Transaction txn1 = new Transaction(null, true);
+
+		context.checking(new DbExpectations() {{
+			oneOf(eventBus).addListener(session);
+			// Read a message
+			oneOf(recordReader).eof();
+			will(returnValue(false));
+			oneOf(recordReader).hasAck();
+			will(returnValue(false));
+			oneOf(recordReader).hasMessage();
+			will(returnValue(true));
+			oneOf(recordReader).readMessage();
+			will(returnValue(message));
+			oneOf(recordReader).eof();
+			will(returnValue(true));
+			oneOf(eventBus).removeListener(session);
+			// We already have the message, so it's stored without being
+			// validated
+			oneOf(db).transactionWithResult(with(true),
+					withDbCallable(txn1));
+			oneOf(db).containsMessage(txn1, message.getId());
+			will(returnValue(true));
+			oneOf(db).transaction(with(false), withDbRunnable(txn));
+			oneOf(metrics).onDbWait(with(any(long.class)));
+			oneOf(db).receiveMessage(txn, contactId, message);
+		}});
+
+		session.run();
+		runUntilIdle();
+	}
+
+	@Test
+	public void testSketchIsReconciled() throws Exception {
+		IncomingSession session = createSession();
+		Transaction txn = new Transaction(null, false);
+		Transaction txn1 = new Transaction(null, true);
+		GroupId groupId = new GroupId(getRandomId());
+		MessageId common = new MessageId(getRandomId());
+		MessageId onlyOurs = new MessageId(getRandomId());
+		MessageId onlyTheirs = new MessageId(getRandomId());
+		InvertibleBloomFilter f = new InvertibleBloomFilter(MAX_CELLS);
+		f.add(common);
+		f.add(onlyTheirs);
+		Sketch sketch = new Sketch(groupId, f.toBytes());
+
+		context.checking(new DbExpectations() {{
+			oneOf(eventBus).addListener(session);
+			// Read a sketch
+			oneOf(recordReader).eof();
+			will(returnValue(false));
+			oneOf(recordReader).hasAck();
+			will(returnValue(false));
+			oneOf(recordReader).hasMessage();
+			will(returnValue(false));
+			oneOf(recordReader).hasOffer();
+			will(returnValue(false));
+			oneOf(recordReader).hasRequest();
+			will(returnValue(false));
+			oneOf(recordReader).hasVersions();
+			will(returnValue(false));
+			oneOf(recordReader).hasPriority();
+			will(returnValue(false));
+			oneOf(recordReader).hasSketch();
+			will(returnValue(true));
+			oneOf(recordReader).readSketch();
+			will(returnValue(sketch));
+			oneOf(recordReader).eof();
+			will(returnValue(true));
+			oneOf(eventBus).removeListener(session);
+			// Load our messages in a read-only transaction
+			oneOf(db).transactionWithNullableResult(with(true),
+					withNullableDbCallable(txn1));
+			oneOf(db).containsGroup(txn1, groupId);
+			will(returnValue(true));
+			oneOf(db).getSharedMessageIds(txn1, contactId, groupId);
+			will(returnValue(asList(common, onlyOurs)));
+			// Apply the outcome of comparing the sketch with our messages
+			oneOf(db).transaction(with(false), withDbRunnable(txn));
+			oneOf(metrics).onDbWait(with(any(long.class)));
+			// The common message is treated as acked
+			oneOf(db).receiveAck(with(txn), with(contactId),
+					with(new PredicateMatcher<>(Ack.class, a ->
+							hasIds(a.getMessageIds(), common))));
+			// The contact's message is treated as offered
+			oneOf(db).receiveOffer(with(txn), with(contactId),
+					with(new PredicateMatcher<>(Offer.class, o ->
+							hasIds(o.getMessageIds(), onlyTheirs))));
+		}});
+
+		session.run();
+		runUntilIdle();
+
+		// The outgoing session should be told to send our sketch
+		assertEquals(1, txn.getActions().size());
+		Event e = ((EventAction) txn.getActions().get(0)).getEvent();
+		assertTrue(e instanceof SketchReceivedEvent);
+		SketchReceivedEvent s = (SketchReceivedEvent) e;
+		assertEquals(transportId, s.getTransportId());
+		assertEquals(groupId, s.getGroupId());
+	}
+
+	@Test
+	public void testLargeSketchIsAppliedAsSeparateRecords() throws Exception {
+		IncomingSession session = createSession();
+		Transaction txn = new Transaction(null, false);
+		Transaction txn1 = new Transaction(null, true);
+		GroupId groupId = new GroupId(getRandomId());
+		List<MessageId> common = new ArrayList<>();
+		InvertibleBloomFilter f = new InvertibleBloomFilter(MAX_CELLS);
+		for (int i = 0; i < MAX_MESSAGE_IDS + 1; i++) {
+			MessageId m = new MessageId(getRandomId());
+			common.add(m);
+			f.add(m);
+		}
+		Sketch sketch = new Sketch(groupId, f.toBytes());
+
+		context.checking(new DbExpectations() {{
+			oneOf(eventBus).addListener(session);
+			// Read a sketch
+			oneOf(recordReader).eof();
+			will(returnValue(false));
+			oneOf(recordReader).hasAck();
+			will(returnValue(false));
+			oneOf(recordReader).hasMessage();
+			will(returnValue(false));
+			oneOf(recordReader).hasOffer();
+			will(returnValue(false));
+			oneOf(recordReader).hasRequest();
+			will(returnValue(false));
+			oneOf(recordReader).hasVersions();
+			will(returnValue(false));
+			oneOf(recordReader).hasPriority();
+			will(returnValue(false));
+			oneOf(recordReader).hasSketch();
+			will(returnValue(true));
+			oneOf(recordReader).readSketch();
+			will(returnValue(sketch));
+			oneOf(recordReader).eof();
+			will(returnValue(true));
+			oneOf(eventBus).removeListener(session);
+			// Load our messages in a read-only transaction
+			oneOf(db).transactionWithNullableResult(with(true),
+					withNullableDbCallable(txn1));
+			oneOf(db).containsGroup(txn1, groupId);
+			will(returnValue(true));
+			oneOf(db).getSharedMessageIds(txn1, contactId, groupId);
+			will(returnValue(common));
+			// The common messages are acked by two records
+			oneOf(db).transaction(with(false), withDbRunnable(txn));
+			oneOf(metrics).onDbWait(with(any(long.class)));
+			oneOf(db).receiveAck(with(txn), with(contactId),
+					with(new PredicateMatcher<>(Ack.class, a ->
+							a.getMessageIds().equals(
+									common.subList(0, MAX_MESSAGE_IDS)))));
+			oneOf(db).receiveAck(with(txn), with(contactId),
+					with(new PredicateMatcher<>(Ack.class, a ->
+							hasIds(a.getMessageIds(),
+									common.get(MAX_MESSAGE_IDS)))));
+		}});
+
+		session.run();
+		runUntilIdle();
+	}
+
+	@Test
+	public void testSketchForUnknownGroupIsIgnored() throws Exception {
+		IncomingSession session = createSession();
+		Transaction txn = new Transaction(null, true);
+		GroupId groupId = new GroupId(getRandomId());
+		InvertibleBloomFilter f = new InvertibleBloomFilter(MAX_CELLS);
+		Sketch sketch = new Sketch(groupId, f.toBytes());
+
+		context.checking(new DbExpectations() {{
+			oneOf(eventBus).addListener(session);
+			// Read a sketch
+			oneOf(recordReader).eof();
+			will(returnValue(false));
+			oneOf(recordReader).hasAck();
+			will(returnValue(false));
+			oneOf(recordReader).hasMessage();
+			will(returnValue(false));
+			oneOf(recordReader).hasOffer();
+			will(returnValue(false));
+			oneOf(recordReader).hasRequest();
+			will(returnValue(false));
+			oneOf(recordReader).hasVersions();
+			will(returnValue(false));
+			oneOf(recordReader).hasPriority();
+			will(returnValue(false));
+			oneOf(recordReader).hasSketch();
+			will(returnValue(true));
+			oneOf(recordReader).readSketch();
+			will(returnValue(sketch));
+			oneOf(recordReader).eof();
+			will(returnValue(true));
+			oneOf(eventBus).removeListener(session);
+			// We don't have the group, so nothing is queued
+			oneOf(db).transactionWithNullableResult(with(true),
+					withNullableDbCallable(txn));
+			oneOf(db).containsGroup(txn, groupId);
+			will(returnValue(false));
+		}});
+
+		session.run();
+		runUntilIdle();
+	}
+
+	@Test
+	public void testVersionsAreBroadcastWithTransport() throws Exception {
+		IncomingSession session = createSession();
+		Transaction txn = new Transaction(null, false);
+		List<Byte> supported = singletonList((byte) 1);
+
+		context.checking(new DbExpectations() {{
+			oneOf(eventBus).addListener(session);
+			// Read a versions record
+			oneOf(recordReader).eof();
+			will(returnValue(false));
+			oneOf(recordReader).hasAck();
+			will(returnValue(false));
+			oneOf(recordReader).hasMessage();
+			will(returnValue(false));
+			oneOf(recordReader).hasOffer();
+			will(returnValue(false));
+			oneOf(recordReader).hasRequest();
+			will(returnValue(false));
+			oneOf(recordReader).hasVersions();
+			will(returnValue(true));
+			oneOf(recordReader).readVersions();
+			will(returnValue(new Versions(supported)));
+			oneOf(recordReader).eof();
+			will(returnValue(true));
+			oneOf(eventBus).removeListener(session);
+			// Store the versions
+			oneOf(db).transaction(with(false), withDbRunnable(txn));
+			oneOf(metrics).onDbWait(with(any(long.class)));
+			oneOf(db).setSyncVersions(txn, contactId, supported);
+		}});
+
+		session.run();
+		runUntilIdle();
+
+		// Only the outgoing session on this transport should send sketches
+		assertEquals(1, txn.getActions().size());
+		Event e = ((EventAction) txn.getActions().get(0)).getEvent();
+		assertTrue(e instanceof SyncVersionsReceivedEvent);
+		SyncVersionsReceivedEvent v = (SyncVersionsReceivedEvent) e;
+		assertEquals(contactId, v.getContactId());
+		assertEquals(transportId, v.getTransportId());
+		assertEquals(supported, v.getSupportedVersions());
+	}
+
+	private boolean hasIds(Collection<MessageId> ids, MessageId... expected) {
+		return ids.equals(asList(expected));
+	}
+
+	private void runUntilIdle() {
+		dbReadExecutor.runUntilIdle();
+		dbExecutor.runUntilIdle();
+	}
+
+	private IncomingSession createSession() {
+		return new IncomingSession(db, dbExecutor, dbReadExecutor, eventBus,
+				contactId, transportId, recordReader, priorityHandler,
+				validationManager, metrics);
+	}
+}
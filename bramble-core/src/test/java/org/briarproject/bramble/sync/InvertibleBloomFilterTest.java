@@ -0,0 +1,116 @@
+package org.briarproject.bramble.sync;
+
+import org.briarproject.bramble.api.FormatException;
+import org.briarproject.bramble.api.sync.MessageId;
+import org.briarproject.bramble.test.BrambleTestCase;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.briarproject.bramble.api.record.Record.MAX_RECORD_PAYLOAD_BYTES;
+import static org.briarproject.bramble.sync.InvertibleBloomFilter.CELL_LENGTH;
+import static org.briarproject.bramble.sync.InvertibleBloomFilter.HASHES;
+import static org.briarproject.bramble.sync.InvertibleBloomFilter.MAX_CELLS;
+import static org.briarproject.bramble.test.TestUtils.getRandomId;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class InvertibleBloomFilterTest extends BrambleTestCase {
+
+	@Test
+	public void testMaximumSizeFitsInRecord() {
+		assertEquals(0, MAX_CELLS % HASHES);
+		assertTrue(MessageId.LENGTH + MAX_CELLS * CELL_LENGTH
+				<= MAX_RECORD_PAYLOAD_BYTES);
+		assertTrue(MessageId.LENGTH + (MAX_CELLS + HASHES) * CELL_LENGTH
+				> MAX_RECORD_PAYLOAD_BYTES);
+	}
+
+	@Test
+	public void testCommonIdsCancelOut() {
+		List<MessageId> common = createIds(10_000);
+		List<MessageId> onlyOurs = createIds(50);
+		List<MessageId> onlyTheirs = createIds(70);
+
+		InvertibleBloomFilter theirs = new InvertibleBloomFilter(MAX_CELLS);
+		for (MessageId m : common) theirs.add(m);
+		for (MessageId m : onlyTheirs) theirs.add(m);
+		for (MessageId m : common) theirs.remove(m);
+		for (MessageId m : onlyOurs) theirs.remove(m);
+
+		Set<MessageId> added = new HashSet<>(), removed = new HashSet<>();
+		assertTrue(theirs.decode(added, removed));
+		assertEquals(new HashSet<>(onlyTheirs), added);
+		assertEquals(new HashSet<>(onlyOurs), removed);
+	}
+
+	@Test
+	public void testIdenticalSetsHaveNoDifference() {
+		List<MessageId> ids = createIds(1000);
+		InvertibleBloomFilter f = new InvertibleBloomFilter(30);
+		for (MessageId m : ids) f.add(m);
+		for (MessageId m : ids) f.remove(m);
+
+		Set<MessageId> added = new HashSet<>(), removed = new HashSet<>();
+		assertTrue(f.decode(added, removed));
+		assertTrue(added.isEmpty());
+		assertTrue(removed.isEmpty());
+	}
+
+	@Test
+	public void testDecodingFailsIfDifferenceIsTooLarge() {
+		InvertibleBloomFilter f = new InvertibleBloomFilter(30);
+		for (MessageId m : createIds(100)) f.add(m);
+
+		Set<MessageId> added = new HashSet<>(), removed = new HashSet<>();
+		assertFalse(f.decode(added, removed));
+	}
+
+	@Test
+	public void testEncodingRoundTrip() throws Exception {
+		List<MessageId> ids = createIds(20);
+		InvertibleBloomFilter f = new InvertibleBloomFilter(30);
+		for (MessageId m : ids) f.add(m);
+		// Make some counts negative
+		for (MessageId m : createIds(5)) f.remove(m);
+
+		byte[] encoded = f.toBytes();
+		assertEquals(30 * CELL_LENGTH, encoded.length);
+		InvertibleBloomFilter decoded =
+				InvertibleBloomFilter.fromBytes(encoded);
+		assertEquals(30, decoded.getCells());
+		assertArrayEquals(encoded, decoded.toBytes());
+
+		for (MessageId m : ids) decoded.remove(m);
+		Set<MessageId> added = new HashSet<>(), removed = new HashSet<>();
+		assertTrue(decoded.decode(added, removed));
+		assertTrue(added.isEmpty());
+		assertEquals(5, removed.size());
+	}
+
+	@Test(expected = FormatException.class)
+	public void testEmptyEncodingIsRejected() throws Exception {
+		InvertibleBloomFilter.fromBytes(new byte[0]);
+	}
+
+	@Test(expected = FormatException.class)
+	public void testPartialCellIsRejected() throws Exception {
+		InvertibleBloomFilter.fromBytes(new byte[HASHES * CELL_LENGTH + 1]);
+	}
+
+	@Test(expected = FormatException.class)
+	public void testWrongNumberOfCellsIsRejected() throws Exception {
+		InvertibleBloomFilter.fromBytes(new byte[(HASHES + 1) * CELL_LENGTH]);
+	}
+
+	private List<MessageId> createIds(int count) {
+		List<MessageId> ids = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) ids.add(new MessageId(getRandomId()));
+		return ids;
+	}
+}
@@ -43,6 +43,9 @@ public class MailboxOutgoingSessionTest extends BrambleMockTestCase {
 	private final StreamWriter streamWriter = context.mock(StreamWriter.class);
 	private final SyncRecordWriter recordWriter =
 			context.mock(SyncRecordWriter.class);
+	private final BatchSizer batchSizer = context.mock(BatchSizer.class);
+	private final SessionMetrics metrics =
+			context.mock(SessionMetrics.class);
 
 	private final ContactId contactId = getContactId();
 	private final TransportId transportId = getTransportId();
@@ -57,8 +60,8 @@ public class MailboxOutgoingSessionTest extends BrambleMockTestCase {
 		OutgoingSessionRecord sessionRecord = new OutgoingSessionRecord();
 		MailboxOutgoingSession session = new MailboxOutgoingSession(db,
 				eventBus, contactId, transportId, MAX_LATENCY,
-				streamWriter, recordWriter, sessionRecord,
-				MAX_FILE_PAYLOAD_BYTES);
+				streamWriter, recordWriter, batchSizer, metrics,
+				sessionRecord, MAX_FILE_PAYLOAD_BYTES);
 
 		Transaction noAckIdTxn = new Transaction(null, true);
 		Transaction noMsgIdTxn = new Transaction(null, true);
@@ -73,6 +76,7 @@ public class MailboxOutgoingSessionTest extends BrambleMockTestCase {
 			// No messages to ack
 			oneOf(db).transactionWithResult(with(true),
 					withDbCallable(noAckIdTxn));
+			oneOf(metrics).onDbWait(with(any(long.class)));
 			oneOf(db).getMessagesToAck(noAckIdTxn, contactId);
 			will(returnValue(emptyList()));
 			// Calculate capacity for messages
@@ -81,6 +85,7 @@ public class MailboxOutgoingSessionTest extends BrambleMockTestCase {
 			// No messages to send
 			oneOf(db).transactionWithResult(with(true),
 					withDbCallable(noMsgIdTxn));
+			oneOf(metrics).onDbWait(with(any(long.class)));
 			oneOf(db).getMessagesToSend(noMsgIdTxn, contactId,
 					capacityForMessages, MAX_LATENCY);
 			will(returnValue(emptyList()));
@@ -101,8 +106,8 @@ public class MailboxOutgoingSessionTest extends BrambleMockTestCase {
 		OutgoingSessionRecord sessionRecord = new OutgoingSessionRecord();
 		MailboxOutgoingSession session = new MailboxOutgoingSession(db,
 				eventBus, contactId, transportId, MAX_LATENCY,
-				streamWriter, recordWriter, sessionRecord,
-				MAX_FILE_PAYLOAD_BYTES);
+				streamWriter, recordWriter, batchSizer, metrics,
+				sessionRecord, MAX_FILE_PAYLOAD_BYTES);
 
 		Transaction ackIdTxn = new Transaction(null, true);
 		Transaction msgIdTxn = new Transaction(null, true);
@@ -122,6 +127,7 @@ public class MailboxOutgoingSessionTest extends BrambleMockTestCase {
 			// Load the IDs to ack
 			oneOf(db).transactionWithResult(with(true),
 					withDbCallable(ackIdTxn));
+			oneOf(metrics).onDbWait(with(any(long.class)));
 			oneOf(db).getMessagesToAck(ackIdTxn, contactId);
 			will(returnValue(singletonList(message.getId())));
 			// Calculate capacity for acks
@@ -136,12 +142,14 @@ public class MailboxOutgoingSessionTest extends BrambleMockTestCase {
 			// One message to send
 			oneOf(db).transactionWithResult(with(true),
 					withDbCallable(msgIdTxn));
+			oneOf(metrics).onDbWait(with(any(long.class)));
 			oneOf(db).getMessagesToSend(msgIdTxn, contactId,
 					capacityForMessages, MAX_LATENCY);
 			will(returnValue(singletonList(message1.getId())));
 			// Send the message
 			oneOf(db).transactionWithNullableResult(with(true),
 					withNullableDbCallable(msgTxn));
+			oneOf(metrics).onDbWait(with(any(long.class)));
 			oneOf(db).getMessageToSend(msgTxn, contactId, message1.getId(),
 					MAX_LATENCY, false);
 			will(returnValue(message1));
@@ -171,7 +179,8 @@ public class MailboxOutgoingSessionTest extends BrambleMockTestCase {
 		OutgoingSessionRecord sessionRecord = new OutgoingSessionRecord();
 		MailboxOutgoingSession session = new MailboxOutgoingSession(db,
 				eventBus, contactId, transportId, MAX_LATENCY,
-				streamWriter, recordWriter, sessionRecord, capacity);
+				streamWriter, recordWriter, batchSizer, metrics,
+				sessionRecord, capacity);
 
 		Transaction ackIdTxn = new Transaction(null, true);
 
@@ -203,6 +212,7 @@ public class MailboxOutgoingSessionTest extends BrambleMockTestCase {
 			// Load the IDs to ack
 			oneOf(db).transactionWithResult(with(true),
 					withDbCallable(ackIdTxn));
+			oneOf(metrics).onDbWait(with(any(long.class)));
 			oneOf(db).getMessagesToAck(ackIdTxn, contactId);
 			will(returnValue(idsToAck));
 			// Calculate capacity for acks
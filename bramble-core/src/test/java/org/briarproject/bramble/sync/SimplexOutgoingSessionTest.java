@@ -17,9 +17,10 @@ import org.briarproject.bramble.test.DbExpectations;
 import org.junit.Test;
 
 import static java.util.Collections.singletonList;
+import static org.briarproject.bramble.api.record.Record.RECORD_HEADER_BYTES;
 import static org.briarproject.bramble.api.sync.SyncConstants.MAX_MESSAGE_BODY_LENGTH;
 import static org.briarproject.bramble.api.sync.SyncConstants.MAX_MESSAGE_IDS;
-import static org.briarproject.bramble.sync.SimplexOutgoingSession.BATCH_CAPACITY;
+import static org.briarproject.bramble.sync.BatchSizer.DEFAULT_BATCH_CAPACITY;
 import static org.briarproject.bramble.test.TestUtils.getContactId;
 import static org.briarproject.bramble.test.TestUtils.getMessage;
 import static org.briarproject.bramble.test.TestUtils.getRandomId;
@@ -34,6 +35,9 @@ public class SimplexOutgoingSessionTest extends BrambleMockTestCase {
 	private final StreamWriter streamWriter = context.mock(StreamWriter.class);
 	private final SyncRecordWriter recordWriter =
 			context.mock(SyncRecordWriter.class);
+	private final BatchSizer batchSizer = context.mock(BatchSizer.class);
+	private final SessionMetrics metrics =
+			context.mock(SessionMetrics.class);
 
 	private final ContactId contactId = getContactId();
 	private final TransportId transportId = getTransportId();
@@ -41,12 +45,14 @@ public class SimplexOutgoingSessionTest extends BrambleMockTestCase {
 			new Ack(singletonList(new MessageId(getRandomId())));
 	private final Message message = getMessage(new GroupId(getRandomId()),
 			MAX_MESSAGE_BODY_LENGTH);
+	private final long batchLength =
+			RECORD_HEADER_BYTES + message.getRawLength();
 
 	@Test
 	public void testNothingToSend() throws Exception {
 		SimplexOutgoingSession session = new SimplexOutgoingSession(db,
 				eventBus, contactId, transportId, MAX_LATENCY,
-				streamWriter, recordWriter);
+				streamWriter, recordWriter, batchSizer, metrics);
 
 		Transaction noAckTxn = new Transaction(null, false);
 		Transaction noMsgTxn = new Transaction(null, false);
@@ -59,13 +65,17 @@ public class SimplexOutgoingSessionTest extends BrambleMockTestCase {
 			// No acks to send
 			oneOf(db).transactionWithNullableResult(with(false),
 					withNullableDbCallable(noAckTxn));
+			oneOf(metrics).onDbWait(with(any(long.class)));
 			oneOf(db).generateAck(noAckTxn, contactId, MAX_MESSAGE_IDS);
 			will(returnValue(null));
 			// No messages to send
+			oneOf(batchSizer).getBatchCapacity();
+			will(returnValue(DEFAULT_BATCH_CAPACITY));
 			oneOf(db).transactionWithNullableResult(with(false),
 					withNullableDbCallable(noMsgTxn));
+			oneOf(metrics).onDbWait(with(any(long.class)));
 			oneOf(db).generateBatch(noMsgTxn, contactId,
-					BATCH_CAPACITY, MAX_LATENCY);
+					DEFAULT_BATCH_CAPACITY, MAX_LATENCY);
 			will(returnValue(null));
 			// Send the end of stream marker
 			oneOf(streamWriter).sendEndOfStream();
@@ -80,7 +90,7 @@ public class SimplexOutgoingSessionTest extends BrambleMockTestCase {
 	public void testSomethingToSend() throws Exception {
 		SimplexOutgoingSession session = new SimplexOutgoingSession(db,
 				eventBus, contactId, transportId, MAX_LATENCY,
-				streamWriter, recordWriter);
+				streamWriter, recordWriter, batchSizer, metrics);
 
 		Transaction ackTxn = new Transaction(null, false);
 		Transaction noAckTxn = new Transaction(null, false);
@@ -95,26 +105,41 @@ public class SimplexOutgoingSessionTest extends BrambleMockTestCase {
 			// One ack to send
 			oneOf(db).transactionWithNullableResult(with(false),
 					withNullableDbCallable(ackTxn));
+			oneOf(metrics).onDbWait(with(any(long.class)));
 			oneOf(db).generateAck(ackTxn, contactId, MAX_MESSAGE_IDS);
 			will(returnValue(ack));
 			oneOf(recordWriter).writeAck(ack);
 			// No more acks
 			oneOf(db).transactionWithNullableResult(with(false),
 					withNullableDbCallable(noAckTxn));
+			oneOf(metrics).onDbWait(with(any(long.class)));
 			oneOf(db).generateAck(noAckTxn, contactId, MAX_MESSAGE_IDS);
 			will(returnValue(null));
 			// One message to send
+			oneOf(batchSizer).getBatchCapacity();
+			will(returnValue(DEFAULT_BATCH_CAPACITY));
 			oneOf(db).transactionWithNullableResult(with(false),
 					withNullableDbCallable(msgTxn));
+			oneOf(metrics).onDbWait(with(any(long.class)));
 			oneOf(db).generateBatch(msgTxn, contactId,
-					BATCH_CAPACITY, MAX_LATENCY);
+					DEFAULT_BATCH_CAPACITY, MAX_LATENCY);
 			will(returnValue(singletonList(message)));
+			oneOf(batchSizer).onBatchGenerated(with(batchLength),
+					with(any(long.class)));
+			oneOf(metrics).onBatchGenerated(with(any(long.class)));
 			oneOf(recordWriter).writeMessage(message);
+			oneOf(recordWriter).flush();
+			oneOf(batchSizer).onBatchWritten(with(batchLength),
+					with(any(long.class)));
+			// The batch sizer chooses a different capacity
+			oneOf(batchSizer).getBatchCapacity();
+			will(returnValue(DEFAULT_BATCH_CAPACITY * 2));
 			// No more messages
 			oneOf(db).transactionWithNullableResult(with(false),
 					withNullableDbCallable(noMsgTxn));
+			oneOf(metrics).onDbWait(with(any(long.class)));
 			oneOf(db).generateBatch(noMsgTxn, contactId,
-					BATCH_CAPACITY, MAX_LATENCY);
+					DEFAULT_BATCH_CAPACITY * 2, MAX_LATENCY);
 			will(returnValue(null));
 			// Send the end of stream marker
 			oneOf(streamWriter).sendEndOfStream();
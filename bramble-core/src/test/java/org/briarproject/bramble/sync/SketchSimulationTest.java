@@ -0,0 +1,121 @@
+package org.briarproject.bramble.sync;
+
+import org.briarproject.bramble.api.sync.MessageId;
+import org.briarproject.bramble.test.BrambleTestCase;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.briarproject.bramble.api.record.Record.RECORD_HEADER_BYTES;
+import static org.briarproject.bramble.api.sync.SyncConstants.MAX_MESSAGE_IDS;
+import static org.briarproject.bramble.sync.DuplexOutgoingSession.MIN_MESSAGES_TO_SKETCH;
+import static org.briarproject.bramble.sync.InvertibleBloomFilter.CELL_LENGTH;
+import static org.briarproject.bramble.sync.InvertibleBloomFilter.MAX_CELLS;
+import static org.briarproject.bramble.test.TestUtils.getRandomId;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Simulates two peers that share a group, neither of which has seen the
+ * other's messages, and compares the number of bytes they send to each other
+ * to find out which messages they need to exchange with offers and requests
+ * or with sketches. The messages themselves aren't counted, as the same
+ * messages are sent either way.
+ */
+@Ignore
+public class SketchSimulationTest extends BrambleTestCase {
+
+	private static final int[] GROUP_SIZES = {2_000, 20_000, 200_000};
+	private static final int[] DIFFERENCES = {0, 10, 100, 500, 1000, 2000};
+
+	@Test
+	public void testBytesOnTheWire() {
+		System.out.println("Messages\tDifference\tOffers\tSketches\tDecoded");
+		for (int size : GROUP_SIZES) {
+			for (int difference : DIFFERENCES) {
+				simulate(size, difference);
+			}
+		}
+	}
+
+	private void simulate(int size, int difference) {
+		// Each peer has half of the messages the other peer lacks
+		int onlyOurs = difference / 2, onlyTheirs = difference - onlyOurs;
+		int common = size - difference;
+		List<MessageId> commonIds = createIds(common);
+		List<MessageId> ourIds = new ArrayList<>(commonIds);
+		ourIds.addAll(createIds(onlyOurs));
+		List<MessageId> theirIds = new ArrayList<>(commonIds);
+		theirIds.addAll(createIds(onlyTheirs));
+
+		long offerBytes = getOfferBytes(common, onlyOurs, onlyTheirs);
+
+		// Each peer sends a sketch and reconciles the other peer's sketch
+		long sketchBytes = 2 * getSketchBytes();
+		boolean decoded = reconcile(theirIds, ourIds, onlyTheirs, onlyOurs)
+				&& reconcile(ourIds, theirIds, onlyOurs, onlyTheirs);
+		if (decoded) {
+			// Messages only one peer has are still offered by that peer and
+			// requested by the other peer
+			sketchBytes += 2 * getIdRecordBytes(onlyOurs);
+			sketchBytes += 2 * getIdRecordBytes(onlyTheirs);
+		} else {
+			// The peers fall back to offers and requests
+			sketchBytes += offerBytes;
+		}
+		if (common + onlyOurs < MIN_MESSAGES_TO_SKETCH) {
+			// Sketches wouldn't be sent
+			sketchBytes = offerBytes;
+		}
+		System.out.println(size + "\t" + difference + "\t" + offerBytes
+				+ "\t" + sketchBytes + "\t" + decoded);
+		if (decoded && difference < size / 2)
+			assertTrue(sketchBytes < offerBytes);
+	}
+
+	/**
+	 * Each peer offers all its messages. A message the recipient already has
+	 * is acked, and marked as seen so the recipient won't offer it back. A
+	 * message the recipient doesn't have is requested.
+	 */
+	private long getOfferBytes(int common, int onlyOurs, int onlyTheirs) {
+		return getIdRecordBytes(common + onlyOurs)
+				+ getIdRecordBytes(common + onlyTheirs)
+				+ getIdRecordBytes(common)
+				+ getIdRecordBytes(onlyOurs)
+				+ getIdRecordBytes(onlyTheirs);
+	}
+
+	private long getSketchBytes() {
+		return RECORD_HEADER_BYTES + MessageId.LENGTH
+				+ (long) MAX_CELLS * CELL_LENGTH;
+	}
+
+	private long getIdRecordBytes(int ids) {
+		long records = (ids + MAX_MESSAGE_IDS - 1) / MAX_MESSAGE_IDS;
+		return records * RECORD_HEADER_BYTES + (long) ids * MessageId.LENGTH;
+	}
+
+	private boolean reconcile(List<MessageId> senderIds,
+			List<MessageId> recipientIds, int expectedOnlySender,
+			int expectedOnlyRecipient) {
+		InvertibleBloomFilter f = new InvertibleBloomFilter(MAX_CELLS);
+		for (MessageId m : senderIds) f.add(m);
+		for (MessageId m : recipientIds) f.remove(m);
+		Set<MessageId> onlySender = new HashSet<>();
+		Set<MessageId> onlyRecipient = new HashSet<>();
+		if (!f.decode(onlySender, onlyRecipient)) return false;
+		assertTrue(onlySender.size() == expectedOnlySender);
+		assertTrue(onlyRecipient.size() == expectedOnlyRecipient);
+		return true;
+	}
+
+	private List<MessageId> createIds(int count) {
+		List<MessageId> ids = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) ids.add(new MessageId(getRandomId()));
+		return ids;
+	}
+}
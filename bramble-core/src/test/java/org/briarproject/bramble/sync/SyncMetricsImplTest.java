@@ -0,0 +1,148 @@
+package org.briarproject.bramble.sync;
+
+import org.briarproject.bramble.api.contact.ContactId;
+import org.briarproject.bramble.api.contact.event.ContactRemovedEvent;
+import org.briarproject.bramble.api.plugin.TransportId;
+import org.briarproject.bramble.api.sync.MessageId;
+import org.briarproject.bramble.api.sync.SyncStats;
+import org.briarproject.bramble.test.BrambleTestCase;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.util.Collections.singletonList;
+import static org.briarproject.bramble.api.sync.RecordTypes.ACK;
+import static org.briarproject.bramble.api.sync.RecordTypes.MESSAGE;
+import static org.briarproject.bramble.sync.SyncMetricsImpl.MAX_TIMED_MESSAGES;
+import static org.briarproject.bramble.test.TestUtils.getContactId;
+import static org.briarproject.bramble.test.TestUtils.getRandomId;
+import static org.briarproject.bramble.test.TestUtils.getTransportId;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SyncMetricsImplTest extends BrambleTestCase {
+
+	private final ContactId contactId = getContactId();
+	private final TransportId transportId = getTransportId();
+	private final TransportId transportId1 = getTransportId();
+	private final MessageId messageId = new MessageId(getRandomId());
+
+	@Test
+	public void testNoStatsBeforeFirstSession() {
+		SyncMetricsImpl syncMetrics = new SyncMetricsImpl();
+		assertTrue(syncMetrics.getStats().isEmpty());
+
+		SyncStats stats = syncMetrics.getStats(contactId, transportId);
+		assertEquals(0, stats.getRecordsSent(MESSAGE));
+		assertEquals(-1, stats.getTimeToFirstByteSent());
+		assertEquals(-1, stats.getTimeToFirstByteReceived());
+	}
+
+	@Test
+	public void testRecordsAreCountedByType() {
+		SyncMetricsImpl syncMetrics = new SyncMetricsImpl();
+		SessionMetrics metrics =
+				syncMetrics.getSessionMetrics(contactId, transportId);
+		metrics.onRecordSent(MESSAGE, 100);
+		metrics.onRecordSent(MESSAGE, 200);
+		metrics.onRecordReceived(ACK, 36);
+		// Unknown record types are ignored
+		metrics.onRecordSent((byte) -1, 100);
+		metrics.onRecordReceived(Byte.MAX_VALUE, 100);
+
+		SyncStats stats = syncMetrics.getStats(contactId, transportId);
+		assertEquals(2, stats.getRecordsSent(MESSAGE));
+		assertEquals(300, stats.getBytesSent(MESSAGE));
+		assertEquals(0, stats.getRecordsSent(ACK));
+		assertEquals(1, stats.getRecordsReceived(ACK));
+		assertEquals(36, stats.getBytesReceived(ACK));
+		assertEquals(0, stats.getRecordsReceived(MESSAGE));
+		assertEquals(0, stats.getRecordsSent((byte) -1));
+
+		// Another transport has its own stats
+		stats = syncMetrics.getStats(contactId, transportId1);
+		assertEquals(0, stats.getRecordsSent(MESSAGE));
+		assertEquals(1, syncMetrics.getStats().size());
+	}
+
+	@Test
+	public void testTimesAreAccumulated() {
+		SyncMetricsImpl syncMetrics = new SyncMetricsImpl();
+		SessionMetrics metrics =
+				syncMetrics.getSessionMetrics(contactId, transportId);
+		metrics.onBatchGenerated(10);
+		metrics.onBatchGenerated(20);
+		metrics.onDbWait(5);
+		metrics.onDbWait(7);
+		metrics.onFirstRecordSent(100);
+		metrics.onFirstRecordReceived(200);
+		// A later session replaces the time to first byte
+		syncMetrics.getSessionMetrics(contactId, transportId)
+				.onFirstRecordSent(50);
+
+		SyncStats stats = syncMetrics.getStats(contactId, transportId);
+		assertEquals(2, stats.getBatchesGenerated());
+		assertEquals(30, stats.getBatchGenerationTime());
+		assertEquals(12, stats.getDbWaitTime());
+		assertEquals(50, stats.getTimeToFirstByteSent());
+		assertEquals(200, stats.getTimeToFirstByteReceived());
+	}
+
+	@Test
+	public void testAckIsCreditedToTransportMessageWasSentOver() {
+		SyncMetricsImpl syncMetrics = new SyncMetricsImpl();
+		syncMetrics.getSessionMetrics(contactId, transportId)
+				.onMessageSent(messageId);
+		// The ack arrives over another transport
+		SessionMetrics metrics1 =
+				syncMetrics.getSessionMetrics(contactId, transportId1);
+		metrics1.onAckReceived(singletonList(messageId));
+
+		assertEquals(1, syncMetrics.getStats(contactId, transportId)
+				.getAcksTimed());
+		assertEquals(0, syncMetrics.getStats(contactId, transportId1)
+				.getAcksTimed());
+
+		// A second ack for the same message isn't timed
+		metrics1.onAckReceived(singletonList(messageId));
+		assertEquals(1, syncMetrics.getStats(contactId, transportId)
+				.getAcksTimed());
+	}
+
+	@Test
+	public void testOldestSentMessagesAreForgotten() {
+		SyncMetricsImpl syncMetrics = new SyncMetricsImpl();
+		SessionMetrics metrics =
+				syncMetrics.getSessionMetrics(contactId, transportId);
+		List<MessageId> sent = new ArrayList<>();
+		for (int i = 0; i < MAX_TIMED_MESSAGES + 1; i++) {
+			MessageId m = new MessageId(getRandomId());
+			metrics.onMessageSent(m);
+			sent.add(m);
+		}
+		metrics.onAckReceived(sent);
+
+		// The first message was forgotten
+		assertEquals(MAX_TIMED_MESSAGES,
+				syncMetrics.getStats(contactId, transportId).getAcksTimed());
+	}
+
+	@Test
+	public void testStatsAreRemovedWithContact() {
+		SyncMetricsImpl syncMetrics = new SyncMetricsImpl();
+		SessionMetrics metrics =
+				syncMetrics.getSessionMetrics(contactId, transportId);
+		metrics.onRecordSent(MESSAGE, 100);
+		metrics.onMessageSent(messageId);
+		assertEquals(1, syncMetrics.getStats().size());
+
+		syncMetrics.eventOccurred(new ContactRemovedEvent(contactId));
+		assertTrue(syncMetrics.getStats().isEmpty());
+
+		// The sent message was forgotten too
+		metrics.onAckReceived(singletonList(messageId));
+		assertEquals(0, syncMetrics.getStats(contactId, transportId)
+				.getAcksTimed());
+	}
+}
@@ -13,6 +13,7 @@ import org.briarproject.bramble.api.sync.MessageId;
 import org.briarproject.bramble.api.sync.Offer;
 import org.briarproject.bramble.api.sync.Priority;
 import org.briarproject.bramble.api.sync.Request;
+import org.briarproject.bramble.api.sync.Sketch;
 import org.briarproject.bramble.api.sync.SyncRecordReader;
 import org.briarproject.bramble.api.sync.Versions;
 import org.briarproject.bramble.test.BrambleMockTestCase;
@@ -30,6 +31,7 @@ import static org.briarproject.bramble.api.sync.RecordTypes.MESSAGE;
 import static org.briarproject.bramble.api.sync.RecordTypes.OFFER;
 import static org.briarproject.bramble.api.sync.RecordTypes.PRIORITY;
 import static org.briarproject.bramble.api.sync.RecordTypes.REQUEST;
+import static org.briarproject.bramble.api.sync.RecordTypes.SKETCH;
 import static org.briarproject.bramble.api.sync.RecordTypes.VERSIONS;
 import static org.briarproject.bramble.api.sync.SyncConstants.MAX_MESSAGE_BODY_LENGTH;
 import static org.briarproject.bramble.api.sync.SyncConstants.MAX_MESSAGE_IDS;
@@ -37,8 +39,12 @@ import static org.briarproject.bramble.api.sync.SyncConstants.MAX_SUPPORTED_VERS
 import static org.briarproject.bramble.api.sync.SyncConstants.MESSAGE_HEADER_LENGTH;
 import static org.briarproject.bramble.api.sync.SyncConstants.PRIORITY_NONCE_BYTES;
 import static org.briarproject.bramble.api.sync.SyncConstants.PROTOCOL_VERSION;
+import static org.briarproject.bramble.sync.InvertibleBloomFilter.CELL_LENGTH;
+import static org.briarproject.bramble.sync.InvertibleBloomFilter.HASHES;
+import static org.briarproject.bramble.sync.InvertibleBloomFilter.MAX_CELLS;
 import static org.briarproject.bramble.test.TestUtils.getRandomBytes;
 import static org.briarproject.bramble.test.TestUtils.getRandomId;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
@@ -181,6 +187,33 @@ public class SyncRecordReaderImplTest extends BrambleMockTestCase {
 		assertEquals(PRIORITY_NONCE_BYTES, priority.getNonce().length);
 	}
 
+	@Test
+	public void testNoFormatExceptionIfSketchIsMaximumSize()
+			throws Exception {
+		GroupId groupId = new GroupId(getRandomId());
+		byte[] cells = new InvertibleBloomFilter(MAX_CELLS).toBytes();
+		expectReadRecord(createSketch(groupId.getBytes(), cells));
+
+		Sketch sketch = reader.readSketch();
+		assertEquals(groupId, sketch.getGroupId());
+		assertArrayEquals(cells, sketch.getCells());
+	}
+
+	@Test(expected = FormatException.class)
+	public void testFormatExceptionIfSketchHasNoCells() throws Exception {
+		expectReadRecord(createSketch(getRandomId(), new byte[0]));
+
+		reader.readSketch();
+	}
+
+	@Test(expected = FormatException.class)
+	public void testFormatExceptionIfSketchHasPartialCell() throws Exception {
+		expectReadRecord(createSketch(getRandomId(),
+				new byte[HASHES * CELL_LENGTH - 1]));
+
+		reader.readSketch();
+	}
+
 	@Test
 	public void testEofReturnsTrueWhenAtEndOfStream() throws Exception {
 		expectReadRecord(createAck());
@@ -268,6 +301,13 @@ public class SyncRecordReaderImplTest extends BrambleMockTestCase {
 		return new Record(PROTOCOL_VERSION, PRIORITY, payload);
 	}
 
+	private Record createSketch(byte[] groupId, byte[] cells) {
+		byte[] payload = new byte[groupId.length + cells.length];
+		System.arraycopy(groupId, 0, payload, 0, groupId.length);
+		System.arraycopy(cells, 0, payload, groupId.length, cells.length);
+		return new Record(PROTOCOL_VERSION, SKETCH, payload);
+	}
+
 	private byte[] createPayload() throws Exception {
 		ByteArrayOutputStream payload = new ByteArrayOutputStream();
 		while (payload.size() + UniqueId.LENGTH <= MAX_RECORD_PAYLOAD_BYTES) {
@@ -0,0 +1,139 @@
+package org.briarproject.bramble.sync.validation;
+
+import org.briarproject.bramble.api.sync.MessageId;
+import org.briarproject.bramble.api.sync.validation.MessageState;
+import org.briarproject.bramble.test.BrambleTestCase;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static java.util.Collections.emptyMap;
+import static java.util.Collections.singletonMap;
+import static org.briarproject.bramble.api.sync.validation.MessageState.DELIVERED;
+import static org.briarproject.bramble.api.sync.validation.MessageState.INVALID;
+import static org.briarproject.bramble.api.sync.validation.MessageState.PENDING;
+import static org.briarproject.bramble.api.sync.validation.MessageState.UNKNOWN;
+import static org.briarproject.bramble.test.TestUtils.getRandomId;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DependencyGraphTest extends BrambleTestCase {
+
+	private final MessageId messageId = new MessageId(getRandomId());
+	private final MessageId messageId1 = new MessageId(getRandomId());
+	private final MessageId messageId2 = new MessageId(getRandomId());
+
+	@Test
+	public void testUnknownMessageHasNoDependencies() {
+		DependencyGraph graph = new DependencyGraph();
+		assertNull(graph.getDependencies(messageId));
+
+		graph.addDependencies(messageId, emptyMap());
+		Map<MessageId, MessageState> states = graph.getDependencies(messageId);
+		assertTrue(states != null && states.isEmpty());
+	}
+
+	@Test
+	public void testStateChangesAreSeenByDependents() {
+		DependencyGraph graph = new DependencyGraph();
+		// Messages 1 and 2 both depend on the message, which is pending
+		graph.addDependencies(messageId, singletonMap(messageId2, UNKNOWN));
+		graph.addDependencies(messageId1, singletonMap(messageId, PENDING));
+		Map<MessageId, MessageState> states = new HashMap<>();
+		states.put(messageId, PENDING);
+		states.put(messageId1, PENDING);
+		graph.addDependencies(messageId2, states);
+
+		// Deliver the message
+		graph.setState(messageId, DELIVERED);
+
+		// The message is no longer pending, so its dependencies are gone
+		assertNull(graph.getDependencies(messageId));
+		// Its dependents have seen the new state
+		assertEquals(singletonMap(messageId, DELIVERED),
+				graph.getDependencies(messageId1));
+		Map<MessageId, MessageState> states2 =
+				graph.getDependencies(messageId2);
+		assertEquals(DELIVERED, states2.get(messageId));
+		assertEquals(PENDING, states2.get(messageId1));
+
+		// Invalidate message 1
+		graph.setState(messageId1, INVALID);
+		states2 = graph.getDependencies(messageId2);
+		assertEquals(INVALID, states2.get(messageId1));
+	}
+
+	@Test
+	public void testGraphHoldsCopyOfStates() {
+		DependencyGraph graph = new DependencyGraph();
+		Map<MessageId, MessageState> states = new HashMap<>();
+		states.put(messageId1, PENDING);
+		graph.addDependencies(messageId, states);
+
+		// Changing the graph doesn't change the caller's map
+		graph.setState(messageId1, DELIVERED);
+		assertEquals(PENDING, states.get(messageId1));
+		assertEquals(DELIVERED, graph.getDependencies(messageId)
+				.get(messageId1));
+	}
+
+	@Test
+	public void testRemovedMessageIsNotUpdated() {
+		DependencyGraph graph = new DependencyGraph();
+		graph.addDependencies(messageId, singletonMap(messageId1, PENDING));
+		graph.remove(messageId);
+		graph.setState(messageId1, DELIVERED);
+		assertNull(graph.getDependencies(messageId));
+	}
+
+	@Test
+	public void testChangesAreNotAppliedUntilCommitted() {
+		DependencyGraph graph = new DependencyGraph();
+		graph.addDependencies(messageId, singletonMap(messageId1, PENDING));
+		graph.addDependencies(messageId1, singletonMap(messageId2, PENDING));
+
+		DependencyGraph.Changes changes = graph.startChanges();
+		changes.setState(messageId1, DELIVERED);
+		changes.addDependencies(messageId2, emptyMap());
+
+		// The changes are visible through the changes object
+		assertEquals(singletonMap(messageId1, DELIVERED),
+				changes.getDependencies(messageId));
+		assertNull(changes.getDependencies(messageId1));
+		Map<MessageId, MessageState> states =
+				changes.getDependencies(messageId2);
+		assertTrue(states != null && states.isEmpty());
+
+		// The graph is unchanged
+		assertEquals(singletonMap(messageId1, PENDING),
+				graph.getDependencies(messageId));
+		assertEquals(singletonMap(messageId2, PENDING),
+				graph.getDependencies(messageId1));
+		assertNull(graph.getDependencies(messageId2));
+
+		// Apply the changes
+		changes.apply();
+		assertEquals(singletonMap(messageId1, DELIVERED),
+				graph.getDependencies(messageId));
+		assertNull(graph.getDependencies(messageId1));
+		states = graph.getDependencies(messageId2);
+		assertTrue(states != null && states.isEmpty());
+	}
+
+	@Test
+	public void testDiscardedChangesAreNotApplied() {
+		DependencyGraph graph = new DependencyGraph();
+		graph.addDependencies(messageId, singletonMap(messageId1, PENDING));
+
+		DependencyGraph.Changes changes = graph.startChanges();
+		changes.setState(messageId1, INVALID);
+		changes.remove(messageId);
+		assertNull(changes.getDependencies(messageId));
+
+		// The transaction failed, so the changes are never applied
+		assertEquals(singletonMap(messageId1, PENDING),
+				graph.getDependencies(messageId));
+	}
+}
@@ -1,10 +1,15 @@
 package org.briarproject.bramble.sync.validation;
 
 import org.briarproject.bramble.api.contact.ContactId;
+import org.briarproject.bramble.api.db.CommitAction;
 import org.briarproject.bramble.api.db.DatabaseComponent;
+import org.briarproject.bramble.api.db.DbException;
+import org.briarproject.bramble.api.db.DbRunnable;
 import org.briarproject.bramble.api.db.Metadata;
 import org.briarproject.bramble.api.db.NoSuchGroupException;
 import org.briarproject.bramble.api.db.NoSuchMessageException;
+import org.briarproject.bramble.api.db.EventAction;
+import org.briarproject.bramble.api.db.TaskAction;
 import org.briarproject.bramble.api.db.Transaction;
 import org.briarproject.bramble.api.sync.ClientId;
 import org.briarproject.bramble.api.sync.Group;
@@ -20,11 +25,16 @@ import org.briarproject.bramble.api.sync.validation.MessageValidator;
 import org.briarproject.bramble.test.BrambleMockTestCase;
 import org.briarproject.bramble.test.DbExpectations;
 import org.briarproject.bramble.test.ImmediateExecutor;
+import org.hamcrest.Description;
+import org.jmock.api.Action;
+import org.jmock.api.Invocation;
 import org.junit.Test;
 
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static java.util.Arrays.asList;
 import static java.util.Collections.emptyMap;
@@ -36,6 +46,7 @@ import static org.briarproject.bramble.api.sync.validation.MessageState.DELIVERE
 import static org.briarproject.bramble.api.sync.validation.MessageState.INVALID;
 import static org.briarproject.bramble.api.sync.validation.MessageState.PENDING;
 import static org.briarproject.bramble.api.sync.validation.MessageState.UNKNOWN;
+import static org.briarproject.bramble.sync.validation.ValidationManagerImpl.MAX_MESSAGES_PER_TRANSACTION;
 import static org.briarproject.bramble.test.TestUtils.getClientId;
 import static org.briarproject.bramble.test.TestUtils.getContactId;
 import static org.briarproject.bramble.test.TestUtils.getGroup;
@@ -51,6 +62,7 @@ public class ValidationManagerImplTest extends BrambleMockTestCase {
 			context.mock(IncomingMessageHook.class);
 
 	private final Executor dbExecutor = new ImmediateExecutor();
+	private final Executor dbReadExecutor = new ImmediateExecutor();
 	private final Executor validationExecutor = new ImmediateExecutor();
 	private final ClientId clientId = getClientId();
 	private final int majorVersion = 123;
@@ -70,7 +82,8 @@ public class ValidationManagerImplTest extends BrambleMockTestCase {
 			new MessageContext(metadata, singletonList(messageId1));
 
 	private final ValidationManagerImpl vm =
-			new ValidationManagerImpl(db, dbExecutor, validationExecutor);
+			new ValidationManagerImpl(db, dbExecutor, dbReadExecutor,
+					validationExecutor);
 
 	public ValidationManagerImplTest() {
 		vm.registerMessageValidator(clientId, majorVersion, validator);
@@ -91,22 +104,25 @@ public class ValidationManagerImplTest extends BrambleMockTestCase {
 	public void testMessagesAreValidatedAtStartup() throws Exception {
 		Transaction txn = new Transaction(null, true);
 		Transaction txn1 = new Transaction(null, false);
-		Transaction txn2 = new Transaction(null, true);
-		Transaction txn3 = new Transaction(null, false);
 
 		expectGetMessagesToValidate(messageId, messageId1);
 
 		context.checking(new DbExpectations() {{
-			// Load the first raw message and group
+			// Load both raw messages and the group in one transaction
 			oneOf(db).transactionWithResult(with(true), withDbCallable(txn));
 			oneOf(db).getMessage(txn, messageId);
 			will(returnValue(message));
 			oneOf(db).getGroup(txn, groupId);
 			will(returnValue(group));
+			oneOf(db).getMessage(txn, messageId1);
+			will(returnValue(message1));
 			// Validate the first message: valid
 			oneOf(validator).validateMessage(message, group);
 			will(returnValue(validResult));
-			// Store the validation result for the first message
+			// Validate the second message: invalid
+			oneOf(validator).validateMessage(message1, group);
+			will(throwException(new InvalidMessageException()));
+			// Store the validation results in one transaction
 			oneOf(db).transaction(with(false), withDbRunnable(txn1));
 			oneOf(db).mergeMessageMetadata(txn1, messageId, metadata);
 			// Deliver the first message
@@ -116,24 +132,14 @@ public class ValidationManagerImplTest extends BrambleMockTestCase {
 			// Get any pending dependents
 			oneOf(db).getMessageDependents(txn1, messageId);
 			will(returnValue(emptyMap()));
-			// Load the second raw message and group
-			oneOf(db).transactionWithResult(with(true), withDbCallable(txn2));
-			oneOf(db).getMessage(txn2, messageId1);
-			will(returnValue(message1));
-			oneOf(db).getGroup(txn2, groupId);
-			will(returnValue(group));
-			// Validate the second message: invalid
-			oneOf(validator).validateMessage(message1, group);
-			will(throwException(new InvalidMessageException()));
-			// Store the validation result for the second message
-			oneOf(db).transaction(with(false), withDbRunnable(txn3));
-			oneOf(db).getMessageState(txn3, messageId1);
+			// Invalidate the second message
+			oneOf(db).getMessageState(txn1, messageId1);
 			will(returnValue(UNKNOWN));
-			oneOf(db).setMessageState(txn3, messageId1, INVALID);
-			oneOf(db).deleteMessage(txn3, messageId1);
-			oneOf(db).deleteMessageMetadata(txn3, messageId1);
+			oneOf(db).setMessageState(txn1, messageId1, INVALID);
+			oneOf(db).deleteMessage(txn1, messageId1);
+			oneOf(db).deleteMessageMetadata(txn1, messageId1);
 			// Recursively invalidate any dependents
-			oneOf(db).getMessageDependents(txn3, messageId1);
+			oneOf(db).getMessageDependents(txn1, messageId1);
 			will(returnValue(emptyMap()));
 		}});
 
@@ -143,46 +149,80 @@ public class ValidationManagerImplTest extends BrambleMockTestCase {
 		vm.startService();
 	}
 
+	@Test
+	public void testMessagesAreValidatedInBatchesAtStartup()
+			throws Exception {
+		int count = MAX_MESSAGES_PER_TRANSACTION + 1;
+		MessageId[] ids = new MessageId[count];
+		for (int i = 0; i < count; i++) ids[i] = new MessageId(getRandomId());
+		Transaction txn = new Transaction(null, true);
+		Transaction txn1 = new Transaction(null, true);
+
+		expectGetMessagesToValidate(ids);
+
+		context.checking(new DbExpectations() {{
+			// Load the first batch of messages - they're all gone
+			oneOf(db).transactionWithResult(with(true), withDbCallable(txn));
+			exactly(MAX_MESSAGES_PER_TRANSACTION).of(db).getMessage(
+					with(txn), with(any(MessageId.class)));
+			will(throwException(new NoSuchMessageException()));
+			// Load the remaining message in a second transaction
+			oneOf(db).transactionWithResult(with(true), withDbCallable(txn1));
+			oneOf(db).getMessage(txn1, ids[count - 1]);
+			will(throwException(new NoSuchMessageException()));
+		}});
+
+		expectGetPendingMessages();
+		expectGetMessagesToShare();
+
+		vm.startService();
+	}
+
 	@Test
 	public void testPendingMessagesAreDeliveredAtStartup() throws Exception {
-		Transaction txn = new Transaction(null, false);
+		Transaction txn = new Transaction(null, true);
 		Transaction txn1 = new Transaction(null, false);
+		Map<MessageId, Map<MessageId, MessageState>> dependencies =
+				new HashMap<>();
+		dependencies.put(messageId, singletonMap(messageId1, DELIVERED));
+		dependencies.put(messageId2, singletonMap(messageId, PENDING));
 
 		expectGetMessagesToValidate();
-		expectGetPendingMessages(messageId);
 
 		context.checking(new DbExpectations() {{
-			// Check whether the message is ready to deliver
-			oneOf(db).transaction(with(false), withDbRunnable(txn));
-			oneOf(db).getMessageState(txn, messageId);
+			// Load the pending messages and their dependencies
+			oneOf(db).transactionWithResult(with(true), withDbCallable(txn));
+			oneOf(db).getPendingMessages(txn);
+			will(returnValue(asList(messageId, messageId2)));
+			oneOf(db).getPendingMessageDependencies(txn);
+			will(returnValue(dependencies));
+			// Check whether the message is ready to deliver - the
+			// dependencies were loaded at startup
+			oneOf(db).transaction(with(false), withDbRunnable(txn1));
+			oneOf(db).getMessageState(txn1, messageId);
 			will(returnValue(PENDING));
-			oneOf(db).getMessageDependencies(txn, messageId);
-			will(returnValue(singletonMap(messageId1, DELIVERED)));
 			// Get the message and its metadata to deliver
-			oneOf(db).getMessage(txn, messageId);
+			oneOf(db).getMessage(txn1, messageId);
 			will(returnValue(message));
-			oneOf(db).getGroup(txn, groupId);
+			oneOf(db).getGroup(txn1, groupId);
 			will(returnValue(group));
-			oneOf(db).getMessageMetadataForValidator(txn, messageId);
+			oneOf(db).getMessageMetadataForValidator(txn1, messageId);
 			will(returnValue(new Metadata()));
 			// Deliver the message
-			oneOf(hook).incomingMessage(txn, message, metadata);
+			oneOf(hook).incomingMessage(txn1, message, metadata);
 			will(returnValue(ACCEPT_DO_NOT_SHARE));
-			oneOf(db).setMessageState(txn, messageId, DELIVERED);
+			oneOf(db).setMessageState(txn1, messageId, DELIVERED);
 			// Get any pending dependents
-			oneOf(db).getMessageDependents(txn, messageId);
+			oneOf(db).getMessageDependents(txn1, messageId);
 			will(returnValue(singletonMap(messageId2, PENDING)));
-			// Check whether the dependent is ready to deliver
-			oneOf(db).transaction(with(false), withDbRunnable(txn1));
+			// Check whether the dependent is ready to deliver in the same
+			// transaction - the dependency graph has been updated
 			oneOf(db).getMessageState(txn1, messageId2);
 			will(returnValue(PENDING));
-			oneOf(db).getMessageDependencies(txn1, messageId2);
-			will(returnValue(singletonMap(messageId1, DELIVERED)));
-			// Get the dependent and its metadata to deliver
+			// Get the dependent and its metadata to deliver - the group is
+			// cached
 			oneOf(db).getMessage(txn1, messageId2);
 			will(returnValue(message2));
-			oneOf(db).getGroup(txn1, groupId);
-			will(returnValue(group));
 			oneOf(db).getMessageMetadataForValidator(txn1, messageId2);
 			will(returnValue(metadata));
 			// Deliver the dependent
@@ -192,6 +232,10 @@ public class ValidationManagerImplTest extends BrambleMockTestCase {
 			// Get any pending dependents
 			oneOf(db).getMessageDependents(txn1, messageId2);
 			will(returnValue(emptyMap()));
+			// The dependent was queued again when it was a pending
+			// dependent of the message, but it's been delivered
+			oneOf(db).getMessageState(txn1, messageId2);
+			will(returnValue(DELIVERED));
 		}});
 
 		expectGetMessagesToShare();
@@ -202,7 +246,6 @@ public class ValidationManagerImplTest extends BrambleMockTestCase {
 	@Test
 	public void testMessagesAreSharedAtStartup() throws Exception {
 		Transaction txn = new Transaction(null, false);
-		Transaction txn1 = new Transaction(null, false);
 
 		expectGetMessagesToValidate();
 		expectGetPendingMessages();
@@ -214,10 +257,39 @@ public class ValidationManagerImplTest extends BrambleMockTestCase {
 			oneOf(db).setMessageShared(txn, messageId);
 			oneOf(db).getMessageDependencies(txn, messageId);
 			will(returnValue(singletonMap(messageId2, DELIVERED)));
-			// Share dependency
+			// Share dependency in the same transaction
+			oneOf(db).setMessageShared(txn, messageId2);
+			oneOf(db).getMessageDependencies(txn, messageId2);
+			will(returnValue(emptyMap()));
+		}});
+
+		vm.startService();
+	}
+
+	@Test
+	public void testSharingFallsBackToOneMessagePerTransaction()
+			throws Exception {
+		Transaction txn = new Transaction(null, false);
+		Transaction txn1 = new Transaction(null, false);
+		Transaction txn2 = new Transaction(null, false);
+
+		expectGetMessagesToValidate();
+		expectGetPendingMessages();
+		expectGetMessagesToShare(messageId, messageId1);
+
+		context.checking(new DbExpectations() {{
+			// Try to share both messages in one transaction, which fails
+			oneOf(db).transaction(with(false), withDbRunnable(txn));
+			oneOf(db).setMessageShared(txn, messageId);
+			will(throwException(new DbException()));
+			// Try to share the first message on its own, which fails
 			oneOf(db).transaction(with(false), withDbRunnable(txn1));
-			oneOf(db).setMessageShared(txn1, messageId2);
-			oneOf(db).getMessageDependencies(txn1, messageId2);
+			oneOf(db).setMessageShared(txn1, messageId);
+			will(throwException(new DbException()));
+			// The second message is still shared
+			oneOf(db).transaction(with(false), withDbRunnable(txn2));
+			oneOf(db).setMessageShared(txn2, messageId1);
+			oneOf(db).getMessageDependencies(txn2, messageId1);
 			will(returnValue(emptyMap()));
 		}});
 
@@ -268,8 +340,7 @@ public class ValidationManagerImplTest extends BrambleMockTestCase {
 	public void testValidationContinuesAfterNoSuchMessageException()
 			throws Exception {
 		Transaction txn = new Transaction(null, true);
-		Transaction txn1 = new Transaction(null, true);
-		Transaction txn2 = new Transaction(null, false);
+		Transaction txn1 = new Transaction(null, false);
 
 		expectGetMessagesToValidate(messageId, messageId1);
 
@@ -279,23 +350,22 @@ public class ValidationManagerImplTest extends BrambleMockTestCase {
 			oneOf(db).getMessage(txn, messageId);
 			will(throwException(new NoSuchMessageException()));
 			// Load the second raw message and group
-			oneOf(db).transactionWithResult(with(true), withDbCallable(txn1));
-			oneOf(db).getMessage(txn1, messageId1);
+			oneOf(db).getMessage(txn, messageId1);
 			will(returnValue(message1));
-			oneOf(db).getGroup(txn1, groupId);
+			oneOf(db).getGroup(txn, groupId);
 			will(returnValue(group));
 			// Validate the second message: invalid
 			oneOf(validator).validateMessage(message1, group);
 			will(throwException(new InvalidMessageException()));
 			// Invalidate the second message
-			oneOf(db).transaction(with(false), withDbRunnable(txn2));
-			oneOf(db).getMessageState(txn2, messageId1);
+			oneOf(db).transaction(with(false), withDbRunnable(txn1));
+			oneOf(db).getMessageState(txn1, messageId1);
 			will(returnValue(UNKNOWN));
-			oneOf(db).setMessageState(txn2, messageId1, INVALID);
-			oneOf(db).deleteMessage(txn2, messageId1);
-			oneOf(db).deleteMessageMetadata(txn2, messageId1);
+			oneOf(db).setMessageState(txn1, messageId1, INVALID);
+			oneOf(db).deleteMessage(txn1, messageId1);
+			oneOf(db).deleteMessageMetadata(txn1, messageId1);
 			// Recursively invalidate dependents
-			oneOf(db).getMessageDependents(txn2, messageId1);
+			oneOf(db).getMessageDependents(txn1, messageId1);
 			will(returnValue(emptyMap()));
 		}});
 
@@ -309,8 +379,7 @@ public class ValidationManagerImplTest extends BrambleMockTestCase {
 	public void testValidationContinuesAfterNoSuchGroupException()
 			throws Exception {
 		Transaction txn = new Transaction(null, true);
-		Transaction txn1 = new Transaction(null, true);
-		Transaction txn2 = new Transaction(null, false);
+		Transaction txn1 = new Transaction(null, false);
 
 		expectGetMessagesToValidate(messageId, messageId1);
 
@@ -323,23 +392,64 @@ public class ValidationManagerImplTest extends BrambleMockTestCase {
 			oneOf(db).getGroup(txn, groupId);
 			will(throwException(new NoSuchGroupException()));
 			// Load the second raw message and group
-			oneOf(db).transactionWithResult(with(true), withDbCallable(txn1));
-			oneOf(db).getMessage(txn1, messageId1);
+			oneOf(db).getMessage(txn, messageId1);
 			will(returnValue(message1));
-			oneOf(db).getGroup(txn1, groupId);
+			oneOf(db).getGroup(txn, groupId);
 			will(returnValue(group));
 			// Validate the second message: invalid
 			oneOf(validator).validateMessage(message1, group);
 			will(throwException(new InvalidMessageException()));
 			// Store the validation result for the second message
-			oneOf(db).transaction(with(false), withDbRunnable(txn2));
-			oneOf(db).getMessageState(txn2, messageId1);
+			oneOf(db).transaction(with(false), withDbRunnable(txn1));
+			oneOf(db).getMessageState(txn1, messageId1);
 			will(returnValue(UNKNOWN));
-			oneOf(db).setMessageState(txn2, messageId1, INVALID);
-			oneOf(db).deleteMessage(txn2, messageId1);
-			oneOf(db).deleteMessageMetadata(txn2, messageId1);
+			oneOf(db).setMessageState(txn1, messageId1, INVALID);
+			oneOf(db).deleteMessage(txn1, messageId1);
+			oneOf(db).deleteMessageMetadata(txn1, messageId1);
 			// Recursively invalidate dependents
-			oneOf(db).getMessageDependents(txn2, messageId1);
+			oneOf(db).getMessageDependents(txn1, messageId1);
+			will(returnValue(emptyMap()));
+		}});
+
+		expectGetPendingMessages();
+		expectGetMessagesToShare();
+
+		vm.startService();
+	}
+
+	@Test
+	public void testMessageIsNotDeletedIfValidatorThrowsException()
+			throws Exception {
+		Transaction txn = new Transaction(null, true);
+		Transaction txn1 = new Transaction(null, false);
+
+		expectGetMessagesToValidate(messageId, messageId1);
+
+		context.checking(new DbExpectations() {{
+			// Load both raw messages and the group in one transaction
+			oneOf(db).transactionWithResult(with(true), withDbCallable(txn));
+			oneOf(db).getMessage(txn, messageId);
+			will(returnValue(message));
+			oneOf(db).getGroup(txn, groupId);
+			will(returnValue(group));
+			oneOf(db).getMessage(txn, messageId1);
+			will(returnValue(message1));
+			// Validate the first message - *gasp* the validator throws!
+			oneOf(validator).validateMessage(message, group);
+			will(throwException(new IllegalStateException()));
+			// Validate the second message: valid
+			oneOf(validator).validateMessage(message1, group);
+			will(returnValue(validResult));
+			// Store the validation result for the second message. The first
+			// message is left unvalidated rather than being deleted
+			oneOf(db).transaction(with(false), withDbRunnable(txn1));
+			// Deliver the second message
+			oneOf(db).mergeMessageMetadata(txn1, messageId1, metadata);
+			oneOf(hook).incomingMessage(txn1, message1, metadata);
+			will(returnValue(ACCEPT_DO_NOT_SHARE));
+			oneOf(db).setMessageState(txn1, messageId1, DELIVERED);
+			// Get any pending dependents
+			oneOf(db).getMessageDependents(txn1, messageId1);
 			will(returnValue(emptyMap()));
 		}});
 
@@ -382,6 +492,125 @@ public class ValidationManagerImplTest extends BrambleMockTestCase {
 		vm.eventOccurred(new MessageAddedEvent(message, null));
 	}
 
+	@Test
+	public void testPrevalidatedMessageIsStoredWithResult()
+			throws Exception {
+		Transaction txn = new Transaction(null, true);
+		Transaction txn1 = new Transaction(null, false);
+		AtomicReference<DbRunnable<DbException>> task =
+				new AtomicReference<>();
+
+		context.checking(new DbExpectations() {{
+			// Load the group
+			oneOf(db).transactionWithResult(with(true), withDbCallable(txn));
+			oneOf(db).getGroup(txn, groupId);
+			will(returnValue(group));
+			// Validate the message: valid
+			oneOf(validator).validateMessage(message, group);
+			will(returnValue(validResult));
+		}});
+
+		vm.prevalidateMessage(contactId, message, task::set);
+
+		context.checking(new DbExpectations() {{
+			// Store the message and the validation result
+			oneOf(db).receiveMessage(txn1, contactId, message);
+			will(addMessage(txn1, message));
+			oneOf(db).mergeMessageMetadata(txn1, messageId, metadata);
+			// Deliver the message
+			oneOf(hook).incomingMessage(txn1, message, metadata);
+			will(returnValue(ACCEPT_DO_NOT_SHARE));
+			oneOf(db).setMessageState(txn1, messageId, DELIVERED);
+			// Get any pending dependents
+			oneOf(db).getMessageDependents(txn1, messageId);
+			will(returnValue(emptyMap()));
+		}});
+
+		task.get().run(txn1);
+
+		// The message shouldn't be validated again when it's added
+		runCommitActions(txn1);
+	}
+
+	@Test
+	public void testInvalidPrevalidatedMessageIsInvalidated()
+			throws Exception {
+		Transaction txn = new Transaction(null, true);
+		Transaction txn1 = new Transaction(null, false);
+		Transaction txn2 = new Transaction(null, false);
+		AtomicReference<DbRunnable<DbException>> task =
+				new AtomicReference<>();
+
+		context.checking(new DbExpectations() {{
+			// Load the group
+			oneOf(db).transactionWithResult(with(true), withDbCallable(txn));
+			oneOf(db).getGroup(txn, groupId);
+			will(returnValue(group));
+			// Validate the message: invalid
+			oneOf(validator).validateMessage(message, group);
+			will(throwException(new InvalidMessageException()));
+		}});
+
+		vm.prevalidateMessage(contactId, message, task::set);
+
+		context.checking(new DbExpectations() {{
+			// Store the message and invalidate it
+			oneOf(db).receiveMessage(txn1, contactId, message);
+			will(addMessage(txn1, message));
+			oneOf(db).setMessageState(txn1, messageId, INVALID);
+			oneOf(db).deleteMessage(txn1, messageId);
+			oneOf(db).deleteMessageMetadata(txn1, messageId);
+			// Recursively invalidate any dependents
+			oneOf(db).getMessageDependents(txn1, messageId);
+			will(returnValue(emptyMap()));
+		}});
+
+		task.get().run(txn1);
+		runCommitActions(txn1);
+
+		context.checking(new DbExpectations() {{
+			// Validate another message in the same group: the group is cached
+			oneOf(validator).validateMessage(message1, group);
+			will(returnValue(validResult));
+			// The message is a duplicate, so the result isn't stored
+			oneOf(db).receiveMessage(txn2, contactId, message1);
+			will(returnValue(false));
+		}});
+
+		vm.prevalidateMessage(contactId, message1, task::set);
+		task.get().run(txn2);
+		runCommitActions(txn2);
+	}
+
+	@Test
+	public void testPrevalidatedMessageIsStoredIfValidatorThrowsException()
+			throws Exception {
+		Transaction txn = new Transaction(null, true);
+		Transaction txn1 = new Transaction(null, false);
+		AtomicReference<DbRunnable<DbException>> task =
+				new AtomicReference<>();
+
+		context.checking(new DbExpectations() {{
+			// Load the group
+			oneOf(db).transactionWithResult(with(true), withDbCallable(txn));
+			oneOf(db).getGroup(txn, groupId);
+			will(returnValue(group));
+			// Validate the message - *gasp* the validator throws!
+			oneOf(validator).validateMessage(message, group);
+			will(throwException(new IllegalStateException()));
+		}});
+
+		vm.prevalidateMessage(contactId, message, task::set);
+
+		context.checking(new DbExpectations() {{
+			// Store the message without a validation result
+			oneOf(db).receiveMessage(txn1, contactId, message);
+			will(returnValue(true));
+		}});
+
+		task.get().run(txn1);
+	}
+
 	@Test
 	public void testMessagesWithUndeliveredDependenciesArePending()
 			throws Exception {
@@ -496,11 +725,6 @@ public class ValidationManagerImplTest extends BrambleMockTestCase {
 		twoDependents.put(messageId2, PENDING);
 		Transaction txn = new Transaction(null, true);
 		Transaction txn1 = new Transaction(null, false);
-		Transaction txn2 = new Transaction(null, false);
-		Transaction txn3 = new Transaction(null, false);
-		Transaction txn4 = new Transaction(null, false);
-		Transaction txn5 = new Transaction(null, false);
-		Transaction txn6 = new Transaction(null, false);
 
 		context.checking(new DbExpectations() {{
 			// Load the group
@@ -510,7 +734,7 @@ public class ValidationManagerImplTest extends BrambleMockTestCase {
 			// Validate the message: invalid
 			oneOf(validator).validateMessage(message, group);
 			will(throwException(new InvalidMessageException()));
-			// Invalidate the message
+			// Invalidate the message and its dependents in one transaction
 			oneOf(db).transaction(with(false), withDbRunnable(txn1));
 			oneOf(db).getMessageState(txn1, messageId);
 			will(returnValue(UNKNOWN));
@@ -521,48 +745,43 @@ public class ValidationManagerImplTest extends BrambleMockTestCase {
 			oneOf(db).getMessageDependents(txn1, messageId);
 			will(returnValue(twoDependents));
 			// Invalidate message 1
-			oneOf(db).transaction(with(false), withDbRunnable(txn2));
-			oneOf(db).getMessageState(txn2, messageId1);
+			oneOf(db).getMessageState(txn1, messageId1);
 			will(returnValue(PENDING));
-			oneOf(db).setMessageState(txn2, messageId1, INVALID);
-			oneOf(db).deleteMessage(txn2, messageId1);
-			oneOf(db).deleteMessageMetadata(txn2, messageId1);
+			oneOf(db).setMessageState(txn1, messageId1, INVALID);
+			oneOf(db).deleteMessage(txn1, messageId1);
+			oneOf(db).deleteMessageMetadata(txn1, messageId1);
 			// Message 1 has one dependent: 3
-			oneOf(db).getMessageDependents(txn2, messageId1);
+			oneOf(db).getMessageDependents(txn1, messageId1);
 			will(returnValue(singletonMap(messageId3, PENDING)));
 			// Invalidate message 2
-			oneOf(db).transaction(with(false), withDbRunnable(txn3));
-			oneOf(db).getMessageState(txn3, messageId2);
+			oneOf(db).getMessageState(txn1, messageId2);
 			will(returnValue(PENDING));
-			oneOf(db).setMessageState(txn3, messageId2, INVALID);
-			oneOf(db).deleteMessage(txn3, messageId2);
-			oneOf(db).deleteMessageMetadata(txn3, messageId2);
+			oneOf(db).setMessageState(txn1, messageId2, INVALID);
+			oneOf(db).deleteMessage(txn1, messageId2);
+			oneOf(db).deleteMessageMetadata(txn1, messageId2);
 			// Message 2 has one dependent: 3 (same dependent as 1)
-			oneOf(db).getMessageDependents(txn3, messageId2);
+			oneOf(db).getMessageDependents(txn1, messageId2);
 			will(returnValue(singletonMap(messageId3, PENDING)));
 			// Invalidate message 3 (via 1)
-			oneOf(db).transaction(with(false), withDbRunnable(txn4));
-			oneOf(db).getMessageState(txn4, messageId3);
+			oneOf(db).getMessageState(txn1, messageId3);
 			will(returnValue(PENDING));
-			oneOf(db).setMessageState(txn4, messageId3, INVALID);
-			oneOf(db).deleteMessage(txn4, messageId3);
-			oneOf(db).deleteMessageMetadata(txn4, messageId3);
+			oneOf(db).setMessageState(txn1, messageId3, INVALID);
+			oneOf(db).deleteMessage(txn1, messageId3);
+			oneOf(db).deleteMessageMetadata(txn1, messageId3);
 			// Message 3 has one dependent: 4
-			oneOf(db).getMessageDependents(txn4, messageId3);
+			oneOf(db).getMessageDependents(txn1, messageId3);
 			will(returnValue(singletonMap(messageId4, PENDING)));
 			// Invalidate message 3 (again, via 2)
-			oneOf(db).transaction(with(false), withDbRunnable(txn5));
-			oneOf(db).getMessageState(txn5, messageId3);
+			oneOf(db).getMessageState(txn1, messageId3);
 			will(returnValue(INVALID)); // Already invalidated
 			// Invalidate message 4 (via 1 and 3)
-			oneOf(db).transaction(with(false), withDbRunnable(txn6));
-			oneOf(db).getMessageState(txn6, messageId4);
+			oneOf(db).getMessageState(txn1, messageId4);
 			will(returnValue(PENDING));
-			oneOf(db).setMessageState(txn6, messageId4, INVALID);
-			oneOf(db).deleteMessage(txn6, messageId4);
-			oneOf(db).deleteMessageMetadata(txn6, messageId4);
+			oneOf(db).setMessageState(txn1, messageId4, INVALID);
+			oneOf(db).deleteMessage(txn1, messageId4);
+			oneOf(db).deleteMessageMetadata(txn1, messageId4);
 			// Message 4 has no dependents
-			oneOf(db).getMessageDependents(txn6, messageId4);
+			oneOf(db).getMessageDependents(txn1, messageId4);
 			will(returnValue(emptyMap()));
 		}});
 
@@ -584,10 +803,6 @@ public class ValidationManagerImplTest extends BrambleMockTestCase {
 		Transaction txn = new Transaction(null, true);
 		Transaction txn1 = new Transaction(null, false);
 		Transaction txn2 = new Transaction(null, false);
-		Transaction txn3 = new Transaction(null, false);
-		Transaction txn4 = new Transaction(null, false);
-		Transaction txn5 = new Transaction(null, false);
-		Transaction txn6 = new Transaction(null, false);
 
 		context.checking(new DbExpectations() {{
 			// Load the group
@@ -607,8 +822,10 @@ public class ValidationManagerImplTest extends BrambleMockTestCase {
 			// The message has two pending dependents: 1 and 2
 			oneOf(db).getMessageDependents(txn1, messageId);
 			will(returnValue(twoDependents));
-			// Check whether message 1 is ready to be delivered
+			// Deliver the pending dependents in one transaction. The group
+			// is cached
 			oneOf(db).transaction(with(false), withDbRunnable(txn2));
+			// Check whether message 1 is ready to be delivered
 			oneOf(db).getMessageState(txn2, messageId1);
 			will(returnValue(PENDING));
 			oneOf(db).getMessageDependencies(txn2, messageId1);
@@ -616,8 +833,6 @@ public class ValidationManagerImplTest extends BrambleMockTestCase {
 			// Get message 1 and its metadata
 			oneOf(db).getMessage(txn2, messageId1);
 			will(returnValue(message1));
-			oneOf(db).getGroup(txn2, groupId);
-			will(returnValue(group));
 			oneOf(db).getMessageMetadataForValidator(txn2, messageId1);
 			will(returnValue(metadata));
 			// Deliver message 1
@@ -628,68 +843,58 @@ public class ValidationManagerImplTest extends BrambleMockTestCase {
 			oneOf(db).getMessageDependents(txn2, messageId1);
 			will(returnValue(singletonMap(messageId3, PENDING)));
 			// Check whether message 2 is ready to be delivered
-			oneOf(db).transaction(with(false), withDbRunnable(txn3));
-			oneOf(db).getMessageState(txn3, messageId2);
+			oneOf(db).getMessageState(txn2, messageId2);
 			will(returnValue(PENDING));
-			oneOf(db).getMessageDependencies(txn3, messageId2);
+			oneOf(db).getMessageDependencies(txn2, messageId2);
 			will(returnValue(singletonMap(messageId, DELIVERED)));
 			// Get message 2 and its metadata
-			oneOf(db).getMessage(txn3, messageId2);
+			oneOf(db).getMessage(txn2, messageId2);
 			will(returnValue(message2));
-			oneOf(db).getGroup(txn3, groupId);
-			will(returnValue(group));
-			oneOf(db).getMessageMetadataForValidator(txn3, messageId2);
+			oneOf(db).getMessageMetadataForValidator(txn2, messageId2);
 			will(returnValue(metadata));
 			// Deliver message 2
-			oneOf(hook).incomingMessage(txn3, message2, metadata);
+			oneOf(hook).incomingMessage(txn2, message2, metadata);
 			will(returnValue(ACCEPT_DO_NOT_SHARE));
-			oneOf(db).setMessageState(txn3, messageId2, DELIVERED);
+			oneOf(db).setMessageState(txn2, messageId2, DELIVERED);
 			// Message 2 has one pending dependent: 3 (same dependent as 1)
-			oneOf(db).getMessageDependents(txn3, messageId2);
+			oneOf(db).getMessageDependents(txn2, messageId2);
 			will(returnValue(singletonMap(messageId3, PENDING)));
 			// Check whether message 3 is ready to be delivered (via 1)
-			oneOf(db).transaction(with(false), withDbRunnable(txn4));
-			oneOf(db).getMessageState(txn4, messageId3);
+			oneOf(db).getMessageState(txn2, messageId3);
 			will(returnValue(PENDING));
-			oneOf(db).getMessageDependencies(txn4, messageId3);
+			oneOf(db).getMessageDependencies(txn2, messageId3);
 			will(returnValue(twoDependencies));
 			// Get message 3 and its metadata
-			oneOf(db).getMessage(txn4, messageId3);
+			oneOf(db).getMessage(txn2, messageId3);
 			will(returnValue(message3));
-			oneOf(db).getGroup(txn4, groupId);
-			will(returnValue(group));
-			oneOf(db).getMessageMetadataForValidator(txn4, messageId3);
+			oneOf(db).getMessageMetadataForValidator(txn2, messageId3);
 			will(returnValue(metadata));
 			// Deliver message 3
-			oneOf(hook).incomingMessage(txn4, message3, metadata);
+			oneOf(hook).incomingMessage(txn2, message3, metadata);
 			will(returnValue(ACCEPT_DO_NOT_SHARE));
-			oneOf(db).setMessageState(txn4, messageId3, DELIVERED);
+			oneOf(db).setMessageState(txn2, messageId3, DELIVERED);
 			// Message 3 has one pending dependent: 4
-			oneOf(db).getMessageDependents(txn4, messageId3);
+			oneOf(db).getMessageDependents(txn2, messageId3);
 			will(returnValue(singletonMap(messageId4, PENDING)));
 			// Check whether message 3 is ready to be delivered (again, via 2)
-			oneOf(db).transaction(with(false), withDbRunnable(txn5));
-			oneOf(db).getMessageState(txn5, messageId3);
+			oneOf(db).getMessageState(txn2, messageId3);
 			will(returnValue(DELIVERED)); // Already delivered
 			// Check whether message 4 is ready to be delivered (via 1 and 3)
-			oneOf(db).transaction(with(false), withDbRunnable(txn6));
-			oneOf(db).getMessageState(txn6, messageId4);
+			oneOf(db).getMessageState(txn2, messageId4);
 			will(returnValue(PENDING));
-			oneOf(db).getMessageDependencies(txn6, messageId4);
+			oneOf(db).getMessageDependencies(txn2, messageId4);
 			will(returnValue(singletonMap(messageId3, DELIVERED)));
 			// Get message 4 and its metadata
-			oneOf(db).getMessage(txn6, messageId4);
+			oneOf(db).getMessage(txn2, messageId4);
 			will(returnValue(message4));
-			oneOf(db).getGroup(txn6, groupId);
-			will(returnValue(group));
-			oneOf(db).getMessageMetadataForValidator(txn6, messageId4);
+			oneOf(db).getMessageMetadataForValidator(txn2, messageId4);
 			will(returnValue(metadata));
 			// Deliver message 4
-			oneOf(hook).incomingMessage(txn6, message4, metadata);
+			oneOf(hook).incomingMessage(txn2, message4, metadata);
 			will(returnValue(ACCEPT_DO_NOT_SHARE));
-			oneOf(db).setMessageState(txn6, messageId4, DELIVERED);
+			oneOf(db).setMessageState(txn2, messageId4, DELIVERED);
 			// Message 4 has no pending dependents
-			oneOf(db).getMessageDependents(txn6, messageId4);
+			oneOf(db).getMessageDependents(txn2, messageId4);
 			will(returnValue(emptyMap()));
 		}});
 
@@ -734,6 +939,40 @@ public class ValidationManagerImplTest extends BrambleMockTestCase {
 		vm.eventOccurred(new MessageAddedEvent(message, contactId));
 	}
 
+	/**
+	 * Returns an action that attaches a {@link MessageAddedEvent} to the
+	 * given transaction, as the database component does when it adds a
+	 * message received from a contact.
+	 */
+	private Action addMessage(Transaction txn, Message m) {
+		return new Action() {
+			@Override
+			public Object invoke(Invocation invocation) {
+				txn.attach(new MessageAddedEvent(m, contactId));
+				return true;
+			}
+
+			@Override
+			public void describeTo(Description description) {
+				description.appendText("adds a message");
+			}
+		};
+	}
+
+	/**
+	 * Runs the transaction's commit actions in order, passing any events to
+	 * the validation manager.
+	 */
+	private void runCommitActions(Transaction txn) {
+		for (CommitAction action : txn.getActions()) {
+			if (action instanceof TaskAction) {
+				((TaskAction) action).getTask().run();
+			} else {
+				vm.eventOccurred(((EventAction) action).getEvent());
+			}
+		}
+	}
+
 	private void expectGetMessagesToValidate(MessageId... ids)
 			throws Exception {
 		Transaction txn = new Transaction(null, true);
@@ -752,6 +991,8 @@ public class ValidationManagerImplTest extends BrambleMockTestCase {
 			oneOf(db).transactionWithResult(with(true), withDbCallable(txn));
 			oneOf(db).getPendingMessages(txn);
 			will(returnValue(asList(ids)));
+			oneOf(db).getPendingMessageDependencies(txn);
+			will(returnValue(emptyMap()));
 		}});
 	}
 
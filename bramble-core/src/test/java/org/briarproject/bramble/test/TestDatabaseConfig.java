@@ -12,10 +12,16 @@ import javax.annotation.Nullable;
 public class TestDatabaseConfig implements DatabaseConfig {
 
 	private final File dbDir, keyDir;
+	private final boolean concurrentReads;
 
 	public TestDatabaseConfig(File testDir) {
+		this(testDir, false);
+	}
+
+	public TestDatabaseConfig(File testDir, boolean concurrentReads) {
 		dbDir = new File(testDir, "db");
 		keyDir = new File(testDir, "key");
+		this.concurrentReads = concurrentReads;
 	}
 
 	@Override
@@ -33,4 +39,9 @@ public class TestDatabaseConfig implements DatabaseConfig {
 	public KeyStrengthener getKeyStrengthener() {
 		return null;
 	}
+
+	@Override
+	public boolean isConcurrentReadsEnabled() {
+		return concurrentReads;
+	}
 }
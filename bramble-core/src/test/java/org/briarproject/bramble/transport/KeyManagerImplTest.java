@@ -109,6 +109,17 @@ public class KeyManagerImplTest extends BrambleMockTestCase {
 		keyManager.startService();
 	}
 
+	@Test
+	public void testStopServiceReleasesStreamCounterLeases()
+			throws Exception {
+		context.checking(new DbExpectations() {{
+			oneOf(db).transaction(with(false), withDbRunnable(txn));
+			oneOf(transportKeyManager).releaseStreamCounterLeases(txn);
+		}});
+
+		keyManager.stopService();
+	}
+
 	@Test
 	public void testAddContactWithRotationModeKeys() throws Exception {
 		SecretKey secretKey = getSecretKey();
@@ -189,6 +200,9 @@ public class KeyManagerImplTest extends BrambleMockTestCase {
 	@Test
 	public void testGetStreamContextForContact() throws Exception {
 		context.checking(new DbExpectations() {{
+			// No stream number has been reserved
+			oneOf(transportKeyManager).getLeasedStreamContext(contactId);
+			will(returnValue(null));
 			oneOf(db).transactionWithNullableResult(with(false),
 					withNullableDbCallable(txn));
 			oneOf(transportKeyManager).getStreamContext(txn, contactId);
@@ -202,6 +216,10 @@ public class KeyManagerImplTest extends BrambleMockTestCase {
 	@Test
 	public void testGetStreamContextForPendingContact() throws Exception {
 		context.checking(new DbExpectations() {{
+			// No stream number has been reserved
+			oneOf(transportKeyManager).getLeasedStreamContext(
+					pendingContactId);
+			will(returnValue(null));
 			oneOf(db).transactionWithNullableResult(with(false),
 					withNullableDbCallable(txn));
 			oneOf(transportKeyManager).getStreamContext(txn, pendingContactId);
@@ -212,6 +230,18 @@ public class KeyManagerImplTest extends BrambleMockTestCase {
 				keyManager.getStreamContext(pendingContactId, transportId));
 	}
 
+	@Test
+	public void testGetLeasedStreamContextForContact() throws Exception {
+		context.checking(new Expectations() {{
+			// A stream number has been reserved, so no transaction is needed
+			oneOf(transportKeyManager).getLeasedStreamContext(contactId);
+			will(returnValue(contactStreamContext));
+		}});
+
+		assertEquals(contactStreamContext,
+				keyManager.getStreamContext(contactId, transportId));
+	}
+
 	@Test
 	public void testGetStreamContextForTagAndUnknownTransport()
 			throws Exception {
@@ -5,12 +5,15 @@ import org.briarproject.bramble.test.TestUtils;
 import org.briarproject.bramble.transport.ReorderingWindow.Change;
 import org.junit.Test;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
 
 import static org.briarproject.bramble.api.transport.TransportConstants.REORDERING_WINDOW_SIZE;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 
 public class ReorderingWindowTest extends BrambleTestCase {
 
@@ -34,8 +37,8 @@ public class ReorderingWindowTest extends BrambleTestCase {
 		// The window should slide by one element
 		assertEquals(1L, window.getBase());
 		assertEquals(Collections.singletonList((long) REORDERING_WINDOW_SIZE),
-				change.getAdded());
-		assertEquals(Collections.singletonList(0L), change.getRemoved());
+				getAdded(change));
+		assertEquals(Collections.singletonList(0L), getRemoved(change));
 		// All elements in the window should be unseen
 		assertArrayEquals(bitmap, window.getBitmap());
 	}
@@ -48,8 +51,8 @@ public class ReorderingWindowTest extends BrambleTestCase {
 		Change change = window.setSeen(1L);
 		// The window should not slide
 		assertEquals(0L, window.getBase());
-		assertEquals(Collections.emptyList(), change.getAdded());
-		assertEquals(Collections.singletonList(1L), change.getRemoved());
+		assertEquals(Collections.emptyList(), getAdded(change));
+		assertEquals(Collections.singletonList(1L), getRemoved(change));
 		// The second element in the window should be seen
 		bitmap[0] = 0x40; // 0100 0000
 		assertArrayEquals(bitmap, window.getBitmap());
@@ -65,8 +68,8 @@ public class ReorderingWindowTest extends BrambleTestCase {
 		// The window should slide by one element
 		assertEquals(1L, window.getBase());
 		assertEquals(Collections.singletonList((long) REORDERING_WINDOW_SIZE),
-				change.getAdded());
-		assertEquals(Arrays.asList(0L, aboveMidpoint), change.getRemoved());
+				getAdded(change));
+		assertEquals(Arrays.asList(0L, aboveMidpoint), getRemoved(change));
 		// The highest element below the midpoint should be seen
 		bitmap[bitmap.length / 2 - 1] = (byte) 0x01; // 0000 0001
 		assertArrayEquals(bitmap, window.getBitmap());
@@ -82,8 +85,8 @@ public class ReorderingWindowTest extends BrambleTestCase {
 		// The window should slide by two elements
 		assertEquals(2L, window.getBase());
 		assertEquals(Arrays.asList((long) REORDERING_WINDOW_SIZE,
-				(long) (REORDERING_WINDOW_SIZE + 1)), change.getAdded());
-		assertEquals(Collections.singletonList(0L), change.getRemoved());
+				(long) (REORDERING_WINDOW_SIZE + 1)), getAdded(change));
+		assertEquals(Collections.singletonList(0L), getRemoved(change));
 		// All elements in the window should be unseen
 		assertArrayEquals(bitmap, window.getBitmap());
 	}
@@ -99,10 +102,79 @@ public class ReorderingWindowTest extends BrambleTestCase {
 		// The window should slide by two elements
 		assertEquals(2L, window.getBase());
 		assertEquals(Arrays.asList((long) REORDERING_WINDOW_SIZE,
-				(long) (REORDERING_WINDOW_SIZE + 1)), change.getAdded());
-		assertEquals(Arrays.asList(0L, aboveMidpoint), change.getRemoved());
+				(long) (REORDERING_WINDOW_SIZE + 1)), getAdded(change));
+		assertEquals(Arrays.asList(0L, aboveMidpoint), getRemoved(change));
 		// The second-highest element below the midpoint should be seen
 		bitmap[bitmap.length / 2 - 1] = (byte) 0x02; // 0000 0010
 		assertArrayEquals(bitmap, window.getBitmap());
 	}
+
+	@Test
+	public void testChangeIsReused() {
+		byte[] bitmap = new byte[BITMAP_BYTES];
+		ReorderingWindow window = new ReorderingWindow(0L, bitmap);
+		Change change = window.setSeen(0L);
+		assertEquals(1, change.getAddedCount());
+		// The next change replaces the contents of the first
+		assertSame(change, window.setSeen(2L));
+		assertEquals(Collections.emptyList(), getAdded(change));
+		assertEquals(Collections.singletonList(2L), getRemoved(change));
+	}
+
+	@Test
+	public void testUnseenElementsCanBeIterated() {
+		for (int i = 0; i < 1000; i++) {
+			byte[] bitmap = TestUtils.getRandomBytes(BITMAP_BYTES);
+			long base = 1000L;
+			ReorderingWindow window = new ReorderingWindow(base, bitmap);
+			List<Long> expected = new ArrayList<>();
+			for (int j = 0; j < REORDERING_WINDOW_SIZE; j++) {
+				if ((bitmap[j / 8] & (128 >> (j % 8))) == 0)
+					expected.add(base + j);
+			}
+			List<Long> unseen = new ArrayList<>();
+			for (long s = window.getNextUnseen(0); s != -1;
+					s = window.getNextUnseen(s + 1)) {
+				unseen.add(s);
+			}
+			assertEquals(expected, unseen);
+		}
+	}
+
+	@Test
+	public void testWindowSlidesAcrossWordBoundaries() {
+		// A window larger than one word of the bitset
+		byte[] bitmap = new byte[40];
+		ReorderingWindow window = new ReorderingWindow(0L, bitmap);
+		// Set every element below the midpoint seen, except the first
+		for (long i = 1; i < 160; i++) window.setSeen(i);
+		assertEquals(0L, window.getBase());
+		// Set the first element seen
+		Change change = window.setSeen(0L);
+		// The window should slide past all the seen elements
+		assertEquals(160L, window.getBase());
+		assertEquals(160, change.getAddedCount());
+		assertEquals(320L, change.getAdded(0));
+		assertEquals(479L, change.getAdded(159));
+		assertEquals(Collections.singletonList(0L), getRemoved(change));
+		// All elements in the window should be unseen
+		assertArrayEquals(bitmap, window.getBitmap());
+		assertEquals(160L, window.getNextUnseen(0));
+		assertEquals(479L, window.getNextUnseen(479));
+		assertEquals(-1L, window.getNextUnseen(480));
+	}
+
+	private List<Long> getAdded(Change change) {
+		List<Long> added = new ArrayList<>();
+		for (int i = 0; i < change.getAddedCount(); i++)
+			added.add(change.getAdded(i));
+		return added;
+	}
+
+	private List<Long> getRemoved(Change change) {
+		List<Long> removed = new ArrayList<>();
+		for (int i = 0; i < change.getRemovedCount(); i++)
+			removed.add(change.getRemoved(i));
+		return removed;
+	}
 }
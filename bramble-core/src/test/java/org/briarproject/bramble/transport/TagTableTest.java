@@ -0,0 +1,106 @@
+package org.briarproject.bramble.transport;
+
+import org.briarproject.bramble.test.BrambleTestCase;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.briarproject.bramble.api.transport.TransportConstants.TAG_LENGTH;
+import static org.briarproject.bramble.test.TestUtils.getRandomBytes;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class TagTableTest extends BrambleTestCase {
+
+	@Test
+	public void testTagsCanBeFound() {
+		TagTable<String> table = new TagTable<>();
+		byte[] tag = getRandomBytes(TAG_LENGTH);
+		byte[] tag1 = getRandomBytes(TAG_LENGTH);
+		assertEquals(-1, table.find(tag));
+
+		table.put(tag, "foo", 123);
+		table.put(tag1, "bar", 456);
+		assertEquals(2, table.size());
+
+		int slot = table.find(tag);
+		assertNotEquals(-1, slot);
+		assertEquals("foo", table.getValue(slot));
+		assertEquals(123, table.getStreamNumber(slot));
+		// The table holds a copy of the tag
+		int slot1 = table.find(tag1.clone());
+		assertNotEquals(-1, slot1);
+		assertEquals("bar", table.getValue(slot1));
+		assertEquals(456, table.getStreamNumber(slot1));
+		// Tags of the wrong length are never found
+		assertEquals(-1, table.find(new byte[TAG_LENGTH - 1]));
+	}
+
+	@Test
+	public void testPuttingExistingTagReplacesEntry() {
+		TagTable<String> table = new TagTable<>();
+		byte[] tag = getRandomBytes(TAG_LENGTH);
+		table.put(tag, "foo", 123);
+		table.put(tag, "bar", 456);
+		assertEquals(1, table.size());
+
+		int slot = table.find(tag);
+		assertEquals("bar", table.getValue(slot));
+		assertEquals(456, table.getStreamNumber(slot));
+	}
+
+	@Test
+	public void testTableGrowsAndRemovesTags() {
+		TagTable<Integer> table = new TagTable<>();
+		List<byte[]> tags = new ArrayList<>();
+		// Enough tags to make the table resize several times
+		for (int i = 0; i < 10_000; i++) {
+			byte[] tag = getRandomBytes(TAG_LENGTH);
+			tags.add(tag);
+			table.put(tag, i, i);
+			assertEquals(i + 1, table.size());
+		}
+		assertEquals(tags.size(), table.size());
+
+		// Remove every other tag, by tag or by slot
+		for (int i = 0; i < tags.size(); i += 2) {
+			if (i % 4 == 0) table.remove(tags.get(i));
+			else table.remove(table.find(tags.get(i)));
+		}
+		assertEquals(tags.size() / 2, table.size());
+
+		// The remaining tags can still be found, even if they were moved
+		for (int i = 0; i < tags.size(); i++) {
+			int slot = table.find(tags.get(i));
+			if (i % 2 == 0) {
+				assertEquals(-1, slot);
+			} else {
+				assertNotEquals(-1, slot);
+				assertEquals(i, (int) table.getValue(slot));
+				assertEquals(i, table.getStreamNumber(slot));
+			}
+		}
+	}
+
+	@Test
+	public void testRemoveIf() {
+		TagTable<String> table = new TagTable<>();
+		byte[] tag = getRandomBytes(TAG_LENGTH);
+		byte[] tag1 = getRandomBytes(TAG_LENGTH);
+		byte[] tag2 = getRandomBytes(TAG_LENGTH);
+		table.put(tag, "foo", 1);
+		table.put(tag1, "bar", 2);
+		table.put(tag2, "foo", 3);
+
+		table.removeIf("foo"::equals);
+		assertEquals(1, table.size());
+		assertEquals(-1, table.find(tag));
+		assertEquals(-1, table.find(tag2));
+		assertEquals(2, table.getStreamNumber(table.find(tag1)));
+
+		table.clear();
+		assertEquals(0, table.size());
+		assertEquals(-1, table.find(tag1));
+	}
+}
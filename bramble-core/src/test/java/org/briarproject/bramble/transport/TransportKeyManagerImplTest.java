@@ -4,7 +4,9 @@ import org.briarproject.bramble.api.contact.ContactId;
 import org.briarproject.bramble.api.contact.PendingContactId;
 import org.briarproject.bramble.api.crypto.SecretKey;
 import org.briarproject.bramble.api.crypto.TransportCrypto;
+import org.briarproject.bramble.api.db.CommitAction;
 import org.briarproject.bramble.api.db.DatabaseComponent;
+import org.briarproject.bramble.api.db.TaskAction;
 import org.briarproject.bramble.api.db.Transaction;
 import org.briarproject.bramble.api.plugin.TransportId;
 import org.briarproject.bramble.api.system.Clock;
@@ -41,6 +43,8 @@ import static org.briarproject.bramble.test.TestUtils.getContactId;
 import static org.briarproject.bramble.test.TestUtils.getRandomId;
 import static org.briarproject.bramble.test.TestUtils.getSecretKey;
 import static org.briarproject.bramble.test.TestUtils.getTransportId;
+import static org.briarproject.bramble.transport.TransportKeyManagerImpl.KEY_UPDATE_LEAD_TIME;
+import static org.briarproject.bramble.transport.TransportKeyManagerImpl.STREAM_COUNTER_LEASE;
 import static org.briarproject.bramble.util.ByteUtils.MAX_32_BIT_UNSIGNED;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
@@ -53,7 +57,10 @@ public class TransportKeyManagerImplTest extends BrambleMockTestCase {
 	private final DatabaseComponent db = context.mock(DatabaseComponent.class);
 	private final TransportCrypto transportCrypto =
 			context.mock(TransportCrypto.class);
-	private final Executor dbExecutor = context.mock(Executor.class);
+	private final Executor dbExecutor =
+			context.mock(Executor.class, "dbExecutor");
+	private final Executor cryptoExecutor =
+			context.mock(Executor.class, "cryptoExecutor");
 	private final TaskScheduler scheduler = context.mock(TaskScheduler.class);
 	private final Clock clock = context.mock(Clock.class);
 
@@ -73,7 +80,7 @@ public class TransportKeyManagerImplTest extends BrambleMockTestCase {
 
 	private final TransportKeyManager transportKeyManager =
 			new TransportKeyManagerImpl(db, transportCrypto, dbExecutor,
-					scheduler, clock, transportId, maxLatency);
+					cryptoExecutor, scheduler, clock, transportId, maxLatency);
 
 	@Test
 	public void testKeysAreUpdatedAtStartup() throws Exception {
@@ -110,9 +117,10 @@ public class TransportKeyManagerImplTest extends BrambleMockTestCase {
 			// Save the keys that were updated
 			oneOf(db).updateTransportKeys(txn, singletonList(
 					new TransportKeySet(keySetId, contactId, null, updated)));
-			// Schedule a key update at the start of the next time period
+			// Schedule a key update ahead of the next time period
 			oneOf(scheduler).schedule(with(any(Runnable.class)),
-					with(dbExecutor), with(timePeriodLength - 1),
+					with(cryptoExecutor),
+					with(timePeriodLength - 1 - KEY_UPDATE_LEAD_TIME),
 					with(MILLISECONDS));
 		}});
 
@@ -153,8 +161,8 @@ public class TransportKeyManagerImplTest extends BrambleMockTestCase {
 		}});
 
 		TransportKeyManager transportKeyManager = new TransportKeyManagerImpl(
-				db, transportCrypto, dbExecutor, scheduler, clock, transportId,
-				maxLatency);
+				db, transportCrypto, dbExecutor, cryptoExecutor, scheduler,
+				clock, transportId, maxLatency);
 		// The timestamp is 1 ms before the start of time period 1000
 		long timestamp = timePeriodLength * 1000 - 1;
 		assertEquals(keySetId, transportKeyManager.addRotationKeys(txn,
@@ -234,8 +242,8 @@ public class TransportKeyManagerImplTest extends BrambleMockTestCase {
 		Transaction txn = new Transaction(null, false);
 
 		TransportKeyManager transportKeyManager = new TransportKeyManagerImpl(
-				db, transportCrypto, dbExecutor, scheduler, clock, transportId,
-				maxLatency);
+				db, transportCrypto, dbExecutor, cryptoExecutor, scheduler,
+				clock, transportId, maxLatency);
 		assertNull(transportKeyManager.getStreamContext(txn, contactId));
 		assertFalse(transportKeyManager.canSendOutgoingStreams(contactId));
 	}
@@ -246,8 +254,8 @@ public class TransportKeyManagerImplTest extends BrambleMockTestCase {
 		Transaction txn = new Transaction(null, false);
 
 		TransportKeyManager transportKeyManager = new TransportKeyManagerImpl(
-				db, transportCrypto, dbExecutor, scheduler, clock, transportId,
-				maxLatency);
+				db, transportCrypto, dbExecutor, cryptoExecutor, scheduler,
+				clock, transportId, maxLatency);
 		assertNull(transportKeyManager.getStreamContext(txn, pendingContactId));
 		assertFalse(transportKeyManager.canSendOutgoingStreams(
 				pendingContactId));
@@ -283,8 +291,9 @@ public class TransportKeyManagerImplTest extends BrambleMockTestCase {
 		expectAddContactKeysNotUpdated(alice, true, transportKeys, txn);
 
 		context.checking(new Expectations() {{
-			// Increment the stream counter
-			oneOf(db).incrementStreamCounter(txn, transportId, keySetId);
+			// Reserve the last stream number
+			oneOf(db).setStreamCounter(txn, transportId, keySetId,
+					MAX_32_BIT_UNSIGNED + 1);
 		}});
 
 		// The timestamp is at the start of time period 1000
@@ -306,6 +315,109 @@ public class TransportKeyManagerImplTest extends BrambleMockTestCase {
 		assertNull(transportKeyManager.getStreamContext(txn, contactId));
 	}
 
+	@Test
+	public void testReservedStreamNumbersAreUsedWithoutWriting()
+			throws Exception {
+		boolean alice = random.nextBoolean();
+		TransportKeys transportKeys = createTransportKeys(1000, 0, true);
+		Transaction txn = new Transaction(null, false);
+		Transaction txn1 = new Transaction(null, false);
+
+		expectAddContactKeysNotUpdated(alice, true, transportKeys, txn);
+
+		context.checking(new Expectations() {{
+			// Reserve a block of stream numbers
+			oneOf(db).setStreamCounter(txn1, transportId, keySetId,
+					STREAM_COUNTER_LEASE);
+		}});
+
+		// The timestamp is at the start of time period 1000
+		long timestamp = timePeriodLength * 1000;
+		assertEquals(keySetId, transportKeyManager.addRotationKeys(
+				txn, contactId, rootKey, timestamp, alice, true));
+		// No stream numbers have been reserved yet
+		assertNull(transportKeyManager.getLeasedStreamContext(contactId));
+		StreamContext ctx = transportKeyManager.getStreamContext(txn1,
+				contactId);
+		assertNotNull(ctx);
+		assertEquals(0L, ctx.getStreamNumber());
+		// The reserved stream numbers can't be used until the transaction
+		// has been committed
+		assertNull(transportKeyManager.getLeasedStreamContext(contactId));
+		runCommitActions(txn1);
+		// The rest of the block can be used without writing to the DB
+		for (long i = 1; i < STREAM_COUNTER_LEASE; i++) {
+			ctx = transportKeyManager.getLeasedStreamContext(contactId);
+			assertNotNull(ctx);
+			assertEquals(i, ctx.getStreamNumber());
+		}
+		// The block has been used up
+		assertNull(transportKeyManager.getLeasedStreamContext(contactId));
+
+		Transaction txn2 = new Transaction(null, false);
+
+		context.checking(new Expectations() {{
+			// Reserve the next block of stream numbers
+			oneOf(db).setStreamCounter(txn2, transportId, keySetId,
+					STREAM_COUNTER_LEASE * 2);
+		}});
+
+		ctx = transportKeyManager.getStreamContext(txn2, contactId);
+		assertNotNull(ctx);
+		assertEquals(STREAM_COUNTER_LEASE, ctx.getStreamNumber());
+	}
+
+	@Test
+	public void testUnusedStreamNumbersAreReleased() throws Exception {
+		boolean alice = random.nextBoolean();
+		TransportKeys transportKeys = createTransportKeys(1000, 0, true);
+		Transaction txn = new Transaction(null, false);
+		Transaction txn1 = new Transaction(null, false);
+		Transaction txn2 = new Transaction(null, false);
+
+		expectAddContactKeysNotUpdated(alice, true, transportKeys, txn);
+
+		context.checking(new Expectations() {{
+			// Reserve a block of stream numbers
+			oneOf(db).setStreamCounter(txn1, transportId, keySetId,
+					STREAM_COUNTER_LEASE);
+			// Release the unused stream numbers
+			oneOf(db).setStreamCounter(txn2, transportId, keySetId, 2L);
+		}});
+
+		// The timestamp is at the start of time period 1000
+		long timestamp = timePeriodLength * 1000;
+		assertEquals(keySetId, transportKeyManager.addRotationKeys(
+				txn, contactId, rootKey, timestamp, alice, true));
+		// Use two stream numbers from the block
+		StreamContext ctx = transportKeyManager.getStreamContext(txn1,
+				contactId);
+		assertNotNull(ctx);
+		assertEquals(0L, ctx.getStreamNumber());
+		runCommitActions(txn1);
+		ctx = transportKeyManager.getLeasedStreamContext(contactId);
+		assertNotNull(ctx);
+		assertEquals(1L, ctx.getStreamNumber());
+		// Release the rest of the block
+		transportKeyManager.releaseStreamCounterLeases(txn2);
+		// The released stream numbers can't be used without writing
+		assertNull(transportKeyManager.getLeasedStreamContext(contactId));
+		// Releasing again doesn't write anything
+		transportKeyManager.releaseStreamCounterLeases(txn2);
+
+		Transaction txn3 = new Transaction(null, false);
+
+		context.checking(new Expectations() {{
+			// Reserve a new block, starting with the next unused number
+			oneOf(db).setStreamCounter(txn3, transportId, keySetId,
+					2 + STREAM_COUNTER_LEASE);
+		}});
+
+		ctx = transportKeyManager.getStreamContext(txn3, contactId);
+		assertNotNull(ctx);
+		assertEquals(2L, ctx.getStreamNumber());
+	}
+
 	@Test
 	public void testIncomingStreamContextIsNullIfTagIsNotFound()
 			throws Exception {
@@ -466,6 +578,8 @@ public class TransportKeyManagerImplTest extends BrambleMockTestCase {
 		TransportKeys updated = createTransportKeys(1001, 0, true);
 		Transaction txn = new Transaction(null, false);
 		Transaction txn1 = new Transaction(null, false);
+		List<byte[]> tags = new ArrayList<>();
+		List<byte[]> newTags = new ArrayList<>();
 
 		context.checking(new DbExpectations() {{
 			// Get the current time (the start of time period 1000)
@@ -482,35 +596,154 @@ public class TransportKeyManagerImplTest extends BrambleMockTestCase {
 				exactly(3).of(transportCrypto).encodeTag(
 						with(any(byte[].class)), with(tagKey),
 						with(PROTOCOL_VERSION), with(i));
-				will(new EncodeTagAction());
+				will(new EncodeTagAction(tags));
 			}
-			// Schedule a key update at the start of the next time period
+			// Schedule a key update ahead of the next time period
 			oneOf(scheduler).schedule(with(any(Runnable.class)),
-					with(dbExecutor), with(timePeriodLength),
+					with(cryptoExecutor),
+					with(timePeriodLength - KEY_UPDATE_LEAD_TIME),
+					with(MILLISECONDS));
+			will(new RunAction());
+			// Update the transport keys
+			oneOf(transportCrypto).updateTransportKeys(
+					with(any(TransportKeys.class)), with(1001L));
+			will(returnValue(updated));
+			// Encode the tags for the new incoming keys (1 set)
+			for (long i = 0; i < REORDERING_WINDOW_SIZE; i++) {
+				oneOf(transportCrypto).encodeTag(
+						with(any(byte[].class)), with(tagKey),
+						with(PROTOCOL_VERSION), with(i));
+				will(new EncodeTagAction(newTags));
+			}
+			// Get the current time (before the start of time period 1001)
+			oneOf(clock).currentTimeMillis();
+			will(returnValue(timePeriodLength * 1001 - KEY_UPDATE_LEAD_TIME));
+			// Schedule the update at the start of the next time period
+			oneOf(scheduler).schedule(with(any(Runnable.class)),
+					with(dbExecutor), with(KEY_UPDATE_LEAD_TIME),
 					with(MILLISECONDS));
 			will(new RunAction());
-			// Start a transaction for updating keys
-			oneOf(db).transaction(with(false), withDbRunnable(txn1));
 			// Get the current time (the start of time period 1001)
 			oneOf(clock).currentTimeMillis();
 			will(returnValue(timePeriodLength * 1001));
+			// Start a transaction for updating keys
+			oneOf(db).transaction(with(false), withDbRunnable(txn1));
+			// Save the keys that were updated
+			oneOf(db).updateTransportKeys(txn1, singletonList(
+					new TransportKeySet(keySetId, contactId, null, updated)));
+			// Schedule a key update ahead of the next time period
+			oneOf(scheduler).schedule(with(any(Runnable.class)),
+					with(cryptoExecutor),
+					with(timePeriodLength - KEY_UPDATE_LEAD_TIME),
+					with(MILLISECONDS));
+		}});
+
+		transportKeyManager.start(txn);
+		assertTrue(transportKeyManager.canSendOutgoingStreams(contactId));
+		// The tags for the previous period's keys should no longer be
+		// recognised, but the other tags should still be recognised
+		assertEquals(REORDERING_WINDOW_SIZE * 3, tags.size());
+		for (int i = 0; i < tags.size(); i++) {
+			StreamContext ctx =
+					transportKeyManager.getStreamContextOnly(txn, tags.get(i));
+			if (i < REORDERING_WINDOW_SIZE) assertNull(ctx);
+			else assertNotNull(ctx);
+		}
+		// The tags for the new keys should be recognised
+		assertEquals(REORDERING_WINDOW_SIZE, newTags.size());
+		for (byte[] tag : newTags)
+			assertNotNull(transportKeyManager.getStreamContextOnly(txn, tag));
+	}
+
+	@Test
+	public void testKeyUpdateIsPreparedAgainIfTimePeriodHasPassed()
+			throws Exception {
+		TransportKeys transportKeys = createTransportKeys(1000, 0, true);
+		Collection<TransportKeySet> loaded = singletonList(
+				new TransportKeySet(keySetId, contactId, null, transportKeys));
+		TransportKeys updated = createTransportKeys(1001, 0, true);
+		TransportKeys updated1 = createTransportKeys(1002, 0, true);
+		Transaction txn = new Transaction(null, false);
+		Transaction txn1 = new Transaction(null, false);
+
+		context.checking(new DbExpectations() {{
+			// Get the current time (the start of time period 1000)
+			oneOf(clock).currentTimeMillis();
+			will(returnValue(timePeriodLength * 1000));
+			// Load the transport keys
+			oneOf(db).getTransportKeys(txn, transportId);
+			will(returnValue(loaded));
+			// Update the transport keys (the keys are unaffected)
+			oneOf(transportCrypto).updateTransportKeys(transportKeys, 1000);
+			will(returnValue(transportKeys));
+			// Encode the tags (3 sets)
+			for (long i = 0; i < REORDERING_WINDOW_SIZE; i++) {
+				exactly(3).of(transportCrypto).encodeTag(
+						with(any(byte[].class)), with(tagKey),
+						with(PROTOCOL_VERSION), with(i));
+				will(new EncodeTagAction());
+			}
+			// Schedule a key update ahead of the next time period
+			oneOf(scheduler).schedule(with(any(Runnable.class)),
+					with(cryptoExecutor),
+					with(timePeriodLength - KEY_UPDATE_LEAD_TIME),
+					with(MILLISECONDS));
+			will(new RunAction());
 			// Update the transport keys
 			oneOf(transportCrypto).updateTransportKeys(
 					with(any(TransportKeys.class)), with(1001L));
 			will(returnValue(updated));
-			// Encode the tags (3 sets)
+			// Encode the tags for the new incoming keys (1 set)
 			for (long i = 0; i < REORDERING_WINDOW_SIZE; i++) {
-				exactly(3).of(transportCrypto).encodeTag(
+				oneOf(transportCrypto).encodeTag(
 						with(any(byte[].class)), with(tagKey),
 						with(PROTOCOL_VERSION), with(i));
 				will(new EncodeTagAction());
 			}
+			// Get the current time (before the start of time period 1001)
+			oneOf(clock).currentTimeMillis();
+			will(returnValue(timePeriodLength * 1001 - KEY_UPDATE_LEAD_TIME));
+			// Schedule the update at the start of the next time period
+			oneOf(scheduler).schedule(with(any(Runnable.class)),
+					with(dbExecutor), with(KEY_UPDATE_LEAD_TIME),
+					with(MILLISECONDS));
+			will(new RunAction());
+			// Get the current time (the start of time period 1002)
+			oneOf(clock).currentTimeMillis();
+			will(returnValue(timePeriodLength * 1002));
+			// Prepare an update for the current period instead, on the
+			// crypto executor
+			oneOf(cryptoExecutor).execute(with(any(Runnable.class)));
+			will(new RunAction());
+			oneOf(transportCrypto).updateTransportKeys(
+					with(any(TransportKeys.class)), with(1002L));
+			will(returnValue(updated1));
+			// Encode the tags for the new incoming keys (2 sets)
+			for (long i = 0; i < REORDERING_WINDOW_SIZE; i++) {
+				exactly(2).of(transportCrypto).encodeTag(
+						with(any(byte[].class)), with(tagKey),
+						with(PROTOCOL_VERSION), with(i));
+				will(new EncodeTagAction());
+			}
+			// Get the current time (the start of time period 1002)
+			oneOf(clock).currentTimeMillis();
+			will(returnValue(timePeriodLength * 1002));
+			// Apply the update straight away
+			oneOf(scheduler).schedule(with(any(Runnable.class)),
+					with(dbExecutor), with(0L), with(MILLISECONDS));
+			will(new RunAction());
+			// Get the current time (the start of time period 1002)
+			oneOf(clock).currentTimeMillis();
+			will(returnValue(timePeriodLength * 1002));
+			// Start a transaction for updating keys
+			oneOf(db).transaction(with(false), withDbRunnable(txn1));
 			// Save the keys that were updated
 			oneOf(db).updateTransportKeys(txn1, singletonList(
-					new TransportKeySet(keySetId, contactId, null, updated)));
-			// Schedule a key update at the start of the next time period
+					new TransportKeySet(keySetId, contactId, null, updated1)));
+			// Schedule a key update ahead of the next time period
 			oneOf(scheduler).schedule(with(any(Runnable.class)),
-					with(dbExecutor), with(timePeriodLength),
+					with(cryptoExecutor),
+					with(timePeriodLength - KEY_UPDATE_LEAD_TIME),
 					with(MILLISECONDS));
 		}});
 
@@ -529,8 +762,9 @@ public class TransportKeyManagerImplTest extends BrambleMockTestCase {
 		context.checking(new Expectations() {{
 			// Activate the keys
 			oneOf(db).setTransportKeysActive(txn, transportId, keySetId);
-			// Increment the stream counter
-			oneOf(db).incrementStreamCounter(txn, transportId, keySetId);
+			// Reserve a block of stream numbers
+			oneOf(db).setStreamCounter(txn, transportId, keySetId,
+					STREAM_COUNTER_LEASE);
 		}});
 
 		// The timestamp is at the start of time period 1000
@@ -592,8 +826,9 @@ public class TransportKeyManagerImplTest extends BrambleMockTestCase {
 					1, new byte[REORDERING_WINDOW_SIZE / 8]);
 			// Activate the keys
 			oneOf(db).setTransportKeysActive(txn, transportId, keySetId);
-			// Increment the stream counter
-			oneOf(db).incrementStreamCounter(txn, transportId, keySetId);
+			// Reserve a block of stream numbers
+			oneOf(db).setStreamCounter(txn, transportId, keySetId,
+					STREAM_COUNTER_LEASE);
 		}});
 
 		// The timestamp is at the start of time period 1000
@@ -624,6 +859,13 @@ public class TransportKeyManagerImplTest extends BrambleMockTestCase {
 		assertEquals(0L, ctx.getStreamNumber());
 	}
 
+	private void runCommitActions(Transaction txn) {
+		for (CommitAction action : txn.getActions()) {
+			if (action instanceof TaskAction)
+				((TaskAction) action).getTask().run();
+		}
+	}
+
 	private void expectAddContactKeysNotUpdated(boolean alice, boolean active,
 			TransportKeys transportKeys, Transaction txn) throws Exception {
 		context.checking(new Expectations() {{
@@ -693,7 +935,8 @@ public class TransportKeyManagerImplTest extends BrambleMockTestCase {
 		public Object invoke(Invocation invocation) {
 			byte[] tag = (byte[]) invocation.getParameter(0);
 			random.nextBytes(tag);
-			if (tags != null) tags.add(tag);
+			// The manager may reuse the array, so keep a copy
+			if (tags != null) tags.add(tag.clone());
 			return null;
 		}
 
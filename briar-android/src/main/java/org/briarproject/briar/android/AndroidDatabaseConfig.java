@@ -37,4 +37,10 @@ class AndroidDatabaseConfig implements DatabaseConfig {
 	public KeyStrengthener getKeyStrengthener() {
 		return keyStrengthener;
 	}
+
+	@Override
+	public boolean isConcurrentReadsEnabled() {
+		// Don't make UI reads wait for sync and validation writes
+		return true;
+	}
 }
@@ -1,6 +1,7 @@
 package org.briarproject.briar.android.attachment;
 
 import org.briarproject.bramble.api.db.DatabaseExecutor;
+import org.briarproject.bramble.api.db.DatabasePriorityExecutor;
 import org.briarproject.bramble.api.db.DbException;
 import org.briarproject.bramble.api.db.NoSuchMessageException;
 import org.briarproject.bramble.api.sync.MessageId;
@@ -47,7 +48,7 @@ class AttachmentRetrieverImpl implements AttachmentRetriever {
 	private static final Logger LOG =
 			getLogger(AttachmentRetrieverImpl.class.getName());
 
-	@DatabaseExecutor
+	@DatabasePriorityExecutor
 	private final Executor dbExecutor;
 	private final AttachmentReader attachmentReader;
 	private final ImageHelper imageHelper;
@@ -62,7 +63,7 @@ class AttachmentRetrieverImpl implements AttachmentRetriever {
 			itemsWithoutSize = new ConcurrentHashMap<>();
 
 	@Inject
-	AttachmentRetrieverImpl(@DatabaseExecutor Executor dbExecutor,
+	AttachmentRetrieverImpl(@DatabasePriorityExecutor Executor dbExecutor,
 			AttachmentReader attachmentReader, AttachmentDimensions dimensions,
 			ImageHelper imageHelper, ImageSizeCalculator imageSizeCalculator) {
 		this.dbExecutor = dbExecutor;
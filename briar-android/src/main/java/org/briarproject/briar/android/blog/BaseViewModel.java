@@ -3,6 +3,7 @@ package org.briarproject.briar.android.blog;
 import android.app.Application;
 
 import org.briarproject.bramble.api.db.DatabaseExecutor;
+import org.briarproject.bramble.api.db.DatabasePriorityExecutor;
 import org.briarproject.bramble.api.db.DbException;
 import org.briarproject.bramble.api.db.Transaction;
 import org.briarproject.bramble.api.db.TransactionManager;
@@ -56,7 +57,7 @@ abstract class BaseViewModel extends DbViewModel implements EventListener {
 			new MutableLiveData<>();
 
 	BaseViewModel(Application application,
-			@DatabaseExecutor Executor dbExecutor,
+			@DatabasePriorityExecutor Executor dbExecutor,
 			LifecycleManager lifecycleManager,
 			TransactionManager db,
 			AndroidExecutor androidExecutor,
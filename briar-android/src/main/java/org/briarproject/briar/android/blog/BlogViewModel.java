@@ -4,7 +4,7 @@ import android.app.Application;
 
 import org.briarproject.bramble.api.contact.Contact;
 import org.briarproject.bramble.api.contact.ContactId;
-import org.briarproject.bramble.api.db.DatabaseExecutor;
+import org.briarproject.bramble.api.db.DatabasePriorityExecutor;
 import org.briarproject.bramble.api.db.DbException;
 import org.briarproject.bramble.api.db.TransactionManager;
 import org.briarproject.bramble.api.event.Event;
@@ -62,7 +62,7 @@ class BlogViewModel extends BaseViewModel {
 
 	@Inject
 	BlogViewModel(Application application,
-			@DatabaseExecutor Executor dbExecutor,
+			@DatabasePriorityExecutor Executor dbExecutor,
 			LifecycleManager lifecycleManager,
 			TransactionManager db,
 			AndroidExecutor androidExecutor,
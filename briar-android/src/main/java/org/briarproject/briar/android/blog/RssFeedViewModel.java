@@ -6,6 +6,7 @@ import android.net.Uri;
 import android.util.Patterns;
 
 import org.briarproject.bramble.api.db.DatabaseExecutor;
+import org.briarproject.bramble.api.db.DatabasePriorityExecutor;
 import org.briarproject.bramble.api.db.DbException;
 import org.briarproject.bramble.api.db.Transaction;
 import org.briarproject.bramble.api.db.TransactionManager;
@@ -69,7 +70,7 @@ class RssFeedViewModel extends DbViewModel {
 	RssFeedViewModel(Application app,
 			FeedManager feedManager,
 			@IoExecutor Executor ioExecutor,
-			@DatabaseExecutor Executor dbExecutor,
+			@DatabasePriorityExecutor Executor dbExecutor,
 			LifecycleManager lifecycleManager,
 			TransactionManager db,
 			AndroidExecutor androidExecutor) {
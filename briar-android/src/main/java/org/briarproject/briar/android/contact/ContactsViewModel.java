@@ -9,7 +9,7 @@ import org.briarproject.bramble.api.contact.ContactManager;
 import org.briarproject.bramble.api.contact.event.ContactAddedEvent;
 import org.briarproject.bramble.api.contact.event.ContactAliasChangedEvent;
 import org.briarproject.bramble.api.contact.event.ContactRemovedEvent;
-import org.briarproject.bramble.api.db.DatabaseExecutor;
+import org.briarproject.bramble.api.db.DatabasePriorityExecutor;
 import org.briarproject.bramble.api.db.DbException;
 import org.briarproject.bramble.api.db.Transaction;
 import org.briarproject.bramble.api.db.TransactionManager;
@@ -33,6 +33,7 @@ import org.briarproject.nullsafety.NotNullByDefault;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Executor;
 import java.util.logging.Logger;
 
@@ -43,6 +44,7 @@ import androidx.arch.core.util.Function;
 import androidx.lifecycle.LiveData;
 import androidx.lifecycle.MutableLiveData;
 
+import static java.util.Objects.requireNonNull;
 import static java.util.logging.Logger.getLogger;
 import static org.briarproject.bramble.util.LogUtils.logDuration;
 import static org.briarproject.bramble.util.LogUtils.now;
@@ -64,7 +66,7 @@ public class ContactsViewModel extends DbViewModel implements EventListener {
 
 	@Inject
 	public ContactsViewModel(Application application,
-			@DatabaseExecutor Executor dbExecutor,
+			@DatabasePriorityExecutor Executor dbExecutor,
 			LifecycleManager lifecycleManager, TransactionManager db,
 			AndroidExecutor androidExecutor, ContactManager contactManager,
 			AuthorManager authorManager,
@@ -93,6 +95,8 @@ public class ContactsViewModel extends DbViewModel implements EventListener {
 			throws DbException {
 		long start = now();
 		List<ContactListItem> contacts = new ArrayList<>();
+		Map<ContactId, MessageTracker.GroupCount> counts =
+				conversationManager.getGroupCounts(txn);
 		for (Contact c : contactManager.getContacts(txn)) {
 			ContactId id = c.getId();
 			if (!displayContact(id)) {
@@ -100,7 +104,7 @@ public class ContactsViewModel extends DbViewModel implements EventListener {
 			}
 			AuthorInfo authorInfo = authorManager.getAuthorInfo(txn, c);
 			MessageTracker.GroupCount count =
-					conversationManager.getGroupCount(txn, id);
+					requireNonNull(counts.get(id));
 			boolean connected = connectionRegistry.isConnected(c.getId());
 			contacts.add(new ContactListItem(c, authorInfo, connected, count));
 		}
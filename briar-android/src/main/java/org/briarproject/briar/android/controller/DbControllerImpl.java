@@ -1,6 +1,6 @@
 package org.briarproject.briar.android.controller;
 
-import org.briarproject.bramble.api.db.DatabaseExecutor;
+import org.briarproject.bramble.api.db.DatabasePriorityExecutor;
 import org.briarproject.bramble.api.lifecycle.LifecycleManager;
 import org.briarproject.nullsafety.NotNullByDefault;
 
@@ -22,7 +22,7 @@ public class DbControllerImpl implements DbController {
 	private final LifecycleManager lifecycleManager;
 
 	@Inject
-	public DbControllerImpl(@DatabaseExecutor Executor dbExecutor,
+	public DbControllerImpl(@DatabasePriorityExecutor Executor dbExecutor,
 			LifecycleManager lifecycleManager) {
 		this.dbExecutor = dbExecutor;
 		this.lifecycleManager = lifecycleManager;
@@ -6,7 +6,7 @@ import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.view.View;
 
-import org.briarproject.bramble.api.db.DatabaseExecutor;
+import org.briarproject.bramble.api.db.DatabasePriorityExecutor;
 import org.briarproject.bramble.api.db.DbException;
 import org.briarproject.bramble.api.db.TransactionManager;
 import org.briarproject.bramble.api.event.Event;
@@ -77,7 +77,7 @@ public class ImageViewModel extends DbViewModel implements EventListener {
 
 	@Inject
 	ImageViewModel(Application application, AttachmentReader attachmentReader,
-			EventBus eventBus, @DatabaseExecutor Executor dbExecutor,
+			EventBus eventBus, @DatabasePriorityExecutor Executor dbExecutor,
 			LifecycleManager lifecycleManager,
 			TransactionManager db,
 			AndroidExecutor androidExecutor,
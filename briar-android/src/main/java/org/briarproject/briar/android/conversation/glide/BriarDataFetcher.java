@@ -4,7 +4,7 @@ import com.bumptech.glide.Priority;
 import com.bumptech.glide.load.DataSource;
 import com.bumptech.glide.load.data.DataFetcher;
 
-import org.briarproject.bramble.api.db.DatabaseExecutor;
+import org.briarproject.bramble.api.db.DatabasePriorityExecutor;
 import org.briarproject.bramble.api.db.DbException;
 import org.briarproject.briar.api.attachment.Attachment;
 import org.briarproject.briar.api.attachment.AttachmentHeader;
@@ -31,7 +31,7 @@ class BriarDataFetcher implements DataFetcher<InputStream> {
 			getLogger(BriarDataFetcher.class.getName());
 
 	private final AttachmentReader attachmentReader;
-	@DatabaseExecutor
+	@DatabasePriorityExecutor
 	private final Executor dbExecutor;
 	private final AttachmentHeader attachmentHeader;
 
@@ -41,7 +41,7 @@ class BriarDataFetcher implements DataFetcher<InputStream> {
 
 	@Inject
 	BriarDataFetcher(AttachmentReader attachmentReader,
-			@DatabaseExecutor Executor dbExecutor,
+			@DatabasePriorityExecutor Executor dbExecutor,
 			AttachmentHeader attachmentHeader) {
 		this.attachmentReader = attachmentReader;
 		this.dbExecutor = dbExecutor;
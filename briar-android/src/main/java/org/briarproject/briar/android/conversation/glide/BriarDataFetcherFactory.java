@@ -1,6 +1,6 @@
 package org.briarproject.briar.android.conversation.glide;
 
-import org.briarproject.bramble.api.db.DatabaseExecutor;
+import org.briarproject.bramble.api.db.DatabasePriorityExecutor;
 import org.briarproject.briar.api.attachment.AttachmentHeader;
 import org.briarproject.briar.api.attachment.AttachmentReader;
 import org.briarproject.nullsafety.NotNullByDefault;
@@ -13,12 +13,12 @@ import javax.inject.Inject;
 public class BriarDataFetcherFactory {
 
 	private final AttachmentReader attachmentReader;
-	@DatabaseExecutor
+	@DatabasePriorityExecutor
 	private final Executor dbExecutor;
 
 	@Inject
 	public BriarDataFetcherFactory(AttachmentReader attachmentReader,
-			@DatabaseExecutor Executor dbExecutor) {
+			@DatabasePriorityExecutor Executor dbExecutor) {
 		this.attachmentReader = attachmentReader;
 		this.dbExecutor = dbExecutor;
 	}
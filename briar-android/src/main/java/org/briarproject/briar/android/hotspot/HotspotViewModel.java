@@ -3,7 +3,7 @@ package org.briarproject.briar.android.hotspot;
 import android.app.Application;
 import android.net.Uri;
 
-import org.briarproject.bramble.api.db.DatabaseExecutor;
+import org.briarproject.bramble.api.db.DatabasePriorityExecutor;
 import org.briarproject.bramble.api.db.TransactionManager;
 import org.briarproject.bramble.api.lifecycle.IoExecutor;
 import org.briarproject.bramble.api.lifecycle.LifecycleManager;
@@ -71,7 +71,7 @@ class HotspotViewModel extends DbViewModel
 
 	@Inject
 	HotspotViewModel(Application app,
-			@DatabaseExecutor Executor dbExecutor,
+			@DatabasePriorityExecutor Executor dbExecutor,
 			LifecycleManager lifecycleManager,
 			TransactionManager db,
 			AndroidExecutor androidExecutor,
@@ -5,7 +5,7 @@ import android.app.Application;
 import com.google.zxing.Result;
 
 import org.briarproject.bramble.api.Consumer;
-import org.briarproject.bramble.api.db.DatabaseExecutor;
+import org.briarproject.bramble.api.db.DatabasePriorityExecutor;
 import org.briarproject.bramble.api.db.DbException;
 import org.briarproject.bramble.api.db.TransactionManager;
 import org.briarproject.bramble.api.event.Event;
@@ -80,7 +80,7 @@ class MailboxViewModel extends DbViewModel
 	@Inject
 	MailboxViewModel(
 			Application app,
-			@DatabaseExecutor Executor dbExecutor,
+			@DatabasePriorityExecutor Executor dbExecutor,
 			LifecycleManager lifecycleManager,
 			TransactionManager db,
 			AndroidExecutor androidExecutor,
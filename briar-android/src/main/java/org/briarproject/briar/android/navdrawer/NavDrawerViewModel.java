@@ -2,7 +2,7 @@ package org.briarproject.briar.android.navdrawer;
 
 import android.app.Application;
 
-import org.briarproject.bramble.api.db.DatabaseExecutor;
+import org.briarproject.bramble.api.db.DatabasePriorityExecutor;
 import org.briarproject.bramble.api.db.DbException;
 import org.briarproject.bramble.api.db.TransactionManager;
 import org.briarproject.bramble.api.lifecycle.LifecycleManager;
@@ -52,7 +52,7 @@ public class NavDrawerViewModel extends DbViewModel {
 
 	@Inject
 	NavDrawerViewModel(Application app,
-			@DatabaseExecutor Executor dbExecutor,
+			@DatabasePriorityExecutor Executor dbExecutor,
 			LifecycleManager lifecycleManager,
 			TransactionManager db,
 			AndroidExecutor androidExecutor,
@@ -7,7 +7,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 
-import org.briarproject.bramble.api.db.DatabaseExecutor;
+import org.briarproject.bramble.api.db.DatabasePriorityExecutor;
 import org.briarproject.bramble.api.db.DbException;
 import org.briarproject.bramble.api.db.TransactionManager;
 import org.briarproject.bramble.api.event.Event;
@@ -85,7 +85,8 @@ public class PluginViewModel extends DbViewModel implements EventListener {
 			new MutableLiveData<>(false);
 
 	@Inject
-	PluginViewModel(Application app, @DatabaseExecutor Executor dbExecutor,
+	PluginViewModel(Application app,
+			@DatabasePriorityExecutor Executor dbExecutor,
 			LifecycleManager lifecycleManager, TransactionManager db,
 			AndroidExecutor androidExecutor, SettingsManager settingsManager,
 			PluginManager pluginManager, EventBus eventBus,
@@ -6,7 +6,7 @@ import android.net.Uri;
 import android.widget.Toast;
 
 import org.briarproject.bramble.api.FeatureFlags;
-import org.briarproject.bramble.api.db.DatabaseExecutor;
+import org.briarproject.bramble.api.db.DatabasePriorityExecutor;
 import org.briarproject.bramble.api.db.DbException;
 import org.briarproject.bramble.api.db.TransactionManager;
 import org.briarproject.bramble.api.event.Event;
@@ -95,7 +95,7 @@ class SettingsViewModel extends DbViewModel implements EventListener {
 
 	@Inject
 	SettingsViewModel(Application application,
-			@DatabaseExecutor Executor dbExecutor,
+			@DatabasePriorityExecutor Executor dbExecutor,
 			LifecycleManager lifecycleManager,
 			TransactionManager db,
 			AndroidExecutor androidExecutor,
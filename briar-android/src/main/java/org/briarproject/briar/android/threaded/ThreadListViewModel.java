@@ -3,7 +3,7 @@ package org.briarproject.briar.android.threaded;
 import android.app.Application;
 
 import org.briarproject.bramble.api.crypto.CryptoExecutor;
-import org.briarproject.bramble.api.db.DatabaseExecutor;
+import org.briarproject.bramble.api.db.DatabasePriorityExecutor;
 import org.briarproject.bramble.api.db.DbException;
 import org.briarproject.bramble.api.db.NoSuchGroupException;
 import org.briarproject.bramble.api.db.TransactionManager;
@@ -79,7 +79,7 @@ public abstract class ThreadListViewModel<I extends ThreadItem>
 			new AtomicReference<>();
 
 	public ThreadListViewModel(Application application,
-			@DatabaseExecutor Executor dbExecutor,
+			@DatabasePriorityExecutor Executor dbExecutor,
 			LifecycleManager lifecycleManager,
 			TransactionManager db,
 			AndroidExecutor androidExecutor,
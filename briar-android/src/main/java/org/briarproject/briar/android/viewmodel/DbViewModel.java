@@ -2,7 +2,7 @@ package org.briarproject.briar.android.viewmodel;
 
 import android.app.Application;
 
-import org.briarproject.bramble.api.db.DatabaseExecutor;
+import org.briarproject.bramble.api.db.DatabasePriorityExecutor;
 import org.briarproject.bramble.api.db.DbCallable;
 import org.briarproject.bramble.api.db.DbException;
 import org.briarproject.bramble.api.db.DbRunnable;
@@ -42,7 +42,7 @@ public abstract class DbViewModel extends AndroidViewModel {
 
 	private static final Logger LOG = getLogger(DbViewModel.class.getName());
 
-	@DatabaseExecutor
+	@DatabasePriorityExecutor
 	private final Executor dbExecutor;
 	protected final LifecycleManager lifecycleManager;
 	private final TransactionManager db;
@@ -50,7 +50,7 @@ public abstract class DbViewModel extends AndroidViewModel {
 
 	public DbViewModel(
 			Application application,
-			@DatabaseExecutor Executor dbExecutor,
+			@DatabasePriorityExecutor Executor dbExecutor,
 			LifecycleManager lifecycleManager,
 			TransactionManager db,
 			AndroidExecutor androidExecutor) {
@@ -63,7 +63,7 @@ public abstract class DbViewModel extends AndroidViewModel {
 
 	/**
 	 * Waits for the DB to open and runs the given task on the
-	 * {@link DatabaseExecutor}.
+	 * {@link DatabasePriorityExecutor}.
 	 * <p>
 	 * If you need a list of items to be displayed in a
 	 * {@link RecyclerView.Adapter},
@@ -83,7 +83,7 @@ public abstract class DbViewModel extends AndroidViewModel {
 
 	/**
 	 * Waits for the DB to open and runs the given task on the
-	 * {@link DatabaseExecutor}.
+	 * {@link DatabasePriorityExecutor}.
 	 * <p>
 	 * If you need a list of items to be displayed in a
 	 * {@link RecyclerView.Adapter},
@@ -105,7 +105,7 @@ public abstract class DbViewModel extends AndroidViewModel {
 	}
 
 	/**
-	 * Loads a data on the {@link DatabaseExecutor} within a single
+	 * Loads a data on the {@link DatabasePriorityExecutor} within a single
 	 * {@link Transaction} and publishes it as a {@link LiveResult}
 	 * to the {@link UiThread}.
 	 * <p>
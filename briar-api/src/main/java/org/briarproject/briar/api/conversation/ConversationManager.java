@@ -13,6 +13,8 @@ import org.briarproject.briar.api.messaging.MessagingManager;
 import org.briarproject.nullsafety.NotNullByDefault;
 
 import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 @NotNullByDefault
@@ -47,6 +49,30 @@ public interface ConversationManager {
 	Collection<ConversationMessageHeader> getMessageHeaders(Transaction txn, ContactId c)
 			throws DbException;
 
+	/**
+	 * Returns the headers of up to the given number of messages in the given
+	 * private conversation with timestamps earlier than the given timestamp,
+	 * sorted from newest to oldest.
+	 * <p>
+	 * If several messages share the timestamp of the oldest header on a full
+	 * page, they are all included, so the page may contain more headers than
+	 * the limit. To get the next page, pass the timestamp of the oldest
+	 * header on this page. To get the first page, pass
+	 * {@link Long#MAX_VALUE}.
+	 */
+	List<ConversationMessageHeader> getMessageHeaders(ContactId c,
+			long before, int limit) throws DbException;
+
+	/**
+	 * Returns the headers of up to the given number of messages in the given
+	 * private conversation with timestamps earlier than the given timestamp,
+	 * sorted from newest to oldest.
+	 *
+	 * @see #getMessageHeaders(ContactId, long, int)
+	 */
+	List<ConversationMessageHeader> getMessageHeaders(Transaction txn,
+			ContactId c, long before, int limit) throws DbException;
+
 	/**
 	 * Returns the unified group count for all private conversation messages.
 	 */
@@ -57,6 +83,19 @@ public interface ConversationManager {
 	 */
 	GroupCount getGroupCount(Transaction txn, ContactId c) throws DbException;
 
+	/**
+	 * Returns the unified group counts for all private conversation messages
+	 * with all contacts.
+	 */
+	Map<ContactId, GroupCount> getGroupCounts() throws DbException;
+
+	/**
+	 * Returns the unified group counts for all private conversation messages
+	 * with all contacts.
+	 */
+	Map<ContactId, GroupCount> getGroupCounts(Transaction txn)
+			throws DbException;
+
 	/**
 	 * Updates the group count for the given incoming private conversation message
 	 * and broadcasts a corresponding event.
@@ -122,6 +161,17 @@ public interface ConversationManager {
 		Collection<ConversationMessageHeader> getMessageHeaders(Transaction txn,
 				ContactId contactId) throws DbException;
 
+		/**
+		 * Returns a page of headers for the messages this client is
+		 * responsible for, as described in
+		 * {@link ConversationManager#getMessageHeaders(ContactId, long, int)}.
+		 * Implementations should avoid creating headers for messages that
+		 * don't belong on the page.
+		 */
+		List<ConversationMessageHeader> getMessageHeaders(Transaction txn,
+				ContactId contactId, long before, int limit)
+				throws DbException;
+
 		/**
 		 * Returns all conversation {@link MessageId}s for the given contact
 		 * this client is responsible for.
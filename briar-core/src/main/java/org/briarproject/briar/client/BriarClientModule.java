@@ -1,7 +1,10 @@
 package org.briarproject.briar.client;
 
+import org.briarproject.bramble.api.event.EventBus;
 import org.briarproject.briar.api.client.MessageTracker;
 
+import javax.inject.Singleton;
+
 import dagger.Module;
 import dagger.Provides;
 
@@ -9,7 +12,10 @@ import dagger.Provides;
 public class BriarClientModule {
 
 	@Provides
-	MessageTracker provideMessageTracker(MessageTrackerImpl messageTracker) {
+	@Singleton
+	MessageTracker provideMessageTracker(EventBus eventBus,
+			MessageTrackerImpl messageTracker) {
+		eventBus.addListener(messageTracker);
 		return messageTracker;
 	}
 }
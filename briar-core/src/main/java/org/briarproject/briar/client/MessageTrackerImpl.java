@@ -7,15 +7,22 @@ import org.briarproject.bramble.api.data.BdfEntry;
 import org.briarproject.bramble.api.db.DatabaseComponent;
 import org.briarproject.bramble.api.db.DbException;
 import org.briarproject.bramble.api.db.Transaction;
+import org.briarproject.bramble.api.event.Event;
+import org.briarproject.bramble.api.event.EventListener;
 import org.briarproject.bramble.api.sync.GroupId;
 import org.briarproject.bramble.api.sync.Message;
 import org.briarproject.bramble.api.sync.MessageId;
+import org.briarproject.bramble.api.sync.event.GroupRemovedEvent;
 import org.briarproject.bramble.api.system.Clock;
 import org.briarproject.briar.api.client.MessageTracker;
 import org.briarproject.nullsafety.NotNullByDefault;
 
+import java.util.HashMap;
+import java.util.Map;
+
 import javax.annotation.Nullable;
-import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
 import javax.inject.Inject;
 
 import static org.briarproject.briar.client.MessageTrackerConstants.GROUP_KEY_LATEST_MSG;
@@ -24,14 +31,34 @@ import static org.briarproject.briar.client.MessageTrackerConstants.GROUP_KEY_ST
 import static org.briarproject.briar.client.MessageTrackerConstants.GROUP_KEY_UNREAD_COUNT;
 import static org.briarproject.briar.client.MessageTrackerConstants.MSG_KEY_READ;
 
-@Immutable
+/**
+ * Stores group counts in the group metadata and keeps a cache of the counts
+ * in memory, so that read-only transactions don't need to parse the metadata.
+ * <p>
+ * The cache is updated when a transaction that stores a group count is
+ * committed, and entries are removed when groups are removed. Transactions
+ * that can write to the database always read the metadata, so they see any
+ * counts they've stored themselves.
+ */
+@ThreadSafe
 @NotNullByDefault
-class MessageTrackerImpl implements MessageTracker {
+class MessageTrackerImpl implements MessageTracker, EventListener {
 
 	private final DatabaseComponent db;
 	private final ClientHelper clientHelper;
 	private final Clock clock;
 
+	private final Object lock = new Object();
+	@GuardedBy("lock")
+	private final Map<GroupId, GroupCount> cache = new HashMap<>();
+	/**
+	 * Incremented whenever the cache is changed by a committed transaction
+	 * or a removed group, so that a count that was read from the metadata
+	 * before the change isn't added to the cache after the change.
+	 */
+	@GuardedBy("lock")
+	private long generation = 0;
+
 	@Inject
 	MessageTrackerImpl(DatabaseComponent db, ClientHelper clientHelper,
 			Clock clock) {
@@ -111,6 +138,22 @@ class MessageTrackerImpl implements MessageTracker {
 	@Override
 	public GroupCount getGroupCount(Transaction txn, GroupId g)
 			throws DbException {
+		if (!txn.isReadOnly()) return loadGroupCount(txn, g);
+		long expectedGeneration;
+		synchronized (lock) {
+			GroupCount cached = cache.get(g);
+			if (cached != null) return cached;
+			expectedGeneration = generation;
+		}
+		GroupCount c = loadGroupCount(txn, g);
+		synchronized (lock) {
+			if (generation == expectedGeneration) cache.put(g, c);
+		}
+		return c;
+	}
+
+	private GroupCount loadGroupCount(Transaction txn, GroupId g)
+			throws DbException {
 		try {
 			BdfDictionary d = clientHelper.getGroupMetadataAsDictionary(txn, g);
 			return new GroupCount(
@@ -135,6 +178,13 @@ class MessageTrackerImpl implements MessageTracker {
 		} catch (FormatException e) {
 			throw new DbException(e);
 		}
+		// Update the cache when the transaction has been committed
+		txn.attach(() -> {
+			synchronized (lock) {
+				generation++;
+				cache.put(g, c);
+			}
+		});
 	}
 
 	@Override
@@ -174,4 +224,14 @@ class MessageTrackerImpl implements MessageTracker {
 		storeGroupCount(txn, g, groupCount);
 	}
 
+	@Override
+	public void eventOccurred(Event e) {
+		if (e instanceof GroupRemovedEvent) {
+			GroupId g = ((GroupRemovedEvent) e).getGroup().getId();
+			synchronized (lock) {
+				generation++;
+				cache.remove(g);
+			}
+		}
+	}
 }
@@ -1,6 +1,7 @@
 package org.briarproject.briar.conversation;
 
 import org.briarproject.bramble.api.client.ClientHelper;
+import org.briarproject.bramble.api.contact.Contact;
 import org.briarproject.bramble.api.contact.ContactId;
 import org.briarproject.bramble.api.db.DatabaseComponent;
 import org.briarproject.bramble.api.db.DbException;
@@ -20,10 +21,16 @@ import org.briarproject.nullsafety.NotNullByDefault;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArraySet;
 
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
 import javax.annotation.concurrent.ThreadSafe;
 import javax.inject.Inject;
 
@@ -72,6 +79,40 @@ class ConversationManagerImpl implements ConversationManager {
 		return messages;
 	}
 
+	@Override
+	public List<ConversationMessageHeader> getMessageHeaders(ContactId c,
+			long before, int limit) throws DbException {
+		return db.transactionWithResult(true,
+				txn -> getMessageHeaders(txn, c, before, limit));
+	}
+
+	@Override
+	public List<ConversationMessageHeader> getMessageHeaders(Transaction txn,
+			ContactId c, long before, int limit) throws DbException {
+		// Each client returns a page sorted from newest to oldest. Merge the
+		// pages, taking the newest remaining header from any client
+		PriorityQueue<Cursor> cursors = new PriorityQueue<>();
+		for (ConversationClient client : clients) {
+			Cursor cursor = new Cursor(
+					client.getMessageHeaders(txn, c, before, limit));
+			if (cursor.head != null) cursors.add(cursor);
+		}
+		List<ConversationMessageHeader> page = new ArrayList<>();
+		long oldest = Long.MAX_VALUE;
+		while (!cursors.isEmpty()) {
+			Cursor cursor = cursors.poll();
+			ConversationMessageHeader h = cursor.head;
+			if (h == null) throw new AssertionError();
+			// Once the page is full, only add headers that share the
+			// timestamp of the oldest header on the page
+			if (page.size() >= limit && h.getTimestamp() < oldest) break;
+			page.add(h);
+			oldest = h.getTimestamp();
+			if (cursor.advance()) cursors.add(cursor);
+		}
+		return page;
+	}
+
 	@Override
 	public GroupCount getGroupCount(ContactId contactId) throws DbException {
 		return db.transactionWithResult(true,
@@ -93,6 +134,34 @@ class ConversationManagerImpl implements ConversationManager {
 		return new GroupCount(msgCount, unreadCount, latestTime);
 	}
 
+	@Override
+	public Map<ContactId, GroupCount> getGroupCounts() throws DbException {
+		return db.transactionWithResult(true, this::getGroupCounts);
+	}
+
+	@Override
+	public Map<ContactId, GroupCount> getGroupCounts(Transaction txn)
+			throws DbException {
+		// Load the contacts once and look up each client's contact group
+		// directly, rather than asking each client to load each contact
+		Map<ContactId, GroupCount> counts = new HashMap<>();
+		for (Contact c : db.getContacts(txn)) {
+			int msgCount = 0, unreadCount = 0;
+			long latestTime = 0;
+			for (ConversationClient client : clients) {
+				GroupId g = client.getContactGroup(c).getId();
+				GroupCount count = messageTracker.getGroupCount(txn, g);
+				msgCount += count.getMsgCount();
+				unreadCount += count.getUnreadCount();
+				if (count.getLatestMsgTime() > latestTime)
+					latestTime = count.getLatestMsgTime();
+			}
+			counts.put(c.getId(),
+					new GroupCount(msgCount, unreadCount, latestTime));
+		}
+		return counts;
+	}
+
 	@Override
 	public void trackIncomingMessage(Transaction txn, Message m)
 			throws DbException {
@@ -179,4 +248,36 @@ class ConversationManagerImpl implements ConversationManager {
 		return result;
 	}
 
+	/**
+	 * A position in a list of headers sorted from newest to oldest. Cursors
+	 * are ordered so the cursor with the newest head comes first.
+	 */
+	@NotThreadSafe
+	private static class Cursor implements Comparable<Cursor> {
+
+		private final Iterator<ConversationMessageHeader> it;
+
+		@Nullable
+		private ConversationMessageHeader head;
+
+		private Cursor(List<ConversationMessageHeader> headers) {
+			it = headers.iterator();
+			advance();
+		}
+
+		/**
+		 * Moves the cursor to the next header and returns true, or returns
+		 * false if there are no more headers.
+		 */
+		private boolean advance() {
+			head = it.hasNext() ? it.next() : null;
+			return head != null;
+		}
+
+		@Override
+		public int compareTo(Cursor c) {
+			if (head == null || c.head == null) throw new AssertionError();
+			return Long.compare(c.head.getTimestamp(), head.getTimestamp());
+		}
+	}
 }
@@ -12,6 +12,7 @@ import org.briarproject.bramble.api.db.Transaction;
 import org.briarproject.bramble.api.identity.Author;
 import org.briarproject.bramble.api.identity.AuthorId;
 import org.briarproject.bramble.api.identity.LocalAuthor;
+import org.briarproject.bramble.api.lifecycle.LifecycleManager.OpenDatabaseHook;
 import org.briarproject.bramble.api.sync.Group;
 import org.briarproject.bramble.api.sync.GroupId;
 import org.briarproject.bramble.api.sync.Message;
@@ -45,6 +46,7 @@ import javax.annotation.Nullable;
 import javax.annotation.concurrent.ThreadSafe;
 import javax.inject.Inject;
 
+import static org.briarproject.bramble.api.sync.SendPriority.BULK;
 import static org.briarproject.bramble.api.sync.validation.IncomingMessageHook.DeliveryAction.ACCEPT_SHARE;
 import static org.briarproject.briar.api.forum.ForumConstants.KEY_AUTHOR;
 import static org.briarproject.briar.api.forum.ForumConstants.KEY_LOCAL;
@@ -54,7 +56,8 @@ import static org.briarproject.briar.client.MessageTrackerConstants.MSG_KEY_READ
 
 @ThreadSafe
 @NotNullByDefault
-class ForumManagerImpl extends BdfIncomingMessageHook implements ForumManager {
+class ForumManagerImpl extends BdfIncomingMessageHook implements ForumManager,
+		OpenDatabaseHook {
 
 	private final AuthorManager authorManager;
 	private final ForumFactory forumFactory;
@@ -75,6 +78,12 @@ class ForumManagerImpl extends BdfIncomingMessageHook implements ForumManager {
 		removeHooks = new CopyOnWriteArrayList<>();
 	}
 
+	@Override
+	public void onDatabaseOpened(Transaction txn) throws DbException {
+		// Send forum posts after other clients' messages
+		db.setSendPriority(txn, CLIENT_ID, MAJOR_VERSION, BULK);
+	}
+
 	@Override
 	protected DeliveryAction incomingMessage(Transaction txn, Message m,
 			BdfList body, BdfDictionary meta)
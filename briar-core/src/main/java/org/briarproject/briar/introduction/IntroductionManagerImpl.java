@@ -72,6 +72,7 @@ import static org.briarproject.briar.introduction.MessageType.ACTIVATE;
 import static org.briarproject.briar.introduction.MessageType.AUTH;
 import static org.briarproject.briar.introduction.MessageType.DECLINE;
 import static org.briarproject.briar.introduction.MessageType.REQUEST;
+import static org.briarproject.briar.util.ConversationUtils.getPageMetadata;
 
 @Immutable
 @NotNullByDefault
@@ -422,20 +423,29 @@ class IntroductionManagerImpl extends ConversationClientImpl
 	@Override
 	public Collection<ConversationMessageHeader> getMessageHeaders(
 			Transaction txn, ContactId c) throws DbException {
+		return getMessageHeaders(txn, c, Long.MAX_VALUE, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public List<ConversationMessageHeader> getMessageHeaders(Transaction txn,
+			ContactId c, long before, int limit) throws DbException {
 		try {
 			Contact contact = db.getContact(txn, c);
 			GroupId contactGroupId = getContactGroup(contact).getId();
 			BdfDictionary query = messageParser.getMessagesVisibleInUiQuery();
-			Map<MessageId, BdfDictionary> results = clientHelper
-					.getMessageMetadataAsDictionary(txn, contactGroupId, query);
+			Map<MessageId, MessageMetadata> page = getPageMetadata(
+					clientHelper, txn, contactGroupId, query, before, limit,
+					this::parseVisibleMetadata, MessageMetadata::getTimestamp);
+			// Create headers for the messages on the page
+			Map<MessageId, MessageStatus> statuses = db.getMessageStatus(txn,
+					c, new ArrayList<>(page.keySet()));
 			List<ConversationMessageHeader> messages =
-					new ArrayList<>(results.size());
+					new ArrayList<>(page.size());
 			Map<AuthorId, AuthorInfo> authorInfos = new HashMap<>();
-			for (Entry<MessageId, BdfDictionary> e : results.entrySet()) {
+			for (Entry<MessageId, MessageMetadata> e : page.entrySet()) {
 				MessageId m = e.getKey();
-				MessageMetadata meta =
-						messageParser.parseMetadata(e.getValue());
-				MessageStatus status = db.getMessageStatus(txn, c, m);
+				MessageMetadata meta = e.getValue();
+				MessageStatus status = statuses.get(m);
 				StoredSession ss = getSession(txn, meta.getSessionId());
 				if (ss == null) throw new AssertionError();
 				MessageType type = meta.getMessageType();
@@ -445,7 +455,7 @@ class IntroductionManagerImpl extends ConversationClientImpl
 				} else if (type == ACCEPT) {
 					messages.add(parseInvitationResponse(txn, contactGroupId, m,
 							meta, status, ss.bdfSession, authorInfos, true));
-				} else if (type == DECLINE) {
+				} else {
 					messages.add(parseInvitationResponse(txn, contactGroupId, m,
 							meta, status, ss.bdfSession, authorInfos, false));
 				}
@@ -456,6 +466,15 @@ class IntroductionManagerImpl extends ConversationClientImpl
 		}
 	}
 
+	@Nullable
+	private MessageMetadata parseVisibleMetadata(BdfDictionary meta)
+			throws FormatException {
+		MessageMetadata m = messageParser.parseMetadata(meta);
+		MessageType type = m.getMessageType();
+		if (type == REQUEST || type == ACCEPT || type == DECLINE) return m;
+		return null;
+	}
+
 	private IntroductionRequest parseInvitationRequest(Transaction txn,
 			GroupId contactGroupId, MessageId m, MessageMetadata meta,
 			MessageStatus status, SessionId sessionId,
@@ -63,6 +63,7 @@ import javax.inject.Inject;
 import static java.util.Collections.emptyList;
 import static java.util.logging.Logger.getLogger;
 import static org.briarproject.bramble.api.client.ContactGroupConstants.GROUP_KEY_CONTACT_ID;
+import static org.briarproject.bramble.api.sync.SendPriority.URGENT;
 import static org.briarproject.bramble.api.sync.SyncConstants.MAX_MESSAGE_BODY_LENGTH;
 import static org.briarproject.bramble.api.sync.validation.IncomingMessageHook.DeliveryAction.ACCEPT_DO_NOT_SHARE;
 import static org.briarproject.bramble.util.IoUtils.copyAndClose;
@@ -84,6 +85,7 @@ import static org.briarproject.briar.messaging.MessagingConstants.MSG_KEY_HAS_TE
 import static org.briarproject.briar.messaging.MessagingConstants.MSG_KEY_LOCAL;
 import static org.briarproject.briar.messaging.MessagingConstants.MSG_KEY_MSG_TYPE;
 import static org.briarproject.briar.messaging.MessagingConstants.MSG_KEY_TIMESTAMP;
+import static org.briarproject.briar.util.ConversationUtils.getPageMetadata;
 
 @Immutable
 @NotNullByDefault
@@ -133,6 +135,8 @@ class MessagingManagerImpl implements MessagingManager, IncomingMessageHook,
 
 	@Override
 	public void onDatabaseOpened(Transaction txn) throws DbException {
+		// Send private messages ahead of other clients' messages
+		db.setSendPriority(txn, CLIENT_ID, MAJOR_VERSION, URGENT);
 		// Create a local group to indicate that we've set this client up
 		Group localGroup = contactGroupFactory.createLocalGroup(CLIENT_ID,
 				MAJOR_VERSION);
@@ -414,29 +418,11 @@ class MessagingManagerImpl implements MessagingManager, IncomingMessageHook,
 		}
 		Collection<ConversationMessageHeader> headers = new ArrayList<>();
 		for (MessageStatus s : statuses) {
-			MessageId id = s.getMessageId();
-			BdfDictionary meta = metadata.get(id);
+			BdfDictionary meta = metadata.get(s.getMessageId());
 			if (meta == null) continue;
 			try {
-				// Message type is null for version 0.0 private messages
-				Integer messageType = meta.getOptionalInt(MSG_KEY_MSG_TYPE);
-				if (messageType != null && messageType != PRIVATE_MESSAGE)
-					continue;
-				long timestamp = meta.getLong(MSG_KEY_TIMESTAMP);
-				boolean local = meta.getBoolean(MSG_KEY_LOCAL);
-				boolean read = meta.getBoolean(MSG_KEY_READ);
-				if (messageType == null) {
-					headers.add(new PrivateMessageHeader(id, g, timestamp,
-							local, read, s.isSent(), s.isSeen(), true,
-							emptyList(), NO_AUTO_DELETE_TIMER));
-				} else {
-					boolean hasText = meta.getBoolean(MSG_KEY_HAS_TEXT);
-					long timer = meta.getLong(MSG_KEY_AUTO_DELETE_TIMER,
-							NO_AUTO_DELETE_TIMER);
-					headers.add(new PrivateMessageHeader(id, g, timestamp,
-							local, read, s.isSent(), s.isSeen(), hasText,
-							parseAttachmentHeaders(g, meta), timer));
-				}
+				if (isPrivateMessage(meta))
+					headers.add(createMessageHeader(g, meta, s));
 			} catch (FormatException e) {
 				throw new DbException(e);
 			}
@@ -444,6 +430,57 @@ class MessagingManagerImpl implements MessagingManager, IncomingMessageHook,
 		return headers;
 	}
 
+	@Override
+	public List<ConversationMessageHeader> getMessageHeaders(Transaction txn,
+			ContactId c, long before, int limit) throws DbException {
+		try {
+			GroupId g = getContactGroup(db.getContact(txn, c)).getId();
+			Map<MessageId, BdfDictionary> page = getPageMetadata(clientHelper,
+					txn, g, new BdfDictionary(), before, limit,
+					meta -> isPrivateMessage(meta) ? meta : null,
+					meta -> meta.getLong(MSG_KEY_TIMESTAMP));
+			// Create headers for the messages on the page
+			Map<MessageId, MessageStatus> statuses = db.getMessageStatus(txn,
+					c, new ArrayList<>(page.keySet()));
+			List<ConversationMessageHeader> headers =
+					new ArrayList<>(page.size());
+			for (Entry<MessageId, BdfDictionary> e : page.entrySet()) {
+				headers.add(createMessageHeader(g, e.getValue(),
+						statuses.get(e.getKey())));
+			}
+			return headers;
+		} catch (FormatException e) {
+			throw new DbException(e);
+		}
+	}
+
+	private boolean isPrivateMessage(BdfDictionary meta)
+			throws FormatException {
+		// Message type is null for version 0.0 private messages
+		Integer messageType = meta.getOptionalInt(MSG_KEY_MSG_TYPE);
+		return messageType == null || messageType == PRIVATE_MESSAGE;
+	}
+
+	private PrivateMessageHeader createMessageHeader(GroupId g,
+			BdfDictionary meta, MessageStatus s) throws FormatException {
+		MessageId id = s.getMessageId();
+		Integer messageType = meta.getOptionalInt(MSG_KEY_MSG_TYPE);
+		long timestamp = meta.getLong(MSG_KEY_TIMESTAMP);
+		boolean local = meta.getBoolean(MSG_KEY_LOCAL);
+		boolean read = meta.getBoolean(MSG_KEY_READ);
+		if (messageType == null) {
+			return new PrivateMessageHeader(id, g, timestamp, local, read,
+					s.isSent(), s.isSeen(), true, emptyList(),
+					NO_AUTO_DELETE_TIMER);
+		}
+		boolean hasText = meta.getBoolean(MSG_KEY_HAS_TEXT);
+		long timer = meta.getLong(MSG_KEY_AUTO_DELETE_TIMER,
+				NO_AUTO_DELETE_TIMER);
+		return new PrivateMessageHeader(id, g, timestamp, local, read,
+				s.isSent(), s.isSeen(), hasText,
+				parseAttachmentHeaders(g, meta), timer);
+	}
+
 	@Override
 	public Set<MessageId> getMessageIds(Transaction txn, ContactId c)
 			throws DbException {
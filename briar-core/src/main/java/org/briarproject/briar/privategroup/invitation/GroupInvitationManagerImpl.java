@@ -70,6 +70,7 @@ import static org.briarproject.briar.privategroup.invitation.MessageType.LEAVE;
 import static org.briarproject.briar.privategroup.invitation.Role.CREATOR;
 import static org.briarproject.briar.privategroup.invitation.Role.INVITEE;
 import static org.briarproject.briar.privategroup.invitation.Role.PEER;
+import static org.briarproject.briar.util.ConversationUtils.getPageMetadata;
 
 @Immutable
 @NotNullByDefault
@@ -451,19 +452,28 @@ class GroupInvitationManagerImpl extends ConversationClientImpl
 	public Collection<ConversationMessageHeader> getMessageHeaders(
 			Transaction txn,
 			ContactId c) throws DbException {
+		return getMessageHeaders(txn, c, Long.MAX_VALUE, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public List<ConversationMessageHeader> getMessageHeaders(Transaction txn,
+			ContactId c, long before, int limit) throws DbException {
 		try {
 			Contact contact = db.getContact(txn, c);
 			GroupId contactGroupId = getContactGroup(contact).getId();
 			BdfDictionary query = messageParser.getMessagesVisibleInUiQuery();
-			Map<MessageId, BdfDictionary> results = clientHelper
-					.getMessageMetadataAsDictionary(txn, contactGroupId, query);
+			Map<MessageId, MessageMetadata> page = getPageMetadata(
+					clientHelper, txn, contactGroupId, query, before, limit,
+					this::parseVisibleMetadata, MessageMetadata::getTimestamp);
+			// Create headers for the messages on the page
+			Map<MessageId, MessageStatus> statuses = db.getMessageStatus(txn,
+					c, new ArrayList<>(page.keySet()));
 			List<ConversationMessageHeader> messages =
-					new ArrayList<>(results.size());
-			for (Entry<MessageId, BdfDictionary> e : results.entrySet()) {
+					new ArrayList<>(page.size());
+			for (Entry<MessageId, MessageMetadata> e : page.entrySet()) {
 				MessageId m = e.getKey();
-				MessageMetadata meta =
-						messageParser.parseMetadata(e.getValue());
-				MessageStatus status = db.getMessageStatus(txn, c, m);
+				MessageMetadata meta = e.getValue();
+				MessageStatus status = statuses.get(m);
 				MessageType type = meta.getMessageType();
 				if (type == INVITE) {
 					messages.add(parseInvitationRequest(txn, contactGroupId, m,
@@ -471,7 +481,7 @@ class GroupInvitationManagerImpl extends ConversationClientImpl
 				} else if (type == JOIN) {
 					messages.add(parseInvitationResponse(contactGroupId, m,
 							meta, status, true));
-				} else if (type == LEAVE) {
+				} else {
 					messages.add(parseInvitationResponse(contactGroupId, m,
 							meta, status, false));
 				}
@@ -482,6 +492,15 @@ class GroupInvitationManagerImpl extends ConversationClientImpl
 		}
 	}
 
+	@Nullable
+	private MessageMetadata parseVisibleMetadata(BdfDictionary meta)
+			throws FormatException {
+		MessageMetadata m = messageParser.parseMetadata(meta);
+		MessageType type = m.getMessageType();
+		if (type == INVITE || type == JOIN || type == LEAVE) return m;
+		return null;
+	}
+
 	private GroupInvitationRequest parseInvitationRequest(Transaction txn,
 			GroupId contactGroupId, MessageId m, MessageMetadata meta,
 			MessageStatus status) throws DbException, FormatException {
@@ -64,6 +64,7 @@ import static org.briarproject.briar.sharing.State.REMOTE_HANGING;
 import static org.briarproject.briar.sharing.State.REMOTE_INVITED;
 import static org.briarproject.briar.sharing.State.SHARING;
 import static org.briarproject.briar.sharing.State.START;
+import static org.briarproject.briar.util.ConversationUtils.getPageMetadata;
 
 @NotNullByDefault
 abstract class SharingManagerImpl<S extends Shareable>
@@ -353,19 +354,28 @@ abstract class SharingManagerImpl<S extends Shareable>
 	@Override
 	public Collection<ConversationMessageHeader> getMessageHeaders(
 			Transaction txn, ContactId c) throws DbException {
+		return getMessageHeaders(txn, c, Long.MAX_VALUE, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public List<ConversationMessageHeader> getMessageHeaders(Transaction txn,
+			ContactId c, long before, int limit) throws DbException {
 		try {
 			Contact contact = db.getContact(txn, c);
 			GroupId contactGroupId = getContactGroup(contact).getId();
 			BdfDictionary query = messageParser.getMessagesVisibleInUiQuery();
-			Map<MessageId, BdfDictionary> results = clientHelper
-					.getMessageMetadataAsDictionary(txn, contactGroupId, query);
-			Collection<ConversationMessageHeader> messages =
-					new ArrayList<>(results.size());
-			for (Entry<MessageId, BdfDictionary> e : results.entrySet()) {
+			Map<MessageId, MessageMetadata> page = getPageMetadata(
+					clientHelper, txn, contactGroupId, query, before, limit,
+					this::parseVisibleMetadata, MessageMetadata::getTimestamp);
+			// Create headers for the messages on the page
+			Map<MessageId, MessageStatus> statuses = db.getMessageStatus(txn,
+					c, new ArrayList<>(page.keySet()));
+			List<ConversationMessageHeader> messages =
+					new ArrayList<>(page.size());
+			for (Entry<MessageId, MessageMetadata> e : page.entrySet()) {
 				MessageId m = e.getKey();
-				MessageMetadata meta =
-						messageParser.parseMetadata(e.getValue());
-				MessageStatus status = db.getMessageStatus(txn, c, m);
+				MessageMetadata meta = e.getValue();
+				MessageStatus status = statuses.get(m);
 				MessageType type = meta.getMessageType();
 				if (type == INVITE) {
 					messages.add(parseInvitationRequest(txn, c, m,
@@ -373,7 +383,7 @@ abstract class SharingManagerImpl<S extends Shareable>
 				} else if (type == ACCEPT) {
 					messages.add(parseInvitationResponse(contactGroupId, m,
 							meta, status, true));
-				} else if (type == DECLINE) {
+				} else {
 					messages.add(parseInvitationResponse(contactGroupId, m,
 							meta, status, false));
 				}
@@ -384,6 +394,15 @@ abstract class SharingManagerImpl<S extends Shareable>
 		}
 	}
 
+	@Nullable
+	private MessageMetadata parseVisibleMetadata(BdfDictionary meta)
+			throws FormatException {
+		MessageMetadata m = messageParser.parseMetadata(meta);
+		MessageType type = m.getMessageType();
+		if (type == INVITE || type == ACCEPT || type == DECLINE) return m;
+		return null;
+	}
+
 	private ConversationRequest<S> parseInvitationRequest(Transaction txn,
 			ContactId c, MessageId m, MessageMetadata meta,
 			MessageStatus status) throws DbException, FormatException {
@@ -0,0 +1,130 @@
+package org.briarproject.briar.util;
+
+import org.briarproject.bramble.api.FormatException;
+import org.briarproject.bramble.api.client.ClientHelper;
+import org.briarproject.bramble.api.data.BdfDictionary;
+import org.briarproject.bramble.api.db.DbException;
+import org.briarproject.bramble.api.db.Transaction;
+import org.briarproject.bramble.api.sync.GroupId;
+import org.briarproject.bramble.api.sync.MessageId;
+import org.briarproject.nullsafety.NotNullByDefault;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+import static java.util.Collections.emptyMap;
+
+@Immutable
+@NotNullByDefault
+public class ConversationUtils {
+
+	/**
+	 * Returns the IDs of the messages that belong on a page of conversation
+	 * headers, given the timestamps of the messages in the conversation. The
+	 * page contains up to the given number of messages with timestamps
+	 * earlier than the given timestamp, sorted from newest to oldest.
+	 * <p>
+	 * If several messages share the timestamp of the oldest message on a
+	 * full page, they are all included, so the page may contain more
+	 * messages than the limit. The next page can then be requested with the
+	 * oldest timestamp on this page without skipping any messages.
+	 */
+	public static List<MessageId> getPage(Map<MessageId, Long> timestamps,
+			long before, int limit) {
+		List<Entry<MessageId, Long>> candidates = new ArrayList<>();
+		for (Entry<MessageId, Long> e : timestamps.entrySet()) {
+			if (e.getValue() < before) candidates.add(e);
+		}
+		// Sort the candidates from newest to oldest
+		Collections.sort(candidates,
+				(a, b) -> Long.compare(b.getValue(), a.getValue()));
+		List<MessageId> page =
+				new ArrayList<>(Math.min(limit, candidates.size()));
+		long oldest = Long.MAX_VALUE;
+		for (Entry<MessageId, Long> e : candidates) {
+			long timestamp = e.getValue();
+			if (page.size() >= limit && timestamp < oldest) break;
+			page.add(e.getKey());
+			oldest = timestamp;
+		}
+		return page;
+	}
+
+	/**
+	 * Loads and parses the metadata of the messages that belong on a page of
+	 * conversation headers, as defined by {@link #getPage(Map, long, int)}.
+	 * Only messages in the given group with metadata that matches the given
+	 * query are considered, and messages for which the parser returns null
+	 * are skipped. The metadata is returned in page order, from newest to
+	 * oldest.
+	 * <p>
+	 * The database only returns the newest matching messages, so the
+	 * metadata of older messages isn't loaded. If some of the messages are
+	 * skipped, more messages are loaded until the page is full.
+	 */
+	public static <M> Map<MessageId, M> getPageMetadata(
+			ClientHelper clientHelper, Transaction txn, GroupId g,
+			BdfDictionary query, long before, int limit,
+			PageMetadataParser<M> parser, TimestampGetter<M> timestampGetter)
+			throws DbException, FormatException {
+		if (limit <= 0) return emptyMap();
+		int toLoad = limit;
+		while (true) {
+			Map<MessageId, BdfDictionary> results;
+			if (before == Long.MAX_VALUE && limit == Integer.MAX_VALUE) {
+				// The page is unbounded, so load all the metadata at once
+				results = clientHelper.getMessageMetadataAsDictionary(txn,
+						g, query);
+			} else {
+				results = clientHelper.getMessageMetadataAsDictionary(txn,
+						g, query, before, toLoad);
+			}
+			Map<MessageId, M> metadata = new HashMap<>(results.size());
+			Map<MessageId, Long> timestamps = new HashMap<>(results.size());
+			for (Entry<MessageId, BdfDictionary> e : results.entrySet()) {
+				M meta = parser.parseMetadata(e.getValue());
+				if (meta != null) {
+					metadata.put(e.getKey(), meta);
+					timestamps.put(e.getKey(),
+							timestampGetter.getTimestamp(meta));
+				}
+			}
+			// If fewer messages were loaded than requested, there are no
+			// older messages to load
+			if (timestamps.size() >= limit || results.size() < toLoad) {
+				Map<MessageId, M> page = new LinkedHashMap<>();
+				for (MessageId m : getPage(timestamps, before, limit))
+					page.put(m, metadata.get(m));
+				return page;
+			}
+			// Some messages were skipped, so load more messages
+			toLoad = toLoad > Integer.MAX_VALUE / 2 ?
+					Integer.MAX_VALUE : toLoad * 2;
+		}
+	}
+
+	@NotNullByDefault
+	public interface PageMetadataParser<M> {
+
+		/**
+		 * Parses the given metadata, or returns null if the message doesn't
+		 * belong in the conversation.
+		 */
+		@Nullable
+		M parseMetadata(BdfDictionary meta) throws FormatException;
+	}
+
+	@NotNullByDefault
+	public interface TimestampGetter<M> {
+
+		long getTimestamp(M meta) throws FormatException;
+	}
+}
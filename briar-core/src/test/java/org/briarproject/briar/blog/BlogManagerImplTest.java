@@ -33,6 +33,7 @@ import org.briarproject.briar.api.identity.AuthorManager;
 import org.jmock.Expectations;
 import org.junit.Test;
 
+import static org.briarproject.bramble.api.sync.SendPriority.BULK;
 import static org.briarproject.bramble.api.sync.validation.IncomingMessageHook.DeliveryAction.ACCEPT_SHARE;
 import static org.briarproject.bramble.test.TestUtils.getContact;
 import static org.briarproject.bramble.test.TestUtils.getGroup;
@@ -116,6 +117,7 @@ public class BlogManagerImplTest extends BrambleMockTestCase {
 		Transaction txn = new Transaction(null, false);
 
 		context.checking(new Expectations() {{
+			oneOf(db).setSendPriority(txn, CLIENT_ID, MAJOR_VERSION, BULK);
 			oneOf(identityManager).getLocalAuthor(txn);
 			will(returnValue(blog1.getAuthor()));
 			oneOf(blogFactory).createBlog(blog1.getAuthor());
@@ -3,23 +3,29 @@ package org.briarproject.briar.client;
 import org.briarproject.bramble.api.client.ClientHelper;
 import org.briarproject.bramble.api.data.BdfDictionary;
 import org.briarproject.bramble.api.data.BdfEntry;
+import org.briarproject.bramble.api.db.CommitAction;
 import org.briarproject.bramble.api.db.DatabaseComponent;
+import org.briarproject.bramble.api.db.TaskAction;
 import org.briarproject.bramble.api.db.Transaction;
+import org.briarproject.bramble.api.sync.Group;
 import org.briarproject.bramble.api.sync.GroupId;
 import org.briarproject.bramble.api.sync.MessageId;
+import org.briarproject.bramble.api.sync.event.GroupRemovedEvent;
 import org.briarproject.bramble.api.system.Clock;
 import org.briarproject.bramble.test.BrambleMockTestCase;
 import org.briarproject.bramble.test.TestUtils;
-import org.briarproject.briar.api.client.MessageTracker;
+import org.briarproject.briar.api.client.MessageTracker.GroupCount;
 import org.jmock.Expectations;
 import org.junit.Test;
 
+import static org.briarproject.bramble.test.TestUtils.getClientId;
 import static org.briarproject.briar.client.MessageTrackerConstants.GROUP_KEY_LATEST_MSG;
 import static org.briarproject.briar.client.MessageTrackerConstants.GROUP_KEY_MSG_COUNT;
 import static org.briarproject.briar.client.MessageTrackerConstants.GROUP_KEY_STORED_MESSAGE_ID;
 import static org.briarproject.briar.client.MessageTrackerConstants.GROUP_KEY_UNREAD_COUNT;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
 
 public class MessageTrackerTest extends BrambleMockTestCase {
 
@@ -29,7 +35,7 @@ public class MessageTrackerTest extends BrambleMockTestCase {
 	private final DatabaseComponent db = context.mock(DatabaseComponent.class);
 	private final Clock clock = context.mock(Clock.class);
 	private final MessageId messageId = new MessageId(TestUtils.getRandomId());
-	private final MessageTracker messageTracker =
+	private final MessageTrackerImpl messageTracker =
 			new MessageTrackerImpl(db, clientHelper, clock);
 	private final BdfDictionary dictionary = BdfDictionary.of(
 			new BdfEntry(GROUP_KEY_STORED_MESSAGE_ID, messageId)
@@ -71,4 +77,74 @@ public class MessageTrackerTest extends BrambleMockTestCase {
 		assertEquals(messageId, loadedId);
 	}
 
+	@Test
+	public void testGroupCountIsCachedForReadOnlyTransactions()
+			throws Exception {
+		Transaction txn = new Transaction(null, true);
+		BdfDictionary dictionary = BdfDictionary.of(
+				new BdfEntry(GROUP_KEY_MSG_COUNT, 2),
+				new BdfEntry(GROUP_KEY_UNREAD_COUNT, 1),
+				new BdfEntry(GROUP_KEY_LATEST_MSG, 123L)
+		);
+		context.checking(new Expectations() {{
+			// The metadata is only loaded the first time
+			oneOf(clientHelper).getGroupMetadataAsDictionary(txn, groupId);
+			will(returnValue(dictionary));
+		}});
+		GroupCount c = messageTracker.getGroupCount(txn, groupId);
+		assertEquals(2, c.getMsgCount());
+		assertEquals(1, c.getUnreadCount());
+		assertEquals(123L, c.getLatestMsgTime());
+		assertSame(c, messageTracker.getGroupCount(txn, groupId));
+	}
+
+	@Test
+	public void testStoredGroupCountIsCachedWhenCommitted()
+			throws Exception {
+		Transaction txn = new Transaction(null, false);
+		Transaction txn1 = new Transaction(null, true);
+		long now = 42L;
+		BdfDictionary dictionary = BdfDictionary.of(
+				new BdfEntry(GROUP_KEY_MSG_COUNT, 0),
+				new BdfEntry(GROUP_KEY_UNREAD_COUNT, 0),
+				new BdfEntry(GROUP_KEY_LATEST_MSG, now)
+		);
+		context.checking(new Expectations() {{
+			oneOf(clock).currentTimeMillis();
+			will(returnValue(now));
+			oneOf(clientHelper).mergeGroupMetadata(txn, groupId, dictionary);
+		}});
+		messageTracker.initializeGroupCount(txn, groupId);
+		// The cache is updated when the transaction is committed
+		runCommitActions(txn);
+		// The count should be returned without loading the metadata
+		GroupCount c = messageTracker.getGroupCount(txn1, groupId);
+		assertEquals(0, c.getMsgCount());
+		assertEquals(0, c.getUnreadCount());
+		assertEquals(now, c.getLatestMsgTime());
+	}
+
+	@Test
+	public void testCachedGroupCountIsRemovedWithGroup() throws Exception {
+		Transaction txn = new Transaction(null, true);
+		Group group = new Group(groupId, getClientId(), 123, new byte[0]);
+		BdfDictionary dictionary = BdfDictionary.of(
+				new BdfEntry(GROUP_KEY_MSG_COUNT, 2)
+		);
+		context.checking(new Expectations() {{
+			// The metadata is loaded again after the group is removed
+			exactly(2).of(clientHelper)
+					.getGroupMetadataAsDictionary(txn, groupId);
+			will(returnValue(dictionary));
+		}});
+		messageTracker.getGroupCount(txn, groupId);
+		messageTracker.eventOccurred(new GroupRemovedEvent(group));
+		messageTracker.getGroupCount(txn, groupId);
+	}
+
+	private void runCommitActions(Transaction txn) {
+		for (CommitAction a : txn.getActions()) {
+			((TaskAction) a).getTask().run();
+		}
+	}
 }
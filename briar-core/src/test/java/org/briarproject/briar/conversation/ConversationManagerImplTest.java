@@ -0,0 +1,165 @@
+package org.briarproject.briar.conversation;
+
+import org.briarproject.bramble.api.client.ClientHelper;
+import org.briarproject.bramble.api.contact.Contact;
+import org.briarproject.bramble.api.contact.ContactId;
+import org.briarproject.bramble.api.db.DatabaseComponent;
+import org.briarproject.bramble.api.db.Transaction;
+import org.briarproject.bramble.api.sync.Group;
+import org.briarproject.bramble.api.sync.GroupId;
+import org.briarproject.bramble.api.sync.MessageId;
+import org.briarproject.bramble.api.system.Clock;
+import org.briarproject.bramble.test.BrambleMockTestCase;
+import org.briarproject.briar.api.client.MessageTracker;
+import org.briarproject.briar.api.client.MessageTracker.GroupCount;
+import org.briarproject.briar.api.conversation.ConversationManager.ConversationClient;
+import org.briarproject.briar.api.conversation.ConversationMessageHeader;
+import org.briarproject.briar.api.messaging.PrivateMessageHeader;
+import org.jmock.Expectations;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static org.briarproject.bramble.test.TestUtils.getClientId;
+import static org.briarproject.bramble.test.TestUtils.getContact;
+import static org.briarproject.bramble.test.TestUtils.getContactId;
+import static org.briarproject.bramble.test.TestUtils.getGroup;
+import static org.briarproject.bramble.test.TestUtils.getRandomId;
+import static org.briarproject.briar.api.autodelete.AutoDeleteConstants.NO_AUTO_DELETE_TIMER;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ConversationManagerImplTest extends BrambleMockTestCase {
+
+	private final DatabaseComponent db = context.mock(DatabaseComponent.class);
+	private final MessageTracker messageTracker =
+			context.mock(MessageTracker.class);
+	private final Clock clock = context.mock(Clock.class);
+	private final ClientHelper clientHelper = context.mock(ClientHelper.class);
+	private final ConversationClient client1 =
+			context.mock(ConversationClient.class, "client1");
+	private final ConversationClient client2 =
+			context.mock(ConversationClient.class, "client2");
+
+	private final ConversationManagerImpl conversationManager =
+			new ConversationManagerImpl(db, messageTracker, clock,
+					clientHelper);
+	private final Transaction txn = new Transaction(null, true);
+	private final ContactId contactId = getContactId();
+	private final GroupId groupId = new GroupId(getRandomId());
+
+	@Test
+	public void testPagesFromClientsAreMerged() throws Exception {
+		ConversationMessageHeader h1 = createHeader(100);
+		ConversationMessageHeader h2 = createHeader(90);
+		ConversationMessageHeader h3 = createHeader(80);
+		ConversationMessageHeader h4 = createHeader(70);
+		ConversationMessageHeader h5 = createHeader(60);
+		conversationManager.registerConversationClient(client1);
+		conversationManager.registerConversationClient(client2);
+
+		context.checking(new Expectations() {{
+			oneOf(client1).getMessageHeaders(txn, contactId, 110, 3);
+			will(returnValue(asList(h1, h3, h5)));
+			oneOf(client2).getMessageHeaders(txn, contactId, 110, 3);
+			will(returnValue(asList(h2, h4)));
+		}});
+
+		// The newest headers from both clients should be returned
+		assertEquals(asList(h1, h2, h3), conversationManager
+				.getMessageHeaders(txn, contactId, 110, 3));
+	}
+
+	@Test
+	public void testHeadersWithOldestTimestampAreAllIncluded()
+			throws Exception {
+		ConversationMessageHeader h1 = createHeader(100);
+		ConversationMessageHeader h2 = createHeader(90);
+		ConversationMessageHeader h3 = createHeader(90);
+		ConversationMessageHeader h4 = createHeader(80);
+		conversationManager.registerConversationClient(client1);
+		conversationManager.registerConversationClient(client2);
+
+		context.checking(new Expectations() {{
+			oneOf(client1).getMessageHeaders(txn, contactId, Long.MAX_VALUE, 2);
+			will(returnValue(asList(h1, h2)));
+			oneOf(client2).getMessageHeaders(txn, contactId, Long.MAX_VALUE, 2);
+			will(returnValue(asList(h3, h4)));
+		}});
+
+		// The page is full after h2 or h3, but they share a timestamp so
+		// both should be included
+		List<ConversationMessageHeader> page = conversationManager
+				.getMessageHeaders(txn, contactId, Long.MAX_VALUE, 2);
+		assertEquals(3, page.size());
+		assertEquals(h1, page.get(0));
+		assertTrue(page.containsAll(asList(h2, h3)));
+	}
+
+	@Test
+	public void testEmptyPages() throws Exception {
+		conversationManager.registerConversationClient(client1);
+
+		context.checking(new Expectations() {{
+			oneOf(client1).getMessageHeaders(txn, contactId, 123, 10);
+			will(returnValue(emptyList()));
+		}});
+
+		assertEquals(emptyList(), conversationManager
+				.getMessageHeaders(txn, contactId, 123, 10));
+	}
+
+	@Test
+	public void testGroupCountsAreCombinedForEachContact() throws Exception {
+		Contact contact1 = getContact();
+		Contact contact2 = getContact();
+		Group group1a = getGroup(getClientId(), 123);
+		Group group1b = getGroup(getClientId(), 123);
+		Group group2a = getGroup(getClientId(), 123);
+		Group group2b = getGroup(getClientId(), 123);
+		conversationManager.registerConversationClient(client1);
+		conversationManager.registerConversationClient(client2);
+
+		context.checking(new Expectations() {{
+			oneOf(db).getContacts(txn);
+			will(returnValue(asList(contact1, contact2)));
+			oneOf(client1).getContactGroup(contact1);
+			will(returnValue(group1a));
+			oneOf(messageTracker).getGroupCount(txn, group1a.getId());
+			will(returnValue(new GroupCount(3, 1, 100)));
+			oneOf(client2).getContactGroup(contact1);
+			will(returnValue(group1b));
+			oneOf(messageTracker).getGroupCount(txn, group1b.getId());
+			will(returnValue(new GroupCount(2, 2, 200)));
+			oneOf(client1).getContactGroup(contact2);
+			will(returnValue(group2a));
+			oneOf(messageTracker).getGroupCount(txn, group2a.getId());
+			will(returnValue(new GroupCount(0, 0, 300)));
+			oneOf(client2).getContactGroup(contact2);
+			will(returnValue(group2b));
+			oneOf(messageTracker).getGroupCount(txn, group2b.getId());
+			will(returnValue(new GroupCount(4, 0, 50)));
+		}});
+
+		Map<ContactId, GroupCount> counts =
+				conversationManager.getGroupCounts(txn);
+		assertEquals(2, counts.size());
+		GroupCount count1 = counts.get(contact1.getId());
+		assertEquals(5, count1.getMsgCount());
+		assertEquals(3, count1.getUnreadCount());
+		assertEquals(200, count1.getLatestMsgTime());
+		GroupCount count2 = counts.get(contact2.getId());
+		assertEquals(4, count2.getMsgCount());
+		assertEquals(0, count2.getUnreadCount());
+		assertEquals(300, count2.getLatestMsgTime());
+	}
+
+	private ConversationMessageHeader createHeader(long timestamp) {
+		return new PrivateMessageHeader(new MessageId(getRandomId()), groupId,
+				timestamp, true, true, true, true, true, emptyList(),
+				NO_AUTO_DELETE_TIMER);
+	}
+}
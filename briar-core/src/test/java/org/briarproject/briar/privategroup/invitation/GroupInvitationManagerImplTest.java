@@ -19,6 +19,7 @@ import org.briarproject.bramble.api.sync.Group;
 import org.briarproject.bramble.api.sync.GroupId;
 import org.briarproject.bramble.api.sync.Message;
 import org.briarproject.bramble.api.sync.MessageId;
+import org.briarproject.bramble.api.sync.MessageStatus;
 import org.briarproject.bramble.api.versioning.ClientVersioningManager;
 import org.briarproject.bramble.test.BrambleMockTestCase;
 import org.briarproject.bramble.test.DbExpectations;
@@ -734,6 +735,11 @@ public class GroupInvitationManagerImplTest extends BrambleMockTestCase {
 		Map<MessageId, BdfDictionary> results = new HashMap<>();
 		results.put(message.getId(), meta);
 		results.put(messageId2, meta2);
+		Map<MessageId, MessageStatus> statuses = new HashMap<>();
+		statuses.put(message.getId(),
+				new MessageStatus(message.getId(), contactId, true, false));
+		statuses.put(messageId2,
+				new MessageStatus(messageId2, contactId, false, false));
 		long time1 = 1L, time2 = 2L;
 		MessageMetadata messageMetadata1 =
 				new MessageMetadata(INVITE, privateGroup.getId(), time1, true,
@@ -760,10 +766,15 @@ public class GroupInvitationManagerImplTest extends BrambleMockTestCase {
 			oneOf(clientHelper).getMessageMetadataAsDictionary(txn,
 					contactGroup.getId(), query);
 			will(returnValue(results));
-			// first message
 			oneOf(messageParser).parseMetadata(meta);
 			will(returnValue(messageMetadata1));
-			oneOf(db).getMessageStatus(txn, contactId, message.getId());
+			oneOf(messageParser).parseMetadata(meta2);
+			will(returnValue(messageMetadata2));
+			// Newest message first
+			oneOf(db).getMessageStatus(txn, contactId,
+					asList(messageId2, message.getId()));
+			will(returnValue(statuses));
+			// first message
 			oneOf(messageParser).getInviteMessage(txn, message.getId());
 			will(returnValue(invite));
 			oneOf(privateGroupFactory).createPrivateGroup(invite.getGroupName(),
@@ -771,10 +782,6 @@ public class GroupInvitationManagerImplTest extends BrambleMockTestCase {
 			will(returnValue(pg));
 			oneOf(db).containsGroup(txn, privateGroup.getId());
 			will(returnValue(true));
-			// second message
-			oneOf(messageParser).parseMetadata(meta2);
-			will(returnValue(messageMetadata2));
-			oneOf(db).getMessageStatus(txn, contactId, messageId2);
 		}});
 
 		Collection<ConversationMessageHeader> messages =
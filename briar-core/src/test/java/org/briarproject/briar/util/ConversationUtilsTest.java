@@ -0,0 +1,150 @@
+package org.briarproject.briar.util;
+
+import org.briarproject.bramble.api.FormatException;
+import org.briarproject.bramble.api.client.ClientHelper;
+import org.briarproject.bramble.api.data.BdfDictionary;
+import org.briarproject.bramble.api.data.BdfEntry;
+import org.briarproject.bramble.api.db.Transaction;
+import org.briarproject.bramble.api.sync.GroupId;
+import org.briarproject.bramble.api.sync.MessageId;
+import org.briarproject.bramble.test.BrambleMockTestCase;
+import org.jmock.Expectations;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
+import static org.briarproject.bramble.test.TestUtils.getRandomId;
+import static org.briarproject.briar.util.ConversationUtils.getPage;
+import static org.briarproject.briar.util.ConversationUtils.getPageMetadata;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ConversationUtilsTest extends BrambleMockTestCase {
+
+	private final ClientHelper clientHelper =
+			context.mock(ClientHelper.class);
+
+	private final Transaction txn = new Transaction(null, true);
+	private final GroupId groupId = new GroupId(getRandomId());
+	private final BdfDictionary query = BdfDictionary.of(
+			new BdfEntry("visibleInUi", true));
+	private final MessageId m1 = new MessageId(getRandomId());
+	private final MessageId m2 = new MessageId(getRandomId());
+	private final MessageId m3 = new MessageId(getRandomId());
+	private final MessageId m4 = new MessageId(getRandomId());
+
+	@Test
+	public void testPageIsSortedFromNewestToOldest() {
+		Map<MessageId, Long> timestamps = new HashMap<>();
+		timestamps.put(m1, 10L);
+		timestamps.put(m2, 40L);
+		timestamps.put(m3, 30L);
+		timestamps.put(m4, 20L);
+
+		assertEquals(asList(m2, m3), getPage(timestamps, Long.MAX_VALUE, 2));
+		// The next page starts before the oldest timestamp on this page
+		assertEquals(asList(m4, m1), getPage(timestamps, 30L, 2));
+		assertEquals(emptyList(), getPage(timestamps, 10L, 2));
+	}
+
+	@Test
+	public void testMessagesWithOldestTimestampAreAllIncluded() {
+		Map<MessageId, Long> timestamps = new HashMap<>();
+		timestamps.put(m1, 30L);
+		timestamps.put(m2, 20L);
+		timestamps.put(m3, 20L);
+		timestamps.put(m4, 10L);
+
+		List<MessageId> page = getPage(timestamps, Long.MAX_VALUE, 2);
+		assertEquals(3, page.size());
+		assertEquals(m1, page.get(0));
+		assertTrue(page.containsAll(asList(m2, m3)));
+		assertEquals(asList(m4), getPage(timestamps, 20L, 2));
+	}
+
+	@Test
+	public void testPageMetadataIsLoadedFromDatabase() throws Exception {
+		Map<MessageId, BdfDictionary> results = new HashMap<>();
+		results.put(m1, getMetadata(true, 20L));
+		results.put(m2, getMetadata(true, 40L));
+		results.put(m3, getMetadata(true, 20L));
+
+		context.checking(new Expectations() {{
+			oneOf(clientHelper).getMessageMetadataAsDictionary(txn, groupId,
+					query, 50L, 2);
+			will(returnValue(results));
+		}});
+
+		Map<MessageId, BdfDictionary> page = getPageMetadata(clientHelper,
+				txn, groupId, query, 50L, 2, this::parseVisibleMetadata,
+				meta -> meta.getLong("timestamp"));
+		List<MessageId> ids = new ArrayList<>(page.keySet());
+		assertEquals(3, ids.size());
+		assertEquals(m2, ids.get(0));
+		assertTrue(ids.containsAll(asList(m1, m3)));
+		assertEquals(results.get(m2), page.get(m2));
+	}
+
+	@Test
+	public void testMoreMessagesAreLoadedIfSomeAreSkipped() throws Exception {
+		Map<MessageId, BdfDictionary> results = new HashMap<>();
+		results.put(m1, getMetadata(false, 40L));
+		results.put(m2, getMetadata(true, 30L));
+		Map<MessageId, BdfDictionary> results1 = new HashMap<>(results);
+		results1.put(m3, getMetadata(true, 20L));
+		results1.put(m4, getMetadata(true, 10L));
+
+		context.checking(new Expectations() {{
+			// The first message is skipped, so the page isn't full
+			oneOf(clientHelper).getMessageMetadataAsDictionary(txn, groupId,
+					query, Long.MAX_VALUE, 2);
+			will(returnValue(results));
+			// Twice as many messages are loaded
+			oneOf(clientHelper).getMessageMetadataAsDictionary(txn, groupId,
+					query, Long.MAX_VALUE, 4);
+			will(returnValue(results1));
+		}});
+
+		Map<MessageId, BdfDictionary> page = getPageMetadata(clientHelper,
+				txn, groupId, query, Long.MAX_VALUE, 2,
+				this::parseVisibleMetadata, meta -> meta.getLong("timestamp"));
+		assertEquals(asList(m2, m3), new ArrayList<>(page.keySet()));
+	}
+
+	@Test
+	public void testUnboundedPageLoadsAllMetadata() throws Exception {
+		Map<MessageId, BdfDictionary> results = new HashMap<>();
+		results.put(m1, getMetadata(true, 10L));
+		results.put(m2, getMetadata(false, 20L));
+
+		context.checking(new Expectations() {{
+			oneOf(clientHelper).getMessageMetadataAsDictionary(txn, groupId,
+					query);
+			will(returnValue(results));
+		}});
+
+		Map<MessageId, BdfDictionary> page = getPageMetadata(clientHelper,
+				txn, groupId, query, Long.MAX_VALUE, Integer.MAX_VALUE,
+				this::parseVisibleMetadata, meta -> meta.getLong("timestamp"));
+		assertEquals(singletonList(m1), new ArrayList<>(page.keySet()));
+	}
+
+	private BdfDictionary getMetadata(boolean visible, long timestamp) {
+		return BdfDictionary.of(new BdfEntry("visible", visible),
+				new BdfEntry("timestamp", timestamp));
+	}
+
+	@Nullable
+	private BdfDictionary parseVisibleMetadata(BdfDictionary meta)
+			throws FormatException {
+		return meta.getBoolean("visible") ? meta : null;
+	}
+}
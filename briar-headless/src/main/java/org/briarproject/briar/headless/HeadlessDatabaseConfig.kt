@@ -12,4 +12,6 @@ internal class HeadlessDatabaseConfig(private val dbDir: File, private val keyDi
     override fun getDatabaseKeyDirectory() = keyDir
 
     override fun getKeyStrengthener(): KeyStrengthener? = null
+
+    override fun isConcurrentReadsEnabled() = false
 }
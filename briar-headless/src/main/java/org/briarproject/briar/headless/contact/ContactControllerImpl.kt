@@ -79,11 +79,12 @@ constructor(
     }
 
     override fun list(ctx: Context): Context {
+        // Load the counts first, so any contact added in the meantime is loaded separately
+        val counts = conversationManager.groupCounts
         val contacts = contactManager.contacts.map { contact ->
-            val latestMsgTime = conversationManager.getGroupCount(contact.id).latestMsgTime
+            val count = counts[contact.id] ?: conversationManager.getGroupCount(contact.id)
             val connected = connectionRegistry.isConnected(contact.id)
-            val unreadCount = conversationManager.getGroupCount(contact.id).unreadCount
-            contact.output(latestMsgTime, connected, unreadCount)
+            contact.output(count.latestMsgTime, connected, count.unreadCount)
         }
         return ctx.json(contacts)
     }
@@ -9,7 +9,7 @@ import org.bouncycastle.util.encoders.DecoderException
 import org.briarproject.bramble.api.contact.Contact
 import org.briarproject.bramble.api.contact.ContactId
 import org.briarproject.bramble.api.contact.ContactManager
-import org.briarproject.bramble.api.db.DatabaseExecutor
+import org.briarproject.bramble.api.db.DatabaseReadExecutor
 import org.briarproject.bramble.api.db.NoSuchContactException
 import org.briarproject.bramble.api.event.Event
 import org.briarproject.bramble.api.event.EventListener
@@ -57,7 +57,7 @@ constructor(
     private val privateMessageFactory: PrivateMessageFactory,
     private val contactManager: ContactManager,
     private val webSocketController: WebSocketController,
-    @DatabaseExecutor private val dbExecutor: Executor,
+    @DatabaseReadExecutor private val dbExecutor: Executor,
     private val objectMapper: ObjectMapper,
     private val clock: Clock
 ) : MessagingController, EventListener {
@@ -65,7 +65,16 @@ constructor(
     override fun list(ctx: Context): Context {
         val contact = getContact(ctx)
         val jsonVisitor = JsonVisitor(contact.id, messagingManager)
-        val messages = conversationManager.getMessageHeaders(contact.id)
+        val limit = ctx.queryParam("limit")
+        val headers = if (limit == null) {
+            conversationManager.getMessageHeaders(contact.id)
+        } else {
+            val before = ctx.queryParam("before")
+            conversationManager.getMessageHeaders(
+                contact.id, parseBefore(before), parseLimit(limit)
+            )
+        }
+        val messages = headers
             .sortedBy { it.timestamp }
             .map { header -> header.accept(jsonVisitor) }
         return ctx.json(messages)
@@ -96,6 +105,17 @@ constructor(
         return ctx.json(messageIdString)
     }
 
+    private fun parseBefore(before: String?): Long {
+        if (before == null) return Long.MAX_VALUE
+        return before.toLongOrNull() ?: throw BadRequestResponse("Invalid timestamp")
+    }
+
+    private fun parseLimit(limit: String): Int {
+        val l = limit.toIntOrNull()
+        if (l == null || l <= 0) throw BadRequestResponse("Invalid limit")
+        return l
+    }
+
     private fun deserializeMessageId(idString: String): MessageId {
         val idBytes = try {
             Base64.decode(idString)
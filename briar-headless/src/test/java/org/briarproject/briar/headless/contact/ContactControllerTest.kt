@@ -30,6 +30,7 @@ import org.briarproject.bramble.identity.output
 import org.briarproject.bramble.test.TestUtils.getPendingContact
 import org.briarproject.bramble.test.TestUtils.getRandomBytes
 import org.briarproject.bramble.util.StringUtils.getRandomString
+import org.briarproject.briar.api.client.MessageTracker.GroupCount
 import org.briarproject.briar.headless.ControllerTest
 import org.briarproject.briar.headless.getFromJson
 import org.briarproject.briar.headless.json.JsonDict
@@ -53,6 +54,7 @@ internal class ContactControllerTest : ControllerTest() {
 
     @Test
     fun testEmptyContactList() {
+        every { conversationManager.groupCounts } returns emptyMap()
         every { contactManager.contacts } returns emptyList<Contact>()
         every { ctx.json(emptyList<Any>()) } returns ctx
         controller.list(ctx)
@@ -61,10 +63,22 @@ internal class ContactControllerTest : ControllerTest() {
     @Test
     fun testList() {
         val connected = Random.nextBoolean()
+        val count = GroupCount(unreadCount + 1, unreadCount, timestamp)
+        every { conversationManager.groupCounts } returns mapOf(contact.id to count)
         every { contactManager.contacts } returns listOf(contact)
-        every { conversationManager.getGroupCount(contact.id).latestMsgTime } returns timestamp
         every { connectionRegistry.isConnected(contact.id) } returns connected
-        every { conversationManager.getGroupCount(contact.id).unreadCount } returns unreadCount
+        every { ctx.json(listOf(contact.output(timestamp, connected, unreadCount))) } returns ctx
+        controller.list(ctx)
+    }
+
+    @Test
+    fun testListContactAddedAfterCounts() {
+        val connected = Random.nextBoolean()
+        val count = GroupCount(unreadCount + 1, unreadCount, timestamp)
+        every { conversationManager.groupCounts } returns emptyMap()
+        every { contactManager.contacts } returns listOf(contact)
+        every { conversationManager.getGroupCount(contact.id) } returns count
+        every { connectionRegistry.isConnected(contact.id) } returns connected
         every { ctx.json(listOf(contact.output(timestamp, connected, unreadCount))) } returns ctx
         controller.list(ctx)
     }
@@ -78,6 +78,7 @@ internal class MessagingControllerImplTest : ControllerTest() {
     @Test
     fun list() {
         expectGetContact()
+        every { ctx.queryParam("limit") } returns null
         every { conversationManager.getMessageHeaders(contact.id) } returns listOf(header)
         every { messagingManager.getMessageText(message.id) } returns text
         every { ctx.json(listOf(header.output(contact.id, text))) } returns ctx
@@ -93,6 +94,7 @@ internal class MessagingControllerImplTest : ControllerTest() {
         )
 
         expectGetContact()
+        every { ctx.queryParam("limit") } returns null
         every { conversationManager.getMessageHeaders(contact.id) } returns listOf(request)
         every { ctx.json(listOf(request.output(contact.id))) } returns ctx
 
@@ -103,12 +105,48 @@ internal class MessagingControllerImplTest : ControllerTest() {
     fun testEmptyList() {
         every { ctx.pathParam("contactId") } returns contact.id.int.toString()
         every { contactManager.getContact(contact.id) } returns contact
+        every { ctx.queryParam("limit") } returns null
         every { conversationManager.getMessageHeaders(contact.id) } returns emptyList()
         every { ctx.json(emptyList<Any>()) } returns ctx
 
         controller.list(ctx)
     }
 
+    @Test
+    fun listPage() {
+        expectGetContact()
+        every { ctx.queryParam("limit") } returns "50"
+        every { ctx.queryParam("before") } returns timestamp.toString()
+        every {
+            conversationManager.getMessageHeaders(contact.id, timestamp, 50)
+        } returns listOf(header)
+        every { messagingManager.getMessageText(message.id) } returns text
+        every { ctx.json(listOf(header.output(contact.id, text))) } returns ctx
+
+        controller.list(ctx)
+    }
+
+    @Test
+    fun listFirstPage() {
+        expectGetContact()
+        every { ctx.queryParam("limit") } returns "50"
+        every { ctx.queryParam("before") } returns null
+        every {
+            conversationManager.getMessageHeaders(contact.id, Long.MAX_VALUE, 50)
+        } returns emptyList()
+        every { ctx.json(emptyList<Any>()) } returns ctx
+
+        controller.list(ctx)
+    }
+
+    @Test
+    fun listPageWithInvalidLimit() {
+        expectGetContact()
+        every { ctx.queryParam("limit") } returns "0"
+
+        assertThrows(BadRequestResponse::class.java) { controller.list(ctx) }
+    }
+
     @Test
     fun listInvalidContactId() {
         testInvalidContactId { controller.list(ctx) }